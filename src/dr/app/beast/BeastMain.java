@@ -33,6 +33,7 @@ import dr.app.plugin.PluginLoader;
 import dr.app.util.Arguments;
 import dr.app.util.Utils;
 import dr.inference.mcmc.MCMC;
+import dr.inference.mcmc.MarginalLikelihoodEstimator;
 import dr.inference.mcmcmc.MCMCMC;
 import dr.inference.mcmcmc.MCMCMCOptions;
 import dr.math.MathUtils;
@@ -155,6 +156,12 @@ public class BeastMain {
                 }
             }
 
+            // The parallel marginal likelihood estimator runs blocks of path parameters on copies of the model.
+            // These are parsed from the file again (as for the MC3 hot chains below) but without the log files,
+            // which have already been written, or the prerun as they are given the state to start from.
+            parser.addXMLObjectParser(new MarginalLikelihoodEstimator.Parser(
+                    new MarginalLikelihoodReplicaFactory(inputFile, additionalParsers, parserWarning, strictXML, version)), true);
+
             // Install the checkpointer. This creates a factory that returns
             // appropriate savers and loaders according to the user's options.
             new BeastCheckpointer();
@@ -208,6 +215,15 @@ public class BeastMain {
                 MCMCMC mc3 = new MCMCMC(chains, options);
                 Thread thread = new Thread(mc3);
                 thread.start();
+
+                // main() exits the VM once this returns so wait for the chains to finish
+                while (thread.isAlive()) {
+                    try {
+                        thread.join();
+                    } catch (InterruptedException ie) {
+                        // continue...
+                    }
+                }
             }
 
         } catch (java.io.IOException ioe) {
@@ -339,6 +355,7 @@ public class BeastMain {
                         new Arguments.Option("java", "Use Java only, no native implementations"),
                         new Arguments.LongOption("tests", "The number of full evaluation tests to perform (default 1000)"),
                         new Arguments.RealOption("threshold", 0.0, Double.MAX_VALUE, "Full evaluation test threshold (default 0.1)"),
+                        new Arguments.LongOption("test_frequency", "After the initial tests, perform a full evaluation test every n states (default 0 = never)"),
 
                         new Arguments.Option("adaptation_off", "Don't adapt operator sizes"),
                         new Arguments.RealOption("adaptation_target", 0.0, 1.0, "Target acceptance rate for adaptive operators (default 0.234)"),
@@ -350,6 +367,7 @@ public class BeastMain {
                         new Arguments.StringOption("beagle_multipartition", new String[]{"auto", "on", "off"},
                                 false, "BEAGLE: use multipartition extensions if available (default auto)"),
                         new Arguments.Option("beagle_CPU", "BEAGLE: use CPU instance"),
+                        new Arguments.Option("beagle_java", "BEAGLE: use the multithreaded Java implementation (resource -1)"),
                         new Arguments.Option("beagle_GPU", "BEAGLE: use GPU instance if available"),
                         new Arguments.Option("beagle_SSE", "BEAGLE: use SSE extensions if available"),
                         new Arguments.Option("beagle_SSE_off", "BEAGLE: turn off use of SSE extensions"),
@@ -372,12 +390,15 @@ public class BeastMain {
                         new Arguments.RealOption("mc3_delta", 0.0, Double.MAX_VALUE, "temperature increment parameter"),
                         new Arguments.RealArrayOption("mc3_temperatures", -1, "a comma-separated list of the hot chain temperatures"),
                         new Arguments.IntegerOption("mc3_swap", 1, Integer.MAX_VALUE, "frequency at which chains temperatures will be swapped"),
+                        new Arguments.Option("mc3_adjacent", "only swap chains with adjacent temperatures, pairs of chains waiting only for each other"),
 
                         new Arguments.StringOption("load_state", "FILENAME", "Specify a filename to load a saved state from"),
                         new Arguments.StringOption("save_stem", "FILENAME", "Specify a stem for the filenames to save states to"),
                         new Arguments.LongOption("save_at", "Specify a state at which to save a state file"),
                         new Arguments.LongOption("save_every", "Specify a frequency to save the state file"),
                         new Arguments.StringOption("save_state", "FILENAME", "Specify a filename to save state to"),
+                        new Arguments.StringOption("save_format", new String[]{"text", "binary"}, false, "Specify the format to save states in [default = text]"),
+                        new Arguments.IntegerOption("save_delta", 0, Integer.MAX_VALUE, "Number of saves that append only changed values between full binary snapshots [default = 0]"),
                         new Arguments.Option("force_resume", "Force resuming from a saved state"),
 
                         new Arguments.StringOption("citations_file", "FILENAME", "Specify a filename to write a citation list to"),
@@ -477,6 +498,11 @@ public class BeastMain {
                 System.setProperty("mcmc.evaluation.threshold", Double.toString(fullEvaluationThreshold));
             }
 
+            if (arguments.hasOption("test_frequency")) {
+                long fullEvaluationFrequency = arguments.getLongOption("test_frequency");
+                System.setProperty("mcmc.evaluation.frequency", Long.toString(fullEvaluationFrequency));
+            }
+
             if (arguments.hasOption("java")) {
                 useJava = true;
             }
@@ -522,6 +548,10 @@ public class BeastMain {
                 swapChainsEvery = arguments.getIntegerOption("mc3_swap");
             }
 
+            if (arguments.hasOption("mc3_adjacent")) {
+                System.setProperty(MCMCMCOptions.ADJACENT_SWAPS_PROPERTY, "true");
+            }
+
             usingMC3 = chainCount > 1;
         }
 
@@ -573,6 +603,8 @@ public class BeastMain {
 
         if (arguments.hasOption("beagle_order")) {
             System.setProperty("beagle.resource.order", arguments.getStringOption("beagle_order"));
+        } else if (arguments.hasOption("beagle_java")) {
+            System.setProperty("beagle.resource.order", "-1");
         }
 
         if (arguments.hasOption("beagle_instances")) {
@@ -657,6 +689,16 @@ public class BeastMain {
                 System.setProperty(BeastCheckpointer.SAVE_STEM, stemName);
             }
 
+            if (arguments.hasOption("save_format")) {
+                String format = arguments.getStringOption("save_format");
+                System.setProperty(BeastCheckpointer.SAVE_STATE_FORMAT, format);
+            }
+
+            if (arguments.hasOption("save_delta")) {
+                int deltaCount = arguments.getIntegerOption("save_delta");
+                System.setProperty(BeastCheckpointer.SAVE_STATE_DELTA, Integer.toString(deltaCount));
+            }
+
             if (arguments.hasOption("force_resume")) {
                 System.setProperty("force.resume", Boolean.TRUE.toString());
             }
@@ -0,0 +1,127 @@
+/*
+ * MarginalLikelihoodReplicaFactory.java
+ *
+ * Copyright (c) 2002-2015 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.app.beast;
+
+import dr.evomodelxml.tree.TreeLoggerParser;
+import dr.inference.mcmc.MarginalLikelihoodEstimator;
+import dr.inferencexml.loggers.LoggerParser;
+import dr.util.Version;
+import dr.xml.XMLParser;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.File;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Makes the copies of the model for the parallel marginal likelihood estimator by parsing the XML file
+ * again (as BeastMain does for the MC3 hot chains) but without the log files, which have already been
+ * written, or the prerun, as the copies are given the state to start from.
+ *
+ * @author Andrew Rambaut
+ * @author Guy Baele
+ */
+public class MarginalLikelihoodReplicaFactory implements MarginalLikelihoodEstimator.ReplicaFactory {
+
+    public MarginalLikelihoodReplicaFactory(File inputFile, List<String> additionalParsers,
+                                            boolean parserWarning, boolean strictXML, Version version) {
+        this.inputFile = inputFile;
+        this.additionalParsers = additionalParsers;
+        this.parserWarning = parserWarning;
+        this.strictXML = strictXML;
+        this.version = version;
+    }
+
+    @Override
+    public MarginalLikelihoodEstimator createReplica(int index) {
+        Logger logger = Logger.getLogger("dr");
+        Level level = logger.getLevel();
+        logger.setLevel(Level.OFF);
+        try {
+            Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(inputFile);
+            for (String tag : new String[]{LoggerParser.LOG, TreeLoggerParser.LOG_TREE}) {
+                NodeList elements = document.getElementsByTagName(tag);
+                for (int i = 0; i < elements.getLength(); i++) {
+                    ((Element) elements.item(i)).removeAttribute(LoggerParser.FILE_NAME);
+                    ((Element) elements.item(i)).removeAttribute(LoggerParser.FORMAT);
+                }
+            }
+            // the parse stops at the first estimator, so remove those before the one to copy
+            NodeList elements = document.getElementsByTagName(MarginalLikelihoodEstimator.MARGINAL_LIKELIHOOD_ESTIMATOR);
+            Element estimator = (Element) elements.item(index);
+            for (int i = index - 1; i >= 0; i--) {
+                elements.item(i).getParentNode().removeChild(elements.item(i));
+            }
+            estimator.removeAttribute(MarginalLikelihoodEstimator.PRERUN);
+            // elements without any ids can't be referred to so are only there for their output
+            // (e.g., the analyses and reports)
+            NodeList children = document.getDocumentElement().getChildNodes();
+            for (int i = children.getLength() - 1; i >= 0; i--) {
+                if (children.item(i) instanceof Element && children.item(i) != estimator && !hasId((Element) children.item(i))) {
+                    document.getDocumentElement().removeChild(children.item(i));
+                }
+            }
+
+            XMLParser parser = createParser();
+            MarginalLikelihoodEstimator replica = (MarginalLikelihoodEstimator) parser.parse(document, MarginalLikelihoodEstimator.class);
+            if (replica == null) {
+                throw new RuntimeException("BEAST XML file is missing the marginalLikelihoodEstimator element");
+            }
+            return replica;
+        } catch (Exception e) {
+            throw new RuntimeException("Unable to copy the model for the marginal likelihood estimator: " + e.getMessage(), e);
+        } finally {
+            logger.setLevel(level);
+        }
+    }
+
+    protected XMLParser createParser() {
+        return new BeastParser(new String[]{inputFile.getName()}, additionalParsers, false, parserWarning, strictXML, version);
+    }
+
+    private static boolean hasId(Element element) {
+        if (element.hasAttribute(XMLParser.ID)) {
+            return true;
+        }
+        NodeList descendants = element.getElementsByTagName("*");
+        for (int i = 0; i < descendants.getLength(); i++) {
+            if (((Element) descendants.item(i)).hasAttribute(XMLParser.ID)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private final File inputFile;
+    private final List<String> additionalParsers;
+    private final boolean parserWarning;
+    private final boolean strictXML;
+    private final Version version;
+}
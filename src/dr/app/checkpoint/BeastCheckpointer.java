@@ -60,6 +60,8 @@ public class BeastCheckpointer implements StateLoaderSaver {
     public final static String SAVE_STATE_AT = "save.state.at";
     public final static String SAVE_STATE_EVERY = "save.state.every";
     public final static String SAVE_STEM = "save.state.stem";
+    public final static String SAVE_STATE_FORMAT = "save.state.format";
+    public final static String SAVE_STATE_DELTA = "save.state.delta";
 
     public final static String FORCE_RESUME = "force.resume";
     public final static String CHECKPOINT_SEED = "checkpoint.seed";
@@ -69,6 +71,9 @@ public class BeastCheckpointer implements StateLoaderSaver {
 
     private final String stemFileName;
 
+    // if not null then states are saved in the binary format
+    private final BinaryCheckpoint binaryCheckpoint;
+
     private boolean forceResume = false;
 
     public BeastCheckpointer() {
@@ -77,6 +82,13 @@ public class BeastCheckpointer implements StateLoaderSaver {
 
         stemFileName = System.getProperty(SAVE_STEM, null);
 
+        if ("binary".equalsIgnoreCase(System.getProperty(SAVE_STATE_FORMAT, "text"))) {
+            int deltaCount = Integer.parseInt(System.getProperty(SAVE_STATE_DELTA, "0"));
+            binaryCheckpoint = new BinaryCheckpoint(deltaCount);
+        } else {
+            binaryCheckpoint = null;
+        }
+
         final List<MarkovChainListener> listeners = new ArrayList<MarkovChainListener>();
 
         if (System.getProperty(SAVE_STATE_AT) != null) {
@@ -219,12 +231,16 @@ public class BeastCheckpointer implements StateLoaderSaver {
     }
 
     protected boolean writeStateToFile(File file, long state, double lnL, MarkovChain markovChain) {
+        if (binaryCheckpoint != null) {
+            return binaryCheckpoint.writeStateToFile(file, state, lnL, markovChain);
+        }
+
         OperatorSchedule operatorSchedule = markovChain.getSchedule();
 
         OutputStream fileOut = null;
         try {
             fileOut = new FileOutputStream(file);
-            PrintStream out = new PrintStream(fileOut);
+            PrintStream out = new PrintStream(new BufferedOutputStream(fileOut));
 
             ArrayList<TreeParameterModel> traitModels = new ArrayList<TreeParameterModel>();
 
@@ -236,6 +252,17 @@ public class BeastCheckpointer implements StateLoaderSaver {
             }
             out.println();
 
+            // the states of any per-thread random number streams
+            for (Map.Entry<Integer, int[]> entry : MathUtils.getStreamStates().entrySet()) {
+                out.print("rngStream\t");
+                out.print(entry.getKey());
+                for (int value : entry.getValue()) {
+                    out.print("\t");
+                    out.print(value);
+                }
+                out.println();
+            }
+
             out.print("state\t");
             out.println(state);
 
@@ -365,6 +392,10 @@ public class BeastCheckpointer implements StateLoaderSaver {
     }
 
     protected long readStateFromFile(File file, MarkovChain markovChain, double[] lnL) {
+        if (BinaryCheckpoint.isBinaryCheckpoint(file)) {
+            return new BinaryCheckpoint(0).readStateFromFile(file, markovChain, lnL);
+        }
+
         OperatorSchedule operatorSchedule = markovChain.getSchedule();
 
         long state = -1;
@@ -395,6 +426,22 @@ public class BeastCheckpointer implements StateLoaderSaver {
                 fields = line.split("\t");
             }
 
+            Map<Integer, int[]> streamStates = new TreeMap<Integer, int[]>();
+            while (fields[0].equals("rngStream")) {
+                try {
+                    int[] streamState = new int[fields.length - 2];
+                    for (int i = 0; i < streamState.length; i++) {
+                        streamState[i] = Integer.parseInt(fields[i + 2]);
+                    }
+                    streamStates.put(Integer.parseInt(fields[1]), streamState);
+                } catch (NumberFormatException nfe) {
+                    throw new RuntimeException("Unable to read random number stream from state file");
+                }
+
+                line = in.readLine();
+                fields = line.split("\t");
+            }
+
             try {
                 if (!fields[0].equals("state")) {
                     throw new RuntimeException("Unable to read state number from state file");
@@ -653,8 +700,13 @@ public class BeastCheckpointer implements StateLoaderSaver {
 
             if (System.getProperty(BeastCheckpointer.CHECKPOINT_SEED) != null) {
                 MathUtils.setSeed(Long.parseLong(System.getProperty(BeastCheckpointer.CHECKPOINT_SEED)));
-            } else if (rngState != null) {
-                MathUtils.setRandomState(rngState);
+            } else {
+                if (rngState != null) {
+                    MathUtils.setRandomState(rngState);
+                }
+                for (Map.Entry<Integer, int[]> entry : streamStates.entrySet()) {
+                    MathUtils.setStreamState(entry.getKey(), entry.getValue());
+                }
             }
 
             in.close();
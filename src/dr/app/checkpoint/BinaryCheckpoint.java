@@ -0,0 +1,831 @@
+/*
+ * BinaryCheckpoint.java
+ *
+ * Copyright (c) 2002-2020 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.app.checkpoint;
+
+import dr.evolution.tree.NodeRef;
+import dr.evomodel.tree.TreeModel;
+import dr.evomodel.tree.TreeParameterModel;
+import dr.inference.markovchain.MarkovChain;
+import dr.inference.model.Model;
+import dr.inference.model.Parameter;
+import dr.inference.operators.AdaptableMCMCOperator;
+import dr.inference.operators.MCMCOperator;
+import dr.inference.operators.OperatorSchedule;
+import dr.math.MathUtils;
+
+import java.io.*;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * A binary checkpoint file. The file starts with a header followed by a full snapshot record
+ * and then (optionally) a series of delta records. Each record is length-prefixed and has a
+ * CRC32 checksum and contains a series of length-prefixed sections (unknown sections are skipped).
+ *
+ * A delta record only holds the parameter values (and trees) that have changed since the full
+ * snapshot so only the snapshot and the last complete delta are needed to restore the state.
+ * Full snapshots are written to a temporary file and renamed over the checkpoint so a crash
+ * never leaves a partially written snapshot. Deltas are appended and a truncated or corrupt
+ * trailing delta (i.e., from a crash whilst appending) is ignored on loading.
+ *
+ * @author Andrew Rambaut
+ */
+public class BinaryCheckpoint {
+
+    private static final byte[] MAGIC = {'B', 'E', 'A', 'S', 'T', 'C', 'K', 'P'};
+    private static final int VERSION = 1;
+
+    private static final byte FULL_RECORD = 0;
+    private static final byte DELTA_RECORD = 1;
+
+    private static final byte STATE_SECTION = 1;
+    private static final byte RNG_SECTION = 2;
+    private static final byte PARAMETER_SECTION = 3;
+    private static final byte PARAMETER_DELTA_SECTION = 4;
+    private static final byte OPERATOR_SECTION = 5;
+    private static final byte TREE_SECTION = 6;
+    private static final byte RNG_STREAM_SECTION = 7;
+
+    /**
+     * @param deltaCount the number of delta records to append between full snapshots (0 for
+     *                   full snapshots only)
+     */
+    public BinaryCheckpoint(int deltaCount) {
+        this.deltaCount = deltaCount;
+    }
+
+    /**
+     * @return true if the file starts with the binary checkpoint header
+     */
+    public static boolean isBinaryCheckpoint(File file) {
+        byte[] header = new byte[MAGIC.length];
+        try {
+            DataInputStream in = new DataInputStream(new FileInputStream(file));
+            try {
+                in.readFully(header);
+            } finally {
+                in.close();
+            }
+        } catch (IOException ioe) {
+            return false;
+        }
+        return Arrays.equals(header, MAGIC);
+    }
+
+    // **************************************************************
+    // Writing
+    // **************************************************************
+
+    public boolean writeStateToFile(File file, long state, double lnL, MarkovChain markovChain) {
+        try {
+            List<Parameter> parameters = new ArrayList<Parameter>(Parameter.CONNECTED_PARAMETER_SET);
+            List<TreeModel> treeModels = getTreeModels();
+
+            boolean writeDelta = deltaCount > 0 && deltasSinceFull < deltaCount &&
+                    file.equals(snapshotFile) && file.length() >= validLength &&
+                    snapshotValues != null && snapshotValues.length == parameters.size();
+
+            Map<String, byte[]> treeSections = new LinkedHashMap<String, byte[]>();
+            for (TreeModel treeModel : treeModels) {
+                treeSections.put(treeModel.getModelName(), encodeTree(treeModel));
+            }
+
+            ByteArrayOutputStream payload = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(payload);
+
+            writeStateSection(out, state, lnL);
+            writeRngSection(out);
+            writeOperatorSection(out, markovChain.getSchedule());
+
+            if (writeDelta) {
+                writeDelta = writeParameterDeltaSection(out, parameters);
+            }
+
+            if (writeDelta) {
+                for (Map.Entry<String, byte[]> entry : treeSections.entrySet()) {
+                    if (!Arrays.equals(entry.getValue(), snapshotTrees.get(entry.getKey()))) {
+                        writeSection(out, TREE_SECTION, entry.getValue());
+                    }
+                }
+                out.flush();
+
+                appendRecord(file, DELTA_RECORD, payload.toByteArray());
+                deltasSinceFull++;
+            } else {
+                // start again with a full snapshot
+                payload.reset();
+                writeStateSection(out, state, lnL);
+                writeRngSection(out);
+                writeOperatorSection(out, markovChain.getSchedule());
+                writeParameterSection(out, parameters);
+                for (byte[] treeSection : treeSections.values()) {
+                    writeSection(out, TREE_SECTION, treeSection);
+                }
+                out.flush();
+
+                writeFullRecord(file, payload.toByteArray());
+
+                snapshotValues = new double[parameters.size()][];
+                for (int i = 0; i < parameters.size(); i++) {
+                    snapshotValues[i] = getValues(parameters.get(i));
+                }
+                snapshotTrees = treeSections;
+                snapshotFile = file;
+                deltasSinceFull = 0;
+            }
+        } catch (IOException ioe) {
+            System.err.println("Unable to write file: " + ioe.getMessage());
+            snapshotFile = null;
+            return false;
+        }
+
+        return true;
+    }
+
+    private void writeFullRecord(File file, byte[] payload) throws IOException {
+        File tempFile = new File(file.getPath() + ".tmp");
+
+        FileOutputStream fileOut = new FileOutputStream(tempFile);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+            out.write(MAGIC);
+            out.writeInt(VERSION);
+            writeRecord(out, FULL_RECORD, payload);
+            out.flush();
+            fileOut.getFD().sync();
+        } finally {
+            fileOut.close();
+        }
+
+        try {
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException amnse) {
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        validLength = file.length();
+    }
+
+    private void appendRecord(File file, byte type, byte[] payload) throws IOException {
+        ByteArrayOutputStream record = new ByteArrayOutputStream(payload.length + 16);
+        DataOutputStream out = new DataOutputStream(record);
+        writeRecord(out, type, payload);
+        out.flush();
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            // drop anything after the last complete record (i.e., a partially appended delta)
+            raf.setLength(validLength);
+            raf.seek(validLength);
+            raf.write(record.toByteArray());
+            raf.getFD().sync();
+        } finally {
+            raf.close();
+        }
+
+        validLength += record.size();
+    }
+
+    private static void writeRecord(DataOutputStream out, byte type, byte[] payload) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(payload);
+
+        out.writeByte(type);
+        out.writeInt(payload.length);
+        out.write(payload);
+        out.writeLong(crc.getValue());
+    }
+
+    private static void writeSection(DataOutputStream out, byte type, byte[] section) throws IOException {
+        out.writeByte(type);
+        out.writeInt(section.length);
+        out.write(section);
+    }
+
+    private static void writeStateSection(DataOutputStream out, long state, double lnL) throws IOException {
+        SectionWriter section = new SectionWriter();
+        section.out.writeLong(state);
+        section.out.writeDouble(lnL);
+        writeSection(out, STATE_SECTION, section.toByteArray());
+    }
+
+    private static void writeRngSection(DataOutputStream out) throws IOException {
+        int[] rngState = MathUtils.getRandomState();
+        SectionWriter section = new SectionWriter();
+        section.out.writeInt(rngState.length);
+        for (int value : rngState) {
+            section.out.writeInt(value);
+        }
+        writeSection(out, RNG_SECTION, section.toByteArray());
+
+        // one section for each of the per-thread random number streams
+        for (Map.Entry<Integer, int[]> entry : MathUtils.getStreamStates().entrySet()) {
+            SectionWriter streamSection = new SectionWriter();
+            streamSection.out.writeInt(entry.getKey());
+            streamSection.out.writeInt(entry.getValue().length);
+            for (int value : entry.getValue()) {
+                streamSection.out.writeInt(value);
+            }
+            writeSection(out, RNG_STREAM_SECTION, streamSection.toByteArray());
+        }
+    }
+
+    private static void writeOperatorSection(DataOutputStream out, OperatorSchedule operatorSchedule) throws IOException {
+        SectionWriter section = new SectionWriter();
+        section.out.writeInt(operatorSchedule.getOperatorCount());
+        for (int i = 0; i < operatorSchedule.getOperatorCount(); i++) {
+            MCMCOperator operator = operatorSchedule.getOperator(i);
+            section.out.writeUTF(operator.getOperatorName());
+            section.out.writeLong(operator.getAcceptCount());
+            section.out.writeLong(operator.getRejectCount());
+            if (operator instanceof AdaptableMCMCOperator) {
+                section.out.writeBoolean(true);
+                section.out.writeDouble(((AdaptableMCMCOperator) operator).getAdaptableParameter());
+                section.out.writeLong(((AdaptableMCMCOperator) operator).getAdaptationCount());
+            } else {
+                section.out.writeBoolean(false);
+            }
+        }
+        writeSection(out, OPERATOR_SECTION, section.toByteArray());
+    }
+
+    private static void writeParameterSection(DataOutputStream out, List<Parameter> parameters) throws IOException {
+        SectionWriter section = new SectionWriter();
+        section.out.writeInt(parameters.size());
+        for (Parameter parameter : parameters) {
+            section.out.writeUTF(parameter.getParameterName());
+            section.out.writeInt(parameter.getDimension());
+            section.out.writeBoolean(parameter.isImmutable());
+            if (!parameter.isImmutable()) {
+                for (int dim = 0; dim < parameter.getDimension(); dim++) {
+                    section.out.writeDouble(parameter.getParameterUntransformedValue(dim));
+                }
+            }
+        }
+        writeSection(out, PARAMETER_SECTION, section.toByteArray());
+    }
+
+    /**
+     * Writes the values that differ from the last full snapshot. Each changed parameter is
+     * written either as (index, value) pairs or, if most of it has changed, in full.
+     *
+     * @return false if the parameters no longer match the snapshot so a full snapshot is needed
+     */
+    private boolean writeParameterDeltaSection(DataOutputStream out, List<Parameter> parameters) throws IOException {
+        SectionWriter section = new SectionWriter();
+
+        int[] changed = new int[16];
+        int changedParameterCount = 0;
+
+        ByteArrayOutputStream entries = new ByteArrayOutputStream();
+        DataOutputStream entryOut = new DataOutputStream(entries);
+
+        for (int i = 0; i < parameters.size(); i++) {
+            Parameter parameter = parameters.get(i);
+            double[] snapshot = snapshotValues[i];
+
+            if (parameter.isImmutable() != (snapshot == null)) {
+                return false;
+            }
+            if (snapshot == null) {
+                continue;
+            }
+            int dimension = parameter.getDimension();
+            if (dimension != snapshot.length) {
+                return false;
+            }
+
+            if (changed.length < dimension) {
+                changed = new int[dimension];
+            }
+            int changedCount = 0;
+            for (int dim = 0; dim < dimension; dim++) {
+                double value = parameter.getParameterUntransformedValue(dim);
+                if (Double.doubleToLongBits(value) != Double.doubleToLongBits(snapshot[dim])) {
+                    changed[changedCount] = dim;
+                    changedCount++;
+                }
+            }
+
+            if (changedCount > 0) {
+                entryOut.writeInt(i);
+                // an index/value pair takes 12 bytes versus 8 for a dense value
+                if (changedCount * 3 >= dimension * 2) {
+                    entryOut.writeBoolean(true);
+                    for (int dim = 0; dim < dimension; dim++) {
+                        entryOut.writeDouble(parameter.getParameterUntransformedValue(dim));
+                    }
+                } else {
+                    entryOut.writeBoolean(false);
+                    entryOut.writeInt(changedCount);
+                    for (int j = 0; j < changedCount; j++) {
+                        entryOut.writeInt(changed[j]);
+                        entryOut.writeDouble(parameter.getParameterUntransformedValue(changed[j]));
+                    }
+                }
+                changedParameterCount++;
+            }
+        }
+        entryOut.flush();
+
+        section.out.writeInt(parameters.size());
+        section.out.writeInt(changedParameterCount);
+        section.out.write(entries.toByteArray());
+        writeSection(out, PARAMETER_DELTA_SECTION, section.toByteArray());
+
+        return true;
+    }
+
+    private static byte[] encodeTree(TreeModel treeModel) throws IOException {
+        List<TreeParameterModel> traitModels = getTraitModels(treeModel);
+
+        SectionWriter section = new SectionWriter();
+        DataOutputStream out = section.out;
+
+        out.writeUTF(treeModel.getModelName());
+
+        out.writeInt(traitModels.size());
+        for (TreeParameterModel tpm : traitModels) {
+            out.writeUTF(String.valueOf(tpm.getId()));
+        }
+
+        int nodeCount = treeModel.getNodeCount();
+        out.writeInt(nodeCount);
+        for (int i = 0; i < nodeCount; i++) {
+            NodeRef node = treeModel.getNode(i);
+            out.writeInt(node.getNumber());
+            out.writeDouble(treeModel.getNodeHeight(node));
+
+            NodeRef parent = treeModel.getParent(node);
+            if (parent != null) {
+                out.writeInt(parent.getNumber());
+                if (treeModel.getChild(parent, 0) == node) {
+                    out.writeByte(0);
+                } else if (treeModel.getChild(parent, 1) == node) {
+                    out.writeByte(1);
+                } else {
+                    throw new RuntimeException("Operation currently only supported for nodes with 2 children.");
+                }
+                for (TreeParameterModel tpm : traitModels) {
+                    out.writeDouble(tpm.getNodeValue(treeModel, node));
+                }
+            } else {
+                out.writeInt(-1);
+                out.writeByte(-1);
+            }
+
+            if (treeModel.isExternal(node)) {
+                out.writeBoolean(true);
+                out.writeUTF(treeModel.getNodeTaxon(node).getId());
+            } else {
+                out.writeBoolean(false);
+            }
+        }
+
+        return section.toByteArray();
+    }
+
+    // **************************************************************
+    // Reading
+    // **************************************************************
+
+    public long readStateFromFile(File file, MarkovChain markovChain, double[] lnL) {
+        Snapshot snapshot;
+        try {
+            snapshot = readSnapshot(file);
+        } catch (IOException ioe) {
+            throw new RuntimeException("Unable to read file: " + ioe.getMessage());
+        }
+
+        if (lnL != null) {
+            lnL[0] = snapshot.lnL;
+        }
+
+        int index = 0;
+        for (Parameter parameter : Parameter.CONNECTED_PARAMETER_SET) {
+            if (index >= snapshot.parameterNames.size()) {
+                throw new RuntimeException("Unable to match state parameter: " + parameter.getParameterName());
+            }
+            double[] values = snapshot.parameterValues.get(index);
+            int dimension = snapshot.parameterDimensions.get(index);
+            index++;
+
+            if (dimension != parameter.getDimension()) {
+                System.err.println("Unable to match state parameter dimension: " + dimension + ", expecting " + parameter.getDimension() + " for parameter: " + parameter.getParameterName());
+            }
+
+            if (values == null || parameter.isImmutable()) {
+                continue;
+            }
+
+            if (parameter.getParameterName().equals("branchRates.categories.rootNodeNumber")) {
+                parameter.setParameterValue(0, values[0]);
+            } else {
+                for (int dim = 0; dim < Math.min(dimension, parameter.getDimension()); dim++) {
+                    parameter.setParameterUntransformedValue(dim, values[dim]);
+                }
+            }
+        }
+
+        OperatorSchedule operatorSchedule = markovChain.getSchedule();
+        if (snapshot.operators.size() != operatorSchedule.getOperatorCount()) {
+            throw new RuntimeException("Unable to match operators: expecting " + operatorSchedule.getOperatorCount() +
+                    ", found " + snapshot.operators.size());
+        }
+        for (int i = 0; i < operatorSchedule.getOperatorCount(); i++) {
+            MCMCOperator operator = operatorSchedule.getOperator(i);
+            OperatorState operatorState = snapshot.operators.get(i);
+            if (!operatorState.name.equals(operator.getOperatorName())) {
+                throw new RuntimeException("Unable to match operator: " + operatorState.name);
+            }
+            operator.setAcceptCount(operatorState.acceptCount);
+            operator.setRejectCount(operatorState.rejectCount);
+            if (operator instanceof AdaptableMCMCOperator) {
+                if (!operatorState.adaptable) {
+                    throw new RuntimeException("Coercable operator missing parameter: " + operatorState.name);
+                }
+                ((AdaptableMCMCOperator) operator).setAdaptableParameter(operatorState.adaptableParameter);
+                ((AdaptableMCMCOperator) operator).setAdaptationCount(operatorState.adaptationCount);
+            }
+        }
+
+        // load the tree models last as we get the node heights from the tree (not the parameters which
+        // which may not be associated with the right node
+        List<TreeModel> treeModels = getTreeModels();
+        for (TreeModel treeModel : treeModels) {
+            byte[] treeSection = snapshot.trees.get(treeModel.getModelName());
+            if (treeSection == null) {
+                throw new RuntimeException("\nExpecting, but unable to match state parameter:" + treeModel.getModelName() + "\n");
+            }
+            try {
+                adoptTree(treeModel, treeSection);
+            } catch (IOException ioe) {
+                throw new RuntimeException("Unable to read tree from state file: " + ioe.getMessage());
+            }
+        }
+
+        if (System.getProperty(BeastCheckpointer.CHECKPOINT_SEED) != null) {
+            MathUtils.setSeed(Long.parseLong(System.getProperty(BeastCheckpointer.CHECKPOINT_SEED)));
+        } else {
+            if (snapshot.rngState != null) {
+                MathUtils.setRandomState(snapshot.rngState);
+            }
+            for (Map.Entry<Integer, int[]> entry : snapshot.streamStates.entrySet()) {
+                MathUtils.setStreamState(entry.getKey(), entry.getValue());
+            }
+        }
+
+        return snapshot.state;
+    }
+
+    private Snapshot readSnapshot(File file) throws IOException {
+        long fileLength = file.length();
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            byte[] header = new byte[MAGIC.length];
+            in.readFully(header);
+            if (!Arrays.equals(header, MAGIC)) {
+                throw new RuntimeException("Not a binary state file: " + file.getName());
+            }
+            int version = in.readInt();
+            if (version > VERSION) {
+                throw new RuntimeException("Unsupported binary state file version: " + version);
+            }
+
+            long position = MAGIC.length + 4;
+
+            Snapshot snapshot = null;
+            byte[] lastDelta = null;
+
+            while (position < fileLength) {
+                byte[] payload = null;
+                byte type = -1;
+                try {
+                    type = in.readByte();
+                    int length = in.readInt();
+                    if (length >= 0 && position + 1 + 4 + length + 8 <= fileLength) {
+                        payload = new byte[length];
+                        in.readFully(payload);
+                        long checksum = in.readLong();
+
+                        CRC32 crc = new CRC32();
+                        crc.update(type);
+                        crc.update(payload);
+                        if (crc.getValue() != checksum) {
+                            payload = null;
+                        } else {
+                            position += 1 + 4 + length + 8;
+                        }
+                    }
+                } catch (EOFException eofe) {
+                    payload = null;
+                }
+
+                if (payload == null) {
+                    if (snapshot == null) {
+                        throw new RuntimeException("State file is corrupt: " + file.getName());
+                    }
+                    System.err.println("Ignoring incomplete record at the end of state file: " + file.getName());
+                    break;
+                }
+
+                if (type == FULL_RECORD) {
+                    snapshot = new Snapshot();
+                    readSections(payload, snapshot);
+                    lastDelta = null;
+                } else if (type == DELTA_RECORD) {
+                    if (snapshot == null) {
+                        throw new RuntimeException("State file is corrupt: " + file.getName());
+                    }
+                    lastDelta = payload;
+                }
+            }
+
+            if (snapshot == null) {
+                throw new RuntimeException("State file is empty: " + file.getName());
+            }
+
+            // each delta is relative to the full snapshot so only the last one is needed
+            if (lastDelta != null) {
+                readSections(lastDelta, snapshot);
+            }
+
+            return snapshot;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void readSections(byte[] payload, Snapshot snapshot) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        while (in.available() > 0) {
+            byte type = in.readByte();
+            byte[] section = new byte[in.readInt()];
+            in.readFully(section);
+            DataInputStream sectionIn = new DataInputStream(new ByteArrayInputStream(section));
+
+            switch (type) {
+                case STATE_SECTION:
+                    snapshot.state = sectionIn.readLong();
+                    snapshot.lnL = sectionIn.readDouble();
+                    break;
+                case RNG_SECTION:
+                    snapshot.rngState = new int[sectionIn.readInt()];
+                    for (int i = 0; i < snapshot.rngState.length; i++) {
+                        snapshot.rngState[i] = sectionIn.readInt();
+                    }
+                    break;
+                case RNG_STREAM_SECTION:
+                    readStreamSection(sectionIn, snapshot);
+                    break;
+                case PARAMETER_SECTION:
+                    readParameterSection(sectionIn, snapshot);
+                    break;
+                case PARAMETER_DELTA_SECTION:
+                    readParameterDeltaSection(sectionIn, snapshot);
+                    break;
+                case OPERATOR_SECTION:
+                    readOperatorSection(sectionIn, snapshot);
+                    break;
+                case TREE_SECTION:
+                    snapshot.trees.put(sectionIn.readUTF(), section);
+                    break;
+                default:
+                    // unknown section - skip it
+            }
+        }
+    }
+
+    private static void readStreamSection(DataInputStream in, Snapshot snapshot) throws IOException {
+        int index = in.readInt();
+        int[] streamState = new int[in.readInt()];
+        for (int i = 0; i < streamState.length; i++) {
+            streamState[i] = in.readInt();
+        }
+        snapshot.streamStates.put(index, streamState);
+    }
+
+    private static void readParameterSection(DataInputStream in, Snapshot snapshot) throws IOException {
+        int count = in.readInt();
+        snapshot.parameterNames.clear();
+        snapshot.parameterDimensions.clear();
+        snapshot.parameterValues.clear();
+        for (int i = 0; i < count; i++) {
+            snapshot.parameterNames.add(in.readUTF());
+            int dimension = in.readInt();
+            snapshot.parameterDimensions.add(dimension);
+            boolean immutable = in.readBoolean();
+            if (immutable) {
+                snapshot.parameterValues.add(null);
+            } else {
+                double[] values = new double[dimension];
+                for (int dim = 0; dim < dimension; dim++) {
+                    values[dim] = in.readDouble();
+                }
+                snapshot.parameterValues.add(values);
+            }
+        }
+    }
+
+    private static void readParameterDeltaSection(DataInputStream in, Snapshot snapshot) throws IOException {
+        int count = in.readInt();
+        if (count != snapshot.parameterValues.size()) {
+            throw new RuntimeException("State file delta does not match the snapshot");
+        }
+        int changedParameterCount = in.readInt();
+        for (int i = 0; i < changedParameterCount; i++) {
+            double[] values = snapshot.parameterValues.get(in.readInt());
+            boolean dense = in.readBoolean();
+            if (dense) {
+                for (int dim = 0; dim < values.length; dim++) {
+                    values[dim] = in.readDouble();
+                }
+            } else {
+                int changedCount = in.readInt();
+                for (int j = 0; j < changedCount; j++) {
+                    int dim = in.readInt();
+                    values[dim] = in.readDouble();
+                }
+            }
+        }
+    }
+
+    private static void readOperatorSection(DataInputStream in, Snapshot snapshot) throws IOException {
+        int count = in.readInt();
+        snapshot.operators.clear();
+        for (int i = 0; i < count; i++) {
+            OperatorState operatorState = new OperatorState();
+            operatorState.name = in.readUTF();
+            operatorState.acceptCount = in.readLong();
+            operatorState.rejectCount = in.readLong();
+            operatorState.adaptable = in.readBoolean();
+            if (operatorState.adaptable) {
+                operatorState.adaptableParameter = in.readDouble();
+                operatorState.adaptationCount = in.readLong();
+            }
+            snapshot.operators.add(operatorState);
+        }
+    }
+
+    private static void adoptTree(TreeModel treeModel, byte[] section) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(section));
+
+        in.readUTF(); // tree name
+
+        // match the trait models on the tree by their ids
+        List<TreeParameterModel> linkedModels = getTraitModels(treeModel);
+        int traitCount = in.readInt();
+        ArrayList<TreeParameterModel> traitModels = new ArrayList<TreeParameterModel>();
+        for (int j = 0; j < traitCount; j++) {
+            String id = in.readUTF();
+            TreeParameterModel match = null;
+            for (TreeParameterModel tpm : linkedModels) {
+                if (id.equals(String.valueOf(tpm.getId()))) {
+                    match = tpm;
+                }
+            }
+            if (match == null) {
+                throw new RuntimeException("Unable to match tree trait model: " + id);
+            }
+            traitModels.add(match);
+        }
+
+        int nodeCount = in.readInt();
+        double[] nodeHeights = new double[nodeCount];
+        String[] taxaNames = new String[(nodeCount + 1) / 2];
+        int[] parents = new int[nodeCount];
+        int[] childOrder = new int[nodeCount];
+        double[][] traitValues = new double[traitCount][nodeCount];
+
+        for (int i = 0; i < nodeCount; i++) {
+            int number = in.readInt();
+            nodeHeights[number] = in.readDouble();
+            parents[number] = in.readInt();
+            childOrder[number] = in.readByte();
+            if (parents[number] != -1) {
+                for (int j = 0; j < traitCount; j++) {
+                    traitValues[j][number] = in.readDouble();
+                }
+            }
+            if (in.readBoolean()) {
+                String taxon = in.readUTF();
+                if (number < taxaNames.length) {
+                    taxaNames[number] = taxon;
+                }
+            }
+        }
+
+        treeModel.beginTreeEdit();
+        treeModel.adoptTreeStructure(parents, nodeHeights, childOrder, taxaNames);
+        if (traitModels.size() > 0) {
+            System.out.println("adopting " + traitModels.size() + " trait models to treeModel " + treeModel.getId());
+            treeModel.adoptTraitData(parents, traitModels, traitValues, taxaNames);
+        }
+        treeModel.endTreeEdit();
+    }
+
+    private static List<TreeModel> getTreeModels() {
+        List<TreeModel> treeModels = new ArrayList<TreeModel>();
+        for (Model model : Model.CONNECTED_MODEL_SET) {
+            if (model instanceof TreeModel) {
+                treeModels.add((TreeModel) model);
+            }
+        }
+        return treeModels;
+    }
+
+    private static List<TreeParameterModel> getTraitModels(TreeModel treeModel) {
+        List<TreeParameterModel> traitModels = new ArrayList<TreeParameterModel>();
+        for (Model model : Model.CONNECTED_MODEL_SET) {
+            if (model instanceof TreeParameterModel && ((TreeParameterModel) model).getTreeModel() == treeModel) {
+                traitModels.add((TreeParameterModel) model);
+            }
+        }
+        // the connected model set has no fixed order so sort to make the encoding repeatable
+        Collections.sort(traitModels, new Comparator<TreeParameterModel>() {
+            public int compare(TreeParameterModel tpm1, TreeParameterModel tpm2) {
+                return String.valueOf(tpm1.getId()).compareTo(String.valueOf(tpm2.getId()));
+            }
+        });
+        return traitModels;
+    }
+
+    private static double[] getValues(Parameter parameter) {
+        if (parameter.isImmutable()) {
+            return null;
+        }
+        double[] values = new double[parameter.getDimension()];
+        for (int dim = 0; dim < values.length; dim++) {
+            values[dim] = parameter.getParameterUntransformedValue(dim);
+        }
+        return values;
+    }
+
+    private static class SectionWriter {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+
+        byte[] toByteArray() throws IOException {
+            out.flush();
+            return bytes.toByteArray();
+        }
+    }
+
+    private static class OperatorState {
+        String name;
+        long acceptCount;
+        long rejectCount;
+        boolean adaptable;
+        double adaptableParameter;
+        long adaptationCount;
+    }
+
+    private static class Snapshot {
+        long state;
+        double lnL;
+        int[] rngState;
+        final Map<Integer, int[]> streamStates = new TreeMap<Integer, int[]>();
+        final List<String> parameterNames = new ArrayList<String>();
+        final List<Integer> parameterDimensions = new ArrayList<Integer>();
+        final List<double[]> parameterValues = new ArrayList<double[]>();
+        final List<OperatorState> operators = new ArrayList<OperatorState>();
+        final Map<String, byte[]> trees = new HashMap<String, byte[]>();
+    }
+
+    private final int deltaCount;
+
+    // the full snapshot that deltas are written relative to
+    private File snapshotFile = null;
+    private long validLength = 0;
+    private double[][] snapshotValues = null;
+    private Map<String, byte[]> snapshotTrees = null;
+    private int deltasSinceFull = 0;
+}
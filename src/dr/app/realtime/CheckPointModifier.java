@@ -38,6 +38,7 @@ import dr.inference.model.Parameter;
 import dr.inference.operators.AdaptableMCMCOperator;
 import dr.inference.operators.MCMCOperator;
 import dr.inference.operators.OperatorSchedule;
+import dr.math.MathUtils;
 
 import java.io.BufferedReader;
 import java.io.File;
@@ -46,7 +47,9 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 
 /**
  * @author Guy Baele
@@ -109,6 +112,23 @@ public class CheckPointModifier extends BeastCheckpointer {
                 fields = line.split("\t");
             }
 
+            // the states of any per-thread random number streams, as written by BeastCheckpointer
+            Map<Integer, int[]> streamStates = new TreeMap<Integer, int[]>();
+            while (fields[0].equals("rngStream")) {
+                try {
+                    int[] streamState = new int[fields.length - 2];
+                    for (int i = 0; i < streamState.length; i++) {
+                        streamState[i] = Integer.parseInt(fields[i + 2]);
+                    }
+                    streamStates.put(Integer.parseInt(fields[1]), streamState);
+                } catch (NumberFormatException nfe) {
+                    throw new RuntimeException("Unable to read random number stream from state file");
+                }
+
+                line = in.readLine();
+                fields = line.split("\t");
+            }
+
             try {
                 if (!fields[0].equals("state")) {
                     throw new RuntimeException("Unable to read state number from state file");
@@ -405,6 +425,13 @@ public class CheckPointModifier extends BeastCheckpointer {
                 throw new RuntimeException(sb.toString());
             }
 
+            // carry the random number streams over so that they are written to the updated state file
+            if (System.getProperty(BeastCheckpointer.CHECKPOINT_SEED) == null) {
+                for (Map.Entry<Integer, int[]> entry : streamStates.entrySet()) {
+                    MathUtils.setStreamState(entry.getKey(), entry.getValue());
+                }
+            }
+
             in.close();
             fileIn.close();
 
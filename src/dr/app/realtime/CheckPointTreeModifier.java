@@ -87,11 +87,9 @@ public class CheckPointTreeModifier {
         this.additionalTaxa = treeModel.getExternalNodeCount() - taxaNames.length;
 
         //check if the taxa are in the right order, i.e. for now only allow adding taxa at the end of the list
-        boolean correctOrder = checkTaxaOrder(taxaNames);
-        if (!correctOrder) {
-            //create a map between the old node order and the new node order
-            createNodeMap(taxaNames);
-        }
+        checkTaxaOrder(taxaNames);
+        //create a map between the old node order and the new node order (the identity if the order is correct)
+        createNodeMap(taxaNames);
 
         treeModel.beginTreeEdit();
 
@@ -429,6 +427,14 @@ public class CheckPointTreeModifier {
         //set the patterns for the distance matrix computations
         choice.setPatterns(patterns);
 
+        //find the closest current taxon for all new taxa at once, so that each insertion below
+        //only needs to consider the new taxa that have been inserted before it
+        ArrayList<Taxon> newTaxa = new ArrayList<Taxon>();
+        for (NodeRef newTaxon : newTaxaNodes) {
+            newTaxa.add(treeModel.getNodeTaxon(newTaxon));
+        }
+        choice.findClosestTaxa(newTaxa, currentTaxa);
+
         //add new taxa one at a time
         System.out.println("Adding " + newTaxaNodes.size() + " taxa ...");
 
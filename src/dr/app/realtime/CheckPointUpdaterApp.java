@@ -29,6 +29,7 @@ import dr.app.beast.BeastParser;
 import dr.app.checkpoint.BeastCheckpointer;
 import dr.app.util.Arguments;
 import dr.evolution.alignment.PatternList;
+import dr.evolution.distance.BitPackedPatterns;
 import dr.evolution.distance.DistanceMatrix;
 import dr.evolution.distance.F84DistanceMatrix;
 import dr.evolution.distance.JukesCantorDistanceMatrix;
@@ -71,8 +72,58 @@ public class CheckPointUpdaterApp {
             this.matrix = matrix;
         }
 
+        private NearestTaxonIndex index;
+        private Map<Taxon, Integer> taxonIndices;
+        // the number of taxa at the start of the current taxa list that are in the index
+        private int indexedCount;
+
         public void setPatterns(PatternList patterns) {
             this.matrix.setPatterns(patterns);
+
+            taxonIndices = new HashMap<Taxon, Integer>();
+            for (int i = 0; i < matrix.getTaxonCount(); i++) {
+                taxonIndices.put(matrix.getTaxon(i), i);
+            }
+
+            //the closest taxa are found by the uncorrected distances, on which the F84 correction isn't monotonic
+            index = null;
+            indexedCount = 0;
+            BitPackedPatterns packed = matrix.getBitPackedPatterns();
+            if (this != F84DISTANCE && packed != null) {
+                index = new NearestTaxonIndex(packed, this == SIMPLE, NearestTaxonIndex.getDefaultSketchSize());
+            } else {
+                System.out.println("Searching the full distance matrix for the closest taxa");
+            }
+        }
+
+        /**
+         * Finds the closest taxon to each of a batch of taxa at once (in parallel), so that later calls to
+         * getClosestTaxon for these taxa only need to consider the taxa that have been added since.
+         */
+        public void findClosestTaxa(List<Taxon> newTaxa, ArrayList<Taxon> taxa) {
+            if (index != null) {
+                updateIndex(taxa);
+                int[] queries = new int[newTaxa.size()];
+                for (int i = 0; i < queries.length; i++) {
+                    queries[i] = taxonIndices.get(newTaxa.get(i));
+                }
+                index.getClosest(queries);
+            }
+        }
+
+        /**
+         * Adds the taxa to the index. The current taxa only grow by having taxa appended, so only those
+         * after the ones already indexed need to be added.
+         */
+        private void updateIndex(ArrayList<Taxon> taxa) {
+            if (taxa.size() < indexedCount) {
+                // not the list that was indexed so far (adding a taxon again does nothing)
+                indexedCount = 0;
+            }
+            for (Taxon taxon : taxa.subList(indexedCount, taxa.size())) {
+                index.add(taxonIndices.get(taxon));
+            }
+            indexedCount = taxa.size();
         }
 
         public Taxon getClosestTaxon(Taxon taxon) {
@@ -97,12 +148,18 @@ public class CheckPointUpdaterApp {
             if (matrix == null) {
                 throw new RuntimeException("Patterns need to be set first.");
             }
+            if (index != null) {
+                updateIndex(taxa);
+                int closestIndex = index.getClosest(taxonIndices.get(taxon));
+                return matrix.getTaxon(closestIndex < 0 ? 0 : closestIndex);
+            }
             int taxonIndex = matrix.getTaxonIndex(taxon);
+            Set<Taxon> taxonSet = new HashSet<Taxon>(taxa);
             int closestIndex = 0;
             double minimumDistance = Double.MAX_VALUE;
             for (int i = 0; i < matrix.getColumnCount(); i++) {
                 if (i != taxonIndex) {
-                    if ((matrix.getElement(taxonIndex, i) < minimumDistance) && (taxa.contains(matrix.getTaxon(i)))) {
+                    if ((matrix.getElement(taxonIndex, i) < minimumDistance) && (taxonSet.contains(matrix.getTaxon(i)))) {
                         minimumDistance = matrix.getElement(taxonIndex, i);
                         closestIndex = i;
                     }
@@ -114,7 +171,8 @@ public class CheckPointUpdaterApp {
         public double getDistance(Taxon taxonOne, Taxon taxonTwo) {
             System.out.println("taxon 1: " + taxonOne + " (" + matrix.getTaxonIndex(taxonOne) + ")");
             System.out.println("taxon 2: " + taxonTwo + " (" + matrix.getTaxonIndex(taxonTwo) + ")");
-            return matrix.getElement(matrix.getTaxonIndex(taxonOne), matrix.getTaxonIndex(taxonTwo));
+            //only this pair is calculated, unless the full matrix is already known
+            return matrix.getPairwiseDistance(matrix.getTaxonIndex(taxonOne), matrix.getTaxonIndex(taxonTwo));
         }
 
         public String getName() {
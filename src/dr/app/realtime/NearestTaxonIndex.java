@@ -0,0 +1,329 @@
+/*
+ * NearestTaxonIndex.java
+ *
+ * Copyright (c) 2002-2020 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.app.realtime;
+
+import dr.evolution.distance.BitPackedPatterns;
+import dr.util.SharedThreadPool;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * An index of the taxa that new sequences can be attached to, for finding the closest of them by
+ * the proportion of sites with different (unambiguous) states. This is the uncorrected distance
+ * of DistanceMatrix (or, with excludeGaps, of SimpleDistanceMatrix); the Jukes-Cantor correction
+ * is monotonic in it, so the closest taxon is the same.
+ *
+ * Taxa are added one at a time. For each query, the closest taxon found so far is kept together
+ * with the number of indexed taxa it was chosen from, so a later query for the same taxon only
+ * looks at the taxa that were added since. Batches of queries run in parallel on the shared
+ * thread pool.
+ *
+ * The differences are counted on bit packed sequences, and each count is abandoned as soon as it
+ * is too large to beat the closest taxon so far. Optionally, each taxon also has a sketch: its
+ * number of differences to a few pivot taxa (chosen farthest first). By the triangle inequality,
+ * the sketches give a lower bound on the number of differences, so the candidates are visited in
+ * order of their bound and the search stops once the bound exceeds the best distance. The counts
+ * only obey the triangle inequality when there are no ambiguous states, so with ambiguous states
+ * the sketches may (rarely) miss the closest taxon; they are therefore off by default.
+ *
+ * Ties are resolved in favour of the taxon with the lowest index, as in
+ * CheckPointUpdaterApp.UpdateChoice.
+ *
+ * @author Guy Baele
+ */
+public class NearestTaxonIndex {
+
+    public static final String SKETCH_SIZE_PROPERTY = "checkpoint.sketch.size";
+
+    /**
+     * @param patterns    the bit packed sequences of all the taxa
+     * @param excludeGaps whether sites with a gap in either taxon are left out of the proportion
+     * @param sketchSize  the number of pivot taxa in each sketch (0 for none)
+     */
+    public NearestTaxonIndex(BitPackedPatterns patterns, boolean excludeGaps, int sketchSize) {
+        this.patterns = patterns;
+        this.excludeGaps = excludeGaps;
+        this.taxonCount = patterns.getTaxonCount();
+
+        indexed = new boolean[taxonCount];
+        members = new int[taxonCount];
+
+        closestTaxa = new int[taxonCount];
+        closestDistances = new double[taxonCount];
+        searchedCounts = new int[taxonCount];
+        Arrays.fill(closestTaxa, -1);
+
+        sketchSize = Math.min(sketchSize, taxonCount);
+        if (sketchSize > 0) {
+            createSketches(sketchSize);
+        } else {
+            sketches = null;
+        }
+    }
+
+    /**
+     * @return a sketch size from the system property SKETCH_SIZE_PROPERTY (0 if it isn't set)
+     */
+    public static int getDefaultSketchSize() {
+        String property = System.getProperty(SKETCH_SIZE_PROPERTY);
+        if (property != null) {
+            try {
+                return Math.max(0, Integer.parseInt(property.trim()));
+            } catch (NumberFormatException nfe) {
+                // no sketches
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Adds a taxon to the ones that can be returned as the closest (if it isn't already indexed).
+     */
+    public void add(int taxon) {
+        if (!indexed[taxon]) {
+            indexed[taxon] = true;
+            members[memberCount] = taxon;
+            memberCount++;
+        }
+    }
+
+    public boolean contains(int taxon) {
+        return indexed[taxon];
+    }
+
+    public int getIndexedCount() {
+        return memberCount;
+    }
+
+    /**
+     * @return the proportion of the sites at which the taxa have different unambiguous states
+     */
+    public double getDistance(int taxon1, int taxon2) {
+        return getDistance(taxon1, taxon2, patterns.getDifferenceCount(taxon1, taxon2));
+    }
+
+    /**
+     * @return the closest indexed taxon (other than the taxon itself), or -1 if there is none
+     */
+    public int getClosest(int taxon) {
+        int closest = closestTaxa[taxon];
+        double distance = closestDistances[taxon];
+        final int first = (closest < 0 ? 0 : searchedCounts[taxon]);
+        final int last = memberCount;
+
+        if (first < last) {
+            int[] candidates = new int[last - first];
+            System.arraycopy(members, first, candidates, 0, candidates.length);
+
+            if (sketches != null) {
+                candidates = sortByLowerBound(taxon, candidates);
+            }
+
+            for (int candidate : candidates) {
+                if (candidate == taxon) {
+                    continue;
+                }
+                final long limit = getDifferenceLimit(closest, distance);
+                if (sketches != null && getLowerBound(taxon, candidate) > limit) {
+                    // all the remaining candidates have a larger bound
+                    break;
+                }
+                final long differences = patterns.getDifferenceCount(taxon, candidate, limit);
+                if (differences > limit) {
+                    continue;
+                }
+                final double d = getDistance(taxon, candidate, differences);
+                if (closest < 0 || d < distance || (d == distance && candidate < closest)) {
+                    closest = candidate;
+                    distance = d;
+                }
+            }
+
+            closestTaxa[taxon] = closest;
+            closestDistances[taxon] = distance;
+            searchedCounts[taxon] = last;
+        }
+        return closest;
+    }
+
+    /**
+     * Finds the closest indexed taxon to each of a batch of taxa, in parallel.
+     */
+    public int[] getClosest(final int[] taxa) {
+        final int[] closest = new int[taxa.length];
+
+        if (taxa.length < 2 || SharedThreadPool.getThreadCount() < 2) {
+            for (int i = 0; i < taxa.length; i++) {
+                closest[i] = getClosest(taxa[i]);
+            }
+            return closest;
+        }
+
+        SharedThreadPool.getPool().invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+                for (int i = 0; i < taxa.length; i++) {
+                    final int index = i;
+                    tasks.add(new RecursiveAction() {
+                        @Override
+                        protected void compute() {
+                            closest[index] = getClosest(taxa[index]);
+                        }
+                    });
+                }
+                invokeAll(tasks);
+            }
+        });
+        return closest;
+    }
+
+    private double getDistance(int taxon1, int taxon2, long differences) {
+        final long sites = (excludeGaps ? patterns.getUngappedWeight(taxon1, taxon2) : patterns.getTotalWeight());
+        if (sites == 0) {
+            return Double.POSITIVE_INFINITY;
+        }
+        return ((double) differences) / sites;
+    }
+
+    /**
+     * The distance is at least differences / total weight (whether or not gaps are excluded), so a
+     * taxon with more differences than this limit cannot be closer.
+     */
+    private long getDifferenceLimit(int closest, double distance) {
+        if (closest < 0) {
+            return Long.MAX_VALUE;
+        }
+        // rounded rather than truncated, so that ties are never abandoned
+        return Math.round(distance * patterns.getTotalWeight());
+    }
+
+    private void createSketches(int sketchSize) {
+        sketches = new long[taxonCount][sketchSize];
+
+        // farthest first: each pivot is the taxon with the most differences to its closest pivot
+        final long[] minimumCounts = new long[taxonCount];
+        Arrays.fill(minimumCounts, Long.MAX_VALUE);
+        int pivot = 0;
+        for (int p = 0; p < sketchSize; p++) {
+            final int index = p;
+            final int currentPivot = pivot;
+            forEachTaxon(new TaxonTask() {
+                public void run(int taxon) {
+                    sketches[taxon][index] = patterns.getDifferenceCount(taxon, currentPivot);
+                }
+            });
+
+            int farthest = 0;
+            for (int t = 0; t < taxonCount; t++) {
+                minimumCounts[t] = Math.min(minimumCounts[t], sketches[t][p]);
+                if (minimumCounts[t] > minimumCounts[farthest]) {
+                    farthest = t;
+                }
+            }
+            pivot = farthest;
+        }
+    }
+
+    private long getLowerBound(int taxon1, int taxon2) {
+        final long[] sketch1 = sketches[taxon1];
+        final long[] sketch2 = sketches[taxon2];
+        long bound = 0;
+        for (int p = 0; p < sketch1.length; p++) {
+            bound = Math.max(bound, Math.abs(sketch1[p] - sketch2[p]));
+        }
+        return bound;
+    }
+
+    private int[] sortByLowerBound(int taxon, int[] candidates) {
+        // the bound (at most the number of sites) in the upper bits, the position in the lower 31
+        long[] keys = new long[candidates.length];
+        for (int i = 0; i < candidates.length; i++) {
+            keys[i] = (getLowerBound(taxon, candidates[i]) << 31) | i;
+        }
+        Arrays.sort(keys);
+
+        int[] sorted = new int[candidates.length];
+        for (int i = 0; i < candidates.length; i++) {
+            sorted[i] = candidates[(int) (keys[i] & Integer.MAX_VALUE)];
+        }
+        return sorted;
+    }
+
+    private interface TaxonTask {
+        void run(int taxon);
+    }
+
+    private void forEachTaxon(final TaxonTask task) {
+        if (SharedThreadPool.getThreadCount() < 2) {
+            for (int t = 0; t < taxonCount; t++) {
+                task.run(t);
+            }
+            return;
+        }
+
+        final int threadCount = SharedThreadPool.getThreadCount();
+        final int blockSize = (taxonCount + threadCount - 1) / threadCount;
+        SharedThreadPool.getPool().invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+                for (int first = 0; first < taxonCount; first += blockSize) {
+                    final int from = first;
+                    final int to = Math.min(first + blockSize, taxonCount);
+                    tasks.add(new RecursiveAction() {
+                        @Override
+                        protected void compute() {
+                            for (int t = from; t < to; t++) {
+                                task.run(t);
+                            }
+                        }
+                    });
+                }
+                invokeAll(tasks);
+            }
+        });
+    }
+
+    private final BitPackedPatterns patterns;
+    private final boolean excludeGaps;
+    private final int taxonCount;
+
+    // the indexed taxa, in the order they were added
+    private final boolean[] indexed;
+    private final int[] members;
+    private int memberCount = 0;
+
+    // the closest taxon found so far for each query, and the number of indexed taxa it is from
+    private final int[] closestTaxa;
+    private final double[] closestDistances;
+    private final int[] searchedCounts;
+
+    private long[][] sketches;
+}
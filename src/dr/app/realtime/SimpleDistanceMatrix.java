@@ -26,6 +26,7 @@
 package dr.app.realtime;
 
 import dr.evolution.alignment.PatternList;
+import dr.evolution.distance.BitPackedPatterns;
 import dr.evolution.distance.DistanceMatrix;
 
 /**
@@ -90,4 +91,15 @@ public class SimpleDistanceMatrix extends DistanceMatrix
 		return distance;
 	}
 
+	/**
+	 * Calculate a pairwise distance from bit packed patterns
+	 */
+	protected double calculatePairwiseDistance(BitPackedPatterns packed, int taxon1, int taxon2) {
+		return ((double) packed.getDifferenceCount(taxon1, taxon2)) / packed.getUngappedWeight(taxon1, taxon2);
+	}
+
+	protected boolean hasBitPackedDistances() {
+		return true;
+	}
+
 }
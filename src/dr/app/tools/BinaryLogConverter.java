@@ -0,0 +1,122 @@
+/*
+ * BinaryLogConverter.java
+ *
+ * Copyright (c) 2002-2020 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.app.tools;
+
+import dr.inference.loggers.BinaryLogFormatter;
+import dr.inference.trace.LogFileTraces;
+import dr.inference.trace.TraceException;
+
+import java.io.*;
+import java.util.StringTokenizer;
+
+/**
+ * Converts a tab-delimited log file into the binary log format (see BinaryLogFormatter) which
+ * can be memory mapped by LogAnalyser, Tracer etc. The log is streamed a line at a time so it
+ * is never held in memory. Lines are read in the same way as LogFileTraces reads them.
+ *
+ * @author Andrew Rambaut
+ */
+public class BinaryLogConverter {
+
+    public BinaryLogConverter(File inputFile, File outputFile) throws IOException, TraceException {
+
+        final LogFileTraces.TrimLineReader reader = new LogFileTraces.TrimLineReader(new FileReader(inputFile));
+        final BinaryLogFormatter formatter = new BinaryLogFormatter(outputFile);
+
+        try {
+            formatter.startLogging(null);
+
+            // lines starting with [ (MrBayes) or # (BEAST, Migrate) are comments
+            String line = reader.readLine();
+            while (line != null && (line.length() == 0 || line.startsWith("[") || line.startsWith("#"))) {
+                if (line.startsWith("#")) {
+                    formatter.logHeading(line.substring(1).trim());
+                }
+                line = reader.readLine();
+            }
+
+            if (line == null) {
+                throw new TraceException("Trace file is empty.");
+            }
+
+            String[] labels = tokenize(line);
+            formatter.logLabels(labels);
+
+            line = reader.readLine();
+            while (line != null && line.length() > 0) {
+                String[] values = tokenize(line);
+                if (values.length < labels.length) {
+                    throw new TraceException("Missing values at line " + reader.getLineNumber());
+                }
+                if (values.length > labels.length) {
+                    String[] trimmed = new String[labels.length];
+                    System.arraycopy(values, 0, trimmed, 0, labels.length);
+                    values = trimmed;
+                }
+                try {
+                    formatter.logValues(values);
+                } catch (NumberFormatException nfe) {
+                    throw new TraceException("Unable to parse state number in column 1 (Line " +
+                            reader.getLineNumber() + ")");
+                }
+                line = reader.readLine();
+            }
+        } finally {
+            reader.close();
+        }
+
+        formatter.stopLogging();
+    }
+
+    private static String[] tokenize(String line) {
+        StringTokenizer tokens = new StringTokenizer(line, "\t");
+        String[] values = new String[tokens.countTokens()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = tokens.nextToken();
+        }
+        return values;
+    }
+
+    public static void main(String[] args) {
+
+        if (args.length != 2) {
+            System.out.println("Usage: binarylogconverter <input-log-file> <output-binary-log-file>");
+            System.out.println();
+            System.out.println("  Example: binarylogconverter run.log run.blog");
+            System.exit(1);
+        }
+
+        try {
+            new BinaryLogConverter(new File(args[0]), new File(args[1]));
+        } catch (IOException ioe) {
+            System.err.println("Error converting log file: " + ioe.getMessage());
+            System.exit(1);
+        } catch (TraceException te) {
+            System.err.println("Error reading log file: " + te.getMessage());
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,450 @@
+/*
+ * CladeFingerprintTable.java
+ *
+ * Copyright (c) 2002-2020 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.app.tools;
+
+import dr.evolution.tree.FlexibleTree;
+import dr.evolution.tree.MutableTree;
+import dr.evolution.tree.NodeRef;
+import dr.evolution.tree.SimpleNode;
+import dr.evolution.tree.SimpleTree;
+import dr.evolution.tree.Tree;
+import dr.evolution.util.TaxonList;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * A compact table of the clades in a sample of trees for the streaming mode of TreeAnnotator.
+ *
+ * Rather than keying clades by a BitSet of taxa, each taxon is given a random 128-bit key and
+ * a clade is identified by the sum of the keys of its taxa (so the fingerprint of a clade is
+ * just the sum of the fingerprints of its children). The chance of two of a million different
+ * clades sharing a fingerprint is about 10^-27. Clades are numbered in the order they are first
+ * seen and all the per-clade information (counts and the sum, min and max of the height and any
+ * numeric attributes) is held in primitive arrays indexed by this number. An open-addressing
+ * hash table maps fingerprints to clade numbers.
+ *
+ * @author Andrew Rambaut
+ */
+class CladeFingerprintTable {
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    /**
+     * @param taxa           the taxa of the trees
+     * @param attributeNames the names of the numeric node attributes to accumulate (the first is
+     *                       taken to be the node height and the second the branch length)
+     */
+    CladeFingerprintTable(TaxonList taxa, String[] attributeNames) {
+        this.taxa = taxa;
+        this.attributeNames = attributeNames;
+
+        // a fixed seed so the fingerprints are the same for every run
+        Random random = new Random(taxa.getTaxonCount());
+        taxonKeys1 = new long[taxa.getTaxonCount()];
+        taxonKeys2 = new long[taxa.getTaxonCount()];
+        taxonIdIndices = new HashMap<String, Integer>();
+        for (int i = 0; i < taxonKeys1.length; i++) {
+            taxonIdIndices.put(taxa.getTaxonId(i), i);
+            taxonKeys1[i] = random.nextLong();
+            taxonKeys2[i] = random.nextLong();
+        }
+
+        slots = new int[INITIAL_CAPACITY * 2];
+        Arrays.fill(slots, -1);
+        allocate(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Adds all the clades in the tree (including the tips) and accumulates their attributes.
+     * The number of nodes and the clade numbers of the nodes in post-order (followed by the
+     * node heights if requested) are written to the cache.
+     *
+     * @param tree         the tree
+     * @param cache        the stream to write the clade numbers to (or null)
+     * @param cacheHeights whether to write the node heights to the cache
+     */
+    void addTree(Tree tree, DataOutputStream cache, boolean cacheHeights) throws IOException {
+        if (nodeClades == null || nodeClades.length < tree.getNodeCount()) {
+            nodeClades = new int[tree.getNodeCount()];
+            nodeHeights = new double[tree.getNodeCount()];
+        }
+        nodeCount = 0;
+        addClades(tree, tree.getRoot(), true);
+
+        if (cache != null) {
+            cache.writeInt(nodeCount);
+            for (int i = 0; i < nodeCount; i++) {
+                cache.writeInt(nodeClades[i]);
+            }
+            if (cacheHeights) {
+                for (int i = 0; i < nodeCount; i++) {
+                    cache.writeDouble(nodeHeights[i]);
+                }
+            }
+        }
+        treeCount++;
+    }
+
+    /**
+     * Builds a tree from the clade numbers of its nodes in post-order.
+     *
+     * @param cladeNumbers the clade numbers
+     * @param nodeCount    the number of nodes
+     * @param heights      the node heights in post-order (or null to use the mean heights of the clades)
+     * @return the tree
+     */
+    MutableTree buildTree(int[] cladeNumbers, int nodeCount, double[] heights) {
+        SimpleNode[] stack = new SimpleNode[nodeCount];
+        int top = 0;
+        for (int i = 0; i < nodeCount; i++) {
+            int clade = cladeNumbers[i];
+            SimpleNode node = new SimpleNode();
+            if (taxonIndices[clade] >= 0) {
+                node.setTaxon(taxa.getTaxon(taxonIndices[clade]));
+            } else {
+                SimpleNode right = stack[--top];
+                SimpleNode left = stack[--top];
+                node.addChild(left);
+                node.addChild(right);
+            }
+            node.setHeight(heights != null ? heights[i] : getAttributeMean(clade, 0));
+            stack[top++] = node;
+        }
+        if (top != 1) {
+            throw new IllegalArgumentException("Clade numbers do not describe a tree");
+        }
+        return new FlexibleTree(new SimpleTree(stack[0]));
+    }
+
+    /**
+     * Finds the clade numbers of the nodes of a tree without adding any clades.
+     *
+     * @param tree the tree
+     * @return the clade numbers indexed by node number (-1 for clades that were never seen)
+     */
+    int[] getCladeNumbers(Tree tree) {
+        int[] cladeNumbers = new int[tree.getNodeCount()];
+        findClades(tree, tree.getRoot(), cladeNumbers);
+        return cladeNumbers;
+    }
+
+    /**
+     * @return the log clade credibility of a tree given the clade numbers of its nodes in post-order
+     */
+    double getLogCladeCredibility(int[] cladeNumbers, int nodeCount) {
+        double logCladeCredibility = 0.0;
+        for (int i = 0; i < nodeCount; i++) {
+            int clade = cladeNumbers[i];
+            if (taxonIndices[clade] < 0) {
+                logCladeCredibility += Math.log(getCredibility(clade));
+            }
+        }
+        return logCladeCredibility;
+    }
+
+    int getCladeCount() {
+        return cladeCount;
+    }
+
+    int getTreeCount() {
+        return treeCount;
+    }
+
+    /**
+     * @return the index of the taxon of a tip clade or -1 if the clade is not a tip
+     */
+    int getTaxonIndex(int clade) {
+        return taxonIndices[clade];
+    }
+
+    double getCredibility(int clade) {
+        return (double) counts[clade] / treeCount;
+    }
+
+    int getAttributeCount() {
+        return attributeNames.length;
+    }
+
+    String getAttributeName(int attribute) {
+        return attributeNames[attribute];
+    }
+
+    /**
+     * @return true if a non-numeric value was found for the attribute
+     */
+    boolean isNonNumeric(int attribute) {
+        return nonNumeric[attribute];
+    }
+
+    /**
+     * @return the number of times the attribute had a numeric value in the clade
+     */
+    int getAttributeValueCount(int clade, int attribute) {
+        return attributeCounts[attribute][clade];
+    }
+
+    double getAttributeMean(int clade, int attribute) {
+        return attributeSums[attribute][clade] / attributeCounts[attribute][clade];
+    }
+
+    double getAttributeMin(int clade, int attribute) {
+        return attributeMins[attribute][clade];
+    }
+
+    double getAttributeMax(int clade, int attribute) {
+        return attributeMaxs[attribute][clade];
+    }
+
+    private void addClades(Tree tree, NodeRef node, boolean isRoot) {
+        long key1;
+        long key2;
+
+        if (tree.isExternal(node)) {
+            Integer index = taxonIdIndices.get(tree.getNodeTaxon(node).getId());
+            if (index == null) {
+                throw new IllegalArgumentException("Taxon, " + tree.getNodeTaxon(node).getId() + ", not found in first tree");
+            }
+            key1 = taxonKeys1[index];
+            key2 = taxonKeys2[index];
+
+            currentTaxon = index;
+        } else {
+            if (tree.getChildCount(node) != 2) {
+                throw new IllegalArgumentException("TreeAnnotator requires strictly bifurcating trees");
+            }
+            addClades(tree, tree.getChild(node, 0), false);
+            long left1 = currentKey1;
+            long left2 = currentKey2;
+            addClades(tree, tree.getChild(node, 1), false);
+            key1 = left1 + currentKey1;
+            key2 = left2 + currentKey2;
+
+            currentTaxon = -1;
+        }
+
+        int clade = findOrAddClade(key1, key2, currentTaxon);
+        counts[clade]++;
+        accumulateAttributes(tree, node, clade, isRoot);
+
+        nodeClades[nodeCount] = clade;
+        nodeHeights[nodeCount] = tree.getNodeHeight(node);
+        nodeCount++;
+
+        currentKey1 = key1;
+        currentKey2 = key2;
+    }
+
+    private void findClades(Tree tree, NodeRef node, int[] cladeNumbers) {
+        long key1;
+        long key2;
+
+        if (tree.isExternal(node)) {
+            Integer index = taxonIdIndices.get(tree.getNodeTaxon(node).getId());
+            if (index == null) {
+                throw new IllegalArgumentException("Taxon, " + tree.getNodeTaxon(node).getId() + ", not found in first tree");
+            }
+            key1 = taxonKeys1[index];
+            key2 = taxonKeys2[index];
+        } else {
+            key1 = 0;
+            key2 = 0;
+            for (int i = 0; i < tree.getChildCount(node); i++) {
+                findClades(tree, tree.getChild(node, i), cladeNumbers);
+                key1 += currentKey1;
+                key2 += currentKey2;
+            }
+        }
+
+        int slot = findSlot(key1, key2);
+        cladeNumbers[node.getNumber()] = slots[slot];
+
+        currentKey1 = key1;
+        currentKey2 = key2;
+    }
+
+    private void accumulateAttributes(Tree tree, NodeRef node, int clade, boolean isRoot) {
+        for (int i = 0; i < attributeNames.length; i++) {
+            double value;
+            if (i == 0) {
+                value = tree.getNodeHeight(node);
+            } else if (i == 1) {
+                if (isRoot) {
+                    continue;
+                }
+                value = tree.getBranchLength(node);
+            } else {
+                Object object = tree.getNodeAttribute(node, attributeNames[i]);
+                if (object == null) {
+                    continue;
+                }
+                if (!(object instanceof Number)) {
+                    nonNumeric[i] = true;
+                    continue;
+                }
+                value = ((Number) object).doubleValue();
+            }
+
+            attributeCounts[i][clade]++;
+            attributeSums[i][clade] += value;
+            if (value < attributeMins[i][clade]) {
+                attributeMins[i][clade] = value;
+            }
+            if (value > attributeMaxs[i][clade]) {
+                attributeMaxs[i][clade] = value;
+            }
+        }
+    }
+
+    private int findOrAddClade(long key1, long key2, int taxonIndex) {
+        int slot = findSlot(key1, key2);
+        if (slots[slot] >= 0) {
+            return slots[slot];
+        }
+
+        if (cladeCount == counts.length) {
+            allocate(counts.length * 2);
+        }
+
+        int clade = cladeCount;
+        cladeKeys1[clade] = key1;
+        cladeKeys2[clade] = key2;
+        taxonIndices[clade] = taxonIndex;
+        for (int i = 0; i < attributeNames.length; i++) {
+            attributeMins[i][clade] = Double.POSITIVE_INFINITY;
+            attributeMaxs[i][clade] = Double.NEGATIVE_INFINITY;
+        }
+        cladeCount++;
+
+        slots[slot] = clade;
+
+        // keep the table at most half full
+        if (cladeCount * 2 > slots.length) {
+            rehash(slots.length * 2);
+        }
+
+        return clade;
+    }
+
+    /**
+     * @return the slot holding the clade with the given fingerprint or the empty slot where it
+     * should go (linear probing)
+     */
+    private int findSlot(long key1, long key2) {
+        final int mask = slots.length - 1;
+        int slot = mix(key1) & mask;
+        while (slots[slot] >= 0) {
+            int clade = slots[slot];
+            if (cladeKeys1[clade] == key1 && cladeKeys2[clade] == key2) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void rehash(int capacity) {
+        slots = new int[capacity];
+        Arrays.fill(slots, -1);
+        for (int clade = 0; clade < cladeCount; clade++) {
+            slots[findSlot(cladeKeys1[clade], cladeKeys2[clade])] = clade;
+        }
+    }
+
+    private void allocate(int capacity) {
+        cladeKeys1 = grow(cladeKeys1, capacity);
+        cladeKeys2 = grow(cladeKeys2, capacity);
+        counts = counts == null ? new int[capacity] : Arrays.copyOf(counts, capacity);
+        taxonIndices = taxonIndices == null ? new int[capacity] : Arrays.copyOf(taxonIndices, capacity);
+
+        if (attributeCounts == null) {
+            attributeCounts = new int[attributeNames.length][];
+            attributeSums = new double[attributeNames.length][];
+            attributeMins = new double[attributeNames.length][];
+            attributeMaxs = new double[attributeNames.length][];
+            nonNumeric = new boolean[attributeNames.length];
+        }
+        for (int i = 0; i < attributeNames.length; i++) {
+            attributeCounts[i] = attributeCounts[i] == null ? new int[capacity] : Arrays.copyOf(attributeCounts[i], capacity);
+            attributeSums[i] = grow(attributeSums[i], capacity);
+            attributeMins[i] = grow(attributeMins[i], capacity);
+            attributeMaxs[i] = grow(attributeMaxs[i], capacity);
+        }
+    }
+
+    private static long[] grow(long[] array, int capacity) {
+        return array == null ? new long[capacity] : Arrays.copyOf(array, capacity);
+    }
+
+    private static double[] grow(double[] array, int capacity) {
+        return array == null ? new double[capacity] : Arrays.copyOf(array, capacity);
+    }
+
+    private static int mix(long key) {
+        key ^= (key >>> 33);
+        key *= 0xff51afd7ed558ccdL;
+        key ^= (key >>> 33);
+        return (int) key;
+    }
+
+    private final TaxonList taxa;
+    private final String[] attributeNames;
+
+    // taxon id to index in the taxon list, so tips are found without a linear scan
+    private final Map<String, Integer> taxonIdIndices;
+
+    private final long[] taxonKeys1;
+    private final long[] taxonKeys2;
+
+    // open-addressing table of clade numbers (-1 for empty)
+    private int[] slots;
+
+    // per-clade information indexed by clade number
+    private int cladeCount = 0;
+    private long[] cladeKeys1;
+    private long[] cladeKeys2;
+    private int[] counts;
+    private int[] taxonIndices;
+    private int[][] attributeCounts;
+    private double[][] attributeSums;
+    private double[][] attributeMins;
+    private double[][] attributeMaxs;
+    private boolean[] nonNumeric;
+
+    private int treeCount = 0;
+
+    // working state for the recursions
+    private int[] nodeClades;
+    private double[] nodeHeights;
+    private int nodeCount;
+    private long currentKey1;
+    private long currentKey2;
+    private int currentTaxon;
+}
@@ -49,10 +49,7 @@ import org.rosuda.JRI.RVector;
 import org.rosuda.JRI.Rengine;
 
 import javax.swing.*;
-import java.io.FileOutputStream;
-import java.io.FileReader;
-import java.io.IOException;
-import java.io.PrintStream;
+import java.io.*;
 import java.util.*;
 
 /**
@@ -70,7 +67,7 @@ public class TreeAnnotator {
 
     private double maxState = 1;
 
-    enum Target {
+    public enum Target {
         MAX_CLADE_CREDIBILITY("Maximum clade credibility tree"),
         MAX_MARGINAL_CLADE_CREDIBILITY("Maximum marginal clade credibilities"),
         USER_TARGET_TREE("User target tree");
@@ -86,7 +83,7 @@ public class TreeAnnotator {
         }
     }
 
-    enum HeightsSummary {
+    public enum HeightsSummary {
         MEDIAN_HEIGHTS("Median heights"),
         MEAN_HEIGHTS("Mean heights"),
         KEEP_HEIGHTS("Keep target heights"),
@@ -137,11 +134,39 @@ public class TreeAnnotator {
                          String inputFileName,
                          String outputFileName
     ) throws IOException {
+        this(burninTrees, burninStates, heightsOption, posteriorLimit, hpd2D, computeESS, targetOption,
+                targetTreeFileName, inputFileName, outputFileName, false);
+    }
+
+    /**
+     * As above but if streaming is true then a maximum clade credibility tree is found with a
+     * single pass through the tree file (see annotateMCCTreeStreaming).
+     */
+    public TreeAnnotator(final int burninTrees,
+                         final long burninStates,
+                         HeightsSummary heightsOption,
+                         double posteriorLimit,
+                         double[] hpd2D,
+                         boolean computeESS,
+                         Target targetOption,
+                         String targetTreeFileName,
+                         String inputFileName,
+                         String outputFileName,
+                         boolean streaming
+    ) throws IOException {
 
         this.posteriorLimit = posteriorLimit;
         this.hpd2D = hpd2D;
         this.computeESS = computeESS;
 
+        if (streaming) {
+            if (targetOption == Target.MAX_CLADE_CREDIBILITY) {
+                annotateMCCTreeStreaming(burninTrees, burninStates, heightsOption, inputFileName, outputFileName);
+                return;
+            }
+            progressStream.println("Streaming is only available for maximum clade credibility trees - reading trees in the standard way.");
+        }
+
         attributeNames.add("height");
         attributeNames.add("length");
 
@@ -351,6 +376,250 @@ public class TreeAnnotator {
 
     }
 
+    /**
+     * Finds and annotates the maximum clade credibility tree reading the tree file only once.
+     * The clades are counted in a CladeFingerprintTable which also accumulates the mean and
+     * range of the node heights and numeric attributes of every clade. The clade numbers of the
+     * nodes of each tree are cached in a temporary file and the tree with the highest clade
+     * credibility is found (and rebuilt) from this cache.
+     *
+     * Only the means and ranges of numeric attributes are available so median and common
+     * ancestor heights are replaced by mean heights and no HPDs or discrete attributes are
+     * annotated.
+     */
+    private void annotateMCCTreeStreaming(final int burninTrees,
+                                          final long burninStates,
+                                          HeightsSummary heightsOption,
+                                          String inputFileName,
+                                          String outputFileName) throws IOException {
+
+        if (heightsOption == HeightsSummary.MEDIAN_HEIGHTS || heightsOption == HeightsSummary.CA_HEIGHTS) {
+            progressStream.println("Streaming only keeps the mean node heights - using " + HeightsSummary.MEAN_HEIGHTS);
+            heightsOption = HeightsSummary.MEAN_HEIGHTS;
+        }
+        final boolean keepHeights = heightsOption == HeightsSummary.KEEP_HEIGHTS;
+
+        File cacheFile = File.createTempFile("treeannotator", ".clades");
+        cacheFile.deleteOnExit();
+
+        CladeFingerprintTable cladeTable = null;
+
+        int burnin = -1;
+
+        totalTrees = 10000;
+        totalTreesUsed = 0;
+
+        progressStream.println("Reading trees (bar assumes 10,000 trees)...");
+        progressStream.println("0              25             50             75            100");
+        progressStream.println("|--------------|--------------|--------------|--------------|");
+
+        long stepSize = totalTrees / 60;
+        if (stepSize < 1) stepSize = 1;
+
+        DataOutputStream cache = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(cacheFile), 1 << 16));
+        FileReader fileReader = new FileReader(inputFileName);
+        // the node attributes are in the meta comments so these are not ignored
+        TreeImporter importer = new NexusImporter(fileReader);
+        try {
+            totalTrees = 0;
+            while (importer.hasTree()) {
+                Tree tree = importer.importNextTree();
+
+                long state = Long.MAX_VALUE;
+
+                if (burninStates > 0) {
+                    // if burnin has been specified in states, try to parse it out...
+                    String name = tree.getId().trim();
+
+                    if (name != null && name.length() > 0 && name.startsWith("STATE_")) {
+                        state = Long.parseLong(name.split("_")[1]);
+                        maxState = state;
+                    }
+                }
+
+                if (totalTrees >= burninTrees && state >= burninStates) {
+                    // if either of the two burnin thresholds have been reached...
+
+                    if (burnin < 0) {
+                        burnin = totalTrees;
+                    }
+
+                    if (cladeTable == null) {
+                        cladeTable = new CladeFingerprintTable(tree, getStreamingAttributeNames(tree));
+                    }
+
+                    cache.writeUTF(tree.getId() != null ? tree.getId() : "");
+                    cladeTable.addTree(tree, cache, keepHeights);
+
+                    totalTreesUsed += 1;
+                }
+
+                if (totalTrees > 0 && totalTrees % stepSize == 0) {
+                    progressStream.print("*");
+                    progressStream.flush();
+                }
+                totalTrees++;
+            }
+
+        } catch (Importer.ImportException e) {
+            System.err.println("Error Parsing Input Tree: " + e.getMessage());
+            return;
+        } finally {
+            fileReader.close();
+            cache.close();
+        }
+        progressStream.println();
+        progressStream.println();
+
+        if (totalTreesUsed < 1) {
+            System.err.println(totalTrees < 1 ? "No trees" : "No trees to use: burnin too high");
+            cacheFile.delete();
+            return;
+        }
+
+        progressStream.println("Total trees read: " + totalTrees);
+        if (burninTrees > 0) {
+            progressStream.println("Ignoring first " + burninTrees + " trees" +
+                    (burninStates > 0 ? " (" + burninStates + " states)." : "." ));
+        } else if (burninStates > 0) {
+            progressStream.println("Ignoring first " + burninStates + " states (" + burnin + " trees).");
+        }
+
+        progressStream.println("Total unique clades: " + cladeTable.getCladeCount());
+        progressStream.println();
+
+        // the second pass only reads the cached clade numbers
+        progressStream.println("Finding maximum credibility tree...");
+        progressStream.println("0              25             50             75            100");
+        progressStream.println("|--------------|--------------|--------------|--------------|");
+
+        stepSize = totalTreesUsed / 60;
+        if (stepSize < 1) stepSize = 1;
+
+        String bestTreeId = null;
+        double bestScore = Double.NEGATIVE_INFINITY;
+        int bestTreeNumber = 0;
+        int[] bestCladeNumbers = null;
+        double[] bestHeights = null;
+        int bestNodeCount = 0;
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile), 1 << 16));
+        try {
+            int[] cladeNumbers = new int[0];
+            double[] heights = new double[0];
+            for (int counter = 0; counter < totalTreesUsed; counter++) {
+                String id = in.readUTF();
+                int nodeCount = in.readInt();
+                if (cladeNumbers.length < nodeCount) {
+                    cladeNumbers = new int[nodeCount];
+                    heights = new double[nodeCount];
+                }
+                for (int i = 0; i < nodeCount; i++) {
+                    cladeNumbers[i] = in.readInt();
+                }
+                if (keepHeights) {
+                    for (int i = 0; i < nodeCount; i++) {
+                        heights[i] = in.readDouble();
+                    }
+                }
+
+                double score = cladeTable.getLogCladeCredibility(cladeNumbers, nodeCount);
+                if (score > bestScore) {
+                    bestScore = score;
+                    bestTreeId = id;
+                    bestTreeNumber = burnin + counter + 1;
+                    bestNodeCount = nodeCount;
+                    bestCladeNumbers = Arrays.copyOf(cladeNumbers, nodeCount);
+                    bestHeights = keepHeights ? Arrays.copyOf(heights, nodeCount) : null;
+                }
+
+                if (counter > 0 && counter % stepSize == 0) {
+                    progressStream.print("*");
+                    progressStream.flush();
+                }
+            }
+        } finally {
+            in.close();
+            cacheFile.delete();
+        }
+        progressStream.println();
+        progressStream.println();
+        progressStream.println("Best tree: " + bestTreeId + " (tree number " + bestTreeNumber + ")");
+        progressStream.println("Highest Log Clade Credibility: " + bestScore);
+
+        MutableTree targetTree = cladeTable.buildTree(bestCladeNumbers, bestNodeCount, bestHeights);
+
+        progressStream.println("Annotating target tree...");
+
+        StringBuilder skipped = new StringBuilder();
+        for (int j = 0; j < cladeTable.getAttributeCount(); j++) {
+            if (cladeTable.isNonNumeric(j)) {
+                skipped.append(" ").append(cladeTable.getAttributeName(j));
+            }
+        }
+        if (skipped.length() > 0) {
+            progressStream.println("Streaming only summarizes numeric attributes - not annotating:" + skipped);
+        }
+
+        int[] cladeNumbers = cladeTable.getCladeNumbers(targetTree);
+        for (int i = 0; i < targetTree.getNodeCount(); i++) {
+            NodeRef node = targetTree.getNode(i);
+            int clade = cladeNumbers[node.getNumber()];
+
+            if (!targetTree.isExternal(node)) {
+                final double posterior = cladeTable.getCredibility(clade);
+                targetTree.setNodeAttribute(node, "posterior", posterior);
+                if (posterior < posteriorLimit) {
+                    continue;
+                }
+            }
+
+            for (int j = 0; j < cladeTable.getAttributeCount(); j++) {
+                if (cladeTable.isNonNumeric(j) || cladeTable.getAttributeValueCount(clade, j) == 0) {
+                    continue;
+                }
+                String name = cladeTable.getAttributeName(j);
+                double min = cladeTable.getAttributeMin(clade, j);
+                double max = cladeTable.getAttributeMax(clade, j);
+
+                targetTree.setNodeAttribute(node, name, cladeTable.getAttributeMean(clade, j));
+                if (min < max) {
+                    targetTree.setNodeAttribute(node, name + "_range", new Object[]{min, max});
+                }
+            }
+        }
+
+        progressStream.println("Writing annotated tree....");
+
+        try {
+            final PrintStream stream = outputFileName != null ?
+                    new PrintStream(new FileOutputStream(outputFileName)) :
+                    System.out;
+
+            new NexusExporter(stream).exportTree(targetTree);
+        } catch (Exception e) {
+            System.err.println("Error to write annotated tree file: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return the height, the branch length and then the names of the node attributes in the tree
+     */
+    private String[] getStreamingAttributeNames(Tree tree) {
+        Set<String> names = new LinkedHashSet<String>();
+        names.add("height");
+        names.add("length");
+        for (int i = 0; i < tree.getNodeCount(); i++) {
+            Iterator<?> iter = tree.getNodeAttributeNames(tree.getNode(i));
+            if (iter != null) {
+                while (iter.hasNext()) {
+                    names.add((String) iter.next());
+                }
+            }
+        }
+        return names.toArray(new String[names.size()]);
+    }
+
     private void setupAttributes(Tree tree) {
         for (int i = 0; i < tree.getNodeCount(); i++) {
             NodeRef node = tree.getNode(i);
@@ -1547,7 +1816,8 @@ public class TreeAnnotator {
                         new Arguments.Option("help", "option to print this message"),
                         new Arguments.Option("forceDiscrete", "forces integer traits to be treated as discrete traits."),
                         new Arguments.StringOption("hpd2D", "the HPD interval to be used for the bivariate traits", "specifies a (vector of comma separated) HPD proportion(s)"),
-                        new Arguments.Option("ess", "compute ess for branch parameters")
+                        new Arguments.Option("ess", "compute ess for branch parameters"),
+                        new Arguments.Option("streaming", "find the MCC tree in a single pass through the trees (mean heights and numeric attributes only)")
                 });
 
         try {
@@ -1642,7 +1912,9 @@ public class TreeAnnotator {
             }
         }
 
-        new TreeAnnotator(burninTrees, burninStates, heights, posteriorLimit, hpd2D, computeESS, target, targetTreeFileName, inputFileName, outputFileName);
+        boolean streaming = arguments.hasOption("streaming");
+
+        new TreeAnnotator(burninTrees, burninStates, heights, posteriorLimit, hpd2D, computeESS, target, targetTreeFileName, inputFileName, outputFileName, streaming);
 
         System.exit(0);
     }
@@ -33,8 +33,10 @@ import dr.evolution.util.Taxon;
 import dr.evolution.util.TaxonList;
 import dr.inference.model.Parameter;
 import dr.inference.model.Variable;
+import dr.util.SharedThreadPool;
 
 import java.util.*;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * Stores a set of site patterns. This differs from the simple Patterns
@@ -97,6 +99,17 @@ public class SitePatterns implements SiteList, dr.util.XHTMLable {
 
     private boolean uncertainSites = false;
 
+    /**
+     * hash index of the unique patterns - only exists while the patterns are being built
+     */
+    private PatternTable patternTable = null;
+
+    /**
+     * If set to true, long alignments are compressed in blocks of sites in parallel which are then merged.
+     */
+    public static final String PARALLEL_COMPRESSION_PROPERTY = "site.patterns.parallel";
+    private static final int PARALLEL_BLOCK_SIZE = 2048;
+
     /**
      * Constructor
      */
@@ -268,6 +281,8 @@ public class SitePatterns implements SiteList, dr.util.XHTMLable {
             uncertainPatterns = new double[siteCount][][];
         }
 
+        patternTable = new PatternTable(siteCount);
+
         if (constantSiteCounts != null) {
             if (constantSiteCounts.length != siteList.getStateCount()) {
                 throw new IllegalArgumentException("Constant site count array length doesn't equal the number of states");
@@ -281,30 +296,88 @@ public class SitePatterns implements SiteList, dr.util.XHTMLable {
             }
         }
 
-        int site = 0;
+        if (Boolean.getBoolean(PARALLEL_COMPRESSION_PROPERTY) && unique && !uncertainSites && siteCount > 2 * PARALLEL_BLOCK_SIZE) {
+            addPatternsInParallel(siteList, from, every);
+        } else {
+            int site = 0;
 
-        for (int i = from; i <= to; i += every) {
-            int[] pattern = siteList.getSitePattern(i);
-            double[][] probs = null;
+            for (int i = from; i <= to; i += every) {
+                int[] pattern = siteList.getSitePattern(i);
+                double[][] probs = null;
+
+                if (uncertainSites) {
+                    probs = siteList.getUncertainSitePattern(i);
+                }
 
-            if (uncertainSites) {
-                probs = siteList.getUncertainSitePattern(i);
+                if (isIncluded(pattern)) {
+
+                    sitePatternIndices[site] = addPattern(pattern, probs);
+
+                } else {
+                    sitePatternIndices[site] = -1;
+                }
+                site++;
             }
+        }
 
-            if (!strip || !isInvariant(pattern) ||
-                    (!isGapped(pattern) &&
-                            !isAmbiguous(pattern) &&
-                            !isUnknown(pattern))) {
+        patternTable = null;
+    }
 
-                sitePatternIndices[site] = addPattern(pattern, probs);
+    /**
+     * Compresses blocks of sites independently on the shared thread pool and then merges
+     * them in site order. The resulting pattern order, weights and invariant count are
+     * the same as those of compressing the sites one at a time.
+     */
+    private void addPatternsInParallel(final SiteList siteList, final int from, final int every) {
+
+        final int blockCount = (siteCount + PARALLEL_BLOCK_SIZE - 1) / PARALLEL_BLOCK_SIZE;
+        final BlockPatterns[] blocks = new BlockPatterns[blockCount];
+        for (int b = 0; b < blockCount; b++) {
+            int firstSite = b * PARALLEL_BLOCK_SIZE;
+            blocks[b] = new BlockPatterns(firstSite, Math.min(firstSite + PARALLEL_BLOCK_SIZE, siteCount));
+        }
 
-            }  else {
-                sitePatternIndices[site] = -1;
+        SharedThreadPool.getPool().invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+                for (final BlockPatterns block : blocks) {
+                    tasks.add(new RecursiveAction() {
+                        @Override
+                        protected void compute() {
+                            block.compress(siteList, from, every);
+                        }
+                    });
+                }
+                invokeAll(tasks);
+            }
+        });
+
+        for (BlockPatterns block : blocks) {
+            int[] globalIndices = new int[block.patternCount];
+            for (int j = 0; j < block.patternCount; j++) {
+                // add with a weight of one first so that the invariant count is as for the serial case
+                int index = addPattern(block.patterns[j], 1, null);
+                weights[index] += block.weights[j] - 1;
+                globalIndices[j] = index;
+            }
+            for (int site = block.firstSite; site < block.lastSite; site++) {
+                int localIndex = block.sitePatternIndices[site - block.firstSite];
+                sitePatternIndices[site] = (localIndex >= 0 ? globalIndices[localIndex] : -1);
             }
-            site++;
         }
     }
 
+    /**
+     * @return true if the pattern is not to be stripped out
+     */
+    private boolean isIncluded(int[] pattern) {
+        return !strip || !isInvariant(pattern) ||
+                (!isGapped(pattern) &&
+                        !isAmbiguous(pattern) &&
+                        !isUnknown(pattern));
+    }
+
     /**
      * sets up pattern list using an alignment
      */
@@ -334,6 +407,8 @@ public class SitePatterns implements SiteList, dr.util.XHTMLable {
             uncertainPatterns = new double[siteCount][][];
         }
 
+        patternTable = new PatternTable(siteCount);
+
         invariantCount = 0;
         int[] pattern;
 
@@ -361,6 +436,8 @@ public class SitePatterns implements SiteList, dr.util.XHTMLable {
                 site++;
             }
         }
+
+        patternTable = null;
     }
 
 
@@ -380,12 +457,25 @@ public class SitePatterns implements SiteList, dr.util.XHTMLable {
      */
     private int addPattern(int[] pattern, int weight, double[][] uncertainty) {
 
-        for (int i = 0; i < patternCount; i++) {
+        int hash = 0;
+
+        if (unique) {
+            if (patternTable != null) {
+                hash = hashPattern(pattern);
+                int i = patternTable.find(patterns, pattern, hash);
+                if (i >= 0) {
+                    weights[i] += weight;
+                    return i;
+                }
+            } else {
+                for (int i = 0; i < patternCount; i++) {
 
-            if (unique && comparePatterns(patterns[i], pattern)) {
+                    if (comparePatterns(patterns[i], pattern)) {
 
-                weights[i] += weight;
-                return i;
+                        weights[i] += weight;
+                        return i;
+                    }
+                }
             }
         }
 
@@ -414,11 +504,140 @@ public class SitePatterns implements SiteList, dr.util.XHTMLable {
             }
         }
 
+        if (unique && patternTable != null) {
+            patternTable.insert(index, hash);
+        }
+
         patternCount++;
 
         return index;
     }
 
+    /**
+     * @return a hash of the states in the pattern
+     */
+    private static int hashPattern(int[] pattern) {
+        long hash = 0xcbf29ce484222325L;
+        for (int state : pattern) {
+            hash = (hash ^ state) * 0x100000001b3L;
+        }
+        return (int) (hash ^ (hash >>> 32));
+    }
+
+    /**
+     * An open-addressing hash index of patterns. Patterns are only compared for equality
+     * when their hashes collide.
+     */
+    private final class PatternTable {
+
+        PatternTable(int capacity) {
+            int size = 16;
+            while (size < capacity * 2) {
+                size <<= 1;
+            }
+            slots = new int[size];
+            Arrays.fill(slots, -1);
+            hashes = new int[Math.max(capacity, 1)];
+            mask = size - 1;
+        }
+
+        /**
+         * @return the index of the pattern or -1 if it is not in the table
+         */
+        int find(int[][] patterns, int[] pattern, int hash) {
+            int slot = mix(hash) & mask;
+            while (slots[slot] >= 0) {
+                int index = slots[slot];
+                if (hashes[index] == hash && comparePatterns(patterns[index], pattern)) {
+                    return index;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+
+        void insert(int index, int hash) {
+            if (index >= hashes.length) {
+                hashes = Arrays.copyOf(hashes, Math.max(index + 1, hashes.length * 2));
+            }
+            if (index * 2 >= slots.length) {
+                rehash(slots.length * 2);
+            }
+            hashes[index] = hash;
+            int slot = mix(hash) & mask;
+            while (slots[slot] >= 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = index;
+        }
+
+        private void rehash(int size) {
+            int[] oldSlots = slots;
+            slots = new int[size];
+            Arrays.fill(slots, -1);
+            mask = size - 1;
+            for (int index : oldSlots) {
+                if (index >= 0) {
+                    int slot = mix(hashes[index]) & mask;
+                    while (slots[slot] >= 0) {
+                        slot = (slot + 1) & mask;
+                    }
+                    slots[slot] = index;
+                }
+            }
+        }
+
+        private int mix(int hash) {
+            return hash ^ (hash >>> 16);
+        }
+
+        private int[] slots;
+        private int[] hashes;
+        private int mask;
+    }
+
+    /**
+     * The unique patterns (in order of first occurrence) of a contiguous block of sites.
+     */
+    private final class BlockPatterns {
+
+        BlockPatterns(int firstSite, int lastSite) {
+            this.firstSite = firstSite;
+            this.lastSite = lastSite;
+            int size = lastSite - firstSite;
+            sitePatternIndices = new int[size];
+            patterns = new int[size][];
+            weights = new int[size];
+        }
+
+        void compress(SiteList siteList, int from, int every) {
+            PatternTable table = new PatternTable(lastSite - firstSite);
+            for (int site = firstSite; site < lastSite; site++) {
+                int[] pattern = siteList.getSitePattern(from + site * every);
+                int localIndex = -1;
+                if (isIncluded(pattern)) {
+                    int hash = hashPattern(pattern);
+                    localIndex = table.find(patterns, pattern, hash);
+                    if (localIndex < 0) {
+                        localIndex = patternCount;
+                        patterns[localIndex] = pattern;
+                        table.insert(localIndex, hash);
+                        patternCount++;
+                    }
+                    weights[localIndex]++;
+                }
+                sitePatternIndices[site - firstSite] = localIndex;
+            }
+        }
+
+        final int firstSite;
+        final int lastSite;
+        final int[] sitePatternIndices;
+        final int[][] patterns;
+        final int[] weights;
+        int patternCount = 0;
+    }
+
     /**
      * @return true if the pattern is invariant
      */
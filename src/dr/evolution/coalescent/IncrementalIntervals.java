@@ -0,0 +1,370 @@
+/*
+ * IncrementalIntervals.java
+ *
+ * Copyright (c) 2002-2020 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.evolution.coalescent;
+
+import dr.evolution.util.Units;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * A set of coalescent intervals in which each event is identified by a fixed index (e.g., a
+ * node number) and is kept in a sorted array. When the time of an event changes it is relocated
+ * by binary search and only the intervals between its old and new positions are recalculated.
+ * All changes since the last call to storeState() are journaled so that restoreState() only
+ * has to undo those changes.
+ *
+ * The events are ordered in the same way as {@link Intervals}: by time, then by type.
+ *
+ * @author Andrew Rambaut
+ */
+public class IncrementalIntervals implements IntervalList {
+
+    private static final long serialVersionUID = -5127263430618253712L;
+
+    public IncrementalIntervals(int maxEventCount) {
+        times = new double[maxEventCount];
+        types = new IntervalType[maxEventCount];
+        eventAtPosition = new int[maxEventCount];
+        positionOfEvent = new int[maxEventCount];
+
+        intervals = new double[maxEventCount - 1];
+        intervalTypes = new IntervalType[maxEventCount - 1];
+        lineageCounts = new int[maxEventCount - 1];
+
+        journalEvents = new int[16];
+        journalTimes = new double[16];
+    }
+
+    /**
+     * Sets all the events, sorting them from scratch. This invalidates the journal so a
+     * subsequent restoreState() will return false.
+     *
+     * @param eventCount the number of events
+     * @param eventTimes the time of each event (indexed by event)
+     * @param eventTypes the type of each event (indexed by event)
+     */
+    public void setEvents(int eventCount, final double[] eventTimes, final IntervalType[] eventTypes) {
+
+        Integer[] order = new Integer[eventCount];
+        for (int i = 0; i < eventCount; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer e1, Integer e2) {
+                return compareEvents(eventTimes[e1], eventTypes[e1], e1, eventTimes[e2], eventTypes[e2], e2);
+            }
+        });
+
+        sampleCount = 0;
+        for (int i = 0; i < eventCount; i++) {
+            int event = order[i];
+            times[i] = eventTimes[event];
+            types[i] = eventTypes[event];
+            eventAtPosition[i] = event;
+            positionOfEvent[event] = i;
+            if (types[i] == IntervalType.SAMPLE) {
+                sampleCount++;
+            }
+        }
+
+        this.eventCount = eventCount;
+        intervalCount = eventCount - 1;
+
+        journalSize = 0;
+        journalValid = false;
+
+        dirtyFrom = 0;
+        dirtyTo = eventCount - 1;
+    }
+
+    /**
+     * Changes the time of an event and moves it to its new position in the ordering.
+     *
+     * @param event the event index
+     * @param time  the new time
+     */
+    public void updateEventTime(int event, double time) {
+        int position = positionOfEvent[event];
+        if (times[position] == time) {
+            return;
+        }
+
+        if (journalSize == journalEvents.length) {
+            journalEvents = Arrays.copyOf(journalEvents, journalSize * 2);
+            journalTimes = Arrays.copyOf(journalTimes, journalSize * 2);
+        }
+        journalEvents[journalSize] = event;
+        journalTimes[journalSize] = times[position];
+        journalSize++;
+
+        moveEvent(event, time);
+    }
+
+    /**
+     * Starts a new journal of changes.
+     */
+    public void storeState() {
+        journalSize = 0;
+        journalValid = true;
+    }
+
+    /**
+     * Undoes all the changes made since storeState() was called.
+     *
+     * @return false if the events were set from scratch since the store (and so can't be restored)
+     */
+    public boolean restoreState() {
+        if (!journalValid) {
+            return false;
+        }
+        for (int i = journalSize - 1; i >= 0; i--) {
+            moveEvent(journalEvents[i], journalTimes[i]);
+        }
+        journalSize = 0;
+        return true;
+    }
+
+    private void moveEvent(int event, double time) {
+        final int oldPosition = positionOfEvent[event];
+        final IntervalType type = types[oldPosition];
+
+        // binary search for the new position amongst the other events
+        int newPosition;
+        if (oldPosition > 0 && compareEvents(time, type, event,
+                times[oldPosition - 1], types[oldPosition - 1], eventAtPosition[oldPosition - 1]) < 0) {
+            // moving down
+            int lo = 0;
+            int hi = oldPosition - 1;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (compareEvents(time, type, event, times[mid], types[mid], eventAtPosition[mid]) < 0) {
+                    hi = mid;
+                } else {
+                    lo = mid + 1;
+                }
+            }
+            newPosition = lo;
+            System.arraycopy(times, newPosition, times, newPosition + 1, oldPosition - newPosition);
+            System.arraycopy(types, newPosition, types, newPosition + 1, oldPosition - newPosition);
+            System.arraycopy(eventAtPosition, newPosition, eventAtPosition, newPosition + 1, oldPosition - newPosition);
+        } else if (oldPosition < eventCount - 1 && compareEvents(time, type, event,
+                times[oldPosition + 1], types[oldPosition + 1], eventAtPosition[oldPosition + 1]) > 0) {
+            // moving up
+            int lo = oldPosition + 1;
+            int hi = eventCount - 1;
+            while (lo < hi) {
+                int mid = (lo + hi + 1) >>> 1;
+                if (compareEvents(time, type, event, times[mid], types[mid], eventAtPosition[mid]) > 0) {
+                    lo = mid;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            newPosition = lo;
+            System.arraycopy(times, oldPosition + 1, times, oldPosition, newPosition - oldPosition);
+            System.arraycopy(types, oldPosition + 1, types, oldPosition, newPosition - oldPosition);
+            System.arraycopy(eventAtPosition, oldPosition + 1, eventAtPosition, oldPosition, newPosition - oldPosition);
+        } else {
+            newPosition = oldPosition;
+        }
+
+        times[newPosition] = time;
+        types[newPosition] = type;
+        eventAtPosition[newPosition] = event;
+
+        final int from = Math.min(oldPosition, newPosition);
+        final int to = Math.max(oldPosition, newPosition);
+        for (int i = from; i <= to; i++) {
+            positionOfEvent[eventAtPosition[i]] = i;
+        }
+
+        if (dirtyFrom > dirtyTo) {
+            dirtyFrom = from;
+            dirtyTo = to;
+        } else {
+            dirtyFrom = Math.min(dirtyFrom, from);
+            dirtyTo = Math.max(dirtyTo, to);
+        }
+    }
+
+    private static int compareEvents(double time1, IntervalType type1, int event1,
+                                     double time2, IntervalType type2, int event2) {
+        if (time1 < time2) {
+            return -1;
+        } else if (time1 > time2) {
+            return 1;
+        }
+        int c = type1.compareTo(type2);
+        if (c != 0) {
+            return c;
+        }
+        return (event1 < event2 ? -1 : (event1 == event2 ? 0 : 1));
+    }
+
+    /**
+     * Recalculates the intervals affected by the events moved since the last calculation.
+     */
+    public void calculateIntervals() {
+        if (dirtyFrom > dirtyTo) {
+            return;
+        }
+
+        if (eventCount < 2) {
+            throw new IllegalArgumentException("Too few events to construct intervals");
+        }
+
+        if (types[0] != IntervalType.SAMPLE) {
+            throw new IllegalArgumentException("First event is not a sample event");
+        }
+
+        // the interval ending with event i depends on the times of events i - 1 and i
+        final int from = Math.max(1, dirtyFrom);
+        final int to = Math.min(eventCount - 1, dirtyTo + 1);
+
+        int lineages;
+        if (from == 1) {
+            lineages = 1;
+        } else {
+            lineages = lineageCounts[from - 2] + lineageChange(types[from - 1]);
+        }
+
+        for (int i = from; i <= to; i++) {
+            intervals[i - 1] = times[i] - times[i - 1];
+            intervalTypes[i - 1] = types[i];
+            lineageCounts[i - 1] = lineages;
+            lineages += lineageChange(types[i]);
+        }
+
+        dirtyFrom = Integer.MAX_VALUE;
+        dirtyTo = Integer.MIN_VALUE;
+    }
+
+    private static int lineageChange(IntervalType type) {
+        if (type == IntervalType.SAMPLE) {
+            return 1;
+        } else if (type == IntervalType.COALESCENT) {
+            return -1;
+        }
+        return 0;
+    }
+
+    // **************************************************************
+    // IntervalList IMPLEMENTATION
+    // **************************************************************
+
+    public int getIntervalCount() {
+        calculateIntervals();
+        return intervalCount;
+    }
+
+    public int getSampleCount() {
+        return sampleCount;
+    }
+
+    public double getStartTime() {
+        calculateIntervals();
+        return times[0];
+    }
+
+    public double getInterval(int i) {
+        calculateIntervals();
+        return intervals[i];
+    }
+
+    public double getIntervalTime(int i) {
+        calculateIntervals();
+        return times[i];
+    }
+
+    public int getLineageCount(int i) {
+        calculateIntervals();
+        return lineageCounts[i];
+    }
+
+    public int getCoalescentEvents(int i) {
+        calculateIntervals();
+        if (i < intervalCount - 1) {
+            return lineageCounts[i] - lineageCounts[i + 1];
+        } else {
+            return lineageCounts[i] - 1;
+        }
+    }
+
+    public IntervalType getIntervalType(int i) {
+        calculateIntervals();
+        return intervalTypes[i];
+    }
+
+    public double getTotalDuration() {
+        calculateIntervals();
+        return times[eventCount - 1];
+    }
+
+    public boolean isBinaryCoalescent() {
+        return true;
+    }
+
+    public boolean isCoalescentOnly() {
+        return true;
+    }
+
+    private Units.Type units = Units.Type.GENERATIONS;
+
+    public final Units.Type getUnits() {
+        return units;
+    }
+
+    public final void setUnits(Type units) {
+        this.units = units;
+    }
+
+    // event data in sorted order
+    private final double[] times;
+    private final IntervalType[] types;
+    private final int[] eventAtPosition;
+
+    // where each event currently is in the sorted order
+    private final int[] positionOfEvent;
+
+    private int eventCount = 0;
+    private int sampleCount = 0;
+
+    private final double[] intervals;
+    private final IntervalType[] intervalTypes;
+    private final int[] lineageCounts;
+    private int intervalCount = 0;
+
+    // range of positions whose intervals need recalculating
+    private int dirtyFrom = Integer.MAX_VALUE;
+    private int dirtyTo = Integer.MIN_VALUE;
+
+    // the original times of the events changed since the last store
+    private int[] journalEvents;
+    private double[] journalTimes;
+    private int journalSize = 0;
+    private boolean journalValid = false;
+}
@@ -0,0 +1,226 @@
+/*
+ * BitPackedPatterns.java
+ *
+ * Copyright (c) 2002-2020 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.evolution.distance;
+
+import dr.evolution.alignment.PatternList;
+import dr.evolution.datatype.DataType;
+
+/**
+ * Nucleotide patterns packed 32 to a 64-bit word, with 2 bits per state, so that the (weighted)
+ * number of differences between two taxa is counted with a few bit operations and a popcount per
+ * word.
+ *
+ * Each taxon has three arrays of words: the states (A = 00, C = 01, G = 10, T = 11), a mask of the
+ * unambiguous states and a mask of the states that are not gaps. The masks have their bits at the
+ * lower bit of each 2-bit field.
+ *
+ * The pattern weights must be non-negative integers. They are handled by bit planes: the patterns
+ * whose weight has bit k set are packed into their own block of words, and the counts in that
+ * block are shifted left by k. A weighted count therefore costs one pass over sum_k (patterns with
+ * bit k set) / 32 words rather than over all the sites.
+ *
+ * @author Andrew Rambaut
+ */
+public class BitPackedPatterns {
+
+    public static final int STATES_PER_WORD = 32;
+
+    public static final int PURINE_TRANSITIONS = 0;
+    public static final int PYRIMIDINE_TRANSITIONS = 1;
+    public static final int TRANSVERSIONS = 2;
+
+    /**
+     * @param patterns nucleotide patterns with integer weights
+     * @throws IllegalArgumentException if the patterns are not nucleotides or have fractional weights
+     */
+    public BitPackedPatterns(PatternList patterns) {
+        final DataType dataType = patterns.getDataType();
+        if (dataType.getType() != DataType.NUCLEOTIDES || dataType.getStateCount() != 4) {
+            throw new IllegalArgumentException("Bit packed patterns must be nucleotides");
+        }
+
+        taxonCount = patterns.getTaxonCount();
+        final int patternCount = patterns.getPatternCount();
+
+        long[] weights = new long[patternCount];
+        long maxWeight = 0;
+        for (int i = 0; i < patternCount; i++) {
+            double weight = patterns.getPatternWeight(i);
+            if (weight < 0.0 || weight != Math.rint(weight) || weight > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Bit packed patterns must have integer weights");
+            }
+            weights[i] = (long) weight;
+            totalWeight += weights[i];
+            maxWeight = Math.max(maxWeight, weights[i]);
+        }
+
+        // one block of words per bit plane of the weights
+        final int planeCount = 64 - Long.numberOfLeadingZeros(maxWeight);
+        int[] planeWords = new int[planeCount];
+        int words = 0;
+        for (int k = 0; k < planeCount; k++) {
+            int count = 0;
+            for (int i = 0; i < patternCount; i++) {
+                if (((weights[i] >>> k) & 1L) != 0) {
+                    count++;
+                }
+            }
+            planeWords[k] = (count + STATES_PER_WORD - 1) / STATES_PER_WORD;
+            words += planeWords[k];
+        }
+        wordCount = words;
+
+        wordShifts = new int[wordCount];
+        states = new long[taxonCount][wordCount];
+        unambiguous = new long[taxonCount][wordCount];
+        ungapped = new long[taxonCount][wordCount];
+
+        final int gapState = dataType.getGapState();
+        int firstWord = 0;
+        for (int k = 0; k < planeCount; k++) {
+            for (int w = firstWord; w < firstWord + planeWords[k]; w++) {
+                wordShifts[w] = k;
+            }
+            int position = firstWord * STATES_PER_WORD;
+            for (int i = 0; i < patternCount; i++) {
+                if (((weights[i] >>> k) & 1L) != 0) {
+                    final int word = position / STATES_PER_WORD;
+                    final int shift = 2 * (position % STATES_PER_WORD);
+                    final int[] pattern = patterns.getPattern(i);
+                    for (int t = 0; t < taxonCount; t++) {
+                        final int state = pattern[t];
+                        if (!dataType.isAmbiguousState(state)) {
+                            states[t][word] |= ((long) state) << shift;
+                            unambiguous[t][word] |= 1L << shift;
+                        }
+                        if (state != gapState) {
+                            ungapped[t][word] |= 1L << shift;
+                        }
+                    }
+                    position++;
+                }
+            }
+            firstWord += planeWords[k];
+        }
+    }
+
+    public int getTaxonCount() {
+        return taxonCount;
+    }
+
+    public int getWordCount() {
+        return wordCount;
+    }
+
+    /**
+     * @return the sum of the pattern weights, i.e., the number of sites
+     */
+    public long getTotalWeight() {
+        return totalWeight;
+    }
+
+    /**
+     * @return the weighted number of sites at which both taxa have unambiguous and different states
+     */
+    public long getDifferenceCount(int taxon1, int taxon2) {
+        return getDifferenceCount(taxon1, taxon2, Long.MAX_VALUE);
+    }
+
+    /**
+     * Counts the differences, but gives up as soon as the count exceeds a limit.
+     *
+     * @return the weighted number of differences, or some value greater than limit if it exceeds it
+     */
+    public long getDifferenceCount(int taxon1, int taxon2, long limit) {
+        final long[] s1 = states[taxon1];
+        final long[] s2 = states[taxon2];
+        final long[] u1 = unambiguous[taxon1];
+        final long[] u2 = unambiguous[taxon2];
+
+        long count = 0;
+        for (int w = 0; w < wordCount; w++) {
+            final long x = s1[w] ^ s2[w];
+            count += ((long) Long.bitCount((x | (x >>> 1)) & u1[w] & u2[w])) << wordShifts[w];
+            if (count > limit) {
+                break;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Counts the differences by kind, in a single pass: A-G transitions in counts[PURINE_TRANSITIONS],
+     * C-T transitions in counts[PYRIMIDINE_TRANSITIONS] and transversions in counts[TRANSVERSIONS].
+     */
+    public void getDifferenceCounts(int taxon1, int taxon2, long[] counts) {
+        final long[] s1 = states[taxon1];
+        final long[] s2 = states[taxon2];
+        final long[] u1 = unambiguous[taxon1];
+        final long[] u2 = unambiguous[taxon2];
+
+        long purineTransitions = 0;
+        long pyrimidineTransitions = 0;
+        long transversions = 0;
+        for (int w = 0; w < wordCount; w++) {
+            final long valid = u1[w] & u2[w];
+            final long x = s1[w] ^ s2[w];
+            // a transition differs only in the upper bit, and is between pyrimidines if the lower bit is set
+            final long transitions = (x >>> 1) & ~x & valid;
+            final int shift = wordShifts[w];
+            pyrimidineTransitions += ((long) Long.bitCount(transitions & s1[w])) << shift;
+            purineTransitions += ((long) Long.bitCount(transitions & ~s1[w])) << shift;
+            transversions += ((long) Long.bitCount(x & valid)) << shift;
+        }
+        counts[PURINE_TRANSITIONS] = purineTransitions;
+        counts[PYRIMIDINE_TRANSITIONS] = pyrimidineTransitions;
+        counts[TRANSVERSIONS] = transversions;
+    }
+
+    /**
+     * @return the weighted number of sites at which neither taxon has a gap
+     */
+    public long getUngappedWeight(int taxon1, int taxon2) {
+        final long[] g1 = ungapped[taxon1];
+        final long[] g2 = ungapped[taxon2];
+
+        long count = 0;
+        for (int w = 0; w < wordCount; w++) {
+            count += ((long) Long.bitCount(g1[w] & g2[w])) << wordShifts[w];
+        }
+        return count;
+    }
+
+    private final int taxonCount;
+    private final int wordCount;
+    private long totalWeight = 0;
+
+    // the weight bit plane of each word
+    private final int[] wordShifts;
+
+    private final long[][] states;
+    private final long[][] unambiguous;
+    private final long[][] ungapped;
+}
@@ -84,7 +84,7 @@ public class F84DistanceMatrix extends DistanceMatrix
 		int state1, state2;
 		
 		int n = patterns.getPatternCount();
-		double weight, distance;
+		double weight;
 		double sumTs = 0.0;
 		double sumTv = 0.0;
 		double sumWeight = 0.0;
@@ -111,6 +111,30 @@ public class F84DistanceMatrix extends DistanceMatrix
 			sumWeight += weight;
 		}
 		
+		return calculateDistance(sumTs, sumTv, sumWeight);
+	}
+
+	/**
+	 * Calculate a pairwise distance from bit packed patterns
+	 */
+	protected double calculatePairwiseDistance(BitPackedPatterns packed, int taxon1, int taxon2) {
+		final long[] counts = differenceCounts.get();
+		packed.getDifferenceCounts(taxon1, taxon2, counts);
+
+		// as above, only A-G differences count as transitions
+		double sumTs = counts[BitPackedPatterns.PURINE_TRANSITIONS];
+		double sumTv = counts[BitPackedPatterns.PYRIMIDINE_TRANSITIONS] + counts[BitPackedPatterns.TRANSVERSIONS];
+
+		return calculateDistance(sumTs, sumTv, packed.getTotalWeight());
+	}
+
+	protected boolean hasBitPackedDistances() {
+		return true;
+	}
+
+	private double calculateDistance(double sumTs, double sumTv, double sumWeight) {
+		double distance;
+
 		double P = sumTs / sumWeight;
 		double Q = sumTv / sumWeight;
 		
@@ -137,5 +161,12 @@ public class F84DistanceMatrix extends DistanceMatrix
 	
 	//used in correction formula
 	private double constA, constB, constC;
+
+	// the difference counts of a pair of taxa, one array for each thread that calculates distances
+	private final ThreadLocal<long[]> differenceCounts = new ThreadLocal<long[]>() {
+		protected long[] initialValue() {
+			return new long[3];
+		}
+	};
 	
 }
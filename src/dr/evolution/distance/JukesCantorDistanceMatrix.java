@@ -69,8 +69,21 @@ public class JukesCantorDistanceMatrix extends DistanceMatrix
 	 * Calculate a pairwise distance
 	 */
 	protected double calculatePairwiseDistance(int i, int j) {
-		final double obsDist = super.calculatePairwiseDistance(i, j);
-		
+		return correctDistance(super.calculatePairwiseDistance(i, j));
+	}
+
+	/**
+	 * Calculate a pairwise distance from bit packed patterns
+	 */
+	protected double calculatePairwiseDistance(BitPackedPatterns packed, int i, int j) {
+		return correctDistance(super.calculatePairwiseDistance(packed, i, j));
+	}
+
+	protected boolean hasBitPackedDistances() {
+		return true;
+	}
+
+	private double correctDistance(double obsDist) {
 		if (obsDist == 0.0) return 0.0;
 	
 		if (obsDist >= const1) {
@@ -71,7 +71,7 @@ public abstract class ClusteringTree extends SimpleTree {
 	
 	protected double getDist(int a, int b) {
 	
-		return distance[alias[a]][alias[b]];
+		return getDistance(alias[a], alias[b]);
 	}
 	
 	protected void init(DistanceMatrix distanceMatrix) {
@@ -79,10 +79,14 @@ public abstract class ClusteringTree extends SimpleTree {
 		numClusters = distanceMatrix.getTaxonCount();
 		clusters = new SimpleNode[numClusters];
 		
-		distance = new double[numClusters][numClusters];
+		// the upper triangle only, as the distances are symmetric with a zero diagonal
+		size = numClusters;
+		distance = new double[(int) (((long) size * (size - 1)) / 2)];
+		int index = 0;
 		for (int i = 0; i < numClusters; i++) {
-			for (int j = 0; j < numClusters; j++) {
-				distance[i][j] = distanceMatrix.getElement(i, j);
+			for (int j = i + 1; j < numClusters; j++) {
+				distance[index] = distanceMatrix.getElement(i, j);
+				index++;
 			}
 		}
 
@@ -118,12 +122,10 @@ public abstract class ClusteringTree extends SimpleTree {
 			if (k != besti && k != bestj) {
 			
 				int ak = alias[k];	
-				distance[ak][abi] = distance[abi][ak] = updatedDistance(besti, bestj, k);
-				distance[ak][abj] = distance[abj][ak] = -1.0;
+				setDistance(ak, abi, updatedDistance(besti, bestj, k));
+				setDistance(ak, abj, -1.0);
 			}
 		}
-		distance[abi][abi] = 0.0;
-		distance[abj][abj] = -1.0;
 
 		// Update alias
 		for (int i = bestj; i < numClusters-1; i++) {
@@ -142,6 +144,26 @@ public abstract class ClusteringTree extends SimpleTree {
 		distance = null;		
 	}
 
+	private double getDistance(int a, int b) {
+		if (a == b) {
+			return 0.0;
+		}
+		return distance[getIndex(a, b)];
+	}
+
+	private void setDistance(int a, int b, double value) {
+		distance[getIndex(a, b)] = value;
+	}
+
+	private int getIndex(int a, int b) {
+		if (a > b) {
+			int tmp = a;
+			a = b;
+			b = tmp;
+		}
+		return (int) (((long) a * (2 * size - a - 1)) / 2) + (b - a - 1);
+	}
+
 	protected abstract void findNextPair();
 	protected abstract double newNodeHeight();
 	protected abstract double updatedDistance(int i, int j, int k);
@@ -155,7 +177,8 @@ public abstract class ClusteringTree extends SimpleTree {
 	protected int bestj, abj;
 	protected int[] tipCount;
 	protected int[] alias;
-	protected double[][] distance;
+	protected double[] distance;
+	private int size;
 
 	protected int minimumTaxa;
 }
@@ -95,6 +95,11 @@ public final class DefaultBranchRateModel implements BranchRateModel {
         return false;
     }
 
+    public long getStateVersion() {
+        // the rates are constant
+        return 0;
+    }
+
     public String getTraitName() {
         return RATE;
     }
@@ -83,8 +83,14 @@ public class GMRFMultilocusSkyrideLikelihood extends OldGMRFSkyrideLikelihood
     private final List<Parameter> covPrecParametersRecent;
     private final List<Parameter> covPrecParametersDistant;
 
-    private List<SymmTridiagMatrix> weightMatricesForMissingCovRecent;
-    private List<SymmTridiagMatrix> weightMatricesForMissingCovDistant;
+    private List<TridiagonalPrecision> weightMatricesForMissingCovRecent;
+    private List<TridiagonalPrecision> weightMatricesForMissingCovDistant;
+
+    // the scaled field precision (with lambda = 1) for the gradient, and work arrays
+    private TridiagonalPrecision gradientPrecision;
+    private double[] meanAdjustedGamma;
+    private double[] covariateUpdate;
+    private double[] missingCovWork;
 
     private int[] firstObservedIndex;
     private int[] lastObservedIndex;
@@ -766,6 +772,10 @@ public class GMRFMultilocusSkyrideLikelihood extends OldGMRFSkyrideLikelihood
 
         weightMatrix = new SymmTridiagMatrix(diag, offdiag);
 
+        gradientPrecision = new TridiagonalPrecision(weightMatrix);
+        meanAdjustedGamma = new double[fieldLength];
+        covariateUpdate = new double[fieldLength];
+        missingCovWork = new double[fieldLength];
     }
 
     protected double getFieldScalar() {
@@ -790,7 +800,7 @@ public class GMRFMultilocusSkyrideLikelihood extends OldGMRFSkyrideLikelihood
                 }
                 diagRec[0] = 1.0;
 
-                weightMatricesForMissingCovRecent.add(i, new SymmTridiagMatrix(diagRec, offdiagRec));
+                weightMatricesForMissingCovRecent.add(i, new TridiagonalPrecision(new SymmTridiagMatrix(diagRec, offdiagRec)));
             }
 
         }
@@ -816,31 +826,21 @@ public class GMRFMultilocusSkyrideLikelihood extends OldGMRFSkyrideLikelihood
                 //Take care of the endpoint
                 diag[fieldLength - lastObservedIndex[i] - 1] = 1.0;
 
-                weightMatricesForMissingCovDistant.add(i, new SymmTridiagMatrix(diag, offdiag));
+                weightMatricesForMissingCovDistant.add(i, new TridiagonalPrecision(new SymmTridiagMatrix(diag, offdiag)));
             }
         }
 
     }
 
-    private SymmTridiagMatrix getScaledWeightMatrixForMissingCovRecent(double precision, int covIndex, int firstObs) {
-        SymmTridiagMatrix a = weightMatricesForMissingCovRecent.get(covIndex).copy();
-        for (int i = 0; i < a.numRows() - 1; i++) {
-            a.set(i, i, a.get(i, i) * precision);
-            a.set(i + 1, i, a.get(i + 1, i) * precision);
-        }
-        a.set(firstObs - 2, firstObs - 2,
-                a.get(firstObs - 2, firstObs - 2) * precision);
+    private TridiagonalPrecision getScaledWeightMatrixForMissingCovRecent(double precision, int covIndex) {
+        TridiagonalPrecision a = weightMatricesForMissingCovRecent.get(covIndex);
+        a.setScale(precision, 1.0);
         return a;
     }
 
-    private SymmTridiagMatrix getScaledWeightMatrixForMissingCovDistant(double precision, int covIndex, int lastObs) {
-        SymmTridiagMatrix a = weightMatricesForMissingCovDistant.get(covIndex).copy();
-        for (int i = 0; i < a.numRows() - 1; i++) {
-            a.set(i, i, a.get(i, i) * precision);
-            a.set(i + 1, i, a.get(i + 1, i) * precision);
-        }
-        a.set(fieldLength - lastObs - 1, fieldLength - lastObs - 1,
-                a.get(fieldLength - lastObs - 1, fieldLength - lastObs - 1) * precision);
+    private TridiagonalPrecision getScaledWeightMatrixForMissingCovDistant(double precision, int covIndex) {
+        TridiagonalPrecision a = weightMatricesForMissingCovDistant.get(covIndex);
+        a.setScale(precision, 1.0);
         return a;
     }
 
@@ -924,7 +924,7 @@ public class GMRFMultilocusSkyrideLikelihood extends OldGMRFSkyrideLikelihood
     public double[] getDiagonalHessianWrtLogPopulationSize() { return getDiagonalHessianLogDensity(); }
 
     private double[] getMeanAdjustedGamma() {
-        return skygridHelper.getMeanAdjustedGamma().getData();
+        return skygridHelper.getMeanAdjustedGamma();
     }
 
     public double[] getGradientWrtPrecision() {
@@ -1030,43 +1030,15 @@ public class GMRFMultilocusSkyrideLikelihood extends OldGMRFSkyrideLikelihood
         double[] gradLogDens = new double[dim];
         double[] gamma = getMeanAdjustedGamma();
 
-        double currentPrec = precisionParameter.getParameterValue(0);
+        gradientPrecision.setScale(precisionParameter.getParameterValue(0), 1.0);
+        gradientPrecision.multiply(gamma, gradLogDens);
 
-        gradLogDens[0] = -currentPrec * (gamma[0] - gamma[1])
-                - numCoalEvents[0] + sufficientStatistics[0]
-                * Math.exp(-popSizeParameter.getParameterValue(0));
-
-        for (int i = 1; i < (dim-1); i++) {
-            gradLogDens[i] = -currentPrec * (-gamma[i - 1] + 2 * gamma[i] - gamma[i + 1])
-                    - numCoalEvents[i] + sufficientStatistics[i]
-                    * Math.exp(-popSizeParameter.getParameterValue(i));
+        for (int i = 0; i < dim; i++) {
+            gradLogDens[i] = -gradLogDens[i] - numCoalEvents[i]
+                    + sufficientStatistics[i] * Math.exp(-popSizeParameter.getParameterValue(i));
         }
 
-        gradLogDens[dim-1] = -currentPrec * (gamma[dim - 1] - gamma[dim - 2])
-                - numCoalEvents[dim - 1] + sufficientStatistics[dim - 1]
-                * Math.exp(-popSizeParameter.getParameterValue(dim-1));
-
         return gradLogDens;
-
-//        // TODO Am unclear why the code below does not work for Hessian (???)
-//        DenseVector currentGamma = new DenseVector(popSizeParameter.getParameterValues());
-//
-//        // Use same code as skygridHelper -- TODO remove code duplication
-//        skygridHelper.updateGammaWithCovariates(currentGamma);
-//        SymmTridiagMatrix currentQ = getScaledWeightMatrix(
-//                precisionParameter.getParameterValue(0),
-//                lambdaParameter.getParameterValue(0));
-//
-//        DenseVector g = new DenseVector(fieldLength);
-//        currentQ.mult(currentGamma, g);
-//
-//        double[] gradient = g.getData();
-//
-//        for (int i = 0; i < fieldLength; ++i) {
-//            gradient[i] += -numCoalEvents[i] + sufficientStatistics[i] * Math.exp(-popSizeParameter.getParameterValue(i));
-//        }
-//
-//        return gradient;
     }
 
     private double[] getDiagonalHessianLogDensity() {
@@ -1108,12 +1080,15 @@ public class GMRFMultilocusSkyrideLikelihood extends OldGMRFSkyrideLikelihood
 
         SkygridHelper() { }
 
-        void updateGammaWithCovariates(DenseVector currentGamma) {
+        void updateGammaWithCovariates(double[] currentGamma) {
             // Do nothing
         }
 
-        private DenseVector getMeanAdjustedGamma() {
-            DenseVector currentGamma = new DenseVector(popSizeParameter.getParameterValues());
+        private double[] getMeanAdjustedGamma() {
+            double[] currentGamma = meanAdjustedGamma;
+            for (int i = 0; i < fieldLength; i++) {
+                currentGamma[i] = popSizeParameter.getParameterValue(i);
+            }
             updateGammaWithCovariates(currentGamma);
             return currentGamma;
         }
@@ -1126,15 +1101,14 @@ public class GMRFMultilocusSkyrideLikelihood extends OldGMRFSkyrideLikelihood
 
             checkIntervals(); // TODO Is this really necessary?  Computation below does not appear to depend on intervals.
 
-            DenseVector diagonal1 = new DenseVector(fieldLength);
-            DenseVector currentGamma = getMeanAdjustedGamma();
+            double[] currentGamma = getMeanAdjustedGamma();
 
             double currentLike = handleMissingValues();
 
-            SymmTridiagMatrix currentQ = getScaledWeightMatrix(precisionParameter.getParameterValue(0), lambdaParameter.getParameterValue(0));
-            currentQ.mult(currentGamma, diagonal1);
+            TridiagonalPrecision currentQ = getFieldPrecision();
+            currentQ.setScale(precisionParameter.getParameterValue(0), lambdaParameter.getParameterValue(0));
 
-            currentLike += 0.5 * (fieldLength - 1) * Math.log(precisionParameter.getParameterValue(0)) - 0.5 * currentGamma.dot(diagonal1);
+            currentLike += 0.5 * (fieldLength - 1) * Math.log(precisionParameter.getParameterValue(0)) - 0.5 * currentQ.quadraticForm(currentGamma);
             if (lambdaParameter.getParameterValue(0) == 1) {
                 currentLike -= (fieldLength - 1) / 2.0 * LOG_TWO_TIMES_PI;
             } else {
@@ -1150,7 +1124,7 @@ public class GMRFMultilocusSkyrideLikelihood extends OldGMRFSkyrideLikelihood
         SkygridCovariateHelper() { }
 
         @Override
-        protected void updateGammaWithCovariates(DenseVector currentGamma) {
+        protected void updateGammaWithCovariates(double[] currentGamma) {
 
             assert (beta != null);
 
@@ -1158,8 +1132,9 @@ public class GMRFMultilocusSkyrideLikelihood extends OldGMRFSkyrideLikelihood
 
             if (NEW_APPROACH) {
 
-                final int N = currentGamma.size();
-                double[] update = new double[N];
+                final int N = currentGamma.length;
+                double[] update = covariateUpdate;
+                Arrays.fill(update, 0.0);
 
                 if (dMatrix != null) {
                     final int K = dMatrix.getColumnDimension();
@@ -1202,7 +1177,7 @@ public class GMRFMultilocusSkyrideLikelihood extends OldGMRFSkyrideLikelihood
                 }
 
                 for (int i = 0; i < N; ++i) {
-                    currentGamma.set(i, currentGamma.get(i) - update[i]);
+                    currentGamma[i] -= update[i];
                 }
 
             } else {
@@ -1225,7 +1200,7 @@ public class GMRFMultilocusSkyrideLikelihood extends OldGMRFSkyrideLikelihood
                         for (int j = 0; j < covariates.get(i).getColumnDimension(); j++) {
                             // System.err.println("j: " + j);
                             // System.err.println("covariates.get(i).getParameterValue(0,j): " + covariates.get(i).getParameterValue(0,j));
-                            currentGamma.set(j, currentGamma.get(j) - covariates.get(i).getParameterValue(0, j) * currentBeta.get(i));
+                            currentGamma[j] -= covariates.get(i).getParameterValue(0, j) * currentBeta.get(i);
                         }
                     }
                 }
@@ -1247,9 +1222,9 @@ public class GMRFMultilocusSkyrideLikelihood extends OldGMRFSkyrideLikelihood
             assert (covPrecParametersDistant != null);
 
             int numMissing;
-            DenseVector tempVectMissingCov;
-            SymmTridiagMatrix missingCovQ;
-            DenseVector tempVectMissingCov2;
+            // the missing stretches are no longer than the field so share one work array
+            double[] tempVectMissingCov = missingCovWork;
+            TridiagonalPrecision missingCovQ;
             int numMissingRecent;
 
             double currentLike = 0.0;
@@ -1258,20 +1233,16 @@ public class GMRFMultilocusSkyrideLikelihood extends OldGMRFSkyrideLikelihood
                 for (int i = 0; i < covPrecParametersDistant.size(); i++) {
 
                     numMissing = fieldLength - lastObservedIndex[i];
-                    tempVectMissingCov = new DenseVector(numMissing);
-                    tempVectMissingCov2 = new DenseVector(numMissing);
 
-                    missingCovQ = getScaledWeightMatrixForMissingCovDistant(covPrecParametersDistant.get(i).getParameterValue(0), i,
-                            lastObservedIndex[i]);
+                    missingCovQ = getScaledWeightMatrixForMissingCovDistant(covPrecParametersDistant.get(i).getParameterValue(0), i);
 
                     for (int j = 0; j < numMissing; j++) {
-                        tempVectMissingCov.set(j, covariates.get(distIndices[i] - 1).getParameterValue(0, lastObservedIndex[i] + j) -
-                                covariates.get(distIndices[i] - 1).getParameterValue(0, lastObservedIndex[i] - 1));
+                        tempVectMissingCov[j] = covariates.get(distIndices[i] - 1).getParameterValue(0, lastObservedIndex[i] + j) -
+                                covariates.get(distIndices[i] - 1).getParameterValue(0, lastObservedIndex[i] - 1);
                     }
 
-                    missingCovQ.mult(tempVectMissingCov, tempVectMissingCov2);
                     currentLike += 0.5 * (numMissing) * Math.log(covPrecParametersDistant.get(i).getParameterValue(0))
-                            - 0.5 * tempVectMissingCov.dot(tempVectMissingCov2);
+                            - 0.5 * missingCovQ.quadraticForm(tempVectMissingCov);
                 }
             }
 
@@ -1280,20 +1251,16 @@ public class GMRFMultilocusSkyrideLikelihood extends OldGMRFSkyrideLikelihood
                 for (int i = 0; i < covPrecParametersRecent.size(); i++) {
 
                     numMissingRecent = firstObservedIndex[i]-1;
-                    tempVectMissingCov = new DenseVector(numMissingRecent);
-                    tempVectMissingCov2 = new DenseVector(numMissingRecent);
 
-                    missingCovQ = getScaledWeightMatrixForMissingCovRecent(covPrecParametersRecent.get(i).getParameterValue(0), i,
-                            firstObservedIndex[i]);
+                    missingCovQ = getScaledWeightMatrixForMissingCovRecent(covPrecParametersRecent.get(i).getParameterValue(0), i);
 
                     for (int j = 0; j < numMissingRecent; j++) {
-                        tempVectMissingCov.set(j, covariates.get(recIndices[i] - 1).getParameterValue(0, j) -
-                                covariates.get(recIndices[i] - 1).getParameterValue(0, firstObservedIndex[i]-1));
+                        tempVectMissingCov[j] = covariates.get(recIndices[i] - 1).getParameterValue(0, j) -
+                                covariates.get(recIndices[i] - 1).getParameterValue(0, firstObservedIndex[i]-1);
                     }
 
-                    missingCovQ.mult(tempVectMissingCov, tempVectMissingCov2);
                     currentLike += 0.5 * (numMissingRecent) * Math.log(covPrecParametersRecent.get(i).getParameterValue(0))
-                            - 0.5 * tempVectMissingCov.dot(tempVectMissingCov2);
+                            - 0.5 * missingCovQ.quadraticForm(tempVectMissingCov);
                 }
             }
             return currentLike;
@@ -82,8 +82,14 @@ public class GMRFSkygridLikelihood extends GMRFSkyrideLikelihood
     private final List<Parameter> covPrecParametersRecent;
     private final List<Parameter> covPrecParametersDistant;
 
-    private List<SymmTridiagMatrix> weightMatricesForMissingCovRecent;
-    private List<SymmTridiagMatrix> weightMatricesForMissingCovDistant;
+    private List<TridiagonalPrecision> weightMatricesForMissingCovRecent;
+    private List<TridiagonalPrecision> weightMatricesForMissingCovDistant;
+
+    // the scaled field precision (with lambda = 1) for the gradient, and work arrays
+    private TridiagonalPrecision gradientPrecision;
+    private double[] gradientWork;
+    private double[] covariateUpdate;
+    private double[] missingCovWork;
 
     private int[] firstObservedIndex;
     private int[] lastObservedIndex;
@@ -834,6 +840,10 @@ public class GMRFSkygridLikelihood extends GMRFSkyrideLikelihood
 
         weightMatrix = new SymmTridiagMatrix(diag, offdiag);
 
+        gradientPrecision = new TridiagonalPrecision(weightMatrix);
+        gradientWork = new double[fieldLength];
+        covariateUpdate = new double[fieldLength];
+        missingCovWork = new double[fieldLength];
     }
 
     protected double getFieldScalar() {
@@ -843,7 +853,7 @@ public class GMRFSkygridLikelihood extends GMRFSkyrideLikelihood
     private void setupGMRFWeightsForMissingCov() {
 
         if(firstObservedIndex != null){
-            weightMatricesForMissingCovRecent = new ArrayList<SymmTridiagMatrix>();
+            weightMatricesForMissingCovRecent = new ArrayList<TridiagonalPrecision>();
 
             for (int i = 0; i < covPrecParametersRecent.size(); i++) {
                 double[] offdiagRec = new double[firstObservedIndex[i] - 2];
@@ -858,13 +868,13 @@ public class GMRFSkygridLikelihood extends GMRFSkyrideLikelihood
                 }
                 diagRec[0] = 1.0;
 
-                weightMatricesForMissingCovRecent.add(i, new SymmTridiagMatrix(diagRec, offdiagRec));
+                weightMatricesForMissingCovRecent.add(i, new TridiagonalPrecision(new SymmTridiagMatrix(diagRec, offdiagRec)));
             }
 
         }
 
         if(lastObservedIndex != null) {
-            weightMatricesForMissingCovDistant = new ArrayList<SymmTridiagMatrix>();
+            weightMatricesForMissingCovDistant = new ArrayList<TridiagonalPrecision>();
 
             for (int i = 0; i < covPrecParametersDistant.size(); i++) {
                 double[] offdiag = new double[fieldLength - lastObservedIndex[i] - 1];
@@ -884,32 +894,22 @@ public class GMRFSkygridLikelihood extends GMRFSkyrideLikelihood
                 //Take care of the endpoint
                 diag[fieldLength - lastObservedIndex[i] - 1] = 1.0;
 
-                weightMatricesForMissingCovDistant.add(i, new SymmTridiagMatrix(diag, offdiag));
+                weightMatricesForMissingCovDistant.add(i, new TridiagonalPrecision(new SymmTridiagMatrix(diag, offdiag)));
             }
         }
 
     }
 
 
-    private SymmTridiagMatrix getScaledWeightMatrixForMissingCovRecent(double precision, int covIndex, int firstObs) {
-        SymmTridiagMatrix a = weightMatricesForMissingCovRecent.get(covIndex).copy();
-        for (int i = 0; i < a.numRows() - 1; i++) {
-            a.set(i, i, a.get(i, i) * precision);
-            a.set(i + 1, i, a.get(i + 1, i) * precision);
-        }
-        a.set(firstObs - 2, firstObs - 2,
-                a.get(firstObs - 2, firstObs - 2) * precision);
+    private TridiagonalPrecision getScaledWeightMatrixForMissingCovRecent(double precision, int covIndex) {
+        TridiagonalPrecision a = weightMatricesForMissingCovRecent.get(covIndex);
+        a.setScale(precision, 1.0);
         return a;
     }
 
-    private SymmTridiagMatrix getScaledWeightMatrixForMissingCovDistant(double precision, int covIndex, int lastObs) {
-        SymmTridiagMatrix a = weightMatricesForMissingCovDistant.get(covIndex).copy();
-        for (int i = 0; i < a.numRows() - 1; i++) {
-            a.set(i, i, a.get(i, i) * precision);
-            a.set(i + 1, i, a.get(i + 1, i) * precision);
-        }
-        a.set(fieldLength - lastObs - 1, fieldLength - lastObs - 1,
-                a.get(fieldLength - lastObs - 1, fieldLength - lastObs - 1) * precision);
+    private TridiagonalPrecision getScaledWeightMatrixForMissingCovDistant(double precision, int covIndex) {
+        TridiagonalPrecision a = weightMatricesForMissingCovDistant.get(covIndex);
+        a.setScale(precision, 1.0);
         return a;
     }
 
@@ -988,45 +988,29 @@ public class GMRFSkygridLikelihood extends GMRFSkyrideLikelihood
 
     public double[] getGradientLogDensity() {
         double [] gradLogDens = new double [popSizeParameter.getSize()];
-        double[] currentGamma = popSizeParameter.getParameterValues();
         int popSizeDim = popSizeParameter.getSize();
 
-        // handle covariate case later
-        gradLogDens[0] = precisionParameter.getParameterValue(0)*(currentGamma[0]-currentGamma[1])
-                + numCoalEvents[0] - sufficientStatistics[0]*Math.exp(-currentGamma[0]);
-
-        gradLogDens[popSizeDim-1] = precisionParameter.getParameterValue(0)*(currentGamma[popSizeDim-1]-currentGamma[popSizeDim-2])
-                + numCoalEvents[popSizeDim-1] - sufficientStatistics[popSizeDim-1]*Math.exp(-currentGamma[popSizeDim-1]);
-
-        if(beta != null) {
+        // the field part is Q (gamma - Z beta) with the unit lambda precision, using the first row of
+        // each covariate and the first value of each beta (handle the general covariate case later)
+        double[] x = gradientWork;
+        for (int i = 0; i < popSizeDim; i++) {
+            x[i] = popSizeParameter.getParameterValue(i);
+        }
+        if (beta != null) {
             for (int k = 0; k < beta.size(); k++) {
-
-                Parameter b = beta.get(k);
+                double b = beta.get(k).getParameterValue(0);
                 MatrixParameter covariate = covariates.get(k);
-
-                gradLogDens[0] = gradLogDens[0] - precisionParameter.getParameterValue(0) * covariate.getParameterValue(0, 0) * b.getParameterValue(0)
-                        + precisionParameter.getParameterValue(0) * covariate.getParameterValue(0, 1) * b.getParameterValue(0);
-
-                gradLogDens[popSizeDim - 1] = gradLogDens[popSizeDim - 1] - precisionParameter.getParameterValue(0) * covariate.getParameterValue(0, popSizeDim - 1) * b.getParameterValue(0)
-                        + precisionParameter.getParameterValue(0) * covariate.getParameterValue(0, popSizeDim - 2) * b.getParameterValue(0);
+                for (int i = 0; i < popSizeDim; i++) {
+                    x[i] -= covariate.getParameterValue(0, i) * b;
+                }
             }
         }
 
-        for(int i = 1; i<(popSizeDim-1); i++){
-            gradLogDens[i] = precisionParameter.getParameterValue(0)*(-currentGamma[i-1] + 2*currentGamma[i] - currentGamma[i+1])
-                    + numCoalEvents[i] - sufficientStatistics[i]*Math.exp(-currentGamma[i]);
-
-            if(beta != null) {
-                for (int k = 0; k < beta.size(); k++) {
+        gradientPrecision.setScale(precisionParameter.getParameterValue(0), 1.0);
+        gradientPrecision.multiply(x, gradLogDens);
 
-                    Parameter bk = beta.get(k);
-                    MatrixParameter covk = covariates.get(k);
-
-                    gradLogDens[i] = gradLogDens[i] + precisionParameter.getParameterValue(0) * covk.getParameterValue(0, i - 1) * bk.getParameterValue(0)
-                            - 2 * precisionParameter.getParameterValue(0) * covk.getParameterValue(0, i) * bk.getParameterValue(0)
-                            + precisionParameter.getParameterValue(0) * covk.getParameterValue(0, i + 1) * bk.getParameterValue(0);
-                }
-            }
+        for (int i = 0; i < popSizeDim; i++) {
+            gradLogDens[i] += numCoalEvents[i] - sufficientStatistics[i] * Math.exp(-popSizeParameter.getParameterValue(i));
         }
 
         return gradLogDens;
@@ -1045,7 +1029,7 @@ public class GMRFSkygridLikelihood extends GMRFSkyrideLikelihood
 
         SkygridHelper() { }
 
-        void updateGammaWithCovariates(DenseVector currentGamma) {
+        void updateGammaWithCovariates(double[] currentGamma) {
             // Do nothing
         }
 
@@ -1065,17 +1049,19 @@ public class GMRFSkygridLikelihood extends GMRFSkyrideLikelihood
                 intervalsKnown = true;
             }
 
-            DenseVector diagonal1 = new DenseVector(fieldLength);
-            DenseVector currentGamma = new DenseVector(popSizeParameter.getParameterValues());
+            TridiagonalPrecision currentQ = getFieldPrecision();
+            double[] currentGamma = fieldGamma;
+            for (int i = 0; i < fieldLength; i++) {
+                currentGamma[i] = popSizeParameter.getParameterValue(i);
+            }
 
             updateGammaWithCovariates(currentGamma);
 
             double currentLike = handleMissingValues();
 
-            SymmTridiagMatrix currentQ = getScaledWeightMatrix(precisionParameter.getParameterValue(0), lambdaParameter.getParameterValue(0));
-            currentQ.mult(currentGamma, diagonal1);
+            currentQ.setScale(precisionParameter.getParameterValue(0), lambdaParameter.getParameterValue(0));
 
-            currentLike += 0.5 * (fieldLength - 1) * Math.log(precisionParameter.getParameterValue(0)) - 0.5 * currentGamma.dot(diagonal1);
+            currentLike += 0.5 * (fieldLength - 1) * Math.log(precisionParameter.getParameterValue(0)) - 0.5 * currentQ.quadraticForm(currentGamma);
             if (lambdaParameter.getParameterValue(0) == 1) {
                 currentLike -= (fieldLength - 1) / 2.0 * LOG_TWO_TIMES_PI;
             } else {
@@ -1091,7 +1077,7 @@ public class GMRFSkygridLikelihood extends GMRFSkyrideLikelihood
         SkygridCovariateHelper() { }
 
         @Override
-        protected void updateGammaWithCovariates(DenseVector currentGamma) {
+        protected void updateGammaWithCovariates(double[] currentGamma) {
 
             assert (beta != null);
 
@@ -1099,8 +1085,9 @@ public class GMRFSkygridLikelihood extends GMRFSkyrideLikelihood
 
             if (NEW_APPROACH) {
 
-                final int N = currentGamma.size();
-                double[] update = new double[N];
+                final int N = currentGamma.length;
+                double[] update = covariateUpdate;
+                Arrays.fill(update, 0.0);
 
                 if (dMatrix != null) {
                     final int K = dMatrix.getColumnDimension();
@@ -1143,7 +1130,7 @@ public class GMRFSkygridLikelihood extends GMRFSkyrideLikelihood
                 }
 
                 for (int i = 0; i < N; ++i) {
-                    currentGamma.set(i, currentGamma.get(i) - update[i]);
+                    currentGamma[i] -= update[i];
                 }
 
             } else {
@@ -1157,7 +1144,7 @@ public class GMRFSkygridLikelihood extends GMRFSkyrideLikelihood
 
                     for (int i = 0; i < covariates.size(); i++) {
                         for (int j = 0; j < covariates.get(i).getColumnDimension(); j++) {
-                            currentGamma.set(j, currentGamma.get(j) - covariates.get(i).getParameterValue(0, j) * currentBeta.get(i));
+                            currentGamma[j] -= covariates.get(i).getParameterValue(0, j) * currentBeta.get(i);
                         }
                     }
                 }
@@ -1179,9 +1166,9 @@ public class GMRFSkygridLikelihood extends GMRFSkyrideLikelihood
             assert (covPrecParametersDistant != null);
 
             int numMissing;
-            DenseVector tempVectMissingCov;
-            SymmTridiagMatrix missingCovQ;
-            DenseVector tempVectMissingCov2;
+            // the missing stretches are no longer than the field so share one work array
+            double[] tempVectMissingCov = missingCovWork;
+            TridiagonalPrecision missingCovQ;
             int numMissingRecent;
 
             double currentLike = 0.0;
@@ -1190,20 +1177,16 @@ public class GMRFSkygridLikelihood extends GMRFSkyrideLikelihood
                 for (int i = 0; i < covPrecParametersDistant.size(); i++) {
 
                     numMissing = fieldLength - lastObservedIndex[i];
-                    tempVectMissingCov = new DenseVector(numMissing);
-                    tempVectMissingCov2 = new DenseVector(numMissing);
 
-                    missingCovQ = getScaledWeightMatrixForMissingCovDistant(covPrecParametersDistant.get(i).getParameterValue(0), i,
-                            lastObservedIndex[i]);
+                    missingCovQ = getScaledWeightMatrixForMissingCovDistant(covPrecParametersDistant.get(i).getParameterValue(0), i);
 
                     for (int j = 0; j < numMissing; j++) {
-                        tempVectMissingCov.set(j, covariates.get(distIndices[i] - 1).getParameterValue(0, lastObservedIndex[i] + j) -
-                                covariates.get(distIndices[i] - 1).getParameterValue(0, lastObservedIndex[i] - 1));
+                        tempVectMissingCov[j] = covariates.get(distIndices[i] - 1).getParameterValue(0, lastObservedIndex[i] + j) -
+                                covariates.get(distIndices[i] - 1).getParameterValue(0, lastObservedIndex[i] - 1);
                     }
 
-                    missingCovQ.mult(tempVectMissingCov, tempVectMissingCov2);
                     currentLike += 0.5 * (numMissing) * Math.log(covPrecParametersDistant.get(i).getParameterValue(0))
-                            - 0.5 * tempVectMissingCov.dot(tempVectMissingCov2);
+                            - 0.5 * missingCovQ.quadraticForm(tempVectMissingCov);
                 }
             }
 
@@ -1212,20 +1195,16 @@ public class GMRFSkygridLikelihood extends GMRFSkyrideLikelihood
                 for (int i = 0; i < covPrecParametersRecent.size(); i++) {
 
                     numMissingRecent = firstObservedIndex[i]-1;
-                    tempVectMissingCov = new DenseVector(numMissingRecent);
-                    tempVectMissingCov2 = new DenseVector(numMissingRecent);
 
-                    missingCovQ = getScaledWeightMatrixForMissingCovRecent(covPrecParametersRecent.get(i).getParameterValue(0), i,
-                            firstObservedIndex[i]);
+                    missingCovQ = getScaledWeightMatrixForMissingCovRecent(covPrecParametersRecent.get(i).getParameterValue(0), i);
 
                     for (int j = 0; j < numMissingRecent; j++) {
-                        tempVectMissingCov.set(j, covariates.get(recIndices[i] - 1).getParameterValue(0, j) -
-                                covariates.get(recIndices[i] - 1).getParameterValue(0, firstObservedIndex[i]-1));
+                        tempVectMissingCov[j] = covariates.get(recIndices[i] - 1).getParameterValue(0, j) -
+                                covariates.get(recIndices[i] - 1).getParameterValue(0, firstObservedIndex[i]-1);
                     }
 
-                    missingCovQ.mult(tempVectMissingCov, tempVectMissingCov2);
                     currentLike += 0.5 * (numMissingRecent) * Math.log(covPrecParametersRecent.get(i).getParameterValue(0))
-                            - 0.5 * tempVectMissingCov.dot(tempVectMissingCov2);
+                            - 0.5 * missingCovQ.quadraticForm(tempVectMissingCov);
                 }
             }
             return currentLike;
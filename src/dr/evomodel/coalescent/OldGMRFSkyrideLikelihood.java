@@ -36,7 +36,6 @@ import dr.math.MathUtils;
 import dr.util.Author;
 import dr.util.Citable;
 import dr.util.Citation;
-import no.uib.cipr.matrix.DenseVector;
 import no.uib.cipr.matrix.SymmTridiagMatrix;
 
 import java.util.ArrayList;
@@ -79,6 +78,12 @@ public class OldGMRFSkyrideLikelihood extends OldAbstractCoalescentLikelihood im
 
     protected SymmTridiagMatrix weightMatrix;
     protected SymmTridiagMatrix storedWeightMatrix;
+
+    // the scaled field precision, reloaded from the weight matrix when that is rebuilt
+    protected TridiagonalPrecision fieldPrecision;
+    private SymmTridiagMatrix fieldPrecisionWeights;
+    private SymmTridiagMatrix storedFieldPrecisionWeights;
+    protected double[] fieldGamma;
     protected MatrixParameter dMatrix;
     protected boolean timeAwareSmoothing = TIME_AWARE_IS_ON_BY_DEFAULT;
     protected boolean rescaleByRootHeight;
@@ -431,6 +436,20 @@ public class OldGMRFSkyrideLikelihood extends OldAbstractCoalescentLikelihood im
         return a;
     }
 
+    /**
+     * @return the field precision holding the current weights, to be scaled with setScale
+     */
+    public TridiagonalPrecision getFieldPrecision() {
+        if (fieldPrecision == null || fieldPrecision.getDimension() != weightMatrix.numRows()) {
+            fieldPrecision = new TridiagonalPrecision(weightMatrix);
+            fieldGamma = new double[weightMatrix.numRows()];
+        } else if (fieldPrecisionWeights != weightMatrix) {
+            fieldPrecision.setWeights(weightMatrix);
+        }
+        fieldPrecisionWeights = weightMatrix;
+        return fieldPrecision;
+    }
+
     public SymmTridiagMatrix getCopyWeightMatrix() {
         return weightMatrix.copy();
     }
@@ -455,7 +474,12 @@ public class OldGMRFSkyrideLikelihood extends OldAbstractCoalescentLikelihood im
         System.arraycopy(coalescentIntervals, 0, storedCoalescentIntervals, 0, coalescentIntervals.length);
         System.arraycopy(sufficientStatistics, 0, storedSufficientStatistics, 0, sufficientStatistics.length);
 
-        storedWeightMatrix = weightMatrix.copy();
+        // the weight matrix is replaced rather than changed when the intervals change
+        storedWeightMatrix = weightMatrix;
+        if (fieldPrecision != null) {
+            fieldPrecision.storeState();
+            storedFieldPrecisionWeights = fieldPrecisionWeights;
+        }
         storedLogFieldLikelihood = logFieldLikelihood;
     }
 
@@ -474,6 +498,10 @@ public class OldGMRFSkyrideLikelihood extends OldAbstractCoalescentLikelihood im
         storedSufficientStatistics = tmp;
 
         weightMatrix = storedWeightMatrix;
+        if (fieldPrecision != null) {
+            fieldPrecision.restoreState();
+            fieldPrecisionWeights = storedFieldPrecisionWeights;
+        }
         logFieldLikelihood = storedLogFieldLikelihood;
     }
 
@@ -507,15 +535,14 @@ public class OldGMRFSkyrideLikelihood extends OldAbstractCoalescentLikelihood im
         makeIntervalsKnown();
 
         double currentLike = 0;
-        DenseVector diagonal1 = new DenseVector(fieldLength);
-        DenseVector currentGamma = new DenseVector(popSizeParameter.getParameterValues());
-
-        SymmTridiagMatrix currentQ = getScaledWeightMatrix(precisionParameter.getParameterValue(0), lambdaParameter.getParameterValue(0));
-        currentQ.mult(currentGamma, diagonal1);
-
-//        currentLike += 0.5 * logGeneralizedDeterminant(currentQ) - 0.5 * currentGamma.dot(diagonal1);
+        TridiagonalPrecision currentQ = getFieldPrecision();
+        double[] currentGamma = fieldGamma;
+        for (int i = 0; i < fieldLength; i++) {
+            currentGamma[i] = popSizeParameter.getParameterValue(i);
+        }
+        currentQ.setScale(precisionParameter.getParameterValue(0), lambdaParameter.getParameterValue(0));
 
-        currentLike += 0.5 * (fieldLength - 1) * Math.log(precisionParameter.getParameterValue(0)) - 0.5 * currentGamma.dot(diagonal1);
+        currentLike += 0.5 * (fieldLength - 1) * Math.log(precisionParameter.getParameterValue(0)) - 0.5 * currentQ.quadraticForm(currentGamma);
         if (lambdaParameter.getParameterValue(0) == 1) {
             currentLike -= (fieldLength - 1) / 2.0 * LOG_TWO_TIMES_PI;
         } else {
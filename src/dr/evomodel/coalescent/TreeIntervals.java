@@ -25,6 +25,7 @@
 
 package dr.evomodel.coalescent;
 
+import dr.evolution.coalescent.IncrementalIntervals;
 import dr.evolution.coalescent.IntervalList;
 import dr.evolution.coalescent.IntervalType;
 import dr.evolution.coalescent.Intervals;
@@ -33,6 +34,7 @@ import dr.evolution.tree.Tree;
 import dr.evolution.tree.TreeUtils;
 import dr.evolution.util.TaxonList;
 import dr.evolution.util.Units;
+import dr.evomodel.tree.TreeChangedEvent;
 import dr.evomodel.tree.TreeModel;
 import dr.inference.model.*;
 
@@ -44,6 +46,11 @@ import java.util.Set;
 /**
  * Forms a base class for a number of coalescent likelihood calculators.
  *
+ * If the whole tree is included then every node contributes exactly one event whatever the
+ * topology, so the events are kept sorted in an {@link IncrementalIntervals} and only the nodes
+ * whose heights have changed are relocated. This can be switched off with the system property
+ * tree.intervals.incremental=false.
+ *
  * @author Andrew Rambaut
  * @author Alexei Drummond
  * @version $Id: CoalescentLikelihood.java,v 1.43 2006/07/28 11:27:32 rambaut Exp $
@@ -82,6 +89,15 @@ public class TreeIntervals extends AbstractModel implements Units, IntervalList
         storedIntervals = new Intervals(tree.getNodeCount());
         eventsKnown = false;
 
+        if (USE_INCREMENTAL_INTERVALS && tree instanceof TreeModel &&
+                includedLeafSet == null && excludedLeafSets.length == 0) {
+            incrementalIntervals = new IncrementalIntervals(tree.getNodeCount());
+            changedNodes = new int[tree.getNodeCount()];
+            nodeChanged = new boolean[tree.getNodeCount()];
+            eventTimes = new double[tree.getNodeCount()];
+            eventTypes = new IntervalType[tree.getNodeCount()];
+        }
+
         addStatistic(new DeltaStatistic());
     }
 
@@ -93,6 +109,23 @@ public class TreeIntervals extends AbstractModel implements Units, IntervalList
         if (model == tree) {
             // treeModel has changed so recalculate the intervals
             eventsKnown = false;
+
+            if (incrementalIntervals != null) {
+                if (object instanceof TreeChangedEvent && !((TreeChangedEvent) object).isTreeChanged() &&
+                        ((TreeChangedEvent) object).getNode() != null) {
+                    // only the height of this node can have changed the events
+                    int nodeNumber = ((TreeChangedEvent) object).getNode().getNumber();
+                    if (!nodeChanged[nodeNumber]) {
+                        nodeChanged[nodeNumber] = true;
+                        changedNodes[changedNodeCount] = nodeNumber;
+                        changedNodeCount++;
+                    }
+                } else if (object instanceof Parameter) {
+                    // the tree also fires a TreeChangedEvent for the node whose parameter changed
+                } else {
+                    allNodesChanged = true;
+                }
+            }
         }
 
         fireModelChanged();
@@ -113,6 +146,15 @@ public class TreeIntervals extends AbstractModel implements Units, IntervalList
      * Stores the precalculated state: in this case the intervals
      */
     protected void storeState() {
+        if (incrementalIntervals != null) {
+            // bring the events up to date so the journal only contains the changes from here
+            if (!eventsKnown) {
+                calculateIntervals();
+            }
+            incrementalIntervals.storeState();
+            return;
+        }
+
         // copy the intervals into the storedIntervals
         storedIntervals.copyIntervals(intervals);
         storedEventsKnown = eventsKnown;
@@ -122,6 +164,19 @@ public class TreeIntervals extends AbstractModel implements Units, IntervalList
      * Restores the precalculated state: that is the intervals of the tree.
      */
     protected void restoreState() {
+        if (incrementalIntervals != null) {
+            clearChangedNodes();
+            allNodesChanged = false;
+            if (incrementalIntervals.restoreState()) {
+                eventsKnown = true;
+            } else {
+                // the events have been rebuilt since the store so rebuild them from the restored tree
+                allNodesChanged = true;
+                eventsKnown = false;
+            }
+            return;
+        }
+
         // swap the intervals back
         Intervals tmp = storedIntervals;
         storedIntervals = intervals;
@@ -172,7 +227,11 @@ public class TreeIntervals extends AbstractModel implements Units, IntervalList
     }
 
     public IntervalList getIntervals() {
-        return intervals;
+        return currentIntervals();
+    }
+
+    private IntervalList currentIntervals() {
+        return (incrementalIntervals != null ? incrementalIntervals : intervals);
     }
 
     /**
@@ -180,14 +239,50 @@ public class TreeIntervals extends AbstractModel implements Units, IntervalList
      */
     public final void calculateIntervals() {
 
-        intervals.resetEvents();
-        collectTimes(tree, getIncludedMRCA(tree), getExcludedMRCAs(tree), intervals);
-        // force a calculation of the intervals...
-        intervals.getIntervalCount();
+        if (incrementalIntervals != null) {
+            updateIncrementalIntervals();
+        } else {
+            intervals.resetEvents();
+            collectTimes(tree, getIncludedMRCA(tree), getExcludedMRCAs(tree), intervals);
+            // force a calculation of the intervals...
+            intervals.getIntervalCount();
+        }
 
         eventsKnown = true;
     }
 
+    /**
+     * Relocates the events of the nodes whose heights have changed (or sets up all the events if
+     * this is the first calculation or the whole tree has changed).
+     */
+    private void updateIncrementalIntervals() {
+        if (allNodesChanged || !incrementalIntervalsSet) {
+            for (int i = 0; i < tree.getNodeCount(); i++) {
+                NodeRef node = tree.getNode(i);
+                eventTimes[i] = tree.getNodeHeight(node);
+                eventTypes[i] = (tree.isExternal(node) ? IntervalType.SAMPLE : IntervalType.COALESCENT);
+            }
+            incrementalIntervals.setEvents(tree.getNodeCount(), eventTimes, eventTypes);
+            incrementalIntervalsSet = true;
+            allNodesChanged = false;
+        } else {
+            for (int i = 0; i < changedNodeCount; i++) {
+                int nodeNumber = changedNodes[i];
+                incrementalIntervals.updateEventTime(nodeNumber, tree.getNodeHeight(tree.getNode(nodeNumber)));
+            }
+        }
+        clearChangedNodes();
+
+        incrementalIntervals.calculateIntervals();
+    }
+
+    private void clearChangedNodes() {
+        for (int i = 0; i < changedNodeCount; i++) {
+            nodeChanged[changedNodes[i]] = false;
+        }
+        changedNodeCount = 0;
+    }
+
 
     /**
      * extract coalescent times and tip information into ArrayList times from tree.
@@ -229,7 +324,7 @@ public class TreeIntervals extends AbstractModel implements Units, IntervalList
         if (!eventsKnown) {
             calculateIntervals();
         }
-        return intervals.getIntervalCount();
+        return currentIntervals().getIntervalCount();
     }
 
     @Override
@@ -237,7 +332,7 @@ public class TreeIntervals extends AbstractModel implements Units, IntervalList
         if (!eventsKnown) {
             calculateIntervals();
         }
-        return intervals.getSampleCount();
+        return currentIntervals().getSampleCount();
     }
 
     @Override
@@ -245,7 +340,7 @@ public class TreeIntervals extends AbstractModel implements Units, IntervalList
         if (!eventsKnown) {
             calculateIntervals();
         }
-        return intervals.getInterval(i);
+        return currentIntervals().getInterval(i);
     }
 
     @Override
@@ -253,7 +348,7 @@ public class TreeIntervals extends AbstractModel implements Units, IntervalList
         if(!eventsKnown){
             calculateIntervals();
         }
-        return intervals.getIntervalTime(i);
+        return currentIntervals().getIntervalTime(i);
     }
 
     @Override
@@ -262,7 +357,7 @@ public class TreeIntervals extends AbstractModel implements Units, IntervalList
             calculateIntervals();
         }
         if (i >= getIntervalCount()) throw new IllegalArgumentException();
-        return intervals.getLineageCount(i);
+        return currentIntervals().getLineageCount(i);
     }
 
     @Override
@@ -270,7 +365,7 @@ public class TreeIntervals extends AbstractModel implements Units, IntervalList
         if (!eventsKnown) {
             calculateIntervals();
         }
-        return intervals.getCoalescentEvents(i);
+        return currentIntervals().getCoalescentEvents(i);
     }
 
     @Override
@@ -278,7 +373,7 @@ public class TreeIntervals extends AbstractModel implements Units, IntervalList
         if (!eventsKnown) {
             calculateIntervals();
         }
-        return intervals.getIntervalType(i);
+        return currentIntervals().getIntervalType(i);
     }
 
     @Override
@@ -286,7 +381,7 @@ public class TreeIntervals extends AbstractModel implements Units, IntervalList
         if (!eventsKnown) {
             calculateIntervals();
         }
-        return intervals.getTotalDuration();
+        return currentIntervals().getTotalDuration();
     }
 
     @Override
@@ -294,7 +389,7 @@ public class TreeIntervals extends AbstractModel implements Units, IntervalList
         if (!eventsKnown) {
             calculateIntervals();
         }
-        return intervals.isBinaryCoalescent();
+        return currentIntervals().isBinaryCoalescent();
     }
 
     @Override
@@ -302,17 +397,20 @@ public class TreeIntervals extends AbstractModel implements Units, IntervalList
         if (!eventsKnown) {
             calculateIntervals();
         }
-        return intervals.isCoalescentOnly();
+        return currentIntervals().isCoalescentOnly();
     }
 
     @Override
     public Type getUnits() {
-        return intervals.getUnits();
+        return currentIntervals().getUnits();
     }
 
     @Override
     public void setUnits(Type units) {
         intervals.setUnits(units);
+        if (incrementalIntervals != null) {
+            incrementalIntervals.setUnits(units);
+        }
     }
 
     // ****************************************************************
@@ -361,4 +459,24 @@ public class TreeIntervals extends AbstractModel implements Units, IntervalList
 
     private boolean eventsKnown = false;
     private boolean storedEventsKnown = false;
+
+    private static final boolean USE_INCREMENTAL_INTERVALS =
+            Boolean.parseBoolean(System.getProperty("tree.intervals.incremental", "true"));
+
+    /**
+     * The incrementally updated intervals (null if the full recalculation is being used).
+     */
+    private IncrementalIntervals incrementalIntervals = null;
+    private boolean incrementalIntervalsSet = false;
+
+    /**
+     * The nodes that have changed since the intervals were last calculated.
+     */
+    private int[] changedNodes;
+    private boolean[] nodeChanged;
+    private int changedNodeCount = 0;
+    private boolean allNodesChanged = false;
+
+    private double[] eventTimes;
+    private IntervalType[] eventTypes;
 }
\ No newline at end of file
@@ -0,0 +1,354 @@
+/*
+ * TridiagonalPrecision.java
+ *
+ * Copyright (c) 2002-2020 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.evomodel.coalescent;
+
+import no.uib.cipr.matrix.SymmTridiagMatrix;
+
+/**
+ * The tridiagonal precision matrix of a GMRF, Q = precision * (lambda * W + (1 - lambda) * I) for a
+ * weight matrix W, held as two arrays that are rescaled in place when the precision or lambda
+ * change (rather than copying and rescaling a SymmTridiagMatrix each time).
+ *
+ * Q (plus a diagonal, as in the Newton-Raphson and Gaussian approximation steps of the block update
+ * operators) can be factorized as L D L^T in O(n) into workspace arrays that are reused, giving the
+ * log determinant, solutions and draws from the corresponding multivariate normal. The factor of Q
+ * itself is kept until the scale or the weights change. The weights, the scaled matrix and this
+ * factor can be stored and restored along with the model that owns them.
+ *
+ * @author Andrew Rambaut
+ * @author Marc A. Suchard
+ */
+public class TridiagonalPrecision {
+
+    public TridiagonalPrecision(SymmTridiagMatrix weights) {
+        this(weights.numRows());
+        setWeights(weights);
+    }
+
+    /**
+     * @param weights a precision matrix whose weights are copied
+     */
+    public TridiagonalPrecision(TridiagonalPrecision weights) {
+        this(weights.getDimension());
+        setWeights(weights);
+    }
+
+    private TridiagonalPrecision(int dimension) {
+        this.dimension = dimension;
+
+        weightDiagonal = new double[dimension];
+        weightOffDiagonal = new double[Math.max(dimension - 1, 0)];
+        storedWeightDiagonal = new double[dimension];
+        storedWeightOffDiagonal = new double[weightOffDiagonal.length];
+
+        diagonal = new double[dimension];
+        offDiagonal = new double[weightOffDiagonal.length];
+        storedDiagonal = new double[dimension];
+        storedOffDiagonal = new double[weightOffDiagonal.length];
+
+        factorDiagonal = new double[dimension];
+        factorLower = new double[weightOffDiagonal.length];
+        storedFactorDiagonal = new double[dimension];
+        storedFactorLower = new double[weightOffDiagonal.length];
+    }
+
+    public int getDimension() {
+        return dimension;
+    }
+
+    /**
+     * Replaces the weights (e.g., when they depend on the coalescent intervals) in place.
+     */
+    public void setWeights(SymmTridiagMatrix weights) {
+        if (weights.numRows() != dimension) {
+            throw new IllegalArgumentException("The weights have dimension " + weights.numRows() + " not " + dimension);
+        }
+        for (int i = 0; i < dimension; i++) {
+            weightDiagonal[i] = weights.get(i, i);
+            if (i < dimension - 1) {
+                weightOffDiagonal[i] = weights.get(i + 1, i);
+            }
+        }
+        scaleKnown = false;
+        factorKnown = false;
+    }
+
+    /**
+     * Copies the weights of another precision matrix of the same dimension.
+     */
+    public void setWeights(TridiagonalPrecision weights) {
+        if (weights.dimension != dimension) {
+            throw new IllegalArgumentException("The weights have dimension " + weights.dimension + " not " + dimension);
+        }
+        System.arraycopy(weights.weightDiagonal, 0, weightDiagonal, 0, dimension);
+        System.arraycopy(weights.weightOffDiagonal, 0, weightOffDiagonal, 0, weightOffDiagonal.length);
+        scaleKnown = false;
+        factorKnown = false;
+    }
+
+    /**
+     * Scales the weights; does nothing if the precision and lambda are the ones last used.
+     */
+    public void setScale(double precision, double lambda) {
+        if (scaleKnown && precision == this.precision && lambda == this.lambda) {
+            return;
+        }
+
+        if (lambda == 1) {
+            for (int i = 0; i < dimension; i++) {
+                diagonal[i] = weightDiagonal[i] * precision;
+            }
+            for (int i = 0; i < offDiagonal.length; i++) {
+                offDiagonal[i] = weightOffDiagonal[i] * precision;
+            }
+        } else {
+            for (int i = 0; i < dimension; i++) {
+                diagonal[i] = precision * (1 - lambda + lambda * weightDiagonal[i]);
+            }
+            for (int i = 0; i < offDiagonal.length; i++) {
+                offDiagonal[i] = weightOffDiagonal[i] * precision * lambda;
+            }
+        }
+
+        this.precision = precision;
+        this.lambda = lambda;
+        scaleKnown = true;
+        factorKnown = false;
+    }
+
+    public double getDiagonal(int i) {
+        return diagonal[i];
+    }
+
+    public double getOffDiagonal(int i) {
+        return offDiagonal[i];
+    }
+
+    /**
+     * y = Q x
+     */
+    public void multiply(double[] x, double[] y) {
+        if (dimension == 1) {
+            y[0] = diagonal[0] * x[0];
+            return;
+        }
+
+        y[0] = diagonal[0] * x[0] + offDiagonal[0] * x[1];
+        for (int i = 1; i < dimension - 1; i++) {
+            y[i] = offDiagonal[i - 1] * x[i - 1] + diagonal[i] * x[i] + offDiagonal[i] * x[i + 1];
+        }
+        y[dimension - 1] = offDiagonal[dimension - 2] * x[dimension - 2] + diagonal[dimension - 1] * x[dimension - 1];
+    }
+
+    /**
+     * @return x^T Q x
+     */
+    public double quadraticForm(double[] x) {
+        if (dimension == 1) {
+            return x[0] * diagonal[0] * x[0];
+        }
+
+        double sum = x[0] * (diagonal[0] * x[0] + offDiagonal[0] * x[1]);
+        for (int i = 1; i < dimension - 1; i++) {
+            sum += x[i] * (offDiagonal[i - 1] * x[i - 1] + diagonal[i] * x[i] + offDiagonal[i] * x[i + 1]);
+        }
+        sum += x[dimension - 1] * (offDiagonal[dimension - 2] * x[dimension - 2] + diagonal[dimension - 1] * x[dimension - 1]);
+        return sum;
+    }
+
+    /**
+     * Factorizes Q = L D L^T (L unit lower bidiagonal). The factor is kept, so this does nothing if
+     * Q has not changed since it was last factorized.
+     *
+     * @return false if Q is not positive definite (e.g., the intrinsic GMRF precision)
+     */
+    public boolean factor() {
+        if (!factorKnown) {
+            positiveDefinite = factor(null);
+            factorKnown = true;
+        }
+        return positiveDefinite;
+    }
+
+    /**
+     * Factorizes Q + diag(addedDiagonal) = L D L^T (L unit lower bidiagonal).
+     *
+     * @param addedDiagonal the values to add to the diagonal (or null)
+     * @return false if the matrix is not positive definite
+     */
+    public boolean factor(double[] addedDiagonal) {
+        factorKnown = false;
+
+        double d = diagonal[0] + (addedDiagonal != null ? addedDiagonal[0] : 0.0);
+        if (!(d > 0.0)) {
+            return false;
+        }
+        factorDiagonal[0] = d;
+        double logDet = Math.log(d);
+
+        for (int i = 1; i < dimension; i++) {
+            double l = offDiagonal[i - 1] / factorDiagonal[i - 1];
+            factorLower[i - 1] = l;
+            d = diagonal[i] + (addedDiagonal != null ? addedDiagonal[i] : 0.0) - l * offDiagonal[i - 1];
+            if (!(d > 0.0)) {
+                return false;
+            }
+            factorDiagonal[i] = d;
+            logDet += Math.log(d);
+        }
+        logDeterminant = logDet;
+        return true;
+    }
+
+    /**
+     * @return the log determinant of the last factorized matrix
+     */
+    public double getLogDeterminant() {
+        return logDeterminant;
+    }
+
+    /**
+     * @return the diagonal of the last factorization, D in L D L^T
+     */
+    public double getFactorDiagonal(int i) {
+        return factorDiagonal[i];
+    }
+
+    /**
+     * Solves (L D L^T) x = b with the last factorization (x and b may be the same array).
+     */
+    public void solve(double[] b, double[] x) {
+        // L y = b
+        x[0] = b[0];
+        for (int i = 1; i < dimension; i++) {
+            x[i] = b[i] - factorLower[i - 1] * x[i - 1];
+        }
+        // D z = y
+        for (int i = 0; i < dimension; i++) {
+            x[i] /= factorDiagonal[i];
+        }
+        // L^T x = z
+        for (int i = dimension - 2; i >= 0; i--) {
+            x[i] -= factorLower[i] * x[i + 1];
+        }
+    }
+
+    /**
+     * Solves U x = z with the last factorization where U = D^1/2 L^T is the upper Cholesky factor
+     * (x and z may be the same array). For standard normal z, x has covariance (L D L^T)^-1.
+     */
+    public void solveUpper(double[] z, double[] x) {
+        x[dimension - 1] = z[dimension - 1] / Math.sqrt(factorDiagonal[dimension - 1]);
+        for (int i = dimension - 2; i >= 0; i--) {
+            x[i] = z[i] / Math.sqrt(factorDiagonal[i]) - factorLower[i] * x[i + 1];
+        }
+    }
+
+    public void storeState() {
+        System.arraycopy(weightDiagonal, 0, storedWeightDiagonal, 0, dimension);
+        System.arraycopy(weightOffDiagonal, 0, storedWeightOffDiagonal, 0, weightOffDiagonal.length);
+        System.arraycopy(diagonal, 0, storedDiagonal, 0, dimension);
+        System.arraycopy(offDiagonal, 0, storedOffDiagonal, 0, offDiagonal.length);
+        storedPrecision = precision;
+        storedLambda = lambda;
+        storedScaleKnown = scaleKnown;
+
+        storedFactorKnown = factorKnown;
+        if (factorKnown) {
+            System.arraycopy(factorDiagonal, 0, storedFactorDiagonal, 0, dimension);
+            System.arraycopy(factorLower, 0, storedFactorLower, 0, factorLower.length);
+            storedLogDeterminant = logDeterminant;
+            storedPositiveDefinite = positiveDefinite;
+        }
+    }
+
+    public void restoreState() {
+        double[] tmp = weightDiagonal;
+        weightDiagonal = storedWeightDiagonal;
+        storedWeightDiagonal = tmp;
+
+        tmp = weightOffDiagonal;
+        weightOffDiagonal = storedWeightOffDiagonal;
+        storedWeightOffDiagonal = tmp;
+
+        tmp = diagonal;
+        diagonal = storedDiagonal;
+        storedDiagonal = tmp;
+
+        tmp = offDiagonal;
+        offDiagonal = storedOffDiagonal;
+        storedOffDiagonal = tmp;
+
+        precision = storedPrecision;
+        lambda = storedLambda;
+        scaleKnown = storedScaleKnown;
+
+        factorKnown = storedFactorKnown;
+        if (factorKnown) {
+            tmp = factorDiagonal;
+            factorDiagonal = storedFactorDiagonal;
+            storedFactorDiagonal = tmp;
+
+            tmp = factorLower;
+            factorLower = storedFactorLower;
+            storedFactorLower = tmp;
+
+            logDeterminant = storedLogDeterminant;
+            positiveDefinite = storedPositiveDefinite;
+        }
+    }
+
+    private final int dimension;
+
+    private double[] weightDiagonal;
+    private double[] weightOffDiagonal;
+    private double[] storedWeightDiagonal;
+    private double[] storedWeightOffDiagonal;
+
+    private double[] diagonal;
+    private double[] offDiagonal;
+    private double[] storedDiagonal;
+    private double[] storedOffDiagonal;
+
+    private double precision;
+    private double lambda;
+    private boolean scaleKnown = false;
+    private double storedPrecision;
+    private double storedLambda;
+    private boolean storedScaleKnown = false;
+
+    private double[] factorDiagonal;
+    private double[] factorLower;
+    private double[] storedFactorDiagonal;
+    private double[] storedFactorLower;
+
+    private double logDeterminant;
+    private boolean positiveDefinite;
+    private boolean factorKnown = false;
+    private double storedLogDeterminant;
+    private boolean storedPositiveDefinite;
+    private boolean storedFactorKnown = false;
+}
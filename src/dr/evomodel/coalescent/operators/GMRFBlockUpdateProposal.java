@@ -0,0 +1,224 @@
+/*
+ * GMRFBlockUpdateProposal.java
+ *
+ * Copyright (c) 2002-2015 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.evomodel.coalescent.operators;
+
+import dr.evomodel.coalescent.TridiagonalPrecision;
+import dr.inference.model.Parameter;
+import dr.math.MathUtils;
+
+import java.util.Arrays;
+
+/**
+ * The Gaussian approximation proposal of the GMRF block update operators. The mode of the full
+ * conditional of the log population sizes is found by Newton-Raphson and the proposal is the normal
+ * with that mode and the negative Hessian there as its precision, Q + diag(data2 * exp(-mode)).
+ * Both are tridiagonal so every step uses the O(n) L D L^T factorization of TridiagonalPrecision
+ * into preallocated work arrays, rather than building and factorizing MTJ band matrices.
+ *
+ * @author Erik Bloomquist
+ * @author Marc A. Suchard
+ */
+public class GMRFBlockUpdateProposal {
+
+    public GMRFBlockUpdateProposal(TridiagonalPrecision weights, int maxIterations, double stopValue) {
+        this.maxIterations = maxIterations;
+        this.stopValue = stopValue;
+
+        fieldLength = weights.getDimension();
+        forwardQ = new TridiagonalPrecision(weights);
+        backwardQ = new TridiagonalPrecision(weights);
+
+        currentGamma = new double[fieldLength];
+        proposedGamma = new double[fieldLength];
+        mode = new double[fieldLength];
+        addedDiagonal = new double[fieldLength];
+        mean = new double[fieldLength];
+        work = new double[fieldLength];
+        forwardQZBeta = new double[fieldLength];
+        backwardQZBeta = new double[fieldLength];
+        standardNormal = new double[fieldLength];
+    }
+
+    /**
+     * Proposes new log population sizes and sets them.
+     *
+     * @param weights the field weights (unchanged by the proposal)
+     * @param data1 the first data term of the full conditional (e.g., the numbers of coalescent events)
+     * @param data2 the second data term of the full conditional (the sufficient statistics)
+     * @param zBeta the covariate effects (or null)
+     * @return the log Hastings ratio, or negative infinity if a mode could not be found
+     */
+    public double doProposal(TridiagonalPrecision weights,
+                             double currentPrecision, double currentLambda,
+                             double proposedPrecision, double proposedLambda,
+                             double[] data1, double[] data2, double[] zBeta, Parameter popSizeParameter) {
+
+        forwardQ.setWeights(weights);
+        forwardQ.setScale(proposedPrecision, proposedLambda);
+        backwardQ.setWeights(weights);
+        backwardQ.setScale(currentPrecision, currentLambda);
+
+        for (int i = 0; i < fieldLength; i++) {
+            currentGamma[i] = popSizeParameter.getParameterValue(i);
+        }
+        if (zBeta != null) {
+            forwardQ.multiply(zBeta, forwardQZBeta);
+            backwardQ.multiply(zBeta, backwardQZBeta);
+        } else {
+            Arrays.fill(forwardQZBeta, 0.0);
+            Arrays.fill(backwardQZBeta, 0.0);
+        }
+
+        // forward: from the mode of the proposed full conditional
+        if (!newtonRaphson(forwardQ, forwardQZBeta, data1, data2, currentGamma, mode) ||
+                !factorAtMode(forwardQ, forwardQZBeta, data1, data2, mode)) {
+            return Double.NEGATIVE_INFINITY;
+        }
+
+        double zz = 0.0;
+        for (int i = 0; i < fieldLength; i++) {
+            standardNormal[i] = MathUtils.nextGaussian();
+            zz += standardNormal[i] * standardNormal[i];
+        }
+        forwardQ.solveUpper(standardNormal, proposedGamma);
+        for (int i = 0; i < fieldLength; i++) {
+            proposedGamma[i] += mean[i];
+        }
+        double hRatio = -(logGeneralizedDeterminant(forwardQ) - 0.5 * zz);
+
+        for (int i = 0; i < fieldLength; i++) {
+            popSizeParameter.setParameterValueQuietly(i, proposedGamma[i]);
+        }
+        ((Parameter.Abstract) popSizeParameter).fireParameterChangedEvent();
+
+        // backward: the density of the current values under the proposal from the proposed ones
+        if (!newtonRaphson(backwardQ, backwardQZBeta, data1, data2, proposedGamma, mode) ||
+                !factorAtMode(backwardQ, backwardQZBeta, data1, data2, mode)) {
+            return Double.NEGATIVE_INFINITY;
+        }
+
+        double quadraticForm = 0.0;
+        for (int i = 0; i < fieldLength; i++) {
+            work[i] = currentGamma[i] - mean[i];
+            quadraticForm += addedDiagonal[i] * work[i] * work[i];
+        }
+        quadraticForm += backwardQ.quadraticForm(work);
+
+        hRatio += logGeneralizedDeterminant(backwardQ) - 0.5 * quadraticForm;
+        return hRatio;
+    }
+
+    /**
+     * Finds the mode of the full conditional, where -Q x + Q z beta - data1 + data2 * exp(-x) = 0.
+     *
+     * @return false if it does not converge within maxIterations or the Hessian is not negative definite
+     */
+    public boolean newtonRaphson(TridiagonalPrecision q, double[] qzBeta, double[] data1, double[] data2,
+                                 double[] start, double[] x) {
+        System.arraycopy(start, 0, x, 0, fieldLength);
+
+        int numberIterations = 0;
+        while (gradient(q, qzBeta, data1, data2, x) > stopValue) {
+            for (int i = 0; i < fieldLength; i++) {
+                addedDiagonal[i] = data2[i] * Math.exp(-x[i]);
+            }
+            if (!q.factor(addedDiagonal)) {
+                return false;
+            }
+            q.solve(work, work);
+            for (int i = 0; i < fieldLength; i++) {
+                x[i] += work[i];
+            }
+
+            numberIterations++;
+            if (numberIterations > maxIterations) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Puts the gradient of the full conditional in work.
+     *
+     * @return its 2-norm
+     */
+    private double gradient(TridiagonalPrecision q, double[] qzBeta, double[] data1, double[] data2, double[] x) {
+        q.multiply(x, work);
+        double norm = 0.0;
+        for (int i = 0; i < fieldLength; i++) {
+            work[i] = -work[i] + qzBeta[i] - data1[i] + data2[i] * Math.exp(-x[i]);
+            norm += work[i] * work[i];
+        }
+        return Math.sqrt(norm);
+    }
+
+    /**
+     * Factorizes the proposal precision at the mode and solves for the proposal mean.
+     */
+    private boolean factorAtMode(TridiagonalPrecision q, double[] qzBeta, double[] data1, double[] data2, double[] x) {
+        for (int i = 0; i < fieldLength; i++) {
+            addedDiagonal[i] = data2[i] * Math.exp(-x[i]);
+            mean[i] = qzBeta[i] + addedDiagonal[i] * (x[i] + 1) - data1[i];
+        }
+        if (!q.factor(addedDiagonal)) {
+            return false;
+        }
+        q.solve(mean, mean);
+        return true;
+    }
+
+    /**
+     * @return the log determinant of the upper Cholesky factor over its non-negligible diagonal
+     */
+    private double logGeneralizedDeterminant(TridiagonalPrecision q) {
+        double logDet = 0.0;
+        for (int i = 0; i < fieldLength; i++) {
+            double d = q.getFactorDiagonal(i);
+            if (d > 1E-14) {
+                logDet += 0.5 * Math.log(d);
+            }
+        }
+        return logDet;
+    }
+
+    private final int fieldLength;
+    private final int maxIterations;
+    private final double stopValue;
+
+    private final TridiagonalPrecision forwardQ;
+    private final TridiagonalPrecision backwardQ;
+
+    private final double[] currentGamma;
+    private final double[] proposedGamma;
+    private final double[] mode;
+    private final double[] addedDiagonal;
+    private final double[] mean;
+    private final double[] work;
+    private final double[] forwardQZBeta;
+    private final double[] backwardQZBeta;
+    private final double[] standardNormal;
+}
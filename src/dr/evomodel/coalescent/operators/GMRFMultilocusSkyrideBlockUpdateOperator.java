@@ -33,6 +33,7 @@ import dr.inference.operators.*;
 import dr.math.MathUtils;
 import no.uib.cipr.matrix.*;
 
+import java.util.Arrays;
 import java.util.List;
 import java.util.logging.Logger;
 
@@ -64,6 +65,9 @@ public class GMRFMultilocusSkyrideBlockUpdateOperator extends AbstractAdaptableO
 
     private double[] zeros;
 
+    private final GMRFBlockUpdateProposal proposal;
+    private final double[] zBeta;
+
     public GMRFMultilocusSkyrideBlockUpdateOperator(GMRFMultilocusSkyrideLikelihood gmrfLikelihood,
                                                     double weight, AdaptationMode mode, double scaleFactor,
                                                     int maxIterations, double stopValue) {
@@ -84,6 +88,9 @@ public class GMRFMultilocusSkyrideBlockUpdateOperator extends AbstractAdaptableO
         setWeight(weight);
 
         zeros = new double[fieldLength];
+
+        proposal = new GMRFBlockUpdateProposal(gmrfLikelihood.getFieldPrecision(), maxIterations, stopValue);
+        zBeta = new double[fieldLength];
     }
 
     private double getNewLambda(double currentValue, double lambdaScale) {
@@ -207,6 +214,25 @@ public class GMRFMultilocusSkyrideBlockUpdateOperator extends AbstractAdaptableO
         }
     }
 
+    /**
+     * Fills zBeta with the covariate effects as getZBeta does.
+     *
+     * @return zBeta, or null if there are no covariates
+     */
+    private static double[] getZBeta(List<MatrixParameter> covariates, List<Parameter> beta, double[] zBeta) {
+        if (covariates == null) {
+            return null;
+        }
+        Arrays.fill(zBeta, 0.0);
+        for (int i = 0; i < covariates.size(); i++) {
+            double b = beta.get(i).getParameterValue(0);
+            for (int j = 0; j < covariates.get(i).getColumnDimension(); j++) {
+                zBeta[j] = covariates.get(i).getParameterValue(0, j) * b;
+            }
+        }
+        return zBeta;
+    }
+
     public DenseVector newtonRaphson(double[] data1, double[] data2, DenseVector currentGamma,
                                      SymmTridiagMatrix proposedQ, DenseVector ZBeta) {
         return newNewtonRaphson(data1, data2, currentGamma, proposedQ, maxIterations, stopValue, ZBeta);
@@ -295,110 +321,9 @@ public class GMRFMultilocusSkyrideBlockUpdateOperator extends AbstractAdaptableO
         precisionParameter.setParameterValue(0, proposedPrecision);
         lambdaParameter.setParameterValue(0, proposedLambda);
 
-        DenseVector currentGamma = new DenseVector(gmrfField.getPopSizeParameter().getParameterValues());
-        DenseVector proposedGamma;
-
-        SymmTridiagMatrix currentQ = gmrfField.getStoredScaledWeightMatrix(currentPrecision, currentLambda);
-        SymmTridiagMatrix proposedQ = gmrfField.getScaledWeightMatrix(proposedPrecision, proposedLambda);
-
-        double[] wNative = gmrfField.getSufficientStatistics();
-        double[] numCoalEv = gmrfField.getNumCoalEvents();
-
-        UpperSPDBandMatrix forwardQW = new UpperSPDBandMatrix(proposedQ, 1);
-        UpperSPDBandMatrix backwardQW = new UpperSPDBandMatrix(currentQ, 1);
-
-        BandCholesky forwardCholesky = new BandCholesky(wNative.length, 1, true);
-        BandCholesky backwardCholesky = new BandCholesky(wNative.length, 1, true);
-
-        DenseVector diagonal1 = new DenseVector(fieldLength);
-        DenseVector diagonal2 = new DenseVector(fieldLength);
-        DenseVector diagonal3 = new DenseVector(fieldLength);
-        DenseVector ZBetaVector = getZBeta(covariates, betaParameter);
-        DenseVector QZBetaProp = new DenseVector(fieldLength);
-        DenseVector QZBetaCurrent = new DenseVector(fieldLength);
-        forwardQW.mult(ZBetaVector, QZBetaProp);
-        backwardQW.mult(ZBetaVector, QZBetaCurrent);
-
-        DenseVector modeForward = newtonRaphson(numCoalEv, wNative, currentGamma, proposedQ.copy(), ZBetaVector);
-
-        if (modeForward == null) {
-            // used to pass on an OperatorFailedException
-            return Double.NEGATIVE_INFINITY;
-        }
-
-        for (int i = 0; i < fieldLength; i++) {
-            diagonal1.set(i, wNative[i] * Math.exp(-modeForward.get(i)));
-            diagonal2.set(i, modeForward.get(i) + 1);
-
-            forwardQW.set(i, i, diagonal1.get(i) + forwardQW.get(i, i));
-            //diagonal1.set(i, diagonal1.get(i) * diagonal2.get(i) - 1);
-            diagonal1.set(i, QZBetaProp.get(i) + diagonal1.get(i) * diagonal2.get(i) - numCoalEv[i]);
-        }
-
-        forwardCholesky.factor(forwardQW.copy());
-
-        DenseVector forwardMean = getMultiNormalMean(diagonal1, forwardCholesky);
-
-        DenseVector stand_norm = new DenseVector(zeros);
-
-        for (int i = 0; i < zeros.length; i++)
-            stand_norm.set(i, MathUtils.nextGaussian());
-
-        proposedGamma = getMultiNormal(stand_norm, forwardMean, forwardCholesky);
-
-        /*
-        double hRatio = 0;
-        for (int i = 0; i < fieldLength; i++) {
-            diagonal1.set(i, proposedGamma.get(i) - forwardMean.get(i));
-        }
-        diagonal3.zero();
-        forwardQW.mult(diagonal1, diagonal3);
-
-        hRatio -= logGeneralizedDeterminant(forwardCholesky.getU() ) - 0.5 * diagonal1.dot(diagonal3);
-        */
-
-        for (int i = 0; i < fieldLength; i++)
-            popSizeParameter.setParameterValueQuietly(i, proposedGamma.get(i));
-
-        ((Parameter.Abstract) popSizeParameter).fireParameterChangedEvent();
-
-
-        double hRatio = 0;
-
-        diagonal1.zero();
-        diagonal2.zero();
-        diagonal3.zero();
-
-        DenseVector modeBackward = newtonRaphson(numCoalEv, wNative, proposedGamma, currentQ.copy(), ZBetaVector);
-
-        if (modeBackward == null) {
-            // used to pass on an OperatorFailedException
-            return Double.NEGATIVE_INFINITY;
-        }
-
-        for (int i = 0; i < fieldLength; i++) {
-            diagonal1.set(i, wNative[i] * Math.exp(-modeBackward.get(i)));
-            diagonal2.set(i, modeBackward.get(i) + 1);
-
-            backwardQW.set(i, i, diagonal1.get(i) + backwardQW.get(i, i));
-            //diagonal1.set(i, diagonal1.get(i) * diagonal2.get(i) - 1);
-            diagonal1.set(i, QZBetaCurrent.get(i) + diagonal1.get(i) * diagonal2.get(i) - numCoalEv[i]);
-        }
-
-        backwardCholesky.factor(backwardQW.copy());
-
-        DenseVector backwardMean = getMultiNormalMean(diagonal1, backwardCholesky);
-
-        for (int i = 0; i < fieldLength; i++) {
-            diagonal1.set(i, currentGamma.get(i) - backwardMean.get(i));
-        }
-
-        backwardQW.mult(diagonal1, diagonal3);
-
-        hRatio += logGeneralizedDeterminant(backwardCholesky.getU()) - 0.5 * diagonal1.dot(diagonal3);
-        hRatio -= logGeneralizedDeterminant(forwardCholesky.getU() ) - 0.5 * stand_norm.dot(stand_norm);
-
-       return hRatio;
+        return proposal.doProposal(gmrfField.getFieldPrecision(), currentPrecision, currentLambda,
+                proposedPrecision, proposedLambda, gmrfField.getNumCoalEvents(), gmrfField.getSufficientStatistics(),
+                getZBeta(covariates, betaParameter, zBeta), popSizeParameter);
     }
 
     //MCMCOperator INTERFACE
@@ -32,6 +32,7 @@ import dr.inference.operators.*;
 import dr.math.MathUtils;
 import no.uib.cipr.matrix.*;
 
+import java.util.Arrays;
 import java.util.logging.Logger;
 
 /* A Metropolis-Hastings operator to update the log population sizes and precision parameter jointly under a Gaussian Markov random field prior
@@ -59,6 +60,9 @@ public class GMRFSkyrideBlockUpdateOperator extends AbstractAdaptableOperator {
 
     private double[] zeros;
 
+    private final GMRFBlockUpdateProposal proposal;
+    private final double[] ones;
+
     public GMRFSkyrideBlockUpdateOperator(OldGMRFSkyrideLikelihood gmrfLikelihood,
                                           double weight, AdaptationMode mode, double scaleFactor,
                                           int maxIterations, double stopValue) {
@@ -77,6 +81,10 @@ public class GMRFSkyrideBlockUpdateOperator extends AbstractAdaptableOperator {
         setWeight(weight);
 
         zeros = new double[fieldLength];
+
+        proposal = new GMRFBlockUpdateProposal(gmrfLikelihood.getFieldPrecision(), maxIterations, stopValue);
+        ones = new double[fieldLength];
+        Arrays.fill(ones, 1.0);
     }
 
     private double getNewLambda(double currentValue, double lambdaScale) {
@@ -252,95 +260,9 @@ public class GMRFSkyrideBlockUpdateOperator extends AbstractAdaptableOperator {
         precisionParameter.setParameterValue(0, proposedPrecision);
         lambdaParameter.setParameterValue(0, proposedLambda);
 
-        DenseVector currentGamma = new DenseVector(gmrfField.getPopSizeParameter().getParameterValues());
-        DenseVector proposedGamma;
-
-        SymmTridiagMatrix currentQ = gmrfField.getStoredScaledWeightMatrix(currentPrecision, currentLambda);
-        SymmTridiagMatrix proposedQ = gmrfField.getScaledWeightMatrix(proposedPrecision, proposedLambda);
-
-
-        double[] wNative = gmrfField.getSufficientStatistics();
-
-        UpperSPDBandMatrix forwardQW = new UpperSPDBandMatrix(proposedQ, 1);
-        UpperSPDBandMatrix backwardQW = new UpperSPDBandMatrix(currentQ, 1);
-
-        BandCholesky forwardCholesky = new BandCholesky(wNative.length, 1, true);
-        BandCholesky backwardCholesky = new BandCholesky(wNative.length, 1, true);
-
-        DenseVector diagonal1 = new DenseVector(fieldLength);
-        DenseVector diagonal2 = new DenseVector(fieldLength);
-        DenseVector diagonal3 = new DenseVector(fieldLength);
-
-        DenseVector modeForward = newtonRaphson(wNative, currentGamma, proposedQ.copy());
-
-        if (modeForward == null) {
-            // used to pass on an OperatorFailedException
-            return Double.NEGATIVE_INFINITY;
-        }
-
-        for (int i = 0; i < fieldLength; i++) {
-            diagonal1.set(i, wNative[i] * Math.exp(-modeForward.get(i)));
-            diagonal2.set(i, modeForward.get(i) + 1);
-
-            forwardQW.set(i, i, diagonal1.get(i) + forwardQW.get(i, i));
-            diagonal1.set(i, diagonal1.get(i) * diagonal2.get(i) - 1);
-        }
-
-        forwardCholesky.factor(forwardQW.copy());
-
-        DenseVector forwardMean = getMultiNormalMean(diagonal1, forwardCholesky);
-
-        DenseVector stand_norm = new DenseVector(zeros);
-
-        for (int i = 0; i < zeros.length; i++)
-            stand_norm.set(i, MathUtils.nextGaussian());
-
-        proposedGamma = getMultiNormal(stand_norm, forwardMean, forwardCholesky);
-
-
-        for (int i = 0; i < fieldLength; i++)
-            popSizeParameter.setParameterValueQuietly(i, proposedGamma.get(i));
-
-        ((Parameter.Abstract) popSizeParameter).fireParameterChangedEvent();
-
-
-        double hRatio = 0;
-
-        diagonal1.zero();
-        diagonal2.zero();
-        diagonal3.zero();
-
-        DenseVector modeBackward = newtonRaphson(wNative, proposedGamma, currentQ.copy());
-
-        if (modeBackward == null) {
-            // used to pass on an OperatorFailedException
-            return Double.NEGATIVE_INFINITY;
-        }
-
-        for (int i = 0; i < fieldLength; i++) {
-            diagonal1.set(i, wNative[i] * Math.exp(-modeBackward.get(i)));
-            diagonal2.set(i, modeBackward.get(i) + 1);
-
-            backwardQW.set(i, i, diagonal1.get(i) + backwardQW.get(i, i));
-            diagonal1.set(i, diagonal1.get(i) * diagonal2.get(i) - 1);
-        }
-
-        backwardCholesky.factor(backwardQW.copy());
-
-        DenseVector backwardMean = getMultiNormalMean(diagonal1, backwardCholesky);
-
-        for (int i = 0; i < fieldLength; i++) {
-            diagonal1.set(i, currentGamma.get(i) - backwardMean.get(i));
-        }
-
-        backwardQW.mult(diagonal1, diagonal3);
-
-        // Removed 0.5 * 2
-        hRatio += logGeneralizedDeterminant(backwardCholesky.getU()) - 0.5 * diagonal1.dot(diagonal3);
-        hRatio -= logGeneralizedDeterminant(forwardCholesky.getU() ) - 0.5 * stand_norm.dot(stand_norm);
-
-
-        return hRatio;
+        // one coalescent event per interval and no covariates
+        return proposal.doProposal(gmrfField.getFieldPrecision(), currentPrecision, currentLambda,
+                proposedPrecision, proposedLambda, ones, gmrfField.getSufficientStatistics(), null, popSizeParameter);
     }
 
     //MCMCOperator INTERFACE
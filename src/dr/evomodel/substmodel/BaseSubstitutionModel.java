@@ -149,9 +149,12 @@ public abstract class BaseSubstitutionModel extends AbstractModel
 
         System.arraycopy(relativeRates, 0, storedRelativeRates, 0, rateCount);
 
-        if (eigenDecomposition != null) {
-            storedEigenDecomposition = eigenDecomposition.copy();
+        // The eigen decomposition is double buffered: the stored state shares the current
+        // buffer and it is only replaced (or flipped to the spare) when the model changes.
+        if (storedEigenDecomposition != eigenDecomposition) {
+            spareEigenDecomposition = storedEigenDecomposition;
         }
+        storedEigenDecomposition = eigenDecomposition;
     }
 
     /**
@@ -166,9 +169,10 @@ public abstract class BaseSubstitutionModel extends AbstractModel
         storedRelativeRates = relativeRates;
         relativeRates = tmp1;
 
-        EigenDecomposition tmp = storedEigenDecomposition;
-        storedEigenDecomposition = eigenDecomposition;
-        eigenDecomposition = tmp;
+        if (eigenDecomposition != storedEigenDecomposition) {
+            spareEigenDecomposition = eigenDecomposition;
+            eigenDecomposition = storedEigenDecomposition;
+        }
 
     }
 
@@ -250,6 +254,25 @@ public abstract class BaseSubstitutionModel extends AbstractModel
         return eigenDecomposition;
     }
 
+    /**
+     * Returns an eigen decomposition whose arrays can be overwritten in place. If the current
+     * decomposition is shared with the stored state then the buffer is flipped to the spare one
+     * (created as a copy the first time) so the stored state is left untouched. Subclasses that
+     * update the decomposition in place rather than replacing it must call this first.
+     *
+     * @return the writable eigen decomposition
+     */
+    protected EigenDecomposition getWritableEigenDecomposition() {
+        if (eigenDecomposition != null && eigenDecomposition == storedEigenDecomposition) {
+            if (spareEigenDecomposition == null) {
+                spareEigenDecomposition = eigenDecomposition.copy();
+            }
+            eigenDecomposition = spareEigenDecomposition;
+            spareEigenDecomposition = null;
+        }
+        return eigenDecomposition;
+    }
+
     protected void setupQMatrix(double[] rates, double[] pi, double[][] matrix) {
         int k = 0;
         // Set the instantaneous rate matrix
@@ -410,5 +433,6 @@ public abstract class BaseSubstitutionModel extends AbstractModel
     private final double q[][];
     protected EigenDecomposition eigenDecomposition;
     private EigenDecomposition storedEigenDecomposition;
+    private EigenDecomposition spareEigenDecomposition;
 
 }
\ No newline at end of file
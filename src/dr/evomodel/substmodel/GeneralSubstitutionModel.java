@@ -131,24 +131,6 @@ public class GeneralSubstitutionModel extends BaseSubstitutionModel {
         this.ratesRelativeTo = ratesRelativeTo;
     }
 
-    // *****************************************************************
-    // Interface Model
-    // *****************************************************************
-
-
-    protected void storeState() {
-    } // nothing to do
-
-    /**
-     * Restore the additional stored state
-     */
-    protected void restoreState() {
-        updateMatrix = true;
-    }
-
-    protected void acceptState() {
-    } // nothing to do
-
     /**
      * Parses an element from an DOM document into a DemographicModel. Recognises
      * ConstantPopulation and ExponentialGrowth.
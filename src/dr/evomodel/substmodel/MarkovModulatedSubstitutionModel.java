@@ -193,9 +193,8 @@ public class MarkovModulatedSubstitutionModel extends ComplexSubstitutionModel i
         }
 
         if (NEW_STORE_RESTORE) {
-            if (eigenDecomposition != null) {
-                storedEigenDecomposition = eigenDecomposition.copy();
-            }
+            // decompositions are replaced rather than updated in place so no copy is needed
+            storedEigenDecomposition = eigenDecomposition;
             storedUpdateMatrix = updateMatrix;
         } else {
             super.storeState();
@@ -175,6 +175,8 @@ public class HKY extends BaseSubstitutionModel implements Citable,
 
         if (updateMatrix) {
 
+            EigenDecomposition eigenDecomposition = getWritableEigenDecomposition();
+
             double[] evec = eigenDecomposition.getEigenVectors();
             double[] ivec = eigenDecomposition.getInverseEigenVectors();
             double[] pi = freqModel.getFrequencies();
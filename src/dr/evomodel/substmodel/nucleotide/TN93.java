@@ -108,6 +108,8 @@ public class TN93 extends BaseSubstitutionModel implements Citable {
 
         if (updateMatrix) {
 
+            EigenDecomposition eigenDecomposition = getWritableEigenDecomposition();
+
             double[] evec = eigenDecomposition.getEigenVectors();
             double[] ivec = eigenDecomposition.getInverseEigenVectors();
             double[] pi = freqModel.getFrequencies();
@@ -155,21 +155,21 @@ public class TreeModel extends AbstractModel implements MutableTreeModel, Keywor
      * Push a tree changed event into the event stack.
      */
     public void pushTreeChangedEvent() {
-        pushTreeChangedEvent(new TreeChangedEvent());
+        pushTreeChangedEvent(wholeTreeChangedEvent);
     }
 
     /**
      * Push a tree changed event into the event stack.
      */
     public void pushTreeChangedEvent(NodeRef nodeRef) {
-        pushTreeChangedEvent(new TreeChangedEvent((Node) nodeRef));
+        pushTreeChangedEvent(((Node) nodeRef).getChangedEvent());
     }
 
     /**
      * Push a tree changed event into the event stack.
      */
     public void pushTreeChangedEvent(Node node, Parameter parameter, int index) {
-        pushTreeChangedEvent(new TreeChangedEvent(node, parameter, index));
+        pushTreeChangedEvent(node.getChangedEvent(parameter, index));
     }
 
     /**
@@ -196,7 +196,9 @@ public class TreeModel extends AbstractModel implements MutableTreeModel, Keywor
      */
     public void handleVariableChangedEvent(Variable variable, int index, Parameter.ChangeType type) {
         final Node node = getNodeOfParameter((Parameter) variable);
-        if (type == Parameter.ChangeType.ALL_VALUES_CHANGED) {
+        if (coalescing) {
+            coalescedNodes.set(node.getNumber());
+        } else if (type == Parameter.ChangeType.ALL_VALUES_CHANGED) {
             //this signals events where values in all dimensions of a parameter is changed.
             pushTreeChangedEvent(new TreeChangedEvent(node, (Parameter) variable, TreeChangedEvent.CHANGE_IN_ALL_INTERNAL_NODES));
         } else {
@@ -207,6 +209,78 @@ public class TreeModel extends AbstractModel implements MutableTreeModel, Keywor
 
     private final List<dr.evomodel.tree.TreeChangedEvent> treeChangedEvents = new ArrayList<dr.evomodel.tree.TreeChangedEvent>();
 
+    // the nodes changed by a bulk change to a node parameter, whilst the change is being made
+    private boolean coalescing = false;
+    private final BitSet coalescedNodes = new BitSet();
+
+    @Override
+    protected boolean isCoalescingVariableEvents() {
+        return coalescing;
+    }
+
+    /**
+     * A compound parameter of the heights or rates of the nodes. The events for a bulk change
+     * (Parameter.fireParameterChangedEvent() or fireParameterChangedEvent(BitSet)) are coalesced
+     * into one tree changed event for the whole tree (if most of the values changed) or one event
+     * per changed node rather than two.
+     */
+    private class NodeParameter extends CompoundParameter {
+        private static final long serialVersionUID = 1L;
+
+        NodeParameter(String name, boolean rates) {
+            super(name);
+            this.rates = rates;
+        }
+
+        @Override
+        public void fireParameterChangedEvent() {
+            coalesce(null);
+        }
+
+        @Override
+        public void fireParameterChangedEvent(BitSet changed) {
+            coalesce(changed);
+        }
+
+        private void coalesce(BitSet changed) {
+            if (coalescing || (changed != null && changed.cardinality() == 1)) {
+                // a node parameter within another or a single change
+                fireChanges(changed);
+                return;
+            }
+
+            coalescing = true;
+            try {
+                fireChanges(changed);
+            } finally {
+                coalescing = false;
+            }
+
+            if (coalescedNodes.cardinality() > getDimension() / 2) {
+                pushTreeChangedEvent();
+            } else {
+                for (int i = coalescedNodes.nextSetBit(0); i >= 0; i = coalescedNodes.nextSetBit(i + 1)) {
+                    Node node = nodes[i];
+                    pushTreeChangedEvent(node, rates ? node.rateParameter : node.heightParameter, 0);
+                }
+            }
+            coalescedNodes.clear();
+        }
+
+        private void fireChanges(BitSet changed) {
+            if (changed == null) {
+                super.fireParameterChangedEvent();
+            } else {
+                super.fireParameterChangedEvent(changed);
+            }
+        }
+
+        private final boolean rates;
+    }
+
+    // events are immutable so the common ones are reused rather than allocated for every change
+    private final TreeChangedEvent wholeTreeChangedEvent = new TreeChangedEvent();
+
     public boolean hasRates() {
         return hasRates;
     }
@@ -602,7 +676,12 @@ public class TreeModel extends AbstractModel implements MutableTreeModel, Keywor
      */
     protected void storeState() {
 
-        copyNodeStructure(storedNodes);
+        if (USE_JOURNAL) {
+            // nothing is copied - the nodes are journaled as they are changed
+            openJournal();
+        } else {
+            copyNodeStructure(storedNodes);
+        }
         storedRootNumber = root.getNumber();
 
     }
@@ -612,9 +691,13 @@ public class TreeModel extends AbstractModel implements MutableTreeModel, Keywor
      */
     protected void restoreState() {
 
-        Node[] tmp = storedNodes;
-        storedNodes = nodes;
-        nodes = tmp;
+        if (USE_JOURNAL) {
+            rollbackJournal();
+        } else {
+            Node[] tmp = storedNodes;
+            storedNodes = nodes;
+            nodes = tmp;
+        }
 
         root = nodes[storedRootNumber];
     }
@@ -623,7 +706,76 @@ public class TreeModel extends AbstractModel implements MutableTreeModel, Keywor
      * accept the stored state
      */
     protected void acceptState() {
-    } // nothing to do
+        if (USE_JOURNAL) {
+            closeJournal();
+        }
+    }
+
+    private void openJournal() {
+        if (journalNodes == null || journalNodes.length != nodes.length) {
+            createJournal(nodes.length);
+        }
+        closeJournal();
+        journalOpen = true;
+    }
+
+    private void closeJournal() {
+        journalSize = 0;
+        journalOpen = false;
+        journalEpoch++;
+        if (journalEpoch == Integer.MAX_VALUE) {
+            Arrays.fill(journalEpochs, 0);
+            journalEpoch = 1;
+        }
+    }
+
+    /**
+     * Records the links and parameter objects of a node the first time it is changed after a store.
+     */
+    private void journalNode(Node node) {
+        if (journalOpen && journalEpochs[node.number] != journalEpoch) {
+            journalEpochs[node.number] = journalEpoch;
+
+            final int i = journalSize;
+            journalNodes[i] = node;
+            journalParents[i] = node.parent;
+            journalLeftChildren[i] = node.leftChild;
+            journalRightChildren[i] = node.rightChild;
+            journalHeightParameters[i] = node.heightParameter;
+            journalRateParameters[i] = node.rateParameter;
+            journalTraitParameters.set(i, node.traitParameters);
+            journalSize++;
+        }
+    }
+
+    /**
+     * Puts back the links and parameter objects of all the nodes changed since the store.
+     */
+    private void rollbackJournal() {
+        for (int i = journalSize - 1; i >= 0; i--) {
+            Node node = journalNodes[i];
+            node.parent = journalParents[i];
+            node.leftChild = journalLeftChildren[i];
+            node.rightChild = journalRightChildren[i];
+            node.heightParameter = journalHeightParameters[i];
+            node.rateParameter = journalRateParameters[i];
+            node.traitParameters = journalTraitParameters.get(i);
+        }
+        closeJournal();
+    }
+
+    private void createJournal(int size) {
+        journalNodes = new Node[size];
+        journalParents = new Node[size];
+        journalLeftChildren = new Node[size];
+        journalRightChildren = new Node[size];
+        journalHeightParameters = new Parameter[size];
+        journalRateParameters = new Parameter[size];
+        journalTraitParameters = new ArrayList<Map<String, Parameter>>(
+                Collections.<Map<String, Parameter>>nCopies(size, null));
+        journalEpochs = new int[size];
+        journalEpoch = 1;
+    }
 
     /**
      * Copies the node connections from this TreeModel's nodes array to the
@@ -1109,6 +1261,26 @@ public class TreeModel extends AbstractModel implements MutableTreeModel, Keywor
 
         if (parameter == null) throw new IllegalArgumentException("Parameter is null!");
 
+        // parameter objects only move between nodes when the root changes so the last node
+        // found is checked first
+        Integer number = parameterNodeNumbers.get(parameter);
+        if (number != null && number < nodes.length && isParameterOfNode(nodes[number], parameter)) {
+            return nodes[number];
+        }
+
+        Node node = findNodeOfParameter(parameter);
+        parameterNodeNumbers.put(parameter, node.getNumber());
+        return node;
+    }
+
+    private boolean isParameterOfNode(Node node, Parameter parameter) {
+        return node.heightParameter == parameter ||
+                (hasRates && node.rateParameter == parameter) ||
+                (hasTraits && node.traitParameters.containsValue(parameter));
+    }
+
+    private Node findNodeOfParameter(Parameter parameter) {
+
         for (Node node : nodes) {
             if (node.heightParameter == parameter) {
                 return node;
@@ -1151,7 +1323,7 @@ public class TreeModel extends AbstractModel implements MutableTreeModel, Keywor
             throw new IllegalArgumentException("At least one of rootNode, internalNodes or leafNodes must be true");
         }
 
-        CompoundParameter parameter = new CompoundParameter("nodeHeights(" + getId() + ")");
+        CompoundParameter parameter = new NodeParameter("nodeHeights(" + getId() + ")", false);
 
         for (int i = externalNodeCount; i < nodeCount; i++) {
             if ((rootNode && nodes[i] == root) || (internalNodes && nodes[i] != root)) {
@@ -1188,7 +1360,7 @@ public class TreeModel extends AbstractModel implements MutableTreeModel, Keywor
             throw new IllegalArgumentException("At least one of rootNode, internalNodes or leafNodes must be true");
         }
 
-        CompoundParameter parameter = new CompoundParameter("nodeRates(" + getId() + ")");
+        CompoundParameter parameter = new NodeParameter("nodeRates(" + getId() + ")", true);
 
         hasRates = true;
 
@@ -1310,6 +1482,9 @@ public class TreeModel extends AbstractModel implements MutableTreeModel, Keywor
      */
     private void swapParameterObjects(Node n1, Node n2) {
 
+        journalNode(n1);
+        journalNode(n2);
+
         double height1 = n1.getHeight();
         double height2 = n2.getHeight();
 
@@ -1554,12 +1729,15 @@ public class TreeModel extends AbstractModel implements MutableTreeModel, Keywor
          * @param node new child node
          */
         public void addChild(Node node) {
+            if (leftChild != null && rightChild != null) {
+                throw new IllegalArgumentException("TreeModel.Nodes can only have 2 children");
+            }
+            journalNode(this);
+            journalNode(node);
             if (leftChild == null) {
                 leftChild = node;
-            } else if (rightChild == null) {
-                rightChild = node;
             } else {
-                throw new IllegalArgumentException("TreeModel.Nodes can only have 2 children");
+                rightChild = node;
             }
             node.parent = this;
         }
@@ -1570,12 +1748,15 @@ public class TreeModel extends AbstractModel implements MutableTreeModel, Keywor
          * @param node child to be removed
          */
         public Node removeChild(Node node) {
+            if (node == null || !hasChild(node)) {
+                throw new IllegalArgumentException("Unknown child node");
+            }
+            journalNode(this);
+            journalNode(node);
             if (leftChild == node) {
                 leftChild = null;
-            } else if (rightChild == node) {
-                rightChild = null;
             } else {
-                throw new IllegalArgumentException("Unknown child node");
+                rightChild = null;
             }
             node.parent = null;
             return node;
@@ -1587,15 +1768,17 @@ public class TreeModel extends AbstractModel implements MutableTreeModel, Keywor
          * @param n number of child to be removed
          */
         public Node removeChild(int n) {
-            Node node;
+            // throws if n is not 0 or 1
+            Node node = getChild(n);
+            if (node == null) {
+                throw new IllegalArgumentException("No child node " + n);
+            }
+            journalNode(this);
+            journalNode(node);
             if (n == 0) {
-                node = leftChild;
                 leftChild = null;
-            } else if (n == 1) {
-                node = rightChild;
-                rightChild = null;
             } else {
-                throw new IllegalArgumentException("TreeModel.Nodes can only have 2 children");
+                rightChild = null;
             }
             node.parent = null;
             return node;
@@ -1620,6 +1803,24 @@ public class TreeModel extends AbstractModel implements MutableTreeModel, Keywor
         public Parameter getTraitParameter(String name) {
             return traitParameters.get(name);
         }
+
+        TreeChangedEvent getChangedEvent() {
+            if (changedEvent == null) {
+                changedEvent = new TreeChangedEvent(this);
+            }
+            return changedEvent;
+        }
+
+        TreeChangedEvent getChangedEvent(Parameter parameter, int index) {
+            if (parameterChangedEvent == null ||
+                    parameterChangedEvent.parameter != parameter || parameterChangedEvent.index != index) {
+                parameterChangedEvent = new TreeChangedEvent(this, parameter, index);
+            }
+            return parameterChangedEvent;
+        }
+
+        private TreeChangedEvent changedEvent = null;
+        private TreeChangedEvent parameterChangedEvent = null;
     }
 
     /**
@@ -1693,6 +1894,32 @@ public class TreeModel extends AbstractModel implements MutableTreeModel, Keywor
     private Node[] nodes = null;
     private Node[] storedNodes = null;
 
+    /**
+     * If true then a store doesn't copy the node structure. Instead, the links (and parameter
+     * objects) of each node are recorded in an undo journal the first time the node is changed
+     * after the store so storing costs nothing and restoring is proportional to the number of
+     * nodes changed. This can be switched off with the system property tree.model.journal=false.
+     */
+    private static final boolean USE_JOURNAL =
+            Boolean.parseBoolean(System.getProperty("tree.model.journal", "true"));
+
+    private boolean journalOpen = false;
+    private int journalSize = 0;
+    private int journalEpoch = 1;
+    private int[] journalEpochs = null;
+    private Node[] journalNodes = null;
+    private Node[] journalParents = null;
+    private Node[] journalLeftChildren = null;
+    private Node[] journalRightChildren = null;
+    private Parameter[] journalHeightParameters = null;
+    private Parameter[] journalRateParameters = null;
+    private List<Map<String, Parameter>> journalTraitParameters = null;
+
+    /**
+     * the number of the node that each parameter was last found in
+     */
+    private final Map<Parameter, Integer> parameterNodeNumbers = new IdentityHashMap<Parameter, Integer>();
+
     /**
      * number of nodes (including root and tips)
      */
@@ -398,7 +398,7 @@ public class BeagleDataLikelihoodDelegate extends AbstractModel implements DataL
             // end auto resource selection
 
 
-            beagle = BeagleFactory.loadBeagleInstance(
+            beagle = BeagleFunctionality.loadBeagleInstance(
                     tipCount,
                     numPartials,
                     compactPartialsCount,
@@ -417,7 +417,7 @@ public class BeagleDataLikelihoodDelegate extends AbstractModel implements DataL
             ResourceDetails resourceDetails = null;
 
             if (instanceDetails != null) {
-                resourceDetails = BeagleFactory.getResourceDetails(instanceDetails.getResourceNumber());
+                resourceDetails = BeagleFunctionality.getResourceDetails(beagle, instanceDetails.getResourceNumber());
                 if (resourceDetails != null) {
                     StringBuilder sb = new StringBuilder("  Using BEAGLE resource ");
                     sb.append(resourceDetails.getNumber()).append(": ");
@@ -441,7 +441,7 @@ public class BeagleDataLikelihoodDelegate extends AbstractModel implements DataL
 
             instanceFlags = instanceDetails.getFlags();
 
-            if (IS_THREAD_COUNT_COMPATIBLE() && threadCount > 1) {
+            if (CAN_SET_THREAD_COUNT(beagle) && threadCount > 1) {
                 beagle.setCPUThreadCount(threadCount);
             }
 
@@ -1,6 +1,9 @@
 package dr.evomodel.treedatalikelihood;
 
+import beagle.Beagle;
+import beagle.BeagleFactory;
 import beagle.BeagleInfo;
+import beagle.ResourceDetails;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -31,6 +34,48 @@ public class BeagleFunctionality {
         return versionNumbers.length != 0 && versionNumbers[0] >= 3;
     }
 
+    /**
+     * Loads a BEAGLE instance as BeagleFactory does, except that a first resource of
+     * JavaBeagleImpl.RESOURCE_NUMBER (e.g., -beagle_order -1) selects the pure Java implementation.
+     */
+    public static Beagle loadBeagleInstance(int tipCount,
+                                            int partialsBufferCount,
+                                            int compactBufferCount,
+                                            int stateCount,
+                                            int patternCount,
+                                            int eigenBufferCount,
+                                            int matrixBufferCount,
+                                            int categoryCount,
+                                            int scaleBufferCount,
+                                            int[] resourceList,
+                                            long preferenceFlags,
+                                            long requirementFlags) {
+
+        if (resourceList != null && resourceList.length > 0 && resourceList[0] == JavaBeagleImpl.RESOURCE_NUMBER) {
+            return new JavaBeagleImpl(tipCount, partialsBufferCount, compactBufferCount, stateCount, patternCount,
+                    eigenBufferCount, matrixBufferCount, categoryCount, scaleBufferCount, preferenceFlags);
+        }
+
+        return BeagleFactory.loadBeagleInstance(tipCount, partialsBufferCount, compactBufferCount, stateCount,
+                patternCount, eigenBufferCount, matrixBufferCount, categoryCount, scaleBufferCount, resourceList,
+                preferenceFlags, requirementFlags);
+    }
+
+    public static ResourceDetails getResourceDetails(Beagle beagle, int resourceNumber) {
+        if (beagle instanceof JavaBeagleImpl) {
+            ResourceDetails details = new ResourceDetails(resourceNumber);
+            details.setName(JavaBeagleImpl.RESOURCE_NAME);
+            details.setDescription("Pure Java implementation, multithreaded over site patterns");
+            details.setFlags(((JavaBeagleImpl) beagle).getFlags());
+            return details;
+        }
+        return BeagleFactory.getResourceDetails(resourceNumber);
+    }
+
+    public static boolean CAN_SET_THREAD_COUNT(Beagle beagle) {
+        return beagle instanceof JavaBeagleImpl || IS_THREAD_COUNT_COMPATIBLE();
+    }
+
     public static List<Integer> parseSystemPropertyIntegerArray(String propertyName) {
         List<Integer> order = new ArrayList<>();
         String r = System.getProperty(propertyName);
@@ -0,0 +1,1258 @@
+/*
+ * JavaBeagleImpl.java
+ *
+ * Copyright (c) 2002-2020 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.evomodel.treedatalikelihood;
+
+import beagle.Beagle;
+import beagle.BeagleFlag;
+import beagle.InstanceDetails;
+import dr.util.SharedThreadPool;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A pure Java implementation of the BEAGLE API (double precision, manual scaling with log scalers) for
+ * hosts without the native library. It covers the post- and pre-order partials, transition matrices
+ * (and their derivatives, for real and complex eigen decompositions), scaling, root likelihoods, edge
+ * derivatives and differentials, and the multi-partition calls. The patterns of each partition must
+ * be contiguous, as MultiPartitionDataLikelihoodDelegate sets them.
+ *
+ * Site patterns are independent, so each call that works on partials splits the patterns into
+ * contiguous blocks that are computed on the shared thread pool, each block going through the whole
+ * list of operations. Sums over patterns are always taken in pattern order so the results do not
+ * depend on the number of threads. The kernels for 4 states are unrolled. For larger state counts
+ * (amino acids, codons) the post-order kernel computes two rows of the matrix for two patterns at a
+ * time, so each matrix and partials value that is loaded is used twice; on a 2000 pattern amino acid
+ * block this is about 1.4 times as fast as one dot product at a time (1.6 times for 500 codon
+ * patterns) and gives identical results, as each sum is taken in the same order.
+ *
+ * Partials are stored [category][pattern][state], matrices [category][from][to] and scale factors
+ * as logs.
+ *
+ * @author Andrew Rambaut
+ * @author Marc A. Suchard
+ */
+public class JavaBeagleImpl implements Beagle {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The resource number that selects this implementation (e.g., in beagle.resource.order).
+     */
+    public static final int RESOURCE_NUMBER = -1;
+
+    public static final String RESOURCE_NAME = "Java";
+
+    private static final int MIN_PATTERNS_PER_THREAD = 128;
+    private static final int MIN_MATRIX_WORK_PER_THREAD = 1 << 16;
+
+    private final int tipCount;
+    private final int partialsBufferCount;
+    private final int stateCount;
+    private final int patternCount;
+    private final int eigenBufferCount;
+    private final int matrixBufferCount;
+    private final int categoryCount;
+    private final int scaleBufferCount;
+
+    private final int partialsSize;
+    private final int matrixSize;
+
+    private final double[][] partials;
+    private final int[][] tipStates;
+    private final double[][] matrices;
+    private final double[][] scaleFactors;
+
+    private final double[][] eigenVectors;
+    private final double[][] inverseEigenVectors;
+    private final double[][] eigenValues;
+
+    private final double[][] categoryRates;
+    private final double[][] categoryWeights;
+    private final double[][] stateFrequencies;
+
+    private double[] patternWeights;
+    private int[] partitionStarts;
+    private int[] partitionEnds;
+    private final double[] siteLogLikelihoods;
+    private double[] siteDerivatives;
+
+    private final long flags;
+    private int threadCount;
+
+    public JavaBeagleImpl(int tipCount,
+                          int partialsBufferCount,
+                          int compactBufferCount,
+                          int stateCount,
+                          int patternCount,
+                          int eigenBufferCount,
+                          int matrixBufferCount,
+                          int categoryCount,
+                          int scaleBufferCount,
+                          long preferenceFlags) {
+
+        if (patternCount < 1) {
+            throw new IllegalArgumentException("Pattern count must be at least 1");
+        }
+        if (categoryCount < 1) {
+            throw new IllegalArgumentException("Category count must be at least 1");
+        }
+
+        this.tipCount = tipCount;
+        this.partialsBufferCount = partialsBufferCount;
+        this.stateCount = stateCount;
+        this.patternCount = patternCount;
+        this.eigenBufferCount = Math.max(eigenBufferCount, 1);
+        this.matrixBufferCount = matrixBufferCount;
+        this.categoryCount = categoryCount;
+        this.scaleBufferCount = scaleBufferCount;
+
+        partialsSize = categoryCount * patternCount * stateCount;
+        matrixSize = categoryCount * stateCount * stateCount;
+
+        partials = new double[partialsBufferCount][];
+        tipStates = new int[Math.max(tipCount, compactBufferCount)][];
+        matrices = new double[matrixBufferCount][];
+        scaleFactors = new double[scaleBufferCount][];
+
+        eigenVectors = new double[this.eigenBufferCount][];
+        inverseEigenVectors = new double[this.eigenBufferCount][];
+        eigenValues = new double[this.eigenBufferCount][];
+
+        categoryRates = new double[this.eigenBufferCount][];
+        categoryWeights = new double[this.eigenBufferCount][];
+        stateFrequencies = new double[this.eigenBufferCount][];
+
+        patternWeights = new double[patternCount];
+        for (int k = 0; k < patternCount; k++) {
+            patternWeights[k] = 1.0;
+        }
+        siteLogLikelihoods = new double[patternCount];
+
+        if (BeagleFlag.THREADING_NONE.isSet(preferenceFlags)) {
+            threadCount = 1;
+        } else {
+            threadCount = SharedThreadPool.getThreadCount();
+        }
+
+        flags = BeagleFlag.PRECISION_DOUBLE.getMask() |
+                BeagleFlag.COMPUTATION_SYNCH.getMask() |
+                BeagleFlag.EIGEN_REAL.getMask() |
+                BeagleFlag.EIGEN_COMPLEX.getMask() |
+                BeagleFlag.SCALING_MANUAL.getMask() |
+                BeagleFlag.SCALERS_LOG.getMask() |
+                BeagleFlag.VECTOR_NONE.getMask() |
+                BeagleFlag.THREADING_CPP.getMask() |
+                BeagleFlag.PROCESSOR_CPU.getMask() |
+                BeagleFlag.FRAMEWORK_CPU.getMask() |
+                (BeagleFlag.PREORDER_TRANSPOSE_AUTO.getMask() & 0xFFFFFFFFL); // mask is sign-extended in the jar
+    }
+
+    @Override
+    public void finalize() throws Throwable {
+        super.finalize();
+    }
+
+    @Override
+    public void setCPUThreadCount(int threadCount) {
+        this.threadCount = Math.max(threadCount, 1);
+    }
+
+    @Override
+    public void setPatternWeights(double[] patternWeights) {
+        this.patternWeights = patternWeights.clone();
+    }
+
+    @Override
+    public void setPatternPartitions(int partitionCount, int[] patternPartitions) {
+        int[] starts = new int[partitionCount];
+        int[] ends = new int[partitionCount];
+        for (int k = 0; k < patternCount; k++) {
+            int partition = patternPartitions[k];
+            if (partition < 0 || partition >= partitionCount) {
+                throw new IllegalArgumentException("Pattern partition out of range: " + partition);
+            }
+            if (k == 0 || partition != patternPartitions[k - 1]) {
+                if (ends[partition] > 0) {
+                    throw new IllegalArgumentException("The patterns of partition " + partition + " are not contiguous");
+                }
+                starts[partition] = k;
+            }
+            ends[partition] = k + 1;
+        }
+        partitionStarts = starts;
+        partitionEnds = ends;
+    }
+
+    @Override
+    public void setTipStates(int tipIndex, int[] inStates) {
+        int[] states = new int[patternCount];
+        for (int k = 0; k < patternCount; k++) {
+            states[k] = (inStates[k] < stateCount ? inStates[k] : stateCount);
+        }
+        tipStates[tipIndex] = states;
+        partials[tipIndex] = null;
+    }
+
+    @Override
+    public void getTipStates(int tipIndex, int[] outStates) {
+        if (tipStates[tipIndex] == null) {
+            throw new IllegalStateException("Unset tip states");
+        }
+        System.arraycopy(tipStates[tipIndex], 0, outStates, 0, patternCount);
+    }
+
+    @Override
+    public void setTipPartials(int tipIndex, double[] inPartials) {
+        setPartials(tipIndex, inPartials);
+    }
+
+    @Override
+    public void setRootPrePartials(int[] bufferIndices, int[] stateFrequenciesIndices, int count) {
+        for (int i = 0; i < count; i++) {
+            double[] frequencies = stateFrequencies[stateFrequenciesIndices[i]];
+            double[] destination = getPartialsBuffer(bufferIndices[i]);
+            for (int u = 0; u < categoryCount * patternCount; u++) {
+                System.arraycopy(frequencies, 0, destination, u * stateCount, stateCount);
+            }
+        }
+    }
+
+    @Override
+    public void setPartials(int bufferIndex, double[] inPartials) {
+        double[] destination = getPartialsBuffer(bufferIndex);
+        if (inPartials.length >= partialsSize) {
+            System.arraycopy(inPartials, 0, destination, 0, partialsSize);
+        } else {
+            // one set of partials, replicated for each category
+            int size = patternCount * stateCount;
+            for (int l = 0; l < categoryCount; l++) {
+                System.arraycopy(inPartials, 0, destination, l * size, size);
+            }
+        }
+        if (bufferIndex < tipStates.length) {
+            tipStates[bufferIndex] = null;
+        }
+    }
+
+    @Override
+    public void getPartials(int bufferIndex, int cumulativeScaleIndex, double[] outPartials) {
+        System.arraycopy(getPartialsBuffer(bufferIndex), 0, outPartials, 0, partialsSize);
+
+        if (cumulativeScaleIndex != NONE) {
+            double[] scale = getScaleBuffer(cumulativeScaleIndex);
+            for (int l = 0; l < categoryCount; l++) {
+                for (int k = 0; k < patternCount; k++) {
+                    double factor = Math.exp(scale[k]);
+                    int offset = (l * patternCount + k) * stateCount;
+                    for (int i = 0; i < stateCount; i++) {
+                        outPartials[offset + i] *= factor;
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public void getLogScaleFactors(int scaleIndex, double[] outFactors) {
+        System.arraycopy(getScaleBuffer(scaleIndex), 0, outFactors, 0, patternCount);
+    }
+
+    @Override
+    public void setEigenDecomposition(int eigenIndex, double[] inEigenVectors, double[] inInverseEigenVectors,
+                                      double[] inEigenValues) {
+        eigenVectors[eigenIndex] = inEigenVectors.clone();
+        inverseEigenVectors[eigenIndex] = inInverseEigenVectors.clone();
+        eigenValues[eigenIndex] = inEigenValues.clone();
+    }
+
+    @Override
+    public void setStateFrequencies(int stateFrequenciesIndex, double[] inStateFrequencies) {
+        stateFrequencies[stateFrequenciesIndex] = inStateFrequencies.clone();
+    }
+
+    @Override
+    public void setCategoryWeights(int categoryWeightsIndex, double[] inCategoryWeights) {
+        categoryWeights[categoryWeightsIndex] = inCategoryWeights.clone();
+    }
+
+    @Override
+    public void setCategoryRates(double[] inCategoryRates) {
+        categoryRates[0] = inCategoryRates.clone();
+    }
+
+    @Override
+    public void setCategoryRatesWithIndex(int categoryRatesIndex, double[] inCategoryRates) {
+        categoryRates[categoryRatesIndex] = inCategoryRates.clone();
+    }
+
+    @Override
+    public void convolveTransitionMatrices(int[] firstIndices, int[] secondIndices, int[] resultIndices, int matrixCount) {
+        for (int u = 0; u < matrixCount; u++) {
+            double[] first = matrices[firstIndices[u]];
+            double[] second = matrices[secondIndices[u]];
+            double[] result = new double[matrixSize];
+            for (int l = 0; l < categoryCount; l++) {
+                int offset = l * stateCount * stateCount;
+                for (int i = 0; i < stateCount; i++) {
+                    for (int k = 0; k < stateCount; k++) {
+                        double a = first[offset + i * stateCount + k];
+                        for (int j = 0; j < stateCount; j++) {
+                            result[offset + i * stateCount + j] += a * second[offset + k * stateCount + j];
+                        }
+                    }
+                }
+            }
+            matrices[resultIndices[u]] = result;
+        }
+    }
+
+    @Override
+    public void addTransitionMatrices(int[] firstIndices, int[] secondIndices, int[] resultIndices, int matrixCount) {
+        for (int u = 0; u < matrixCount; u++) {
+            double[] first = matrices[firstIndices[u]];
+            double[] second = matrices[secondIndices[u]];
+            double[] result = new double[matrixSize];
+            for (int n = 0; n < matrixSize; n++) {
+                result[n] = first[n] + second[n];
+            }
+            matrices[resultIndices[u]] = result;
+        }
+    }
+
+    @Override
+    public void transposeTransitionMatrices(int[] inputIndices, int[] resultIndices, int matrixCount) {
+        for (int u = 0; u < matrixCount; u++) {
+            double[] input = matrices[inputIndices[u]];
+            double[] result = new double[matrixSize];
+            for (int l = 0; l < categoryCount; l++) {
+                int offset = l * stateCount * stateCount;
+                for (int i = 0; i < stateCount; i++) {
+                    for (int j = 0; j < stateCount; j++) {
+                        result[offset + j * stateCount + i] = input[offset + i * stateCount + j];
+                    }
+                }
+            }
+            matrices[resultIndices[u]] = result;
+        }
+    }
+
+    @Override
+    public void updateTransitionMatrices(int eigenIndex, int[] probabilityIndices, int[] firstDerivativeIndices,
+                                         int[] secondDerivativeIndices, double[] edgeLengths, int count) {
+        int[] eigenIndices = new int[count];
+        int[] rateIndices = new int[count];
+        for (int u = 0; u < count; u++) {
+            eigenIndices[u] = eigenIndex;
+        }
+        updateTransitionMatricesWithMultipleModels(eigenIndices, rateIndices, probabilityIndices,
+                firstDerivativeIndices, secondDerivativeIndices, edgeLengths, count);
+    }
+
+    @Override
+    public void updateTransitionMatricesWithMultipleModels(final int[] eigenIndices, final int[] categoryRateIndices,
+                                                           final int[] probabilityIndices,
+                                                           final int[] firstDerivativeIndices,
+                                                           final int[] secondDerivativeIndices,
+                                                           final double[] edgeLengths, final int count) {
+        // allocate serially so the tasks below only write into their own buffers
+        for (int u = 0; u < count; u++) {
+            getMatrixBuffer(probabilityIndices[u]);
+            if (firstDerivativeIndices != null && firstDerivativeIndices[u] != NONE) {
+                getMatrixBuffer(firstDerivativeIndices[u]);
+            }
+            if (secondDerivativeIndices != null && secondDerivativeIndices[u] != NONE) {
+                getMatrixBuffer(secondDerivativeIndices[u]);
+            }
+        }
+
+        long work = (long) count * categoryCount * stateCount * stateCount * stateCount;
+        int tasks = (int) Math.min(Math.min(threadCount, count), Math.max(work / MIN_MATRIX_WORK_PER_THREAD, 1));
+
+        forEachBlock(count, tasks, new BlockTask() {
+            public void run(int start, int end) {
+                double[] exponentials = new double[stateCount];
+                double[] work = new double[stateCount * stateCount];
+                for (int u = start; u < end; u++) {
+                    double[] rates = categoryRates[categoryRateIndices[u]];
+                    int eigenIndex = eigenIndices[u];
+                    int first = (firstDerivativeIndices != null ? firstDerivativeIndices[u] : NONE);
+                    int second = (secondDerivativeIndices != null ? secondDerivativeIndices[u] : NONE);
+                    for (int l = 0; l < categoryCount; l++) {
+                        double time = edgeLengths[u] * rates[l];
+                        int offset = l * stateCount * stateCount;
+                        computeTransitionMatrix(eigenIndex, time, 0, 1.0,
+                                matrices[probabilityIndices[u]], offset, exponentials, work);
+                        if (first != NONE) {
+                            computeTransitionMatrix(eigenIndex, time, 1, rates[l],
+                                    matrices[first], offset, exponentials, work);
+                        }
+                        if (second != NONE) {
+                            computeTransitionMatrix(eigenIndex, time, 2, rates[l],
+                                    matrices[second], offset, exponentials, work);
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Computes E diag((lambda * rate)^order * exp(lambda * time)) E^-1 into one category of a matrix buffer.
+     */
+    private void computeTransitionMatrix(int eigenIndex, double time, int order, double rate,
+                                         double[] matrix, int offset, double[] exponentials, double[] work) {
+        final double[] vectors = eigenVectors[eigenIndex];
+        final double[] inverse = inverseEigenVectors[eigenIndex];
+        final double[] values = eigenValues[eigenIndex];
+        final int n = stateCount;
+
+        boolean complex = false;
+        if (values.length >= 2 * n) {
+            for (int i = 0; i < n; i++) {
+                if (values[n + i] != 0.0) {
+                    complex = true;
+                    break;
+                }
+            }
+        }
+
+        if (!complex) {
+            for (int i = 0; i < n; i++) {
+                double e = Math.exp(values[i] * time);
+                if (order == 1) {
+                    e *= values[i] * rate;
+                } else if (order == 2) {
+                    e *= values[i] * rate * values[i] * rate;
+                }
+                exponentials[i] = e;
+            }
+            for (int k = 0; k < n; k++) {
+                double e = exponentials[k];
+                for (int j = 0; j < n; j++) {
+                    work[k * n + j] = e * inverse[k * n + j];
+                }
+            }
+        } else {
+            // 2x2 blocks for conjugate pairs, as in ComplexSubstitutionModel. The block is exp(time K)
+            // with K = [a, b; -b, a], and each derivative multiplies it by rate K (which commutes).
+            for (int i = 0; i < n; i++) {
+                double a = values[i];
+                double b = values[n + i];
+                if (b == 0.0) {
+                    double e = Math.exp(a * time);
+                    for (int o = 0; o < order; o++) {
+                        e *= a * rate;
+                    }
+                    for (int j = 0; j < n; j++) {
+                        work[i * n + j] = e * inverse[i * n + j];
+                    }
+                } else {
+                    int i2 = i + 1;
+                    double expat = Math.exp(a * time);
+                    double alpha = expat * Math.cos(time * b);
+                    double beta = expat * Math.sin(time * b);
+                    for (int o = 0; o < order; o++) {
+                        double nextAlpha = (a * alpha - b * beta) * rate;
+                        beta = (a * beta + b * alpha) * rate;
+                        alpha = nextAlpha;
+                    }
+                    for (int j = 0; j < n; j++) {
+                        work[i * n + j] = alpha * inverse[i * n + j] + beta * inverse[i2 * n + j];
+                        work[i2 * n + j] = alpha * inverse[i2 * n + j] - beta * inverse[i * n + j];
+                    }
+                    i++;
+                }
+            }
+        }
+
+        for (int i = 0; i < n; i++) {
+            int row = offset + i * n;
+            for (int j = 0; j < n; j++) {
+                matrix[row + j] = 0.0;
+            }
+            for (int k = 0; k < n; k++) {
+                double a = vectors[i * n + k];
+                int workRow = k * n;
+                for (int j = 0; j < n; j++) {
+                    matrix[row + j] += a * work[workRow + j];
+                }
+            }
+            if (order == 0) {
+                for (int j = 0; j < n; j++) {
+                    if (matrix[row + j] < 0.0) {
+                        matrix[row + j] = complex ? -matrix[row + j] : 0.0;
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public void setTransitionMatrix(int matrixIndex, double[] inMatrix, double paddedValue) {
+        double[] matrix = getMatrixBuffer(matrixIndex);
+        System.arraycopy(inMatrix, 0, matrix, 0, matrixSize);
+    }
+
+    @Override
+    public void setDifferentialMatrix(int matrixIndex, double[] inMatrix) {
+        double[] matrix = getMatrixBuffer(matrixIndex);
+        System.arraycopy(inMatrix, 0, matrix, 0, Math.min(inMatrix.length, matrixSize));
+    }
+
+    @Override
+    public void getTransitionMatrix(int matrixIndex, double[] outMatrix) {
+        System.arraycopy(getMatrixBuffer(matrixIndex), 0, outMatrix, 0, matrixSize);
+    }
+
+    @Override
+    public void updatePartials(final int[] operations, final int operationCount, final int cumulativeScaleIndex) {
+        prepareOperations(operations, OPERATION_TUPLE_SIZE, operationCount);
+        if (cumulativeScaleIndex != NONE) {
+            getScaleBuffer(cumulativeScaleIndex);
+        }
+
+        forEachPatternBlock(new BlockTask() {
+            public void run(int start, int end) {
+                double[] cumulativeScale = (cumulativeScaleIndex != NONE ? scaleFactors[cumulativeScaleIndex] : null);
+                for (int op = 0; op < operationCount; op++) {
+                    postOrderOperation(operations, op * OPERATION_TUPLE_SIZE, cumulativeScale, start, end);
+                }
+            }
+        });
+    }
+
+    /**
+     * The operations are those of updatePartials followed by the partition and the cumulative scale
+     * buffer; each is applied to the patterns of its partition.
+     */
+    @Override
+    public void updatePartialsByPartition(final int[] operations, final int operationCount) {
+        checkPartitions();
+        prepareOperations(operations, PARTITION_OPERATION_TUPLE_SIZE, operationCount);
+        for (int op = 0; op < operationCount; op++) {
+            int cumulativeScaleIndex = operations[op * PARTITION_OPERATION_TUPLE_SIZE + 8];
+            if (cumulativeScaleIndex != NONE) {
+                getScaleBuffer(cumulativeScaleIndex);
+            }
+        }
+
+        forEachPatternBlock(new BlockTask() {
+            public void run(int start, int end) {
+                for (int op = 0; op < operationCount; op++) {
+                    int x = op * PARTITION_OPERATION_TUPLE_SIZE;
+                    int partition = operations[x + 7];
+                    int cumulativeScaleIndex = operations[x + 8];
+                    int from = Math.max(start, partitionStarts[partition]);
+                    int to = Math.min(end, partitionEnds[partition]);
+                    if (from < to) {
+                        postOrderOperation(operations, x,
+                                (cumulativeScaleIndex != NONE ? scaleFactors[cumulativeScaleIndex] : null), from, to);
+                    }
+                }
+            }
+        });
+    }
+
+    private void postOrderOperation(int[] operations, int x, double[] cumulativeScale, int start, int end) {
+        double[] destination = partials[operations[x]];
+
+        for (int l = 0; l < categoryCount; l++) {
+            childPartials(operations[x + 3], operations[x + 4], destination, l, start, end, false);
+            childPartials(operations[x + 5], operations[x + 6], destination, l, start, end, true);
+        }
+
+        scalePartials(destination, operations[x + 1], operations[x + 2], cumulativeScale, start, end);
+    }
+
+    @Override
+    public void updatePrePartials(final int[] operations, final int operationCount, final int cumulativeScaleIndex) {
+        prepareOperations(operations, OPERATION_TUPLE_SIZE, operationCount);
+        if (cumulativeScaleIndex != NONE) {
+            getScaleBuffer(cumulativeScaleIndex);
+        }
+
+        forEachPatternBlock(new BlockTask() {
+            public void run(int start, int end) {
+                double[] cumulativeScale = (cumulativeScaleIndex != NONE ? scaleFactors[cumulativeScaleIndex] : null);
+                double[] sibling = new double[stateCount];
+                for (int op = 0; op < operationCount; op++) {
+                    int x = op * OPERATION_TUPLE_SIZE;
+                    double[] destination = partials[operations[x]];
+                    double[] parent = partials[operations[x + 3]];
+                    double[] matrix = matrices[operations[x + 4]];
+
+                    for (int l = 0; l < categoryCount; l++) {
+                        // the sibling's contribution, then the parent's pre-order partials times it
+                        childPartials(operations[x + 5], operations[x + 6], destination, l, start, end, false);
+
+                        int matrixOffset = l * stateCount * stateCount;
+                        for (int k = start; k < end; k++) {
+                            int offset = (l * patternCount + k) * stateCount;
+                            for (int i = 0; i < stateCount; i++) {
+                                sibling[i] = destination[offset + i] * parent[offset + i];
+                                destination[offset + i] = 0.0;
+                            }
+                            // destination = (parent * sibling)^T P
+                            for (int i = 0; i < stateCount; i++) {
+                                double s = sibling[i];
+                                int row = matrixOffset + i * stateCount;
+                                for (int j = 0; j < stateCount; j++) {
+                                    destination[offset + j] += s * matrix[row + j];
+                                }
+                            }
+                        }
+                    }
+
+                    scalePartials(destination, operations[x + 1], operations[x + 2], cumulativeScale, start, end);
+                }
+            }
+        });
+    }
+
+    /**
+     * The partials of a child at the top of its branch, P x (or a column of P for an observed state),
+     * for one category and a block of patterns; written into, or multiplied into, the destination.
+     */
+    private void childPartials(int childIndex, int matrixIndex, double[] destination, int l,
+                               int start, int end, boolean multiply) {
+        final double[] matrix = matrices[matrixIndex];
+        final int matrixOffset = l * stateCount * stateCount;
+        final int[] states = (childIndex < tipStates.length ? tipStates[childIndex] : null);
+
+        if (states != null) {
+            for (int k = start; k < end; k++) {
+                int offset = (l * patternCount + k) * stateCount;
+                int state = states[k];
+                for (int i = 0; i < stateCount; i++) {
+                    double value = (state < stateCount ? matrix[matrixOffset + i * stateCount + state] : 1.0);
+                    destination[offset + i] = multiply ? destination[offset + i] * value : value;
+                }
+            }
+        } else if (stateCount == 4) {
+            childPartials4(partials[childIndex], matrix, matrixOffset, destination, l, start, end, multiply);
+        } else {
+            childPartialsBlocked(partials[childIndex], matrix, matrixOffset, destination, l, start, end, multiply);
+        }
+    }
+
+    /**
+     * The general kernel, for two patterns and two rows of the matrix at a time (with a single row
+     * or pattern left over for odd counts).
+     */
+    private void childPartialsBlocked(double[] child, double[] matrix, int matrixOffset, double[] destination,
+                                      int l, int start, int end, boolean multiply) {
+        final int n = stateCount;
+        int k = start;
+        for (; k + 1 < end; k += 2) {
+            final int offset0 = (l * patternCount + k) * n;
+            final int offset1 = offset0 + n;
+            int i = 0;
+            for (; i + 1 < n; i += 2) {
+                final int row0 = matrixOffset + i * n;
+                final int row1 = row0 + n;
+                double sum00 = 0.0, sum01 = 0.0, sum10 = 0.0, sum11 = 0.0;
+                for (int j = 0; j < n; j++) {
+                    final double m0 = matrix[row0 + j], m1 = matrix[row1 + j];
+                    final double p0 = child[offset0 + j], p1 = child[offset1 + j];
+                    sum00 += m0 * p0;
+                    sum01 += m0 * p1;
+                    sum10 += m1 * p0;
+                    sum11 += m1 * p1;
+                }
+                store(destination, offset0 + i, sum00, multiply);
+                store(destination, offset1 + i, sum01, multiply);
+                store(destination, offset0 + i + 1, sum10, multiply);
+                store(destination, offset1 + i + 1, sum11, multiply);
+            }
+            if (i < n) {
+                final int row = matrixOffset + i * n;
+                double sum0 = 0.0, sum1 = 0.0;
+                for (int j = 0; j < n; j++) {
+                    sum0 += matrix[row + j] * child[offset0 + j];
+                    sum1 += matrix[row + j] * child[offset1 + j];
+                }
+                store(destination, offset0 + i, sum0, multiply);
+                store(destination, offset1 + i, sum1, multiply);
+            }
+        }
+        if (k < end) {
+            final int offset = (l * patternCount + k) * n;
+            for (int i = 0; i < n; i++) {
+                final int row = matrixOffset + i * n;
+                double sum = 0.0;
+                for (int j = 0; j < n; j++) {
+                    sum += matrix[row + j] * child[offset + j];
+                }
+                store(destination, offset + i, sum, multiply);
+            }
+        }
+    }
+
+    private static void store(double[] destination, int index, double value, boolean multiply) {
+        destination[index] = multiply ? destination[index] * value : value;
+    }
+
+    private void childPartials4(double[] child, double[] matrix, int matrixOffset, double[] destination, int l,
+                                int start, int end, boolean multiply) {
+        final double m00 = matrix[matrixOffset], m01 = matrix[matrixOffset + 1],
+                m02 = matrix[matrixOffset + 2], m03 = matrix[matrixOffset + 3];
+        final double m10 = matrix[matrixOffset + 4], m11 = matrix[matrixOffset + 5],
+                m12 = matrix[matrixOffset + 6], m13 = matrix[matrixOffset + 7];
+        final double m20 = matrix[matrixOffset + 8], m21 = matrix[matrixOffset + 9],
+                m22 = matrix[matrixOffset + 10], m23 = matrix[matrixOffset + 11];
+        final double m30 = matrix[matrixOffset + 12], m31 = matrix[matrixOffset + 13],
+                m32 = matrix[matrixOffset + 14], m33 = matrix[matrixOffset + 15];
+
+        int offset = (l * patternCount + start) * 4;
+        for (int k = start; k < end; k++) {
+            final double p0 = child[offset], p1 = child[offset + 1], p2 = child[offset + 2], p3 = child[offset + 3];
+            final double v0 = m00 * p0 + m01 * p1 + m02 * p2 + m03 * p3;
+            final double v1 = m10 * p0 + m11 * p1 + m12 * p2 + m13 * p3;
+            final double v2 = m20 * p0 + m21 * p1 + m22 * p2 + m23 * p3;
+            final double v3 = m30 * p0 + m31 * p1 + m32 * p2 + m33 * p3;
+            if (multiply) {
+                destination[offset] *= v0;
+                destination[offset + 1] *= v1;
+                destination[offset + 2] *= v2;
+                destination[offset + 3] *= v3;
+            } else {
+                destination[offset] = v0;
+                destination[offset + 1] = v1;
+                destination[offset + 2] = v2;
+                destination[offset + 3] = v3;
+            }
+            offset += 4;
+        }
+    }
+
+    /**
+     * Rescales a block of patterns by their largest partial (writing the log factors), or by the
+     * factors already in a buffer.
+     */
+    private void scalePartials(double[] destination, int writeScaleIndex, int readScaleIndex,
+                               double[] cumulativeScale, int start, int end) {
+        if (writeScaleIndex != NONE) {
+            double[] scale = scaleFactors[writeScaleIndex];
+            for (int k = start; k < end; k++) {
+                double max = 0.0;
+                for (int l = 0; l < categoryCount; l++) {
+                    int offset = (l * patternCount + k) * stateCount;
+                    for (int i = 0; i < stateCount; i++) {
+                        if (destination[offset + i] > max) {
+                            max = destination[offset + i];
+                        }
+                    }
+                }
+                if (max == 0.0) {
+                    max = 1.0;
+                }
+                double oneOverMax = 1.0 / max;
+                for (int l = 0; l < categoryCount; l++) {
+                    int offset = (l * patternCount + k) * stateCount;
+                    for (int i = 0; i < stateCount; i++) {
+                        destination[offset + i] *= oneOverMax;
+                    }
+                }
+                double logMax = Math.log(max);
+                scale[k] = logMax;
+                if (cumulativeScale != null) {
+                    cumulativeScale[k] += logMax;
+                }
+            }
+        } else if (readScaleIndex != NONE) {
+            double[] scale = scaleFactors[readScaleIndex];
+            for (int k = start; k < end; k++) {
+                double factor = Math.exp(-scale[k]);
+                for (int l = 0; l < categoryCount; l++) {
+                    int offset = (l * patternCount + k) * stateCount;
+                    for (int i = 0; i < stateCount; i++) {
+                        destination[offset + i] *= factor;
+                    }
+                }
+            }
+        }
+    }
+
+    // allocates the buffers used by the operations (unset buffers read as zeros, as in the native
+    // library) before they are run in parallel
+    private void prepareOperations(int[] operations, int tupleSize, int operationCount) {
+        for (int op = 0; op < operationCount; op++) {
+            int x = op * tupleSize;
+            getPartialsBuffer(operations[x]);
+            if (operations[x + 1] != NONE) {
+                getScaleBuffer(operations[x + 1]);
+            }
+            if (operations[x + 2] != NONE) {
+                getScaleBuffer(operations[x + 2]);
+            }
+            getOperandBuffer(operations[x + 3]);
+            getMatrixBuffer(operations[x + 4]);
+            getOperandBuffer(operations[x + 5]);
+            getMatrixBuffer(operations[x + 6]);
+        }
+    }
+
+    /**
+     * The first (and optionally second) derivatives of the log likelihood with respect to the length
+     * of each edge, summed over the patterns. As for calculateEdgeDifferentials, the pre-order partials
+     * are those at the bottom of the edge and the derivative matrices are the differentials of the
+     * transition matrix (e.g., Q and Q^2 scaled by the category rates). The derivatives of each pattern
+     * are ratios of sums over the same partials, so the scale factors (and the root buffer, category
+     * rates and state frequencies, which are already in the partials and matrices) are not needed.
+     */
+    @Override
+    public void calculateEdgeDerivative(final int[] postBufferIndices, final int[] preBufferIndices,
+                                        int rootBufferIndex,
+                                        final int[] firstDerivativeIndices, final int[] secondDerivativeIndices,
+                                        int categoryWeightsIndex, int categoryRatesIndex, int stateFrequenciesIndex,
+                                        int[] cumulativeScaleIndices, final int count,
+                                        double[] outFirstDerivative, double[] outDiagonalSecondDerivative) {
+        final boolean second = (secondDerivativeIndices != null && outDiagonalSecondDerivative != null);
+        final double[] firstDerivatives = new double[count * patternCount];
+        final double[] secondDerivatives = (second ? new double[count * patternCount] : null);
+        final double[] weights = categoryWeights[categoryWeightsIndex];
+        for (int e = 0; e < count; e++) {
+            getOperandBuffer(postBufferIndices[e]);
+            getPartialsBuffer(preBufferIndices[e]);
+            getMatrixBuffer(firstDerivativeIndices[e]);
+            if (second) {
+                getMatrixBuffer(secondDerivativeIndices[e]);
+            }
+        }
+
+        forEachPatternBlock(new BlockTask() {
+            public void run(int start, int end) {
+                double[] numerator = new double[end - start];
+                double[] secondNumerator = new double[end - start];
+                double[] denominator = new double[end - start];
+                for (int e = 0; e < count; e++) {
+                    double[] pre = partials[preBufferIndices[e]];
+                    edgeRatios(pre, postBufferIndices[e], matrices[firstDerivativeIndices[e]], weights,
+                            start, end, numerator, denominator);
+                    if (second) {
+                        edgeRatios(pre, postBufferIndices[e], matrices[secondDerivativeIndices[e]], weights,
+                                start, end, secondNumerator, denominator);
+                    }
+                    for (int k = start; k < end; k++) {
+                        double first = numerator[k - start] / denominator[k - start];
+                        firstDerivatives[e * patternCount + k] = first;
+                        if (second) {
+                            secondDerivatives[e * patternCount + k] =
+                                    secondNumerator[k - start] / denominator[k - start] - first * first;
+                        }
+                    }
+                }
+            }
+        });
+
+        for (int e = 0; e < count; e++) {
+            double sum = 0.0;
+            double secondSum = 0.0;
+            for (int k = 0; k < patternCount; k++) {
+                sum += patternWeights[k] * firstDerivatives[e * patternCount + k];
+                if (second) {
+                    secondSum += patternWeights[k] * secondDerivatives[e * patternCount + k];
+                }
+            }
+            if (outFirstDerivative != null) {
+                outFirstDerivative[e] = sum;
+            }
+            if (second) {
+                outDiagonalSecondDerivative[e] = secondSum;
+            }
+        }
+    }
+
+    @Override
+    public void calculateEdgeDifferentials(final int[] postBufferIndices, final int[] preBufferIndices,
+                                           final int[] derivativeMatrixIndices, final int[] categoryWeightsIndices,
+                                           final int count, final double[] outDerivatives,
+                                           final double[] outSumDerivatives, final double[] outSumSquaredDerivatives) {
+        if (siteDerivatives == null || siteDerivatives.length < count * patternCount) {
+            siteDerivatives = new double[count * patternCount];
+        }
+        final double[] weights = categoryWeights[categoryWeightsIndices[0]];
+        for (int e = 0; e < count; e++) {
+            getOperandBuffer(postBufferIndices[e]);
+            getPartialsBuffer(preBufferIndices[e]);
+            getMatrixBuffer(derivativeMatrixIndices[e]);
+        }
+
+        forEachPatternBlock(new BlockTask() {
+            public void run(int start, int end) {
+                double[] numerator = new double[end - start];
+                double[] denominator = new double[end - start];
+                for (int e = 0; e < count; e++) {
+                    edgeRatios(partials[preBufferIndices[e]], postBufferIndices[e],
+                            matrices[derivativeMatrixIndices[e]], weights, start, end, numerator, denominator);
+                    for (int k = start; k < end; k++) {
+                        siteDerivatives[e * patternCount + k] = numerator[k - start] / denominator[k - start];
+                    }
+                }
+            }
+        });
+
+        for (int e = 0; e < count; e++) {
+            double sum = 0.0;
+            double sumSquared = 0.0;
+            for (int k = 0; k < patternCount; k++) {
+                double derivative = siteDerivatives[e * patternCount + k];
+                sum += patternWeights[k] * derivative;
+                sumSquared += patternWeights[k] * derivative * derivative;
+            }
+            if (outSumDerivatives != null) {
+                outSumDerivatives[e] = sum;
+            }
+            if (outSumSquaredDerivatives != null) {
+                outSumSquaredDerivatives[e] = sumSquared;
+            }
+        }
+        if (outDerivatives != null) {
+            System.arraycopy(siteDerivatives, 0, outDerivatives, 0, count * patternCount);
+        }
+    }
+
+    /**
+     * For a block of patterns, the category-weighted sums pre^T M post (the numerators) and pre^T post
+     * (the denominators) for the edge above the post-order partials (or tip states).
+     */
+    private void edgeRatios(double[] pre, int postIndex, double[] matrix, double[] weights, int start, int end,
+                            double[] numerator, double[] denominator) {
+        final int[] states = (postIndex < tipStates.length ? tipStates[postIndex] : null);
+        final double[] post = partials[postIndex];
+
+        for (int k = start; k < end; k++) {
+            numerator[k - start] = 0.0;
+            denominator[k - start] = 0.0;
+        }
+
+        for (int l = 0; l < categoryCount; l++) {
+            double weight = weights[l];
+            int matrixOffset = l * stateCount * stateCount;
+            for (int k = start; k < end; k++) {
+                int offset = (l * patternCount + k) * stateCount;
+                double num = 0.0;
+                double den = 0.0;
+                if (states != null) {
+                    int state = states[k];
+                    for (int i = 0; i < stateCount; i++) {
+                        int row = matrixOffset + i * stateCount;
+                        if (state < stateCount) {
+                            num += pre[offset + i] * matrix[row + state];
+                        } else {
+                            double sum = 0.0;
+                            for (int j = 0; j < stateCount; j++) {
+                                sum += matrix[row + j];
+                            }
+                            num += pre[offset + i] * sum;
+                            den += pre[offset + i];
+                        }
+                    }
+                    if (state < stateCount) {
+                        den = pre[offset + state];
+                    }
+                } else {
+                    for (int i = 0; i < stateCount; i++) {
+                        int row = matrixOffset + i * stateCount;
+                        double sum = 0.0;
+                        for (int j = 0; j < stateCount; j++) {
+                            sum += matrix[row + j] * post[offset + j];
+                        }
+                        num += pre[offset + i] * sum;
+                        den += pre[offset + i] * post[offset + i];
+                    }
+                }
+                numerator[k - start] += weight * num;
+                denominator[k - start] += weight * den;
+            }
+        }
+    }
+
+    @Override
+    public void accumulateScaleFactors(int[] scaleIndices, int count, int cumulativeScaleIndex) {
+        addScaleFactors(scaleIndices, count, cumulativeScaleIndex, 1.0, 0, patternCount);
+    }
+
+    @Override
+    public void accumulateScaleFactorsByPartition(int[] scaleIndices, int count, int cumulativeScaleIndex, int partitionIndex) {
+        checkPartitions();
+        addScaleFactors(scaleIndices, count, cumulativeScaleIndex, 1.0,
+                partitionStarts[partitionIndex], partitionEnds[partitionIndex]);
+    }
+
+    @Override
+    public void removeScaleFactors(int[] scaleIndices, int count, int cumulativeScaleIndex) {
+        addScaleFactors(scaleIndices, count, cumulativeScaleIndex, -1.0, 0, patternCount);
+    }
+
+    @Override
+    public void removeScaleFactorsByPartition(int[] scaleIndices, int count, int cumulativeScaleIndex, int partitionIndex) {
+        checkPartitions();
+        addScaleFactors(scaleIndices, count, cumulativeScaleIndex, -1.0,
+                partitionStarts[partitionIndex], partitionEnds[partitionIndex]);
+    }
+
+    private void addScaleFactors(int[] scaleIndices, int count, int cumulativeScaleIndex, double sign,
+                                 int start, int end) {
+        double[] cumulative = getScaleBuffer(cumulativeScaleIndex);
+        for (int i = 0; i < count; i++) {
+            double[] scale = getScaleBuffer(scaleIndices[i]);
+            for (int k = start; k < end; k++) {
+                cumulative[k] += sign * scale[k];
+            }
+        }
+    }
+
+    @Override
+    public void copyScaleFactors(int destScalingIndex, int srcScalingIndex) {
+        System.arraycopy(getScaleBuffer(srcScalingIndex), 0, getScaleBuffer(destScalingIndex), 0, patternCount);
+    }
+
+    @Override
+    public void resetScaleFactors(int cumulativeScaleIndex) {
+        Arrays.fill(getScaleBuffer(cumulativeScaleIndex), 0.0);
+    }
+
+    @Override
+    public void resetScaleFactorsByPartition(int cumulativeScaleIndex, int partitionIndex) {
+        checkPartitions();
+        Arrays.fill(getScaleBuffer(cumulativeScaleIndex), partitionStarts[partitionIndex], partitionEnds[partitionIndex], 0.0);
+    }
+
+    @Override
+    public void calculateRootLogLikelihoods(final int[] bufferIndices, final int[] categoryWeightsIndices,
+                                           final int[] stateFrequenciesIndices, final int[] cumulativeScaleIndices,
+                                           final int count, double[] outSumLogLikelihood) {
+
+        forEachPatternBlock(new BlockTask() {
+            public void run(int start, int end) {
+                rootLogLikelihoods(bufferIndices, categoryWeightsIndices, stateFrequenciesIndices,
+                        cumulativeScaleIndices, 0, count, 1, start, end);
+            }
+        });
+
+        outSumLogLikelihood[0] = sumSiteLogLikelihoods(0, patternCount);
+    }
+
+    /**
+     * The buffers, category weights, state frequencies and scale buffers are given for each of the
+     * partitions in partitionIndices. With more than one subset (count), those of subset s follow
+     * those of subset s - 1.
+     */
+    @Override
+    public void calculateRootLogLikelihoodsByPartition(final int[] bufferIndices, final int[] categoryWeightsIndices,
+                                                       final int[] stateFrequenciesIndices,
+                                                       final int[] cumulativeScaleIndices,
+                                                       final int[] partitionIndices, final int partitionCount,
+                                                       final int count,
+                                                       double[] outSumLogLikelihoodByPartition,
+                                                       double[] outSumLogLikelihood) {
+        checkPartitions();
+
+        forEachPatternBlock(new BlockTask() {
+            public void run(int start, int end) {
+                for (int p = 0; p < partitionCount; p++) {
+                    int partition = partitionIndices[p];
+                    int from = Math.max(start, partitionStarts[partition]);
+                    int to = Math.min(end, partitionEnds[partition]);
+                    if (from < to) {
+                        rootLogLikelihoods(bufferIndices, categoryWeightsIndices, stateFrequenciesIndices,
+                                cumulativeScaleIndices, p, count, partitionCount, from, to);
+                    }
+                }
+            }
+        });
+
+        double sumLogLikelihood = 0.0;
+        for (int p = 0; p < partitionCount; p++) {
+            int partition = partitionIndices[p];
+            double logLikelihood = sumSiteLogLikelihoods(partitionStarts[partition], partitionEnds[partition]);
+            outSumLogLikelihoodByPartition[p] = logLikelihood;
+            sumLogLikelihood += logLikelihood;
+        }
+        outSumLogLikelihood[0] = sumLogLikelihood;
+    }
+
+    /**
+     * The site log likelihoods of a block of patterns, for subsets first, first + stride, ... (a mixture
+     * over the subsets if there is more than one).
+     */
+    private void rootLogLikelihoods(int[] bufferIndices, int[] categoryWeightsIndices, int[] stateFrequenciesIndices,
+                                    int[] cumulativeScaleIndices, int first, int count, int stride,
+                                    int start, int end) {
+        double[] subsetLogLikelihoods = (count > 1 ? new double[count] : null);
+        for (int k = start; k < end; k++) {
+            double max = Double.NEGATIVE_INFINITY;
+            double logLikelihood = 0.0;
+
+            for (int s = 0; s < count; s++) {
+                int index = first + s * stride;
+                double[] rootPartials = partials[bufferIndices[index]];
+                double[] weights = categoryWeights[categoryWeightsIndices[index]];
+                double[] frequencies = stateFrequencies[stateFrequenciesIndices[index]];
+
+                double sum = 0.0;
+                for (int l = 0; l < categoryCount; l++) {
+                    int offset = (l * patternCount + k) * stateCount;
+                    double categorySum = 0.0;
+                    for (int i = 0; i < stateCount; i++) {
+                        categorySum += frequencies[i] * rootPartials[offset + i];
+                    }
+                    sum += weights[l] * categorySum;
+                }
+                logLikelihood = Math.log(sum);
+                if (cumulativeScaleIndices != null && cumulativeScaleIndices[index] != NONE) {
+                    logLikelihood += scaleFactors[cumulativeScaleIndices[index]][k];
+                }
+                if (count > 1) {
+                    subsetLogLikelihoods[s] = logLikelihood;
+                    max = Math.max(max, logLikelihood);
+                }
+            }
+
+            if (count > 1) {
+                double sum = 0.0;
+                for (int s = 0; s < count; s++) {
+                    sum += Math.exp(subsetLogLikelihoods[s] - max);
+                }
+                logLikelihood = max + Math.log(sum);
+            }
+            siteLogLikelihoods[k] = logLikelihood;
+        }
+    }
+
+    private double sumSiteLogLikelihoods(int start, int end) {
+        double sumLogLikelihood = 0.0;
+        for (int k = start; k < end; k++) {
+            sumLogLikelihood += patternWeights[k] * siteLogLikelihoods[k];
+        }
+        return sumLogLikelihood;
+    }
+
+    @Override
+    public void getSiteLogLikelihoods(double[] outLogLikelihoods) {
+        System.arraycopy(siteLogLikelihoods, 0, outLogLikelihoods, 0, patternCount);
+    }
+
+    @Override
+    public InstanceDetails getDetails() {
+        InstanceDetails details = new InstanceDetails();
+        details.setResourceNumber(RESOURCE_NUMBER);
+        details.setResourceName(RESOURCE_NAME);
+        details.setImplementationName(getClass().getSimpleName() + " (" + threadCount + " thread" +
+                (threadCount > 1 ? "s" : "") + ")");
+        details.setFlags(flags);
+        return details;
+    }
+
+    /**
+     * @return the flags of this implementation
+     */
+    public long getFlags() {
+        return flags;
+    }
+
+    private void checkPartitions() {
+        if (partitionStarts == null) {
+            throw new IllegalStateException("setPatternPartitions must be called before the partition calls");
+        }
+    }
+
+    private double[] getPartialsBuffer(int index) {
+        if (index < 0 || index >= partialsBufferCount) {
+            throw new IllegalArgumentException("Partials buffer index out of range: " + index);
+        }
+        if (partials[index] == null) {
+            partials[index] = new double[partialsSize];
+        }
+        return partials[index];
+    }
+
+    // a partials buffer to be read, unless the index holds tip states
+    private void getOperandBuffer(int index) {
+        if (index >= tipStates.length || tipStates[index] == null) {
+            getPartialsBuffer(index);
+        }
+    }
+
+    private double[] getMatrixBuffer(int index) {
+        if (index < 0 || index >= matrixBufferCount) {
+            throw new IllegalArgumentException("Matrix buffer index out of range: " + index);
+        }
+        if (matrices[index] == null) {
+            matrices[index] = new double[matrixSize];
+        }
+        return matrices[index];
+    }
+
+    private double[] getScaleBuffer(int index) {
+        if (index < 0 || index >= scaleBufferCount) {
+            throw new IllegalArgumentException("Scale buffer index out of range: " + index);
+        }
+        if (scaleFactors[index] == null) {
+            scaleFactors[index] = new double[patternCount];
+        }
+        return scaleFactors[index];
+    }
+
+    private interface BlockTask {
+        void run(int start, int end);
+    }
+
+    private void forEachPatternBlock(BlockTask task) {
+        int tasks = Math.min(threadCount, Math.max(patternCount / MIN_PATTERNS_PER_THREAD, 1));
+        forEachBlock(patternCount, tasks, task);
+    }
+
+    // splits [0, size) into contiguous blocks, one for each task, and runs them on the shared pool
+    private static void forEachBlock(final int size, final int tasks, final BlockTask task) {
+        if (tasks <= 1) {
+            task.run(0, size);
+            return;
+        }
+
+        SharedThreadPool.getPool().invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                List<RecursiveAction> actions = new ArrayList<RecursiveAction>();
+                for (int t = 0; t < tasks; t++) {
+                    final int start = (int) ((long) size * t / tasks);
+                    final int end = (int) ((long) size * (t + 1) / tasks);
+                    actions.add(new RecursiveAction() {
+                        @Override
+                        protected void compute() {
+                            task.run(start, end);
+                        }
+                    });
+                }
+                invokeAll(actions);
+            }
+        });
+    }
+}
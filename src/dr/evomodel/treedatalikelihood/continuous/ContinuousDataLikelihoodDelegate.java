@@ -57,6 +57,7 @@ import dr.math.matrixAlgebra.WrappedMatrix;
 import dr.util.Citable;
 import dr.util.Citation;
 import dr.util.CommonCitations;
+import dr.util.SharedThreadPool;
 
 import java.util.*;
 import java.util.logging.Logger;
@@ -247,6 +248,10 @@ public class ContinuousDataLikelihoodDelegate extends AbstractModel implements D
                 throw new RuntimeException("Not yet implemented");
             }
 
+            if (LEVEL_PARALLEL && base instanceof ContinuousDiffusionIntegrator.Basic) {
+                ((ContinuousDiffusionIntegrator.Basic) base).setThreadCount(SharedThreadPool.getThreadCount());
+            }
+
             cdi = base;
             System.err.println("Base CDI is " + cdi.getClass().getCanonicalName());
             this.dimProcess = cdi.getDimProcess();
@@ -953,6 +958,13 @@ public class ContinuousDataLikelihoodDelegate extends AbstractModel implements D
 
     private final ContinuousDiffusionIntegrator cdi;
 
+    /**
+     * If true then the post-order partials at each level of the tree are updated concurrently
+     * on the shared thread pool. This can be switched on with the system property
+     * cdi.level.parallel=true.
+     */
+    private static final boolean LEVEL_PARALLEL = Boolean.getBoolean("cdi.level.parallel");
+
     private boolean updateDiffusionModel;
 
     private final Deque<Integer> updateTipData = new ArrayDeque<Integer>();
@@ -26,11 +26,15 @@
 package dr.evomodel.treedatalikelihood.continuous.cdi;
 
 import dr.math.matrixAlgebra.WrappedVector;
+import dr.util.SharedThreadPool;
 import dr.xml.Reportable;
 import org.ejml.data.DenseMatrix64F;
 import org.ejml.ops.CommonOps;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.RecursiveAction;
 
 import static dr.math.matrixAlgebra.missingData.MissingOps.wrap;
 
@@ -136,7 +140,7 @@ public interface ContinuousDiffusionIntegrator extends Reportable {
 
 //    void getVariancePreOrderDerivative(BranchSufficientStatistics statistics, DenseMatrix64F gradient);
 
-    class Basic implements ContinuousDiffusionIntegrator {
+    class Basic implements ContinuousDiffusionIntegrator, Cloneable {
 
 //        private int instance = -1;
         private InstanceDetails details = new InstanceDetails();
@@ -202,9 +206,49 @@ public interface ContinuousDiffusionIntegrator extends Reportable {
                 System.err.println("dimPartial: " + dimPartial);
             }
 
+            this.firstTrait = 0;
+            this.lastTrait = numTraits;
+
             allocateStorage();
         }
 
+        /**
+         * Sets the number of threads used by updatePostOrderPartials(). With more than one thread
+         * the partials are updated a level at a time (all the partials at a level only depend on
+         * those at lower levels) and the updates at each level, split into blocks of traits when
+         * there are fewer updates than threads, are run concurrently on the shared thread pool.
+         *
+         * @param threadCount the number of threads
+         */
+        public void setThreadCount(int threadCount) {
+            if (threadCount > 1) {
+                workers = new Basic[threadCount];
+                for (int i = 0; i < threadCount; ++i) {
+                    workers[i] = createWorker();
+                }
+                bufferLevels = new int[bufferCount];
+            } else {
+                workers = null;
+                bufferLevels = null;
+            }
+        }
+
+        /**
+         * @return a copy of this integrator that shares its storage but has its own temporary
+         * storage so that it can update partials at the same time as this integrator. Subclasses
+         * with temporary storage must override this to allocate it.
+         */
+        Basic createWorker() {
+            try {
+                Basic worker = (Basic) clone();
+                worker.workers = null;
+                worker.bufferLevels = null;
+                return worker;
+            } catch (CloneNotSupportedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
 //        @Override
 //        public int getPartialBufferCount() { return  bufferCount; }
 //
@@ -552,6 +596,12 @@ public interface ContinuousDiffusionIntegrator extends Reportable {
 
             updatePrecisionOffsetAndDeterminant(precisionIndex);
 
+            // outer-products are accumulated across updates so can't be computed concurrently
+            if (workers != null && !incrementOuterProducts && operationCount > 1) {
+                updatePostOrderPartialsByLevel(operations, operationCount, computeRemainders);
+                return;
+            }
+
             int offset = 0;
             for (int op = 0; op < operationCount; ++op) {
 
@@ -578,6 +628,111 @@ public interface ContinuousDiffusionIntegrator extends Reportable {
             }
         }
 
+        private void updatePostOrderPartialsByLevel(final int[] operations, final int operationCount,
+                                                    final boolean computeRemainders) {
+
+            if (levelOrder == null || levelOrder.length < operationCount) {
+                operationLevels = new int[operationCount];
+                levelOrder = new int[operationCount];
+                levelStarts = new int[operationCount + 2];
+            }
+
+            // The level of a partial is one more than the highest level of its two children (tips and
+            // partials that are not being updated are level 0).
+            int levelCount = 0;
+            int offset = 0;
+            for (int op = 0; op < operationCount; ++op) {
+                final int level = 1 + Math.max(bufferLevels[operations[offset + 1]],
+                        bufferLevels[operations[offset + 3]]);
+                bufferLevels[operations[offset]] = level;
+                operationLevels[op] = level;
+                levelCount = Math.max(levelCount, level);
+                offset += ContinuousDiffusionIntegrator.OPERATION_TUPLE_SIZE;
+            }
+
+            offset = 0;
+            for (int op = 0; op < operationCount; ++op) {
+                bufferLevels[operations[offset]] = 0;
+                offset += ContinuousDiffusionIntegrator.OPERATION_TUPLE_SIZE;
+            }
+
+            // Sort the operations by level keeping the post-order within each level
+            Arrays.fill(levelStarts, 0, levelCount + 2, 0);
+            for (int op = 0; op < operationCount; ++op) {
+                ++levelStarts[operationLevels[op]];
+            }
+            for (int level = 1; level <= levelCount; ++level) {
+                levelStarts[level] += levelStarts[level - 1];
+            }
+            for (int op = operationCount - 1; op >= 0; --op) {
+                levelOrder[--levelStarts[operationLevels[op]]] = op;
+            }
+            levelStarts[levelCount + 1] = operationCount;
+
+            for (int level = 1; level <= levelCount; ++level) {
+                updateLevel(operations, levelStarts[level], levelStarts[level + 1], computeRemainders);
+            }
+        }
+
+        private void updateLevel(final int[] operations, final int start, final int end,
+                                 final boolean computeRemainders) {
+
+            final int operationCount = end - start;
+            final int threadCount = workers.length;
+
+            final int traitBlockCount = operationCount >= threadCount ? 1 :
+                    Math.min(numTraits, (threadCount + operationCount - 1) / operationCount);
+            final int unitCount = operationCount * traitBlockCount;
+            final int taskCount = Math.min(threadCount, unitCount);
+
+            if (taskCount == 1) {
+                updatePartial(operations, levelOrder[start], computeRemainders);
+                return;
+            }
+
+            for (Basic worker : workers) {
+                worker.precisionOffset = precisionOffset;
+                worker.precisionLogDet = precisionLogDet;
+            }
+
+            SharedThreadPool.getPool().invoke(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+                    for (int task = 0; task < taskCount; ++task) {
+                        final Basic worker = workers[task];
+                        final int firstUnit = task;
+                        tasks.add(new RecursiveAction() {
+                            @Override
+                            protected void compute() {
+                                for (int unit = firstUnit; unit < unitCount; unit += taskCount) {
+                                    final int block = unit % traitBlockCount;
+                                    worker.firstTrait = block * numTraits / traitBlockCount;
+                                    worker.lastTrait = (block + 1) * numTraits / traitBlockCount;
+                                    worker.updatePartial(operations, levelOrder[start + unit / traitBlockCount],
+                                            computeRemainders);
+                                }
+                            }
+                        });
+                    }
+                    invokeAll(tasks);
+                }
+            });
+        }
+
+        private void updatePartial(final int[] operations, final int op, final boolean computeRemainders) {
+            final int offset = op * ContinuousDiffusionIntegrator.OPERATION_TUPLE_SIZE;
+            updatePartial(
+                    operations[offset    ],
+                    operations[offset + 1],
+                    operations[offset + 2],
+                    operations[offset + 3],
+                    operations[offset + 4],
+                    computeRemainders,
+                    false
+            );
+        }
+
         @Override
         public void updateBrownianDiffusionMatrices(int precisionIndex, final int[] probabilityIndices,
                                                     final double[] edgeLengths, final double[] driftRates,
@@ -651,6 +806,17 @@ public interface ContinuousDiffusionIntegrator extends Reportable {
         int precisionOffset;
         double precisionLogDet;
 
+        // The range of traits updated by updatePartial()
+        int firstTrait;
+        int lastTrait;
+
+        // Used to update the partials a level at a time
+        private Basic[] workers = null;
+        private int[] bufferLevels = null;
+        private int[] operationLevels = null;
+        private int[] levelOrder = null;
+        private int[] levelStarts = null;
+
         static final boolean INLINE = true;
 
         @Override
@@ -804,9 +970,9 @@ public interface ContinuousDiffusionIntegrator extends Reportable {
                 final boolean incrementOuterProducts
         ) {
             // Determine buffer offsets
-            int kbo = dimPartial * kBuffer;
-            int ibo = dimPartial * iBuffer;
-            int jbo = dimPartial * jBuffer;
+            int kbo = dimPartial * kBuffer + dimPartialForTrait * firstTrait;
+            int ibo = dimPartial * iBuffer + dimPartialForTrait * firstTrait;
+            int jbo = dimPartial * jBuffer + dimPartialForTrait * firstTrait;
 
             // Determine matrix offsets
             final int imo = dimMatrix * iMatrix;
@@ -821,8 +987,8 @@ public interface ContinuousDiffusionIntegrator extends Reportable {
                 System.err.println("\tvar : " + branchLengths[imo]);
             }
 
-            // For each trait // TODO in parallel
-            for (int trait = 0; trait < numTraits; ++trait) {
+            // For each trait
+            for (int trait = firstTrait; trait < lastTrait; ++trait) {
 
                 // Increase variance along the branches i -> k and j -> k
 
@@ -68,6 +68,10 @@ public class MultivariateIntegrator extends ContinuousDiffusionIntegrator.Basic
     private void allocateStorage() {
         inverseDiffusions = new double[dimProcess * dimProcess * diffusionCount];
 
+        allocateTemporaryStorage();
+    }
+
+    private void allocateTemporaryStorage() {
         vector0 = new double[dimTrait];
         matrix0 = new DenseMatrix64F(dimTrait, dimTrait);
         matrix1 = new DenseMatrix64F(dimTrait, dimTrait);
@@ -78,6 +82,13 @@ public class MultivariateIntegrator extends ContinuousDiffusionIntegrator.Basic
         matrix6 = new DenseMatrix64F(dimTrait, dimTrait);
     }
 
+    @Override
+    Basic createWorker() {
+        MultivariateIntegrator worker = (MultivariateIntegrator) super.createWorker();
+        worker.allocateTemporaryStorage();
+        return worker;
+    }
+
     @Override
     public void setDiffusionPrecision(int precisionIndex, final double[] matrix, double logDeterminant) {
         super.setDiffusionPrecision(precisionIndex, matrix, logDeterminant);
@@ -279,9 +290,9 @@ public class MultivariateIntegrator extends ContinuousDiffusionIntegrator.Basic
         }
 
         // Determine buffer offsets
-        int kbo = dimPartial * kBuffer;
-        int ibo = dimPartial * iBuffer;
-        int jbo = dimPartial * jBuffer;
+        int kbo = dimPartial * kBuffer + dimPartialForTrait * firstTrait;
+        int ibo = dimPartial * iBuffer + dimPartialForTrait * firstTrait;
+        int jbo = dimPartial * jBuffer + dimPartialForTrait * firstTrait;
 
         // Determine matrix offsets
         final int imo = dimMatrix * iMatrix;
@@ -299,8 +310,8 @@ public class MultivariateIntegrator extends ContinuousDiffusionIntegrator.Basic
             System.err.println("precisionOffset = " + precisionOffset);
         }
 
-        // For each trait // TODO in parallel
-        for (int trait = 0; trait < numTraits; ++trait) {
+        // For each trait
+        for (int trait = firstTrait; trait < lastTrait; ++trait) {
 
             // Layout, offset, dim
             // trait, 0, dT
@@ -85,12 +85,24 @@ public class SafeMultivariateActualizedWithDriftIntegrator extends SafeMultivari
 
         actualizations = new double[dimTrait * dimTrait * bufferCount];
 
+        allocateTemporaryStorage();
+    }
+
+    private void allocateTemporaryStorage() {
         matrixQdiPip = new DenseMatrix64F(dimTrait, dimTrait);
         matrixQdjPjp = new DenseMatrix64F(dimTrait, dimTrait);
 
         matrixNiacc = new DenseMatrix64F(dimTrait, 1);
     }
 
+    @Override
+    Basic createWorker() {
+        SafeMultivariateActualizedWithDriftIntegrator worker =
+                (SafeMultivariateActualizedWithDriftIntegrator) super.createWorker();
+        worker.allocateTemporaryStorage();
+        return worker;
+    }
+
     ///////////////////////////////////////////////////////////////////////////
     /// Setting variances, displacement and actualization vectors
     ///////////////////////////////////////////////////////////////////////////
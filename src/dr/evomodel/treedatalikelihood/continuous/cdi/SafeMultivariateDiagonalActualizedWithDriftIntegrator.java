@@ -75,10 +75,22 @@ public class SafeMultivariateDiagonalActualizedWithDriftIntegrator extends SafeM
         diagonal1mActualizations = new double[dimTrait * bufferCount];
         stationaryVariances = new double[dimProcess * dimProcess * diffusionCount];
 
+        allocateTemporaryStorage();
+    }
+
+    private void allocateTemporaryStorage() {
         vectorDiagQdi = new double[dimTrait];
         vectorDiagQdj = new double[dimTrait];
     }
 
+    @Override
+    Basic createWorker() {
+        SafeMultivariateDiagonalActualizedWithDriftIntegrator worker =
+                (SafeMultivariateDiagonalActualizedWithDriftIntegrator) super.createWorker();
+        worker.allocateTemporaryStorage();
+        return worker;
+    }
+
     ///////////////////////////////////////////////////////////////////////////
     /// Setting variances, displacement and actualization vectors
     ///////////////////////////////////////////////////////////////////////////
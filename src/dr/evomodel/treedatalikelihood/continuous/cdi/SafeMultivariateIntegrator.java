@@ -33,11 +33,22 @@ public class SafeMultivariateIntegrator extends MultivariateIntegrator {
         precisions = new double[dimTrait * dimTrait * bufferCount];
         variances = new double[dimTrait * dimTrait * bufferCount];
 
+        allocateTemporaryStorage();
+    }
+
+    private void allocateTemporaryStorage() {
         vectorDelta = new double[dimTrait];
         vectorPMk = new double[dimTrait];
         matrixQjPjp = new DenseMatrix64F(dimTrait, dimTrait);
     }
 
+    @Override
+    Basic createWorker() {
+        SafeMultivariateIntegrator worker = (SafeMultivariateIntegrator) super.createWorker();
+        worker.allocateTemporaryStorage();
+        return worker;
+    }
+
     private static final boolean TIMING = false;
 
     @Override
@@ -320,9 +331,9 @@ public class SafeMultivariateIntegrator extends MultivariateIntegrator {
         }
 
         // Determine buffer offsets
-        int kbo = dimPartial * kBuffer;
-        int ibo = dimPartial * iBuffer;
-        int jbo = dimPartial * jBuffer;
+        int kbo = dimPartial * kBuffer + dimPartialForTrait * firstTrait;
+        int ibo = dimPartial * iBuffer + dimPartialForTrait * firstTrait;
+        int jbo = dimPartial * jBuffer + dimPartialForTrait * firstTrait;
 
         // Determine matrix offsets
         final int imo = dimTrait * dimTrait * iMatrix;
@@ -346,8 +357,8 @@ public class SafeMultivariateIntegrator extends MultivariateIntegrator {
             System.err.println("\tVdj: " + Vdj);
         }
 
-        // For each trait // TODO in parallel
-        for (int trait = 0; trait < numTraits; ++trait) {
+        // For each trait
+        for (int trait = firstTrait; trait < lastTrait; ++trait) {
 
             // Layout, offset, dim
             // trait, 0, dT
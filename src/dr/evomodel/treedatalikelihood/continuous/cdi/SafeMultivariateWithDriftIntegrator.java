@@ -62,10 +62,22 @@ public class SafeMultivariateWithDriftIntegrator extends SafeMultivariateIntegra
     private void allocateStorage() {
 
         displacements = new double[dimTrait * bufferCount];
+
+        allocateTemporaryStorage();
+    }
+
+    private void allocateTemporaryStorage() {
         vectorDispi = new double[dimTrait];
         vectorDispj = new double[dimTrait];
     }
 
+    @Override
+    Basic createWorker() {
+        SafeMultivariateWithDriftIntegrator worker = (SafeMultivariateWithDriftIntegrator) super.createWorker();
+        worker.allocateTemporaryStorage();
+        return worker;
+    }
+
     ///////////////////////////////////////////////////////////////////////////
     /// Setting variances, displacement and actualization vectors
     ///////////////////////////////////////////////////////////////////////////
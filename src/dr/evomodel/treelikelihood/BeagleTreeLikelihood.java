@@ -33,6 +33,7 @@ import dr.evomodel.branchmodel.BranchModel;
 //import dr.evomodel.branchmodel.HomogeneousBranchModel;
 import dr.evomodel.substmodel.MarkovModulatedSubstitutionModel;
 import dr.evomodel.tree.TreeChangedEvent;
+import dr.evomodel.treedatalikelihood.BeagleFunctionality;
 import dr.evomodel.treedatalikelihood.BufferIndexHelper;
 import dr.evomodelxml.treelikelihood.BeagleTreeLikelihoodParser;
 //import dr.evomodel.siteratemodel.GammaSiteRateModel;
@@ -391,7 +392,7 @@ public class BeagleTreeLikelihood extends AbstractSinglePartitionTreeLikelihood
 
             instanceCount++;
 
-            beagle = BeagleFactory.loadBeagleInstance(
+            beagle = BeagleFunctionality.loadBeagleInstance(
                     tipCount,
                     partialBufferHelper.getBufferCount(),
                     compactPartialsCount,
@@ -410,7 +411,7 @@ public class BeagleTreeLikelihood extends AbstractSinglePartitionTreeLikelihood
             ResourceDetails resourceDetails = null;
 
             if (instanceDetails != null) {
-                resourceDetails = BeagleFactory.getResourceDetails(instanceDetails.getResourceNumber());
+                resourceDetails = BeagleFunctionality.getResourceDetails(beagle, instanceDetails.getResourceNumber());
                 if (resourceDetails != null) {
                     StringBuilder sb = new StringBuilder("  Using BEAGLE resource ");
                     sb.append(resourceDetails.getNumber()).append(": ");
@@ -432,7 +433,7 @@ public class BeagleTreeLikelihood extends AbstractSinglePartitionTreeLikelihood
                 logger.info("  No external BEAGLE resources available, or resource list/requirements not met, using Java implementation");
             }
 
-            if (IS_THREAD_COUNT_COMPATIBLE() && threadCount > 1) {
+            if (CAN_SET_THREAD_COUNT(beagle) && threadCount > 1) {
                 beagle.setCPUThreadCount(threadCount);
             }
 
@@ -0,0 +1,184 @@
+/*
+ * CachedGradient.java
+ *
+ * Copyright (c) 2002-2020 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.inference.hmc;
+
+import dr.inference.model.Likelihood;
+import dr.inference.model.Model;
+import dr.inference.model.Parameter;
+import dr.inference.model.Variable;
+import dr.xml.Reportable;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers the gradient (and Hessian) of another provider until the state it depends on changes.
+ *
+ * The state is the models of the gradient's likelihoods, all their sub-models and variables, and the
+ * parameter itself. Each keeps a state version that goes up on every change event and restore, so
+ * the sum of them all only stays the same while nothing has changed. Copies of the remembered arrays
+ * are returned as some callers add into the arrays they are given.
+ *
+ * @author Andrew Rambaut
+ * @author Marc A. Suchard
+ */
+public class CachedGradient implements GradientWrtParameterProvider, HessianWrtParameterProvider, Reportable {
+
+    private final GradientWrtParameterProvider gradient;
+
+    private final Model[] models;
+    private final Variable<?>[] variables;
+
+    public CachedGradient(GradientWrtParameterProvider gradient) {
+        this.gradient = gradient;
+
+        Map<Object, Boolean> visited = new IdentityHashMap<Object, Boolean>();
+        List<Model> modelList = new ArrayList<Model>();
+        List<Variable<?>> variableList = new ArrayList<Variable<?>>();
+
+        for (Likelihood likelihood : gradient.getLikelihood().getLikelihoodSet()) {
+            Model model = likelihood.getModel();
+            if (model != null) {
+                collect(model, visited, modelList, variableList);
+            }
+        }
+        Parameter parameter = gradient.getParameter();
+        if (visited.put(parameter, Boolean.TRUE) == null) {
+            variableList.add(parameter);
+        }
+
+        this.models = modelList.toArray(new Model[modelList.size()]);
+        this.variables = variableList.toArray(new Variable<?>[variableList.size()]);
+    }
+
+    private static void collect(Model model, Map<Object, Boolean> visited,
+                                List<Model> modelList, List<Variable<?>> variableList) {
+        if (visited.put(model, Boolean.TRUE) != null) {
+            return;
+        }
+        modelList.add(model);
+
+        for (int i = 0; i < model.getVariableCount(); i++) {
+            Variable<?> variable = model.getVariable(i);
+            if (visited.put(variable, Boolean.TRUE) == null) {
+                variableList.add(variable);
+            }
+        }
+        for (int i = 0; i < model.getModelCount(); i++) {
+            collect(model.getModel(i), visited, modelList, variableList);
+        }
+    }
+
+    private long getStateVersion() {
+        long version = 0;
+        for (Model model : models) {
+            version += model.getStateVersion();
+        }
+        for (Variable<?> variable : variables) {
+            version += variable.getStateVersion();
+        }
+        return version;
+    }
+
+    @Override
+    public Likelihood getLikelihood() {
+        return gradient.getLikelihood();
+    }
+
+    @Override
+    public Parameter getParameter() {
+        return gradient.getParameter();
+    }
+
+    @Override
+    public int getDimension() {
+        return gradient.getDimension();
+    }
+
+    @Override
+    public double[] getGradientLogDensity() {
+        long version = getStateVersion();
+        if (cachedGradient == null || version != gradientVersion) {
+            cachedGradient = gradient.getGradientLogDensity().clone();
+            gradientVersion = version;
+        }
+        return cachedGradient.clone();
+    }
+
+    @Override
+    public double[] getDiagonalHessianLogDensity() {
+        long version = getStateVersion();
+        if (cachedDiagonalHessian == null || version != diagonalHessianVersion) {
+            cachedDiagonalHessian = getHessianProvider().getDiagonalHessianLogDensity().clone();
+            diagonalHessianVersion = version;
+        }
+        return cachedDiagonalHessian.clone();
+    }
+
+    @Override
+    public double[][] getHessianLogDensity() {
+        long version = getStateVersion();
+        if (cachedHessian == null || version != hessianVersion) {
+            cachedHessian = copy(getHessianProvider().getHessianLogDensity());
+            hessianVersion = version;
+        }
+        return copy(cachedHessian);
+    }
+
+    private HessianWrtParameterProvider getHessianProvider() {
+        if (!(gradient instanceof HessianWrtParameterProvider)) {
+            throw new RuntimeException("The cached gradient does not provide a Hessian");
+        }
+        return (HessianWrtParameterProvider) gradient;
+    }
+
+    private static double[][] copy(double[][] matrix) {
+        double[][] result = new double[matrix.length][];
+        for (int i = 0; i < matrix.length; i++) {
+            result[i] = matrix[i].clone();
+        }
+        return result;
+    }
+
+    @Override
+    public String getReport() {
+        return "cachedGradient." + getParameter().getParameterName() + "\n" +
+                GradientWrtParameterProvider.getReportAndCheckForError(this,
+                        Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY,
+                        GradientWrtParameterProvider.TOLERANCE);
+    }
+
+    private double[] cachedGradient = null;
+    private long gradientVersion;
+
+    private double[] cachedDiagonalHessian = null;
+    private long diagonalHessianVersion;
+
+    private double[][] cachedHessian = null;
+    private long hessianVersion;
+}
@@ -38,10 +38,25 @@ public class CompoundDerivative extends CompoundGradient implements HessianWrtPa
         super(derivativeList);
     }
 
+    public CompoundDerivative(List<GradientWrtParameterProvider> derivativeList, int threads) {
+        super(derivativeList, threads);
+    }
+
     @Override
     public double[] getDiagonalHessianLogDensity() {
 
-        double[] result = new double[dimension];
+        final double[] result = new double[dimension];
+
+        if (evaluator.isConcurrent()) {
+            evaluator.evaluate(new ConcurrentGradientEvaluator.Component() {
+                public void evaluate(int index) {
+                    GradientWrtParameterProvider derivative = derivativeList.get(index);
+                    double[] tmp = ((HessianWrtParameterProvider) derivative).getDiagonalHessianLogDensity();
+                    System.arraycopy(tmp, 0, result, offsets[index], derivative.getDimension());
+                }
+            });
+            return result;
+        }
 
         int offset = 0;
         for (GradientWrtParameterProvider derivative : derivativeList) {
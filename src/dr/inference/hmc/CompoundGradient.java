@@ -46,7 +46,18 @@ public class CompoundGradient implements GradientWrtParameterProvider, Derivativ
     private final List<DerivativeWrtParameterProvider> newDerivativeList;
     private final DerivativeOrder highestOrder;
 
+    final int[] offsets;
+    final ConcurrentGradientEvaluator evaluator;
+
     CompoundGradient(List<GradientWrtParameterProvider> derivativeList) {
+        this(derivativeList, 0);
+    }
+
+    /**
+     * @param threads the number of threads to evaluate the components on (0 or 1 to evaluate them
+     *                in turn, -1 for as many as there are independent components)
+     */
+    CompoundGradient(List<GradientWrtParameterProvider> derivativeList, int threads) {
 
         this.derivativeList = derivativeList;
 
@@ -86,6 +97,16 @@ public class CompoundGradient implements GradientWrtParameterProvider, Derivativ
             }
         }
         this.highestOrder = DerivativeWrtParameterProvider.getHighestOrder(newDerivativeList);
+
+        // each component writes into its own slice of the result
+        this.offsets = new int[derivativeList.size()];
+        int offset = 0;
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = offset;
+            offset += derivativeList.get(i).getDimension();
+        }
+
+        this.evaluator = new ConcurrentGradientEvaluator(derivativeList, threads);
     }
 
     @Override
@@ -109,11 +130,27 @@ public class CompoundGradient implements GradientWrtParameterProvider, Derivativ
     }
 
     @Override
-    public double[] getDerivativeLogDensity(DerivativeOrder order) {
+    public double[] getDerivativeLogDensity(final DerivativeOrder order) {
 
         assert (highestOrder.getValue() >= order.getValue());
 
-        double[] result = new double[dimension];
+        if (newDerivativeList.size() == 1 && derivativeList.size() == 1) {
+            return newDerivativeList.get(0).getDerivativeLogDensity(order);
+        }
+
+        // a new array, as callers keep the results (e.g., NumericalHessianFromGradient) or add
+        // to them (SumDerivative)
+        final double[] result = new double[dimension];
+
+        if (evaluator.isConcurrent() && newDerivativeList.size() == derivativeList.size()) {
+            evaluator.evaluate(new ConcurrentGradientEvaluator.Component() {
+                public void evaluate(int index) {
+                    double[] tmp = newDerivativeList.get(index).getDerivativeLogDensity(order);
+                    System.arraycopy(tmp, 0, result, offsets[index], tmp.length);
+                }
+            });
+            return result;
+        }
 
           int offset = 0;
           for (DerivativeWrtParameterProvider provider : newDerivativeList) {
@@ -134,7 +171,24 @@ public class CompoundGradient implements GradientWrtParameterProvider, Derivativ
     @Override
     public double[] getGradientLogDensity() {
 
-        double[] result = new double[dimension];
+        if (derivativeList.size() == 1) {
+            return derivativeList.get(0).getGradientLogDensity();
+        }
+
+        // a new array, as callers keep the results (e.g., NumericalHessianFromGradient) or add
+        // to them (SumDerivative)
+        final double[] result = new double[dimension];
+
+        if (evaluator.isConcurrent()) {
+            evaluator.evaluate(new ConcurrentGradientEvaluator.Component() {
+                public void evaluate(int index) {
+                    GradientWrtParameterProvider grad = derivativeList.get(index);
+                    double[] tmp = grad.getGradientLogDensity();
+                    System.arraycopy(tmp, 0, result, offsets[index], grad.getDimension());
+                }
+            });
+            return result;
+        }
 
         int offset = 0;
         for (GradientWrtParameterProvider grad : derivativeList) {
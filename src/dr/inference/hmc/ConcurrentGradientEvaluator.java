@@ -0,0 +1,208 @@
+/*
+ * ConcurrentGradientEvaluator.java
+ *
+ * Copyright (c) 2002-2020 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.inference.hmc;
+
+import dr.inference.model.Likelihood;
+import dr.inference.model.Model;
+import dr.util.SharedThreadPool;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Evaluates the component gradients of a compound or summed gradient on the shared thread pool.
+ *
+ * Components whose likelihoods overlap (for example two gradients of the same data likelihood
+ * with respect to different parameters) or that depend on a common model (for example a data
+ * likelihood and a coalescent on the same tree) are always evaluated one after the other on the
+ * same thread, as neither a likelihood nor the cached state of a model can be updated by two
+ * threads at once. The remaining groups are spread over at most the requested number of tasks.
+ *
+ * @author Andrew Rambaut
+ * @author Marc A. Suchard
+ */
+class ConcurrentGradientEvaluator {
+
+    interface Component {
+        void evaluate(int index);
+    }
+
+    /**
+     * @param gradients the component gradients
+     * @param threads the number of tasks to use (-1 for one per independent group)
+     */
+    ConcurrentGradientEvaluator(List<? extends GradientWrtParameterProvider> gradients, int threads) {
+        int[] groups = getGroups(gradients);
+
+        int groupCount = 0;
+        for (int group : groups) {
+            groupCount = Math.max(groupCount, group + 1);
+        }
+
+        int taskCount = (threads < 0 ? groupCount : Math.min(threads, groupCount));
+
+        // whole groups are dealt out to the tasks in turn
+        List<List<Integer>> taskLists = new ArrayList<List<Integer>>();
+        for (int t = 0; t < taskCount; t++) {
+            taskLists.add(new ArrayList<Integer>());
+        }
+        for (int i = 0; i < groups.length; i++) {
+            if (taskCount > 0) {
+                taskLists.get(groups[i] % taskCount).add(i);
+            }
+        }
+
+        tasks = new int[taskCount][];
+        for (int t = 0; t < taskCount; t++) {
+            List<Integer> list = taskLists.get(t);
+            tasks[t] = new int[list.size()];
+            for (int k = 0; k < tasks[t].length; k++) {
+                tasks[t][k] = list.get(k);
+            }
+        }
+
+        this.componentCount = gradients.size();
+    }
+
+    /**
+     * @return true if the components are spread over more than one task
+     */
+    boolean isConcurrent() {
+        return tasks.length > 1;
+    }
+
+    /**
+     * Evaluates every component; returns once they are all done.
+     */
+    void evaluate(final Component component) {
+        if (!isConcurrent()) {
+            for (int i = 0; i < componentCount; i++) {
+                component.evaluate(i);
+            }
+            return;
+        }
+
+        final ForkJoinPool pool = SharedThreadPool.getPool();
+
+        pool.invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                List<RecursiveAction> actions = new ArrayList<RecursiveAction>();
+                for (final int[] task : tasks) {
+                    actions.add(new RecursiveAction() {
+                        @Override
+                        protected void compute() {
+                            for (int i : task) {
+                                component.evaluate(i);
+                            }
+                        }
+                    });
+                }
+                invokeAll(actions);
+            }
+        });
+    }
+
+    /**
+     * Numbers the groups of components that share any likelihood or model, in order of their first
+     * component.
+     */
+    private static int[] getGroups(List<? extends GradientWrtParameterProvider> gradients) {
+        final int n = gradients.size();
+
+        int[] parent = new int[n];
+        for (int i = 0; i < n; i++) {
+            parent[i] = i;
+        }
+
+        List<Set<Object>> dependencySets = new ArrayList<Set<Object>>();
+        for (GradientWrtParameterProvider gradient : gradients) {
+            Set<Object> dependencies = new HashSet<Object>();
+            for (Likelihood likelihood : gradient.getLikelihood().getLikelihoodSet()) {
+                dependencies.add(likelihood);
+                addModels(likelihood.getModel(), dependencies);
+            }
+            dependencySets.add(dependencies);
+        }
+
+        for (int i = 0; i < n; i++) {
+            for (int j = i + 1; j < n; j++) {
+                if (overlap(dependencySets.get(i), dependencySets.get(j))) {
+                    int a = find(parent, i);
+                    int b = find(parent, j);
+                    parent[Math.max(a, b)] = Math.min(a, b);
+                }
+            }
+        }
+
+        int[] groups = new int[n];
+        int[] groupOfRoot = new int[n];
+        int groupCount = 0;
+        for (int i = 0; i < n; i++) {
+            int root = find(parent, i);
+            if (root == i) {
+                groupOfRoot[i] = groupCount;
+                groupCount++;
+            }
+            groups[i] = groupOfRoot[root];
+        }
+        return groups;
+    }
+
+    /**
+     * Adds the model and all its sub-models.
+     */
+    private static void addModels(Model model, Set<Object> models) {
+        if (model != null && models.add(model)) {
+            for (int i = 0; i < model.getModelCount(); i++) {
+                addModels(model.getModel(i), models);
+            }
+        }
+    }
+
+    private static boolean overlap(Set<Object> a, Set<Object> b) {
+        for (Object dependency : a) {
+            if (b.contains(dependency)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int find(int[] parent, int i) {
+        while (parent[i] != i) {
+            i = parent[i];
+        }
+        return i;
+    }
+
+    private final int[][] tasks;
+    private final int componentCount;
+}
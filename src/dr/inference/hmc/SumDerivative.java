@@ -51,7 +51,18 @@ public class SumDerivative implements GradientWrtParameterProvider, HessianWrtPa
     private final List<DerivativeWrtParameterProvider> newDerivativeList;
     private final DerivativeOrder highestOrder;
 
+    private final ConcurrentGradientEvaluator evaluator;
+    private final double[][] componentDerivatives;
+
     public SumDerivative(List<GradientWrtParameterProvider> derivativeList){
+        this(derivativeList, 0);
+    }
+
+    /**
+     * @param threads the number of threads to evaluate the components on (0 or 1 to evaluate them
+     *                in turn, -1 for as many as there are independent components)
+     */
+    public SumDerivative(List<GradientWrtParameterProvider> derivativeList, int threads){
 
         this.derivativeList = derivativeList;
 
@@ -90,6 +101,9 @@ public class SumDerivative implements GradientWrtParameterProvider, HessianWrtPa
             }
         }
         this.highestOrder = DerivativeWrtParameterProvider.getHighestOrder(newDerivativeList);
+
+        this.evaluator = new ConcurrentGradientEvaluator(derivativeList, threads);
+        this.componentDerivatives = new double[derivativeList.size()][];
     }
 
     @Override
@@ -113,10 +127,19 @@ public class SumDerivative implements GradientWrtParameterProvider, HessianWrtPa
     }
 
     @Override
-    public double[] getDerivativeLogDensity(DerivativeOrder type) {
+    public double[] getDerivativeLogDensity(final DerivativeOrder type) {
 
         assert (highestOrder.getValue() >= type.getValue());
 
+        if (evaluator.isConcurrent() && newDerivativeList.size() == derivativeList.size()) {
+            evaluator.evaluate(new ConcurrentGradientEvaluator.Component() {
+                public void evaluate(int index) {
+                    componentDerivatives[index] = newDerivativeList.get(index).getDerivativeLogDensity(type);
+                }
+            });
+            return sumComponentDerivatives();
+        }
+
         int size = newDerivativeList.size();
 
         final double[] derivative = newDerivativeList.get(0).getDerivativeLogDensity(type);
@@ -184,7 +207,17 @@ public class SumDerivative implements GradientWrtParameterProvider, HessianWrtPa
         return hessian;
     }
 
-    private double[] getDerivativeLogDensity(DerivativeType derivativeType) {
+    private double[] getDerivativeLogDensity(final DerivativeType derivativeType) {
+
+        if (evaluator.isConcurrent()) {
+            evaluator.evaluate(new ConcurrentGradientEvaluator.Component() {
+                public void evaluate(int index) {
+                    componentDerivatives[index] = derivativeType.getDerivativeLogDensity(derivativeList.get(index));
+                }
+            });
+            return sumComponentDerivatives();
+        }
+
         int size = derivativeList.size();
 
         final double[] derivative = derivativeType.getDerivativeLogDensity(derivativeList.get(0));
@@ -201,6 +234,27 @@ public class SumDerivative implements GradientWrtParameterProvider, HessianWrtPa
         return derivative;
     }
 
+    /**
+     * Adds the components into the first in the same order as the serial sum (so the result
+     * doesn't depend on the number of threads).
+     */
+    private double[] sumComponentDerivatives() {
+        final double[] derivative = componentDerivatives[0];
+
+        for (int i = 1; i < componentDerivatives.length; i++) {
+
+            final double[] temp = componentDerivatives[i];
+
+            for (int j = 0; j < temp.length; j++) {
+                derivative[j] += temp[j];
+            }
+        }
+
+        Arrays.fill(componentDerivatives, null);
+
+        return derivative;
+    }
+
     @Override
     public double[] getGradientLogDensity() {
         return getDerivativeLogDensity(DerivativeType.GRADIENT);
@@ -0,0 +1,309 @@
+/*
+ * AsynchronousMCLogger.java
+ *
+ * Copyright (c) 2002-2020 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.inference.loggers;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A logger that moves formatting and writing off the MCMC thread. At each logged state the raw
+ * values of the number columns are copied into a preallocated ring buffer and a background
+ * thread formats them (unless the formatter stores numbers, see NumberLogFormatter) and writes
+ * them out in batches. Columns that are not plain number columns are formatted on the MCMC
+ * thread (as their value can't be captured as a double).
+ *
+ * If the writer falls behind and the buffer is full then the MCMC thread waits for space. All
+ * buffered rows are written before stopLogging() returns.
+ *
+ * @author Andrew Rambaut
+ */
+public class AsynchronousMCLogger extends MCLogger {
+
+    public static final int DEFAULT_BUFFER_SIZE = 1024;
+
+    /**
+     * @param formatter  the formatter of this logger
+     * @param logEvery   logging frequency
+     * @param bufferSize the maximum number of logged states waiting to be written
+     */
+    public AsynchronousMCLogger(LogFormatter formatter, long logEvery, int bufferSize) {
+        super(formatter, logEvery, false);
+        this.bufferSize = bufferSize;
+    }
+
+    public void startLogging() {
+        super.startLogging();
+
+        final int columnCount = getColumnCount();
+
+        numberColumns = new int[columnCount];
+        stringColumns = new int[columnCount];
+        numberFormats = new NumberColumnFormat[columnCount];
+        numberWidths = new int[columnCount];
+        numberColumnCount = 0;
+        stringColumnCount = 0;
+
+        for (int i = 0; i < columnCount; i++) {
+            LogColumn column = getColumn(i);
+            if (column instanceof NumberColumn && ((NumberColumn) column).isPlainNumber()) {
+                // a private copy, so that the writer doesn't share the column's DecimalFormat
+                numberFormats[numberColumnCount] = ((NumberColumn) column).copyFormat();
+                numberWidths[numberColumnCount] = column.getMinimumWidth();
+                numberColumns[numberColumnCount] = i;
+                numberColumnCount++;
+            } else {
+                stringColumns[stringColumnCount] = i;
+                stringColumnCount++;
+            }
+        }
+
+        stateBuffer = new long[bufferSize];
+        numberBuffer = new double[bufferSize * numberColumnCount];
+        stringBuffer = new String[bufferSize * stringColumnCount];
+
+        head = 0;
+        tail = 0;
+        closed = false;
+        writerException = null;
+
+        for (LogFormatter formatter : formatters) {
+            if (formatter instanceof TabDelimitedFormatter) {
+                ((TabDelimitedFormatter) formatter).setFlushEveryLine(false);
+            }
+        }
+
+        writerThread = new Thread(new Runnable() {
+            public void run() {
+                writeRows();
+            }
+        }, "beast-log-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    @Override
+    public void log(long state) {
+
+        if (logEvery > 0 && (state % logEvery == 0)) {
+
+            // wait until there is space in the buffer
+            lock.lock();
+            try {
+                while (head - tail == bufferSize && writerException == null) {
+                    notFull.awaitUninterruptibly();
+                }
+                checkWriter();
+            } finally {
+                lock.unlock();
+            }
+
+            addSamples();
+
+            // the writer never reads the slot at the head so this can be filled without the lock
+            final int slot = (int) (head % bufferSize);
+            stateBuffer[slot] = state;
+            int offset = slot * numberColumnCount;
+            for (int i = 0; i < numberColumnCount; i++) {
+                numberBuffer[offset + i] = ((NumberColumn) getColumn(numberColumns[i])).getDoubleValue();
+            }
+            offset = slot * stringColumnCount;
+            for (int i = 0; i < stringColumnCount; i++) {
+                stringBuffer[offset + i] = getColumnFormatted(stringColumns[i]);
+            }
+
+            lock.lock();
+            try {
+                head++;
+                notEmpty.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    public void stopLogging() {
+        if (writerThread != null) {
+            lock.lock();
+            try {
+                closed = true;
+                notEmpty.signal();
+            } finally {
+                lock.unlock();
+            }
+
+            try {
+                writerThread.join();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+            writerThread = null;
+        }
+
+        super.stopLogging();
+
+        checkWriter();
+    }
+
+    private void writeRows() {
+        final int columnCount = getColumnCount();
+        final String[] values = new String[columnCount + 1];
+
+        // formatters that store numbers are given the plain number columns as doubles
+        final double[] numberValues = new double[columnCount];
+        final String[] formattedValues = new String[columnCount];
+        boolean hasNumberFormatter = false;
+        boolean hasTextFormatter = false;
+        for (LogFormatter formatter : formatters) {
+            if (formatter instanceof NumberLogFormatter) {
+                hasNumberFormatter = true;
+            } else {
+                hasTextFormatter = true;
+            }
+        }
+
+        try {
+            while (true) {
+                long end;
+
+                lock.lock();
+                try {
+                    while (tail == head && !closed) {
+                        notEmpty.awaitUninterruptibly();
+                    }
+                    if (tail == head) {
+                        return;
+                    }
+                    end = head;
+                } finally {
+                    lock.unlock();
+                }
+
+                for (long row = tail; row < end; row++) {
+                    final int slot = (int) (row % bufferSize);
+                    final long state = stateBuffer[slot];
+
+                    int offset = slot * numberColumnCount;
+                    for (int i = 0; i < numberColumnCount; i++) {
+                        numberValues[numberColumns[i]] = numberBuffer[offset + i];
+                        if (hasTextFormatter) {
+                            values[numberColumns[i] + 1] = pad(numberFormats[i].format(numberBuffer[offset + i]), numberWidths[i]);
+                        }
+                    }
+                    offset = slot * stringColumnCount;
+                    for (int i = 0; i < stringColumnCount; i++) {
+                        formattedValues[stringColumns[i]] = stringBuffer[offset + i];
+                        values[stringColumns[i] + 1] = stringBuffer[offset + i];
+                        stringBuffer[offset + i] = null;
+                    }
+
+                    values[0] = Long.toString(state);
+
+                    if (!hasNumberFormatter) {
+                        logValues(values);
+                    } else {
+                        for (LogFormatter formatter : formatters) {
+                            if (formatter instanceof NumberLogFormatter) {
+                                ((NumberLogFormatter) formatter).logValues(state, numberValues, formattedValues);
+                            } else {
+                                formatter.logValues(values);
+                            }
+                        }
+                    }
+                }
+
+                for (LogFormatter formatter : formatters) {
+                    if (formatter instanceof TabDelimitedFormatter) {
+                        ((TabDelimitedFormatter) formatter).flush();
+                    }
+                }
+
+                lock.lock();
+                try {
+                    tail = end;
+                    notFull.signal();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        } catch (Throwable t) {
+            // anything that stops the writer (including errors) must wake the chain, which
+            // would otherwise wait for space in the buffer forever
+            lock.lock();
+            try {
+                writerException = t;
+                notFull.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void checkWriter() {
+        if (writerException instanceof Error) {
+            throw (Error) writerException;
+        }
+        if (writerException != null) {
+            throw new RuntimeException("Unable to write log: " + writerException.getMessage(), writerException);
+        }
+    }
+
+    private static String pad(String value, int minimumWidth) {
+        if (minimumWidth <= 0 || value.length() >= minimumWidth) {
+            return value;
+        }
+        StringBuilder sb = new StringBuilder(value);
+        while (sb.length() < minimumWidth) {
+            sb.append(' ');
+        }
+        return sb.toString();
+    }
+
+    private final int bufferSize;
+
+    private int[] numberColumns;
+    private int[] stringColumns;
+    private NumberColumnFormat[] numberFormats;
+    private int[] numberWidths;
+    private int numberColumnCount;
+    private int stringColumnCount;
+
+    // ring buffer of logged rows
+    private long[] stateBuffer;
+    private double[] numberBuffer;
+    private String[] stringBuffer;
+
+    // head is the next row to be filled and tail the next row to be written (guarded by lock)
+    private long head;
+    private long tail;
+    private boolean closed;
+    private Throwable writerException;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+
+    private Thread writerThread = null;
+}
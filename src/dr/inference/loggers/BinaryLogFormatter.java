@@ -0,0 +1,360 @@
+/*
+ * BinaryLogFormatter.java
+ *
+ * Copyright (c) 2002-2020 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.inference.loggers;
+
+import dr.inference.trace.NumberUtils;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * A class that writes a log in a columnar binary format that can be memory mapped by
+ * dr.inference.trace.BinaryLogTraces.
+ *
+ * The file starts with a header (magic, version, header length, column count, rows per block,
+ * the comments and the column labels) which is written as soon as the labels are logged. The
+ * rows follow in blocks of a fixed number of rows (only the last block may be shorter). Each
+ * block is written and flushed as soon as it is full, so the log can be read while the chain is
+ * running. A block starts with the length of its header, the number of rows and, for each
+ * column, its type so far and the category labels added in the block. This is followed
+ * (aligned to 8 bytes) by the state numbers as longs and then the values of each column in turn
+ * as doubles (the index of the label for categorical columns). Numbers are big-endian.
+ *
+ * The column types of formatted values are assigned in the same way as LogFileTraces does for
+ * tab-delimited logs. Numbers passed as doubles by a logger are written without formatting.
+ * Numbers logged in a block before its column became categorical become labels; numbers in
+ * earlier blocks are converted by the reader.
+ *
+ * @author Andrew Rambaut
+ */
+public class BinaryLogFormatter implements NumberLogFormatter {
+
+    public static final byte[] MAGIC = {'B', 'E', 'A', 'S', 'T', 'L', 'O', 'G'};
+    public static final int VERSION = 2;
+
+    public static final byte INTEGER_COLUMN = 0;
+    public static final byte REAL_COLUMN = 1;
+    public static final byte CATEGORICAL_COLUMN = 2;
+
+    public static final int DEFAULT_ROWS_PER_BLOCK = 1024;
+
+    // a NaN bit pattern that Double.doubleToLongBits never produces (it collapses all NaNs to
+    // the canonical one) is used to mark category indices in the block being filled
+    private static final long CATEGORY_MASK = 0xfffc000000000000L;
+    private static final long CATEGORY_TAG = 0x7ff4000000000000L;
+
+    public BinaryLogFormatter(File file) {
+        this(file, DEFAULT_ROWS_PER_BLOCK);
+    }
+
+    /**
+     * @param file         the log file
+     * @param rowsPerBlock the number of rows that are written (and flushed) together
+     */
+    public BinaryLogFormatter(File file, int rowsPerBlock) {
+        if (rowsPerBlock < 1) {
+            throw new IllegalArgumentException("A binary log requires at least one row per block");
+        }
+        this.file = file;
+        this.rowsPerBlock = rowsPerBlock;
+    }
+
+    public void startLogging(String title) {
+        // DO NOTHING
+    }
+
+    /**
+     * Headings are written to the header so those logged after the labels are ignored.
+     */
+    public void logHeading(String heading) {
+        if (heading != null) {
+            String[] lines = heading.split("[\r\n]");
+            for (String line : lines) {
+                comments.add(line);
+            }
+        }
+    }
+
+    public void logLine(String line) {
+        comments.add(line);
+    }
+
+    public void logLabels(String[] labels) {
+        if (labels.length < 1) {
+            throw new IllegalArgumentException("A binary log requires a state column");
+        }
+
+        // the first column is the state number
+        columnCount = labels.length - 1;
+        this.labels = new String[columnCount];
+        for (int i = 0; i < columnCount; i++) {
+            this.labels[i] = labels[i + 1].trim();
+        }
+        hasDecimalPoint = new boolean[columnCount];
+        isCategorical = new boolean[columnCount];
+        categories = new ArrayList<Map<String, Integer>>();
+        for (int i = 0; i < columnCount; i++) {
+            categories.add(new LinkedHashMap<String, Integer>());
+        }
+        writtenCategoryCounts = new int[columnCount];
+
+        blockStates = new long[rowsPerBlock];
+        blockValues = new long[columnCount][rowsPerBlock];
+        blockRowCount = 0;
+
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+            position = 0;
+            writeHeader();
+            out.flush();
+        } catch (IOException ioe) {
+            throw new RuntimeException("Unable to write binary log file, " + file + ": " + ioe.getMessage());
+        }
+    }
+
+    public void logValues(String[] values) {
+        checkRow(values.length - 1);
+
+        // LAMARC uses scientific notation for the state number
+        blockStates[blockRowCount] = (long) Double.parseDouble(values[0].trim());
+
+        for (int i = 0; i < columnCount; i++) {
+            addValue(i, values[i + 1].trim());
+        }
+        endRow();
+    }
+
+    /**
+     * The numbers are stored as they are. As they have no formatting to go by, a column of
+     * numbers is typed as real once any of its values is not a whole number.
+     */
+    public void logValues(long state, double[] values, String[] formattedValues) {
+        checkRow(values.length);
+
+        blockStates[blockRowCount] = state;
+
+        for (int i = 0; i < columnCount; i++) {
+            if (formattedValues[i] == null) {
+                double value = values[i];
+                if (!hasDecimalPoint[i] && (Double.isInfinite(value) || value != Math.rint(value))) {
+                    hasDecimalPoint[i] = true;
+                }
+                blockValues[i][blockRowCount] = Double.doubleToLongBits(value);
+            } else {
+                addValue(i, formattedValues[i].trim());
+            }
+        }
+        endRow();
+    }
+
+    private void checkRow(int valueCount) {
+        if (out == null) {
+            throw new IllegalStateException("logLabels must be called before logValues");
+        }
+        if (valueCount != columnCount) {
+            throw new IllegalArgumentException("Expected " + (columnCount + 1) + " values in row but found " + (valueCount + 1));
+        }
+    }
+
+    private void addValue(int column, String value) {
+        if (NumberUtils.isNumber(value)) {
+            if (!hasDecimalPoint[column] && NumberUtils.hasDecimalPoint(value)) {
+                hasDecimalPoint[column] = true;
+            }
+            blockValues[column][blockRowCount] = Double.doubleToLongBits(Double.parseDouble(value));
+        } else {
+            isCategorical[column] = true;
+            blockValues[column][blockRowCount] = CATEGORY_TAG | getCategoryIndex(column, value);
+        }
+    }
+
+    private void endRow() {
+        blockRowCount++;
+
+        if (blockRowCount == rowsPerBlock) {
+            try {
+                writeBlock();
+            } catch (IOException ioe) {
+                throw new RuntimeException("Unable to write binary log file, " + file + ": " + ioe.getMessage());
+            }
+        }
+    }
+
+    public void stopLogging() {
+        if (out == null) {
+            return;
+        }
+
+        try {
+            if (blockRowCount > 0) {
+                writeBlock();
+            }
+            out.close();
+        } catch (IOException ioe) {
+            throw new RuntimeException("Unable to write binary log file, " + file + ": " + ioe.getMessage());
+        } finally {
+            out = null;
+        }
+    }
+
+    private int getCategoryIndex(int column, String label) {
+        Map<String, Integer> map = categories.get(column);
+        Integer index = map.get(label);
+        if (index == null) {
+            index = map.size();
+            map.put(label, index);
+        }
+        return index;
+    }
+
+    private void writeHeader() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream header = new DataOutputStream(bytes);
+
+        header.writeInt(columnCount);
+        header.writeInt(rowsPerBlock);
+
+        header.writeInt(comments.size());
+        for (String comment : comments) {
+            header.writeUTF(comment);
+        }
+
+        for (int i = 0; i < columnCount; i++) {
+            header.writeUTF(labels[i]);
+        }
+        header.flush();
+
+        // the prefix holds the total length of the header so that it can be skipped
+        out.write(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(MAGIC.length + 8 + bytes.size());
+        bytes.writeTo(out);
+        position += MAGIC.length + 8 + bytes.size();
+
+        pad();
+    }
+
+    /**
+     * Writes the rows in the block as one contiguous run per column, and flushes the file.
+     */
+    private void writeBlock() throws IOException {
+
+        // numbers in a categorical column become labels before the labels are written
+        for (int i = 0; i < columnCount; i++) {
+            if (isCategorical[i]) {
+                for (int k = 0; k < blockRowCount; k++) {
+                    blockValues[i][k] = Double.doubleToRawLongBits(toCategory(i, blockValues[i][k]));
+                }
+            }
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream header = new DataOutputStream(bytes);
+
+        header.writeInt(blockRowCount);
+        for (int i = 0; i < columnCount; i++) {
+            if (isCategorical[i]) {
+                header.writeByte(CATEGORICAL_COLUMN);
+                Map<String, Integer> map = categories.get(i);
+                header.writeInt(map.size() - writtenCategoryCounts[i]);
+                int index = 0;
+                for (String label : map.keySet()) {
+                    if (index >= writtenCategoryCounts[i]) {
+                        header.writeUTF(label);
+                    }
+                    index++;
+                }
+                writtenCategoryCounts[i] = map.size();
+            } else {
+                header.writeByte(hasDecimalPoint[i] ? REAL_COLUMN : INTEGER_COLUMN);
+                header.writeInt(0);
+            }
+        }
+        header.flush();
+
+        out.writeInt(bytes.size());
+        bytes.writeTo(out);
+        position += 4 + bytes.size();
+        pad();
+
+        for (int k = 0; k < blockRowCount; k++) {
+            out.writeLong(blockStates[k]);
+        }
+        for (int i = 0; i < columnCount; i++) {
+            for (int k = 0; k < blockRowCount; k++) {
+                out.writeLong(blockValues[i][k]);
+            }
+        }
+        position += (columnCount + 1) * blockRowCount * 8L;
+        out.flush();
+
+        blockRowCount = 0;
+    }
+
+    private double toCategory(int column, long bits) {
+        if ((bits & CATEGORY_MASK) == CATEGORY_TAG) {
+            return bits & ~CATEGORY_MASK;
+        }
+        // numbers logged before the column became categorical become labels (as in LogFileTraces)
+        return getCategoryIndex(column, Double.toString(Double.longBitsToDouble(bits)));
+    }
+
+    private void pad() throws IOException {
+        long aligned = getDataOffset(position);
+        while (position < aligned) {
+            out.writeByte(0);
+            position++;
+        }
+    }
+
+    /**
+     * @param offset an offset in the file
+     * @return the offset rounded up to a multiple of 8
+     */
+    public static long getDataOffset(long offset) {
+        return (offset + 7) & ~7L;
+    }
+
+    private final File file;
+    private final int rowsPerBlock;
+
+    private final List<String> comments = new ArrayList<String>();
+
+    private int columnCount = 0;
+    private String[] labels;
+    private boolean[] hasDecimalPoint;
+    private boolean[] isCategorical;
+    private List<Map<String, Integer>> categories;
+    private int[] writtenCategoryCounts;
+
+    // the rows that have not been written yet
+    private long[] blockStates;
+    private long[][] blockValues;
+    private int blockRowCount;
+
+    private DataOutputStream out = null;
+    private long position;
+}
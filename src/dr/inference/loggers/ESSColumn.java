@@ -0,0 +1,66 @@
+/*
+ * ESSColumn.java
+ *
+ * Copyright (c) 2002-2020 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.inference.loggers;
+
+import dr.inference.trace.BatchMeansESS;
+
+/**
+ * ESS column - logs the running effective sample size of another column, as estimated by batch
+ * means from the values it had at each logged state (so in units of logged samples). The logger
+ * adds the samples, so formatting the column doesn't change the estimate.
+ *
+ * @author Andrew Rambaut
+ */
+public class ESSColumn extends NumberColumn implements SampledColumn {
+    private static final long serialVersionUID = 1L;
+
+    private final NumberColumn column;
+    private final BatchMeansESS ess = new BatchMeansESS();
+
+    public ESSColumn(NumberColumn col) {
+        super("ESS(" + col.getLabel() + ")");
+        this.column = col;
+        setDecimalPlaces(1);
+    }
+
+    public void addSample() {
+        ess.addValue(column.getDoubleValue());
+    }
+
+    public boolean isPlainNumber() {
+        // an undefined ESS is logged as '-'
+        return false;
+    }
+
+    public String getFormattedValue() {
+        double value = ess.getESS();
+        return Double.isNaN(value) ? "-" : formatValue(value);
+    }
+
+    public double getDoubleValue() {
+        return ess.getESS();
+    }
+}
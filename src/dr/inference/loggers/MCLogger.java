@@ -139,6 +139,10 @@ public class MCLogger implements Logger {
             keywords.addAll(((Keywordable)column).getKeywords());
         }
 
+        if (column instanceof SampledColumn) {
+            sampledColumns.add((SampledColumn) column);
+        }
+
         columns.add(column);
     }
 
@@ -168,6 +172,16 @@ public class MCLogger implements Logger {
         return columns.get(index).getFormatted();
     }
 
+    /**
+     * Passes the current state to the columns that accumulate samples. Called once for each
+     * logged state, before the columns are formatted.
+     */
+    protected final void addSamples() {
+        for (SampledColumn column : sampledColumns) {
+            column.addSample();
+        }
+    }
+
     protected void logHeading(String heading) {
         for (LogFormatter formatter : formatters) {
             formatter.logHeading(heading);
@@ -241,41 +255,83 @@ public class MCLogger implements Logger {
 
             final int columnCount = getColumnCount();
 
-            String[] values = new String[columnCount + (performanceReport ? 2 : 1)];
+            addSamples();
 
-            values[0] = Long.toString(state);
+            // formatters that store numbers are given the plain number columns as doubles
+            boolean hasNumberFormatter = false;
+            boolean hasTextFormatter = false;
+            for (LogFormatter formatter : formatters) {
+                if (formatter instanceof NumberLogFormatter) {
+                    hasNumberFormatter = true;
+                } else {
+                    hasTextFormatter = true;
+                }
+            }
 
-            for (int i = 0; i < columnCount; i++) {
-                values[i + 1] = getColumnFormatted(i);
+            final String[] formattedValues = new String[columnCount];
+            double[] numberValues = null;
+
+            if (hasNumberFormatter) {
+                numberValues = new double[columnCount];
+                for (int i = 0; i < columnCount; i++) {
+                    LogColumn column = getColumn(i);
+                    if (column instanceof NumberColumn && ((NumberColumn) column).isPlainNumber()) {
+                        numberValues[i] = ((NumberColumn) column).getDoubleValue();
+                    } else {
+                        formattedValues[i] = column.getFormatted();
+                    }
+                }
             }
 
-            if (performanceReport) {
-                if (performanceReportStarted) {
+            String[] values = null;
 
-                    long time = System.currentTimeMillis();
+            if (hasTextFormatter) {
+                values = new String[columnCount + (performanceReport ? 2 : 1)];
 
-                    double hoursPerMillionStates = (double) (time - startTime) / (3.6 * (double) (state - startState));
+                values[0] = Long.toString(state);
 
-                    String timePerMillion = formatter.format(hoursPerMillionStates);
-                    String units = " hours/million states";
-                    if (hoursPerMillionStates < 0.1) {
-                        double minutesPerMillionStates = hoursPerMillionStates * 60;
-                        timePerMillion = formatter.format(minutesPerMillionStates);
-                        units = " minutes/million states";
-                        if (minutesPerMillionStates < 0.1) {
-                            double secondsPerMillionStates = minutesPerMillionStates * 60;
-                            timePerMillion = formatter.format(secondsPerMillionStates);
-                            units = " seconds/million states";
+                for (int i = 0; i < columnCount; i++) {
+                    values[i + 1] = (formattedValues[i] != null ? formattedValues[i] : getColumnFormatted(i));
+                }
+
+                if (performanceReport) {
+                    if (performanceReportStarted) {
+
+                        long time = System.currentTimeMillis();
+
+                        double hoursPerMillionStates = (double) (time - startTime) / (3.6 * (double) (state - startState));
+
+                        String timePerMillion = formatter.format(hoursPerMillionStates);
+                        String units = " hours/million states";
+                        if (hoursPerMillionStates < 0.1) {
+                            double minutesPerMillionStates = hoursPerMillionStates * 60;
+                            timePerMillion = formatter.format(minutesPerMillionStates);
+                            units = " minutes/million states";
+                            if (minutesPerMillionStates < 0.1) {
+                                double secondsPerMillionStates = minutesPerMillionStates * 60;
+                                timePerMillion = formatter.format(secondsPerMillionStates);
+                                units = " seconds/million states";
+                            }
                         }
-                    }
-                    values[columnCount + 1] = timePerMillion + units;
+                        values[columnCount + 1] = timePerMillion + units;
 
-                } else {
-                    values[columnCount + 1] = "-";
+                    } else {
+                        values[columnCount + 1] = "-";
+                    }
                 }
             }
 
-            logValues(values);
+            if (!hasNumberFormatter) {
+                logValues(values);
+            } else {
+                for (LogFormatter formatter : formatters) {
+                    if (formatter instanceof NumberLogFormatter) {
+                        ((NumberLogFormatter) formatter).logValues(state, numberValues, formattedValues);
+                    } else {
+                        formatter.logValues(values);
+                    }
+                }
+            }
         }
 
         if (performanceReport && !performanceReportStarted && state >= performanceReportDelay) {
@@ -297,6 +353,8 @@ public class MCLogger implements Logger {
 
     private List<LogColumn> columns = new ArrayList<LogColumn>();
 
+    private List<SampledColumn> sampledColumns = new ArrayList<SampledColumn>();
+
     protected long logEvery = 0;
 
     public List<LogFormatter> getFormatters() {
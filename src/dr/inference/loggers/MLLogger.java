@@ -71,6 +71,10 @@ public class MLLogger extends MCLogger {
 
     public void log(long state) {
 
+        if (logEvery > 0 && (state % logEvery == 0)) {
+            addSamples();
+        }
+
         double lik;
 
         lik = likelihood.getLogLikelihood();
@@ -25,8 +25,6 @@
 
 package dr.inference.loggers;
 
-import java.text.DecimalFormat;
-
 /**
  * An interface for a numerical column in a log.
  *
@@ -38,18 +36,11 @@ import java.text.DecimalFormat;
  
 public abstract class NumberColumn extends LogColumn.Abstract {
 
-	private int sf = -1;
-	private int dp = -1;
-	
-	private double upperCutoff;
-	private double[] cutoffTable;
-	private final DecimalFormat decimalFormat = new DecimalFormat();
-	private DecimalFormat scientificFormat = null;
+	private final NumberColumnFormat format = new NumberColumnFormat();
 
 
 	public NumberColumn(String label) {
         super(label);
-        decimalFormat.setGroupingUsed(false); // not use comma
     }
 	
 	public NumberColumn(String label, int sf) {
@@ -62,76 +53,52 @@ public abstract class NumberColumn extends LogColumn.Abstract {
 	 * Setting this overrides the decimal places option.
 	 */
 	public void setSignificantFigures(int sf) {
-		this.sf = sf;
-		this.dp = -1;
-		
-		upperCutoff = Math.pow(10,sf-1);
-		cutoffTable = new double[sf];
-		long num = 10;
-		for (int i =0; i < cutoffTable.length; i++) {
-			cutoffTable[i] = (double)num;
-			num *= 10;
-		}
-		decimalFormat.setGroupingUsed(false);
-		decimalFormat.setMinimumIntegerDigits(1);
-		decimalFormat.setMaximumFractionDigits(sf-1);
-		decimalFormat.setMinimumFractionDigits(sf-1);
-		scientificFormat = new DecimalFormat(getPattern(sf));
+		format.setSignificantFigures(sf);
 	}
 	
 	/**
 	 * Get the number of significant figures to display when formatted.
 	 * Returns -1 if maximum s.f. are to be used.
 	 */
-	public int getSignificantFigures() { return sf; }
+	public int getSignificantFigures() { return format.getSignificantFigures(); }
 	
 	/**
 	 * Set the number of decimal places to display when formatted.
 	 * Setting this overrides the significant figures option.
 	 */
 	public void setDecimalPlaces(int dp) {
-		this.dp = dp;
-		this.sf = -1;
+		format.setDecimalPlaces(dp);
 	}
 	
 	/**
 	 * Get the number of decimal places to display when formatted.
 	 * Returns -1 if maximum d.p. are to be used.
 	 */
-	public int getDecimalPlaces() { return dp; }
+	public int getDecimalPlaces() { return format.getDecimalPlaces(); }
 	
 
     public String formatValue(double value) {
-       if (dp < 0 && sf < 0) {
-			// return it at full precision
-			return Double.toString(value);
-		}
-
-		int numFractionDigits = 0;
-
-		if (dp < 0) {
-			
-			double absValue = Math.abs(value);
-
-			if ((absValue > upperCutoff) || (absValue < 0.1)) {
-
-				return scientificFormat.format(value);
-
-			} else {
-
-				numFractionDigits = getNumFractionDigits(value);
-			}
-
-		} else {
-
-			numFractionDigits = dp;
-		}
+        return format.format(value);
+    }
 
-		decimalFormat.setMaximumFractionDigits(numFractionDigits);
-		decimalFormat.setMinimumFractionDigits(numFractionDigits);
-		return decimalFormat.format(value);
+    /**
+     * @return a copy of the formatting of this column, for formatting values elsewhere
+     */
+    NumberColumnFormat copyFormat() {
+        return format.copy();
     }
 
+    /**
+	 * Returns true if the formatted value of this column is just its double value as formatted
+	 * by formatValue(), so that the value can be captured and formatted later (e.g., by an
+	 * AsynchronousMCLogger). Columns that format their value in any other way return false.
+	 *
+	 * @return true if the column is formatted as a plain number
+	 */
+	public boolean isPlainNumber() {
+		return true;
+	}
+
     /**
 	 * Returns a string containing the current value for this column with
 	 * appropriate formatting.
@@ -142,23 +109,6 @@ public abstract class NumberColumn extends LogColumn.Abstract {
 		return formatValue(getDoubleValue());
 	}
 	
-	private int getNumFractionDigits(double value) {
-		value = Math.abs(value);
-		for (int i = 0; i < cutoffTable.length; i++) {
-			if (value < cutoffTable[i]) return sf-i-1;
-		}
-		return sf - 1;
-	}
-	
-	private String getPattern(int sf) {
-		String pattern = "0.";
-		 for (int i =0; i < sf-1; i++) {
-		 	pattern += "#";
-		 }
-		 pattern += "E0";
-		return pattern;
-	}
-
 	/**
 	 * Returns the current value as a double.
 	 */
@@ -0,0 +1,143 @@
+/*
+ * NumberColumnFormat.java
+ *
+ * Copyright (c) 2002-2020 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.inference.loggers;
+
+import java.io.Serializable;
+import java.text.DecimalFormat;
+
+/**
+ * The formatting of the values of a NumberColumn, to a number of significant figures or decimal
+ * places (or at full precision if neither is set). It is kept apart from the column so that a
+ * copy can format values away from the column (e.g., on the writer thread of an
+ * AsynchronousMCLogger), as DecimalFormat isn't thread safe.
+ *
+ * @author Andrew Rambaut
+ * @author Alexei Drummond
+ */
+final class NumberColumnFormat implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private int sf = -1;
+	private int dp = -1;
+
+	private double upperCutoff;
+	private double[] cutoffTable;
+	private final DecimalFormat decimalFormat = new DecimalFormat();
+	private DecimalFormat scientificFormat = null;
+
+	NumberColumnFormat() {
+		decimalFormat.setGroupingUsed(false); // not use comma
+	}
+
+	/**
+	 * @return a new format with the same settings
+	 */
+	NumberColumnFormat copy() {
+		NumberColumnFormat format = new NumberColumnFormat();
+		if (sf > 0) {
+			format.setSignificantFigures(sf);
+		} else if (dp >= 0) {
+			format.setDecimalPlaces(dp);
+		}
+		return format;
+	}
+
+	void setSignificantFigures(int sf) {
+		this.sf = sf;
+		this.dp = -1;
+
+		upperCutoff = Math.pow(10,sf-1);
+		cutoffTable = new double[sf];
+		long num = 10;
+		for (int i =0; i < cutoffTable.length; i++) {
+			cutoffTable[i] = (double)num;
+			num *= 10;
+		}
+		decimalFormat.setGroupingUsed(false);
+		decimalFormat.setMinimumIntegerDigits(1);
+		decimalFormat.setMaximumFractionDigits(sf-1);
+		decimalFormat.setMinimumFractionDigits(sf-1);
+		scientificFormat = new DecimalFormat(getPattern(sf));
+	}
+
+	int getSignificantFigures() { return sf; }
+
+	void setDecimalPlaces(int dp) {
+		this.dp = dp;
+		this.sf = -1;
+	}
+
+	int getDecimalPlaces() { return dp; }
+
+	String format(double value) {
+		if (dp < 0 && sf < 0) {
+			// return it at full precision
+			return Double.toString(value);
+		}
+
+		int numFractionDigits = 0;
+
+		if (dp < 0) {
+
+			double absValue = Math.abs(value);
+
+			if ((absValue > upperCutoff) || (absValue < 0.1)) {
+
+				return scientificFormat.format(value);
+
+			} else {
+
+				numFractionDigits = getNumFractionDigits(value);
+			}
+
+		} else {
+
+			numFractionDigits = dp;
+		}
+
+		decimalFormat.setMaximumFractionDigits(numFractionDigits);
+		decimalFormat.setMinimumFractionDigits(numFractionDigits);
+		return decimalFormat.format(value);
+	}
+
+	private int getNumFractionDigits(double value) {
+		value = Math.abs(value);
+		for (int i = 0; i < cutoffTable.length; i++) {
+			if (value < cutoffTable[i]) return sf-i-1;
+		}
+		return sf - 1;
+	}
+
+	private String getPattern(int sf) {
+		String pattern = "0.";
+		 for (int i =0; i < sf-1; i++) {
+		 	pattern += "#";
+		 }
+		 pattern += "E0";
+		return pattern;
+	}
+}
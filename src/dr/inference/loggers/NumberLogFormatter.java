@@ -0,0 +1,46 @@
+/*
+ * NumberLogFormatter.java
+ *
+ * Copyright (c) 2002-2020 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.inference.loggers;
+
+/**
+ * A log formatter that stores numbers rather than text. The loggers pass it the values of the
+ * plain number columns (see NumberColumn.isPlainNumber()) as doubles, so they are never formatted
+ * and parsed back. The other columns are passed formatted.
+ *
+ * @author Andrew Rambaut
+ */
+public interface NumberLogFormatter extends LogFormatter {
+
+    /**
+     * @param state           the state number
+     * @param values          the values of the columns (ignored for the columns that are not
+     *                        plain numbers)
+     * @param formattedValues the formatted values of the columns that are not plain numbers (and
+     *                        null for those that are)
+     */
+    void logValues(long state, double[] values, String[] formattedValues);
+
+}
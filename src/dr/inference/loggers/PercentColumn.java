@@ -58,6 +58,10 @@ public class PercentColumn extends NumberColumn {
         return column.getMinimumWidth();
     }
 
+    public boolean isPlainNumber() {
+        return false;
+    }
+
     public String getFormattedValue() {
         double val = column.getDoubleValue();
         if( val >= 0 && val <= 1 ) {
@@ -41,6 +41,7 @@ public class TabDelimitedFormatter implements LogFormatter {
     protected final PrintWriter printWriter;
     private final boolean outputLabels;
     private final boolean closeFile;
+    private boolean flushEveryLine = true;
 
 
     public TabDelimitedFormatter(PrintWriter printWriter) {
@@ -109,6 +110,19 @@ public class TabDelimitedFormatter implements LogFormatter {
         }
 
         printWriter.println();
+        if (flushEveryLine) {
+            printWriter.flush();
+        }
+    }
+
+    /**
+     * @param flushEveryLine if false then values are only flushed by flush() or stopLogging()
+     */
+    public void setFlushEveryLine(boolean flushEveryLine) {
+        this.flushEveryLine = flushEveryLine;
+    }
+
+    public void flush() {
         printWriter.flush();
     }
 
@@ -31,8 +31,7 @@ import dr.inference.operators.*;
 
 import java.io.Serializable;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.List;
 import java.util.Set;
 import java.util.logging.Logger;
 
@@ -70,14 +69,34 @@ public final class MarkovChain implements Serializable {
 
     private final long fullEvaluationCount;
     private final int minOperatorCountForFullEvaluation;
+    private final long fullEvaluationFrequency;
 
     private double evaluationTestThreshold = EVALUATION_TEST_THRESHOLD;
 
+    // the leaf likelihoods checked by the full evaluation test and preallocated
+    // snapshots of their densities (indexed in the same order)
+    private final Likelihood[] densityLikelihoods;
+    private final double[] storedDensities;
+    private final double[] proposedDensities;
+    private final double[] evaluatedDensities;
 
     public MarkovChain(Likelihood likelihood,
                        OperatorSchedule schedule, Acceptor acceptor,
                        long fullEvaluationCount, int minOperatorCountForFullEvaluation, double evaluationTestThreshold,
                        boolean useAdaptation, boolean useSmoothedAcceptanceProbability) {
+        this(likelihood, schedule, acceptor, fullEvaluationCount, minOperatorCountForFullEvaluation, 0,
+                evaluationTestThreshold, useAdaptation, useSmoothedAcceptanceProbability);
+    }
+
+    /**
+     * @param fullEvaluationFrequency if greater than zero, once the initial full evaluation window has finished
+     *                                every fullEvaluationFrequency-th state is still checked by a full evaluation.
+     */
+    public MarkovChain(Likelihood likelihood,
+                       OperatorSchedule schedule, Acceptor acceptor,
+                       long fullEvaluationCount, int minOperatorCountForFullEvaluation, long fullEvaluationFrequency,
+                       double evaluationTestThreshold,
+                       boolean useAdaptation, boolean useSmoothedAcceptanceProbability) {
 
         currentLength = 0;
         this.likelihood = likelihood;
@@ -89,8 +108,16 @@ public final class MarkovChain implements Serializable {
 
         this.fullEvaluationCount = fullEvaluationCount;
         this.minOperatorCountForFullEvaluation = minOperatorCountForFullEvaluation;
+        this.fullEvaluationFrequency = fullEvaluationFrequency;
         this.evaluationTestThreshold = evaluationTestThreshold;
 
+        List<Likelihood> densityList = new ArrayList<Likelihood>();
+        collectDensityLikelihoods(likelihood, densityList);
+        densityLikelihoods = densityList.toArray(new Likelihood[densityList.size()]);
+        storedDensities = new double[densityLikelihoods.length];
+        proposedDensities = new double[densityLikelihoods.length];
+        evaluatedDensities = new double[densityLikelihoods.length];
+
         Likelihood.CONNECTED_LIKELIHOOD_SET.add(likelihood);
         Likelihood.CONNECTED_LIKELIHOOD_SET.addAll(likelihood.getLikelihoodSet());
 
@@ -177,8 +204,6 @@ public final class MarkovChain implements Serializable {
             usingFullEvaluation = false;
         boolean fullEvaluationError = false;
 
-        Map<String, Double> diagnosticDensities = null;
-
         while (!pleaseStop && (currentState < (currentLength + length))) {
 
             // periodically log states
@@ -193,10 +218,14 @@ public final class MarkovChain implements Serializable {
             final int op = schedule.getNextOperatorIndex();
             final MCMCOperator mcmcOperator = schedule.getOperator(op);
 
+            // past the initial window, a full evaluation is still done every
+            // fullEvaluationFrequency states if requested
+            final boolean checkEvaluation = usingFullEvaluation ||
+                    (fullEvaluationFrequency > 0 && currentState % fullEvaluationFrequency == 0);
+
             double oldScore = currentScore;
-            if (usingFullEvaluation) {
-                diagnosticDensities = new HashMap<String, Double>();
-                fillDensities(likelihood, diagnosticDensities);
+            if (checkEvaluation) {
+                fillDensities(storedDensities);
             }
 
             // assert Profiler.startProfile("Store");
@@ -273,10 +302,8 @@ public final class MarkovChain implements Serializable {
                     }
                 }
 
-                Map<String, Double> diagnosticOperatorDensities = null;
-                if (usingFullEvaluation) {
-                    diagnosticOperatorDensities = new HashMap<String, Double>();
-                    fillDensities(likelihood, diagnosticOperatorDensities);
+                if (checkEvaluation) {
+                    fillDensities(proposedDensities);
                 }
 
                 if (score == Double.NEGATIVE_INFINITY && mcmcOperator instanceof GibbsOperator) {
@@ -332,7 +359,7 @@ public final class MarkovChain implements Serializable {
                     score = Double.NEGATIVE_INFINITY;
                 }
 
-                if (usingFullEvaluation) {
+                if (checkEvaluation) {
 
                     // This is a test that the state was correctly evaluated. The
                     // likelihood of all components of the model are flagged as
@@ -343,8 +370,7 @@ public final class MarkovChain implements Serializable {
                     likelihood.makeDirty();
                     final double testScore = evaluate(likelihood);
 
-                    Map<String, Double> densitiesAfter = new HashMap<String, Double>();
-                    fillDensities(likelihood, densitiesAfter);
+                    fillDensities(evaluatedDensities);
 
                     if (Math.abs(testScore - score) > evaluationTestThreshold) {
                         StringBuilder sb = new StringBuilder();
@@ -355,14 +381,7 @@ public final class MarkovChain implements Serializable {
                                 + " " + mcmcOperator.getOperatorName()
                                 + "\n\n");
 
-                        sb.append("Discrepancies:\n");
-                        for (String key : diagnosticOperatorDensities.keySet()) {
-                            if (Math.abs(diagnosticOperatorDensities.get(key) - densitiesAfter.get(key)) > evaluationTestThreshold) {
-                                sb.append(key + ": " + diagnosticOperatorDensities.get(key) +
-                                        " -> " + densitiesAfter.get(key) + "\n");
-                            }
-                        }
-                        sb.append("\n");
+                        appendDiscrepancies(sb, proposedDensities, evaluatedDensities);
 
                         Logger.getLogger("error").severe(sb.toString());
                         fullEvaluationError = true;
@@ -402,7 +421,7 @@ public final class MarkovChain implements Serializable {
 
                 currentModel.restoreModelState();
 
-                if (usingFullEvaluation) {
+                if (checkEvaluation) {
                     // This is a test that the state is correctly restored. The
                     // restored state is fully evaluated and the likelihood compared with
                     // that before the operation was made.
@@ -410,8 +429,7 @@ public final class MarkovChain implements Serializable {
                     likelihood.makeDirty();
                     final double testScore = evaluate(likelihood);
 
-                    Map<String, Double> densitiesAfter = new HashMap<String, Double>();
-                    fillDensities(likelihood, densitiesAfter);
+                    fillDensities(evaluatedDensities);
 
                     if (Math.abs(testScore - oldScore) > evaluationTestThreshold) {
                         StringBuilder sb = new StringBuilder();
@@ -422,14 +440,7 @@ public final class MarkovChain implements Serializable {
                                 + " " + mcmcOperator.getOperatorName()
                                 + "\n\n");
 
-                        sb.append("Discrepancies:\n");
-                        for (String key : diagnosticDensities.keySet()) {
-                            if (Math.abs(diagnosticDensities.get(key) - densitiesAfter.get(key)) > evaluationTestThreshold) {
-                                sb.append(key + ": " + diagnosticDensities.get(key) +
-                                        " -> " + densitiesAfter.get(key) + "\n");
-                            }
-                        }
-                        sb.append("\n");
+                        appendDiscrepancies(sb, storedDensities, evaluatedDensities);
 
                         Logger.getLogger("error").severe(sb.toString());
                         fullEvaluationError = true;
@@ -459,6 +470,12 @@ public final class MarkovChain implements Serializable {
                                         "results.");
                     }
                 }
+            } else if (fullEvaluationError) {
+                // an error in one of the sampled checks after the test phase stops the run immediately
+                throw new RuntimeException(
+                        "An evaluation error occurred at state " + currentState + " during a sampled\n" +
+                                "full evaluation check. This implies a critical error which may produce\n" +
+                                "incorrect results.");
             }
 
             fireEndCurrentIteration(currentState);
@@ -620,15 +637,31 @@ public final class MarkovChain implements Serializable {
     private void fireEndCurrentIteration(long state) {
     }
 
-    private void fillDensities(Likelihood like, Map<String, Double> densities) {
+    private static void collectDensityLikelihoods(Likelihood like, List<Likelihood> densityList) {
         if (like instanceof CompoundLikelihood) {
             for (Likelihood subLike : ((CompoundLikelihood) like).getLikelihoods()) {
-                fillDensities(subLike, densities);
+                collectDensityLikelihoods(subLike, densityList);
             }
         } else {
-            final double logLikelihood = like.getLogLikelihood();
-            densities.put(like.prettyName(), logLikelihood);
+            densityList.add(like);
+        }
+    }
+
+    private void fillDensities(double[] densities) {
+        for (int i = 0; i < densityLikelihoods.length; i++) {
+            densities[i] = densityLikelihoods[i].getLogLikelihood();
+        }
+    }
+
+    private void appendDiscrepancies(StringBuilder sb, double[] before, double[] after) {
+        sb.append("Discrepancies:\n");
+        for (int i = 0; i < densityLikelihoods.length; i++) {
+            if (Math.abs(before[i] - after[i]) > evaluationTestThreshold) {
+                sb.append(densityLikelihoods[i].prettyName() + ": " + before[i] +
+                        " -> " + after[i] + "\n");
+            }
         }
+        sb.append("\n");
     }
 
     private final ArrayList<MarkovChainListener> listeners = new ArrayList<MarkovChainListener>();
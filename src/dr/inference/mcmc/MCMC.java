@@ -76,6 +76,7 @@ public class MCMC implements Identifiable, Spawnable, Loggable {
 
         mc = new MarkovChain(likelihood, schedule, criterion,
                 options.getFullEvaluationCount(), options.minOperatorCountForFullEvaluation(),
+                options.getFullEvaluationFrequency(),
                 options.getEvaluationTestThreshold(),
                 options.useAdaptation(), options.useSmoothedAcceptanceProbability());
 
@@ -40,6 +40,7 @@ public class MCMCOptions {
     private final long chainLength;
     private final long fullEvaluationCount;
     private final int minOperatorCountForFullEvaluation;
+    private final long fullEvaluationFrequency;
     private final double evaluationTestThreshold;
     private final boolean useAdaptation;
     private final boolean smoothAcceptanceProbability;
@@ -68,9 +69,29 @@ public class MCMCOptions {
     public MCMCOptions(long chainLength, long fullEvaluationCount, int minOperatorCountForFullEvaluation,
                        double evaluationTestThreshold, boolean useAdaptation, long adaptationDelay, double adaptationTarget, boolean smoothAcceptanceProbability,
                        double temperature) {
+        this(chainLength, fullEvaluationCount, minOperatorCountForFullEvaluation, 0, evaluationTestThreshold,
+                useAdaptation, adaptationDelay, adaptationTarget, smoothAcceptanceProbability, temperature);
+    }
+
+    /**
+     * constructor
+     * @param chainLength
+     * @param fullEvaluationCount
+     * @param minOperatorCountForFullEvaluation
+     * @param fullEvaluationFrequency check every nth state by full evaluation after the initial test phase (0 = never)
+     * @param evaluationTestThreshold
+     * @param useAdaptation
+     * @param adaptationDelay
+     * @param temperature
+     */
+    public MCMCOptions(long chainLength, long fullEvaluationCount, int minOperatorCountForFullEvaluation,
+                       long fullEvaluationFrequency,
+                       double evaluationTestThreshold, boolean useAdaptation, long adaptationDelay, double adaptationTarget, boolean smoothAcceptanceProbability,
+                       double temperature) {
         this.chainLength = chainLength;
         this.fullEvaluationCount = fullEvaluationCount;
         this.minOperatorCountForFullEvaluation = minOperatorCountForFullEvaluation;
+        this.fullEvaluationFrequency = fullEvaluationFrequency;
         this.evaluationTestThreshold = evaluationTestThreshold;
         this.useAdaptation = useAdaptation;
         this.adaptationDelay = adaptationDelay;
@@ -90,6 +111,10 @@ public class MCMCOptions {
         return fullEvaluationCount;
     }
 
+    public final long getFullEvaluationFrequency() {
+        return fullEvaluationFrequency;
+    }
+
     public double getEvaluationTestThreshold() {
         return evaluationTestThreshold;
     }
@@ -25,24 +25,30 @@
 
 package dr.inference.mcmc;
 
+import dr.evomodel.tree.TreeModel;
+import dr.inference.loggers.LogFormatter;
 import dr.inference.loggers.Logger;
 import dr.inference.loggers.MCLogger;
+import dr.inference.loggers.TabDelimitedFormatter;
 import dr.inference.markovchain.MarkovChain;
 import dr.inference.markovchain.MarkovChainListener;
 import dr.inference.model.Model;
+import dr.inference.model.Parameter;
 import dr.inference.model.PathLikelihood;
 import dr.inference.operators.*;
+import dr.math.MathUtils;
 import dr.util.Author;
 import dr.util.Citable;
 import dr.util.Citation;
 import dr.util.Identifiable;
+import dr.util.SharedThreadPool;
 import dr.xml.*;
 import org.apache.commons.math.MathException;
 import org.apache.commons.math.distribution.BetaDistributionImpl;
+import org.w3c.dom.NodeList;
 
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
+import java.util.*;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * @author Andrew Rambaut
@@ -93,34 +99,236 @@ public class MarginalLikelihoodEstimator implements Runnable, Identifiable, Cita
     }
 
     public void integrate(Integrator scheme) {
+        if (threadCount > 1) {
+            if (replicaFactory != null) {
+                integrateInParallel(scheme);
+                return;
+            }
+            java.util.logging.Logger.getLogger("dr.inference").warning("No copies of the model can be made for the " +
+                    "parallel marginal likelihood estimator, so the path parameters are run sequentially.");
+        }
+
         setDefaultBurnin();
         mc.setCurrentLength(burnin);
         scheme.init();
         ((CombinedOperatorSchedule) schedule).reset();
         for (pathParameter = scheme.nextPathParameter(); pathParameter >= 0; pathParameter = scheme.nextPathParameter()) {
-            pathLikelihood.setPathParameter(pathParameter);
             reportIteration(pathParameter, chainLength, burnin, scheme.pathSteps, scheme.step);
+            runPathParameter(pathParameter, chainLength);
+        }
+    }
+
+    /**
+     * Runs the path parameters in contiguous blocks, one per thread, each on its own copy of the model.
+     * This chain first walks the path with burnin-only runs, handing its state to each block when it has
+     * passed the path parameter before it, so that every block starts from the final state of its
+     * neighbouring path parameter. The samples are logged with the same states as in a sequential run
+     * and written in path order once all the blocks have finished.
+     */
+    private void integrateInParallel(final Integrator scheme) {
+        setDefaultBurnin();
+
+        final List<Double> pathParameters = new ArrayList<Double>();
+        scheme.init();
+        for (double value = scheme.nextPathParameter(); value >= 0; value = scheme.nextPathParameter()) {
+            pathParameters.add(value);
+        }
+
+        final int blockCount = Math.min(threadCount, pathParameters.size());
+        final int[] blockStart = new int[blockCount + 1];
+        for (int b = 0; b <= blockCount; b++) {
+            blockStart[b] = b * pathParameters.size() / blockCount;
+        }
+
+        final MarginalLikelihoodEstimator[] blocks = new MarginalLikelihoodEstimator[blockCount];
+        final SampleBuffer[][] buffers = new SampleBuffer[blockCount][loggers.size()];
+        for (int b = 0; b < blockCount; b++) {
+            blocks[b] = replicaFactory.createReplica(index);
+            if (blocks[b].loggers.size() != loggers.size() ||
+                    blocks[b].schedule.getOperatorCount() != schedule.getOperatorCount()) {
+                throw new RuntimeException("The copy of the marginal likelihood estimator does not match the original");
+            }
+            blocks[b].burnin = burnin;
+            for (int i = 0; i < loggers.size(); i++) {
+                buffers[b][i] = new SampleBuffer(loggers.get(i).getColumnCount() + 1);
+                blocks[b].loggers.get(i).setFormatters(new ArrayList<LogFormatter>(Collections.singletonList(buffers[b][i])));
+                blocks[b].loggers.get(i).startLogging();
+            }
+            blocks[b].mc.addMarkovChainListener(blocks[b].chainListener);
+        }
+
+        blocks[0].copyState(this);
+        ((CombinedOperatorSchedule) schedule).reset();
+        for (int b = 1; b < blockCount; b++) {
+            for (int i = blockStart[b - 1]; i < blockStart[b]; i++) {
+                System.out.println("Equilibrating theta (" + (i + 1) + ") = " + pathParameters.get(i) + " for " + burnin + " burnin.");
+                runPathParameter(pathParameters.get(i), 0);
+            }
+            blocks[b].copyState(this);
+        }
+
+        SharedThreadPool.getPool().invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+                for (int b = 0; b < blockCount; b++) {
+                    final int block = b;
+                    tasks.add(new RecursiveAction() {
+                        @Override
+                        protected void compute() {
+                            // each block draws from its own random number stream, so its samples don't depend
+                            // on how the blocks are scheduled, and the thread then goes back to the stream it had
+                            final int previousStream = MathUtils.getStreamIndex();
+                            MathUtils.useStream(block);
+                            try {
+                                blocks[block].integrate(pathParameters, blockStart[block], blockStart[block + 1], scheme.pathSteps);
+                            } finally {
+                                if (previousStream >= 0) {
+                                    MathUtils.useStream(previousStream);
+                                } else {
+                                    MathUtils.useDefaultStream();
+                                }
+                            }
+                        }
+                    });
+                }
+                invokeAll(tasks);
+            }
+        });
 
-            for (int i = 0; i < schedule.getOperatorCount(); ++i) {
-                MCMCOperator operator = schedule.getOperator(i);
-                if (operator instanceof PathDependent) {
-                    ((PathDependent)operator).setPathParameter(pathParameter);
+        for (int i = 0; i < loggers.size(); i++) {
+            for (LogFormatter formatter : loggers.get(i).getFormatters()) {
+                for (int b = 0; b < blockCount; b++) {
+                    for (String[] values : buffers[b][i].samples) {
+                        formatter.logValues(values);
+                    }
+                }
+                if (formatter instanceof TabDelimitedFormatter) {
+                    ((TabDelimitedFormatter) formatter).flush();
                 }
             }
+        }
+    }
+
+    private void integrate(List<Double> pathParameters, int first, int last, int totalSteps) {
+        // continue the state count from the blocks before, as a sequential run would
+        mc.setCurrentLength(burnin + first * chainLength);
+        ((CombinedOperatorSchedule) schedule).reset();
+        for (int i = first; i < last; i++) {
+            reportIteration(pathParameters.get(i), chainLength, burnin, totalSteps, i + 1);
+            runPathParameter(pathParameters.get(i), chainLength);
+        }
+    }
 
-            long cl = mc.getCurrentLength();
-            mc.setCurrentLength(0);
-            mc.runChain(burnin, false/*, 0*/);
-            mc.setCurrentLength(cl);
-            mc.runChain(chainLength, false);
+    /**
+     * Runs the burnin and then (if length > 0) the logged part of the chain for one path parameter.
+     */
+    private void runPathParameter(double pathParameter, long length) {
+        this.pathParameter = pathParameter;
+        pathLikelihood.setPathParameter(pathParameter);
 
-            if (SHOW_OPERATOR_ANALYSIS) {
-            	OperatorAnalysisPrinter.showOperatorAnalysis(System.out, schedule, false);
+        for (int i = 0; i < schedule.getOperatorCount(); ++i) {
+            MCMCOperator operator = schedule.getOperator(i);
+            if (operator instanceof PathDependent) {
+                ((PathDependent)operator).setPathParameter(pathParameter);
+            }
+        }
+
+        long cl = mc.getCurrentLength();
+        mc.setCurrentLength(0);
+        mc.runChain(burnin, false/*, 0*/);
+        mc.setCurrentLength(cl);
+        if (length > 0) {
+            mc.runChain(length, false);
+        }
+
+        if (SHOW_OPERATOR_ANALYSIS) {
+            OperatorAnalysisPrinter.showOperatorAnalysis(System.out, schedule, false);
+        }
+        ((CombinedOperatorSchedule) schedule).reset();
+    }
+
+    /**
+     * Copies the state of another estimator's model (with the same structure), i.e., the values of its
+     * parameters and the trees, and the tuning of its operators.
+     */
+    private void copyState(MarginalLikelihoodEstimator source) {
+        copyState(source.pathLikelihood.getModel(), pathLikelihood.getModel(),
+                Collections.newSetFromMap(new IdentityHashMap<Model, Boolean>()));
+
+        for (int i = 0; i < schedule.getOperatorCount(); i++) {
+            MCMCOperator operator = schedule.getOperator(i);
+            if (operator instanceof AdaptableMCMCOperator) {
+                ((AdaptableMCMCOperator) operator).setAdaptableParameter(
+                        ((AdaptableMCMCOperator) source.schedule.getOperator(i)).getAdaptableParameter());
+            }
+        }
+
+        pathLikelihood.makeDirty();
+    }
+
+    private static void copyState(Model source, Model target, Set<Model> visited) {
+        if (!visited.add(target)) {
+            return;
+        }
+        if (source.getModelCount() != target.getModelCount() || source.getVariableCount() != target.getVariableCount()) {
+            throw new RuntimeException("The copy of model " + target.getModelName() + " does not match the original");
+        }
+
+        if (target instanceof TreeModel) {
+            TreeModel tree = (TreeModel) target;
+            tree.beginTreeEdit();
+            tree.adoptTreeStructure((TreeModel) source);
+            tree.setRoot(tree.getNode(((TreeModel) source).getRoot().getNumber()));
+            tree.endTreeEdit();
+        }
+
+        for (int i = 0; i < target.getVariableCount(); i++) {
+            if (target.getVariable(i) instanceof Parameter) {
+                Parameter from = (Parameter) source.getVariable(i);
+                Parameter to = (Parameter) target.getVariable(i);
+                if (!to.isImmutable()) {
+                    for (int dim = 0; dim < Math.min(from.getDimension(), to.getDimension()); dim++) {
+                        if (to.getParameterValue(dim) != from.getParameterValue(dim)) {
+                            to.setParameterValue(dim, from.getParameterValue(dim));
+                        }
+                    }
+                }
             }
-            ((CombinedOperatorSchedule) schedule).reset();
+        }
+
+        for (int i = 0; i < target.getModelCount(); i++) {
+            copyState(source.getModel(i), target.getModel(i), visited);
         }
     }
 
+    /**
+     * Collects the logged values of a block, to be written to the original loggers in path order.
+     */
+    private static class SampleBuffer implements LogFormatter {
+        private final int valueCount;
+        private final List<String[]> samples = new ArrayList<String[]>();
+
+        SampleBuffer(int valueCount) {
+            this.valueCount = valueCount;
+        }
+
+        public void logValues(String[] values) {
+            // a copy, as the values may be reused, without any performance report
+            samples.add(Arrays.copyOf(values, valueCount));
+        }
+
+        public void startLogging(String title) { }
+
+        public void logHeading(String heading) { }
+
+        public void logLine(String line) { }
+
+        public void logLabels(String[] labels) { }
+
+        public void stopLogging() { }
+    }
+
     public abstract class Integrator {
         protected int step;
         protected int pathSteps;
@@ -481,6 +689,37 @@ public class MarginalLikelihoodEstimator implements Runnable, Identifiable, Cita
         this.spawnable = spawnable;
     }
 
+    public void setThreadCount(int threadCount) {
+        this.threadCount = threadCount;
+    }
+
+    public int getThreadCount() {
+        return threadCount;
+    }
+
+    public void setIndex(int index) {
+        this.index = index;
+    }
+
+    public void setReplicaFactory(ReplicaFactory replicaFactory) {
+        this.replicaFactory = replicaFactory;
+    }
+
+    public List<MCLogger> getLoggers() {
+        return loggers;
+    }
+
+    /**
+     * Creates independent copies of the estimator, each with its own copy of the model, to run the
+     * blocks of path parameters in parallel.
+     */
+    public interface ReplicaFactory {
+        /**
+         * @param index the position of the estimator among those in the XML file
+         */
+        MarginalLikelihoodEstimator createReplica(int index);
+    }
+
     public void setAlphaFactor(double alpha) {
         alphaFactor = alpha;
     }
@@ -498,7 +737,19 @@ public class MarginalLikelihoodEstimator implements Runnable, Identifiable, Cita
     }
 
     //PRIVATE METHODS *****************************************
-    public static XMLObjectParser PARSER = new AbstractXMLObjectParser() {
+    public static XMLObjectParser PARSER = new Parser(null);
+
+    /**
+     * The parser for the estimator. BeastMain replaces the default one with one that has a factory for
+     * the copies of the model, so that the path parameters can be run in parallel.
+     */
+    public static class Parser extends AbstractXMLObjectParser {
+
+        private final ReplicaFactory replicaFactory;
+
+        public Parser(ReplicaFactory replicaFactory) {
+            this.replicaFactory = replicaFactory;
+        }
 
         public String getParserName() {
             return MARGINAL_LIKELIHOOD_ESTIMATOR;
@@ -605,6 +856,17 @@ public class MarginalLikelihoodEstimator implements Runnable, Identifiable, Cita
                 mle.setBetaFactor(xo.getAttribute(BETA, 0.5));
             }
 
+            mle.setThreadCount(xo.getAttribute(THREADS, 1));
+            mle.setReplicaFactory(replicaFactory);
+            if (xo.getElement() != null) {
+                NodeList estimators = xo.getElement().getOwnerDocument().getElementsByTagName(MARGINAL_LIKELIHOOD_ESTIMATOR);
+                for (int i = 0; i < estimators.getLength(); i++) {
+                    if (estimators.item(i) == xo.getElement()) {
+                        mle.setIndex(i);
+                    }
+                }
+            }
+
             String alphaBetaText = "";
             if (scheme == PathScheme.ONE_SIDED_BETA) {
                 alphaBetaText += "(1," + mle.getBetaFactor() + ")";
@@ -618,7 +880,8 @@ public class MarginalLikelihoodEstimator implements Runnable, Identifiable, Cita
             java.util.logging.Logger.getLogger("dr.inference").info("\nCreating the Marginal Likelihood Estimator chain:" +
                     "\n  chainLength=" + chainLength +
                     "\n  pathSteps=" + pathSteps +
-                    "\n  pathScheme=" + scheme.getText() + alphaBetaText); //+
+                    "\n  pathScheme=" + scheme.getText() + alphaBetaText +
+                    (mle.getThreadCount() > 1 ? "\n  threads=" + mle.getThreadCount() : "")); //+
                     //"\n  If you use these results, please cite:" +
                     //"\n    Guy Baele, Philippe Lemey, Trevor Bedford, Andrew Rambaut, Marc A. Suchard, and Alexander V. Alekseyenko." +
                     //"\n    2012. Improving the accuracy of demographic and molecular clock model comparison while accommodating " +
@@ -658,6 +921,8 @@ public class MarginalLikelihoodEstimator implements Runnable, Identifiable, Cita
                 AttributeRule.newDoubleArrayRule(FIXED_VALUE, true),
                 AttributeRule.newDoubleRule(ALPHA, true),
                 AttributeRule.newDoubleRule(BETA, true),
+                AttributeRule.newIntegerRule(THREADS, true,
+                        "The number of blocks of path parameters to run in parallel, each on its own copy of the model"),
                 new ElementRule(MCMC,
                         new XMLSyntaxRule[]{new ElementRule(MCMC.class, 1, Integer.MAX_VALUE)}, false),
                 //new ElementRule(MCMC.class),
@@ -665,7 +930,7 @@ public class MarginalLikelihoodEstimator implements Runnable, Identifiable, Cita
                 new ElementRule(MCLogger.class, 1, Integer.MAX_VALUE)
         };
 
-    };
+    }
 
     public String getId() {
         return id;
@@ -728,6 +993,9 @@ public class MarginalLikelihoodEstimator implements Runnable, Identifiable, Cita
     private double[] fixedRunValues;
     private final double pathDelta;
     private double pathParameter;
+    private int threadCount = 1;
+    private int index = 0;
+    private ReplicaFactory replicaFactory = null;
 
     private final List<MCLogger> loggers;
 
@@ -748,6 +1016,7 @@ public class MarginalLikelihoodEstimator implements Runnable, Identifiable, Cita
     public static final String BETA = "beta";
     public static final String PRERUN = "prerun";
     public static final String PRINT_OPERATOR_ANALYSIS = "printOperatorAnalysis";
+    public static final String THREADS = "threads";
     
     private static boolean SHOW_OPERATOR_ANALYSIS = false;
 }
\ No newline at end of file
@@ -42,8 +42,11 @@ import dr.inference.operators.OperatorSchedule;
 import dr.math.MathUtils;
 import dr.util.NumberFormatter;
 
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.Phaser;
 
 /**
  * An MCMC analysis that estimates parameters of a probabilistic model.
@@ -118,7 +121,7 @@ public class MCMCMC implements Runnable {
 //        }
 
         MCLogger[] coldChainLoggers = mcLoggers[coldChain];
-        List<LogFormatter>[] logFormatters = new List[coldChainLoggers.length];
+        logFormatters = new List[coldChainLoggers.length];
 
         for (int i = 0; i < coldChainLoggers.length; i++) {
             // Start the logging for the cold chain
@@ -139,90 +142,245 @@ public class MCMCMC implements Runnable {
 
         chains[coldChain].addMarkovChainListener(chainListener);
 
+        if (mcmcmcOptions.useAdjacentSwaps()) {
+            swapPoint = new AdjacentSwapPoint();
+        } else {
+            swapPoint = new BarrierSwapPoint();
+        }
+
+        // each chain runs on its own thread for the whole analysis
         MCMCMCRunner[] threads = new MCMCMCRunner[chains.length];
         for (int i = 0; i < chains.length; i++) {
-            threads[i] = new MCMCMCRunner(chains[i], mcmcmcOptions.getSwapChainsEvery(), getChainLength(), false);
+            threads[i] = new MCMCMCRunner(i, chains[i], mcmcmcOptions.getSwapChainsEvery(), getChainLength(), false,
+                    swapPoint);
             threads[i].start();
         }
 
-        while (chains[coldChain].getCurrentLength() < getChainLength()) {
+        joinAll(threads);
+
+        finish();
+
+        timer.stop();
+    }
+
+    private void runChains(long length, boolean disableCoerce) {
+
+        Thread[] threads = new Thread[chains.length];
+        for (int i = 0; i < chains.length; i++) {
+            threads[i] = new MCMCMCRunner(i, chains[i], length, length, false, null);
+            threads[i].start();
+        }
 
-            // wait for all the threads to complete their alloted chain length
-            boolean allDone;
-            do {
+        joinAll(threads);
+    }
+
+    private static void joinAll(Thread[] threads) {
+        // wait for all threads collected to die
+        for (Thread thread : threads) {
+            // wait doggedly for thread to die
+            while (thread.isAlive()) {
                 try {
-                    Thread.sleep(10);
-                } catch (InterruptedException e) {
-                    //
+                    thread.join();
+                } catch (InterruptedException ie) {
+                    // DO NOTHING
                 }
+            }
+        }
+    }
 
-                allDone = true;
-                for (int i = 0; i < chains.length; i++) {
-                    if (!threads[i].isChainDone()) {
-                        allDone = false;
-                    }
-                }
-            } while (!allDone);
+    /**
+     * Moves the logging (the listener and the log destinations) from one chain to another
+     * when the cold chain changes. Neither chain can be running when this is called.
+     */
+    private void setColdChain(int newColdChain) {
+        int oldColdChain = coldChain;
+        if (newColdChain == oldColdChain) {
+            return;
+        }
 
-            if (chains[coldChain].getCurrentLength() < getChainLength()) {
-                int oldColdChain = coldChain;
+        chains[oldColdChain].removeMarkovChainListener(chainListener);
 
-                // attempt to swap two chains' temperatures
-                coldChain = swapChainTemperatures();
+        // Set the new cold chain's loggers with the formatters (destinations) of
+        // the original cold chain
+        for (int i = 0; i < mcLoggers[newColdChain].length; i++) {
+            mcLoggers[newColdChain][i].setFormatters(logFormatters[i]);
+        }
 
-                // if the cold chain was involved in a swap then we need to change the
-                // listener that does the logging and the destinations for the coldChainLoggers.
-                if (coldChain != oldColdChain) {
+        // Set the old cold chain to have null log formatters...
+        for (int i = 0; i < mcLoggers[oldColdChain].length; i++) {
+            mcLoggers[oldColdChain][i].setFormatters(Collections.EMPTY_LIST);
+        }
 
-                    chains[oldColdChain].removeMarkovChainListener(chainListener);
+        coldChain = newColdChain;
 
-                    // Set the new cold chain's loggers with the formatters (destinations) of
-                    // the original cold chain
-                    for (int i = 0; i < mcLoggers[coldChain].length; i++) {
-                        mcLoggers[coldChain][i].setFormatters(logFormatters[i]);
-                    }
+        chains[newColdChain].addMarkovChainListener(chainListener);
+    }
 
-                    // Set the old cold chain to have null log formatters...
-                    for (int i = 0; i < mcLoggers[oldColdChain].length; i++) {
-                        mcLoggers[oldColdChain][i].setFormatters(Collections.EMPTY_LIST);
+    /**
+     * All the chains wait at a reusable barrier after each interval and the last to arrive
+     * attempts a swap between a random pair of chains.
+     */
+    private class BarrierSwapPoint implements MCMCMCRunner.SwapPoint {
+
+        private final Phaser barrier = new Phaser(chains.length) {
+            @Override
+            protected boolean onAdvance(int phase, int registeredParties) {
+                if (!stopped) {
+                    // the swaps have a stream of their own as the last chain to arrive is arbitrary
+                    int chainStream = MathUtils.getStreamIndex();
+                    MathUtils.useStream(chains.length);
+                    try {
+                        // attempt to swap two chains' temperatures
+                        setColdChain(swapChainTemperatures());
+                    } finally {
+                        if (chainStream >= 0) {
+                            MathUtils.useStream(chainStream);
+                        } else {
+                            MathUtils.useDefaultStream();
+                        }
                     }
+                }
+                return false;
+            }
+        };
 
-                    chains[coldChain].addMarkovChainListener(chainListener);
+        public boolean awaitSwap(int chain, int interval) {
+            if (stopped) {
+                return false;
+            }
+            // returns immediately once the barrier has been terminated
+            barrier.arriveAndAwaitAdvance();
+            return !stopped;
+        }
 
-                }
+        void stop() {
+            // releases any chains that are waiting
+            barrier.forceTermination();
+        }
+    }
 
-                for (int i = 0; i < chains.length; i++) {
-                    threads[i].continueChain();
+    /**
+     * Swaps are attempted between chains with adjacent temperatures, pairing the temperatures
+     * (0,1), (2,3)... after even intervals and (1,2), (3,4)... after odd ones. Each chain only
+     * waits for its partner (if it has one) so a slow chain only holds up the chain it is paired
+     * with rather than all the others.
+     */
+    private class AdjacentSwapPoint implements MCMCMCRunner.SwapPoint {
+
+        AdjacentSwapPoint() {
+            // rank the chains from cold to hottest
+            Integer[] order = new Integer[chains.length];
+            for (int i = 0; i < chains.length; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, new Comparator<Integer>() {
+                public int compare(Integer i1, Integer i2) {
+                    return Double.compare(getTemperature(i2), getTemperature(i1));
                 }
+            });
+
+            chainAtRank = new int[chains.length];
+            rankOfChain = new int[chains.length];
+            for (int rank = 0; rank < chains.length; rank++) {
+                chainAtRank[rank] = order[rank];
+                rankOfChain[order[rank]] = rank;
             }
 
+            pairs = new Pair[chains.length - 1];
+            for (int rank = 0; rank < pairs.length; rank++) {
+                pairs[rank] = new Pair(rank);
+            }
         }
 
-        finish();
+        public boolean awaitSwap(int chain, int interval) throws InterruptedException {
+            if (stopped) {
+                return false;
+            }
 
-        timer.stop();
-    }
+            // the rank of a chain only changes while it is waiting here
+            int rank = rankOfChain[chain];
+            int lowerRank = (rank % 2 == interval % 2 ? rank : rank - 1);
+            if (lowerRank < 0 || lowerRank >= pairs.length) {
+                return true;
+            }
 
-    private void runChains(long length, boolean disableCoerce) {
+            return pairs[lowerRank].await(interval);
+        }
 
-        Thread[] threads = new Thread[chains.length];
-        for (int i = 0; i < chains.length; i++) {
-            threads[i] = new MCMCMCRunner(chains[i], length, length, false);
-            threads[i].start();
+        void stop() {
+            for (Pair pair : pairs) {
+                synchronized (pair) {
+                    pair.notifyAll();
+                }
+            }
         }
 
-        // wait for all threads collected to die
-        for (int i = 0; i < chains.length; i++) {
-            // wait doggedly for thread to die
-            while (threads[i].isAlive()) {
-                try {
-                    threads[i].join();
-                } catch (InterruptedException ie) {
-                    // DO NOTHING
+        private class Pair {
+
+            Pair(int lowerRank) {
+                this.lowerRank = lowerRank;
+            }
+
+            synchronized boolean await(int interval) throws InterruptedException {
+                if (!waiting) {
+                    // wait for the other chain to arrive and attempt the swap
+                    waiting = true;
+                    while (completedInterval != interval && !stopped) {
+                        wait();
+                    }
+                    return !stopped;
                 }
+
+                if (!stopped) {
+                    int chain1 = chainAtRank[lowerRank];
+                    int chain2 = chainAtRank[lowerRank + 1];
+
+                    // each pair has its own stream so the swaps don't depend on which chain
+                    // of the pair arrives last
+                    int chainStream = MathUtils.getStreamIndex();
+                    MathUtils.useStream(chains.length + 1 + lowerRank);
+                    boolean swapped;
+                    try {
+                        swapped = swapChainTemperatures(chain1, chain2);
+                    } finally {
+                        if (chainStream >= 0) {
+                            MathUtils.useStream(chainStream);
+                        } else {
+                            MathUtils.useDefaultStream();
+                        }
+                    }
+
+                    if (swapped) {
+                        chainAtRank[lowerRank] = chain2;
+                        chainAtRank[lowerRank + 1] = chain1;
+                        rankOfChain[chain1] = lowerRank + 1;
+                        rankOfChain[chain2] = lowerRank;
+
+                        if (lowerRank == 0) {
+                            setColdChain(chain2);
+                        }
+                    }
+                }
+
+                waiting = false;
+                completedInterval = interval;
+                notifyAll();
+
+                return !stopped;
             }
 
+            private final int lowerRank;
+            private boolean waiting = false;
+            private int completedInterval = -1;
         }
+
+        private final int[] chainAtRank;
+        private final int[] rankOfChain;
+        private final Pair[] pairs;
+    }
+
+    private double getTemperature(int chain) {
+        return ((MCMCCriterion) chains[chain].getAcceptor()).getTemperature();
     }
 
     private int swapChainTemperatures() {
@@ -250,6 +408,25 @@ public class MCMCMC implements Runnable {
             index2 = MathUtils.nextInt(chains.length);
         }
 
+        if (swapChainTemperatures(index1, index2)) {
+            if (index1 == coldChain) {
+                newColdChain = index2;
+            } else if (index2 == coldChain) {
+                newColdChain = index1;
+            }
+        }
+
+        return newColdChain;
+    }
+
+    /**
+     * Attempts to swap the temperatures (and operator tuning) of two chains. Neither chain can
+     * be running when this is called.
+     *
+     * @return true if the temperatures were swapped
+     */
+    private boolean swapChainTemperatures(int index1, int index2) {
+
         double score1 = chains[index1].getCurrentScore();
         MCMCCriterion acceptor1 = ((MCMCCriterion) chains[index1].getAcceptor());
         double temperature1 = acceptor1.getTemperature();
@@ -293,15 +470,9 @@ public class MCMCMC implements Runnable {
                     ((AdaptableMCMCOperator) operator2).setAdaptableParameter(tmp2);
                 }
             }
-
-            if (index1 == coldChain) {
-                newColdChain = index2;
-            } else if (index2 == coldChain) {
-                newColdChain = index1;
-            }
         }
 
-        return newColdChain;
+        return swap;
     }
 
     private void resetChains() {
@@ -438,9 +609,15 @@ public class MCMCMC implements Runnable {
      * Requests that the MCMC chain stop prematurely.
      */
     public void pleaseStop() {
+        stopped = true;
         for (MarkovChain chain : chains) {
             chain.pleaseStop();
         }
+        if (swapPoint instanceof BarrierSwapPoint) {
+            ((BarrierSwapPoint) swapPoint).stop();
+        } else if (swapPoint instanceof AdjacentSwapPoint) {
+            ((AdjacentSwapPoint) swapPoint).stop();
+        }
     }
 
     public void setShowOperatorAnalysis(boolean soa) {
@@ -459,6 +636,12 @@ public class MCMCMC implements Runnable {
     private final MarkovChain[] chains;
     private final MCLogger[][] mcLoggers;
     private final OperatorSchedule[] schedules;
-    private int coldChain;
+    private volatile int coldChain;
+
+    // the destinations of the cold chain's loggers
+    private List<LogFormatter>[] logFormatters;
+
+    private volatile MCMCMCRunner.SwapPoint swapPoint = null;
+    private volatile boolean stopped = false;
 }
 
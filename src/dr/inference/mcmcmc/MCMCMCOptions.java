@@ -38,9 +38,23 @@ package dr.inference.mcmcmc;
  */
 public class MCMCMCOptions {
 
+    public static final String ADJACENT_SWAPS_PROPERTY = "mc3.adjacent.swaps";
+
     public MCMCMCOptions(final double[] temperatures, final int swapChainsEvery) {
+        this(temperatures, swapChainsEvery, Boolean.getBoolean(ADJACENT_SWAPS_PROPERTY));
+    }
+
+    /**
+     * @param temperatures    the chain temperatures (the first must be 1.0)
+     * @param swapChainsEvery the number of states between swap attempts
+     * @param adjacentSwaps   if true then swaps are only attempted between chains with adjacent
+     *                        temperatures and each pair of chains only waits for each other (rather
+     *                        than all the chains stopping for a swap between a random pair)
+     */
+    public MCMCMCOptions(final double[] temperatures, final int swapChainsEvery, final boolean adjacentSwaps) {
         this.temperatures = temperatures;
         this.swapChainsEvery = swapChainsEvery;
+        this.adjacentSwaps = adjacentSwaps;
     }
 
 
@@ -52,6 +66,11 @@ public class MCMCMCOptions {
         return swapChainsEvery;
     }
 
+    public boolean useAdjacentSwaps() {
+        return adjacentSwaps;
+    }
+
     private final double[] temperatures;
     private final int swapChainsEvery;
+    private final boolean adjacentSwaps;
 }
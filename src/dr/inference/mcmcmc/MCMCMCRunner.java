@@ -26,64 +26,74 @@
 package dr.inference.mcmcmc;
 
 import dr.inference.markovchain.MarkovChain;
+import dr.math.MathUtils;
 
 /**
+ * Runs one chain of an MCMCMC analysis for the whole run. After each swap interval the
+ * chain waits at a SwapPoint for a swap of temperatures to be attempted.
+ *
  * @author rambaut
  *         Date: Jan 5, 2005
  *         Time: 5:05:59 PM
  */
 public class MCMCMCRunner extends Thread {
 
-    public MCMCMCRunner(MarkovChain markovChain, long length, long totalLength, boolean disableCoerce) {
+    /**
+     * Where chains wait after each swap interval.
+     */
+    public interface SwapPoint {
+
+        /**
+         * Called by a chain when it has finished a swap interval. Returns once the chain's
+         * swap (if any) has been attempted.
+         *
+         * @param chain    the index of the chain
+         * @param interval the number of the interval the chain has just finished
+         * @return false if the analysis has been stopped
+         * @throws InterruptedException if the thread is interrupted while waiting
+         */
+        boolean awaitSwap(int chain, int interval) throws InterruptedException;
+    }
+
+    public MCMCMCRunner(int chain, MarkovChain markovChain, long length, long totalLength, boolean disableCoerce,
+                        SwapPoint swapPoint) {
 
+        this.chain = chain;
         this.markovChain = markovChain;
         this.length = length;
         this.totalLength = totalLength;
         this.disableCoerce = disableCoerce;
+        this.swapPoint = swapPoint;
     }
 
-	public void run() {
+    public void run() {
+        // the chain draws from its own random number stream
+        MathUtils.useStream(chain);
+
         long i = 0;
+        int interval = 0;
         while (i < totalLength) {
             markovChain.runChain(length, disableCoerce/*, 0*/);
 
             i += length;
 
-	        chainDone();
-
-	        if (i < totalLength) {
-		        while (isChainDone()) {
-			        try {
-				        synchronized(this) {
-					        wait();
-				        }
-			        } catch (InterruptedException e) {
-				        // continue...
-			        }
-		        }
-	        }
+            if (i < totalLength) {
+                try {
+                    if (!swapPoint.awaitSwap(chain, interval)) {
+                        break;
+                    }
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+            interval++;
         }
-	}
-
-	private synchronized void chainDone() {
-		chainDone = true;
-	}
-
-	public synchronized boolean isChainDone() {
-		return chainDone;
-	}
-
-    public synchronized void continueChain() {
-        this.chainDone = false;
-	    notify();
     }
 
-
-	private final MarkovChain markovChain;
-	private final long length;
+    private final int chain;
+    private final MarkovChain markovChain;
+    private final long length;
     private final long totalLength;
     private final boolean disableCoerce;
-
-	private boolean chainDone;
+    private final SwapPoint swapPoint;
 }
-
@@ -129,6 +129,10 @@ public abstract class AbstractModel implements Model, ModelListener, VariableLis
 
     public boolean isVariable() { return true; }
 
+    public long getStateVersion() {
+        return listenerHelper.getStateVersion();
+    }
+
     /**
      * Fires a model changed event.
      */
@@ -231,7 +235,17 @@ public abstract class AbstractModel implements Model, ModelListener, VariableLis
         // todo AR - I am not sure this is required and may be overruling modelChange events on parts of the
         // model. If a parameter changes it should be handleVariableChangedEvent() job to fireModelChanged
         // events
-        listenerHelper.fireModelChanged(this, variable, index);
+        if (!isCoalescingVariableEvents()) {
+            listenerHelper.fireModelChanged(this, variable, index);
+        }
+    }
+
+    /**
+     * @return true whilst the model is gathering the changes to its variables so that it can fire a
+     * single event for them (variable changes are not then passed on to the model's listeners)
+     */
+    protected boolean isCoalescingVariableEvents() {
+        return false;
     }
 
     /**
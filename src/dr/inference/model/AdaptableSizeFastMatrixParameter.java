@@ -158,6 +158,11 @@ public class AdaptableSizeFastMatrixParameter extends FastMatrixParameter {
             super(label);
         }
 
+        @Override
+        public boolean isPlainNumber() {
+            return false;
+        }
+
         protected String getFormattedValue(){
             String fullMatrix = "{";
             for (int i = 0; i <getRowDimension() ; i++) {
@@ -25,8 +25,10 @@
 
 package dr.inference.model;
 
+import dr.util.CostBalancer;
 import dr.util.Keywordable;
 import dr.util.NumberFormatter;
+import dr.util.SharedThreadPool;
 import dr.xml.Reportable;
 
 import java.util.*;
@@ -35,6 +37,16 @@ import java.util.concurrent.*;
 /**
  * A likelihood function which is simply the product of a set of likelihood functions.
  *
+ * If a thread count is given, the component likelihoods that need recalculating are
+ * evaluated in parallel on the process-wide {@link SharedThreadPool}. Only components that
+ * are not known to be up to date (see {@link ThreadAwareLikelihood}) are dispatched; these
+ * are packed into at most threadCount tasks balanced by their measured evaluation time and
+ * the cheapest task is run on the calling thread. For the first few thousand evaluations the
+ * dirty components are packed afresh each time while they are being timed, after which a
+ * longest-processing-time schedule of all the components is fixed and periodically remade
+ * from the recent timings (system properties likelihood.schedule.warmup and
+ * likelihood.schedule.interval).
+ *
  * @author Alexei Drummond
  * @author Andrew Rambaut
  * @version $Id: CompoundLikelihood.java,v 1.19 2005/05/25 09:14:36 rambaut Exp $
@@ -66,15 +78,8 @@ public class CompoundLikelihood implements Likelihood, Profileable, Reportable,
             threadCount = 0;
         }
 
-        if (threadCount > 0) {
-            pool = Executors.newFixedThreadPool(threadCount);
-        } else if (threadCount < 0) {
-            // create a cached thread pool which should create one thread per likelihood...
-            pool = Executors.newCachedThreadPool();
-        } else {
-            // don't use a threadpool (i.e., compute serially)
-            pool = null;
-        }
+        // a thread count of one is the same as computing serially
+        useThreadPool = threadCount > 1;
 
         if (EVALUATION_TIMERS) {
             evaluationTimes = new long[this.likelihoods.size()];
@@ -87,7 +92,7 @@ public class CompoundLikelihood implements Likelihood, Profileable, Reportable,
 
     public CompoundLikelihood(Collection<Likelihood> likelihoods) {
 
-        pool = null;
+        useThreadPool = false;
         threadCount = 0;
 
         int i = 0;
@@ -175,7 +180,7 @@ public class CompoundLikelihood implements Likelihood, Profileable, Reportable,
         return likelihoods;
     }
 
-    public List<Callable<Double>> getLikelihoodCallers() {
+    public List<? extends Callable<Double>> getLikelihoodCallers() {
         return likelihoodCallers;
     }
 
@@ -198,24 +203,11 @@ public class CompoundLikelihood implements Likelihood, Profileable, Reportable,
             return Double.NEGATIVE_INFINITY;
         }
 
-        if (pool == null) {
+        if (!useThreadPool) {
             // Single threaded
             logLikelihood += evaluateLikelihoods(lateLikelihoods);
         } else {
-
-            try {
-                List<Future<Double>> results = pool.invokeAll(likelihoodCallers);
-
-                for (Future<Double> result : results) {
-                    double logL = result.get();
-                    logLikelihood += logL;
-                }
-
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            } catch (ExecutionException e) {
-                e.printStackTrace();
-            }
+            logLikelihood += evaluateLikelihoodsInParallel();
         }
 
 //        if( DEBUG > 0 ) {
@@ -261,6 +253,144 @@ public class CompoundLikelihood implements Likelihood, Profileable, Reportable,
         return logLikelihood;
     }
 
+    private double evaluateLikelihoodsInParallel() {
+        final int callerCount = likelihoodCallers.size();
+
+        if (evaluationTasks == null) {
+            int taskCount = Math.min(threadCount, callerCount);
+            evaluationTasks = new EvaluationTask[taskCount];
+            for (int i = 0; i < taskCount; i++) {
+                evaluationTasks[i] = new EvaluationTask(callerCount);
+            }
+            dirtyCallers = new int[callerCount];
+            dirtyCosts = new double[callerCount];
+            scheduleCosts = new double[callerCount];
+            packingOrder = new int[callerCount];
+            taskAssignment = new int[callerCount];
+            taskLoads = new double[taskCount];
+        }
+
+        parallelEvaluationCount++;
+        if (parallelEvaluationCount == SCHEDULE_WARM_UP ||
+                (taskSchedule != null && parallelEvaluationCount - lastScheduleCount >= SCHEDULE_INTERVAL)) {
+            updateTaskSchedule();
+        }
+
+        double logLikelihood = 0.0;
+
+        // likelihoods that are already known just return their cached values
+        int dirtyCount = 0;
+        for (int i = 0; i < callerCount; i++) {
+            LikelihoodCaller caller = likelihoodCallers.get(i);
+            if (caller.isLikelihoodKnown()) {
+                logLikelihood += caller.likelihood.getLogLikelihood();
+            } else {
+                dirtyCallers[dirtyCount] = i;
+                dirtyCosts[dirtyCount] = caller.getMeanCost();
+                dirtyCount++;
+            }
+        }
+
+        if (dirtyCount == 0) {
+            return logLikelihood;
+        }
+
+        if (dirtyCount == 1) {
+            return logLikelihood + likelihoodCallers.get(dirtyCallers[0]).evaluate();
+        }
+
+        final int taskCount;
+        if (taskSchedule == null) {
+            // still timing the likelihoods so pack the dirty ones afresh
+            taskCount = Math.min(dirtyCount, evaluationTasks.length);
+            CostBalancer.pack(dirtyCosts, dirtyCount, taskCount, packingOrder, taskLoads, taskAssignment);
+        } else {
+            // follow the fixed schedule - tasks with no dirty likelihoods are left idle
+            taskCount = evaluationTasks.length;
+            for (int t = 0; t < taskCount; t++) {
+                taskLoads[t] = 0.0;
+            }
+            for (int i = 0; i < dirtyCount; i++) {
+                taskAssignment[i] = taskSchedule[dirtyCallers[i]];
+                taskLoads[taskAssignment[i]] += dirtyCosts[i];
+            }
+        }
+
+        for (int t = 0; t < taskCount; t++) {
+            evaluationTasks[t].clear();
+        }
+        for (int i = 0; i < dirtyCount; i++) {
+            evaluationTasks[taskAssignment[i]].add(dirtyCallers[i]);
+        }
+
+        // the cheapest task is run on this thread, the rest are handed to the shared pool
+        int localTask = -1;
+        for (int t = 0; t < taskCount; t++) {
+            if (evaluationTasks[t].size > 0 && (localTask < 0 || taskLoads[t] < taskLoads[localTask])) {
+                localTask = t;
+            }
+        }
+
+        final ForkJoinPool pool = SharedThreadPool.getPool();
+        final Thread thread = Thread.currentThread();
+        final boolean inPool = thread instanceof ForkJoinWorkerThread &&
+                ((ForkJoinWorkerThread) thread).getPool() == pool;
+
+        for (int t = 0; t < taskCount; t++) {
+            EvaluationTask task = evaluationTasks[t];
+            if (t != localTask && task.size > 0) {
+                task.reinitialize();
+                if (inPool) {
+                    task.fork();
+                } else {
+                    pool.execute(task);
+                }
+            }
+        }
+
+        evaluationTasks[localTask].evaluate();
+        logLikelihood += evaluationTasks[localTask].logLikelihood;
+
+        for (int t = 0; t < taskCount; t++) {
+            EvaluationTask task = evaluationTasks[t];
+            if (t != localTask && task.size > 0) {
+                task.join();
+                logLikelihood += task.logLikelihood;
+            }
+        }
+
+        return logLikelihood;
+    }
+
+    /**
+     * Packs all the likelihoods onto the tasks by longest-processing-time using the mean
+     * evaluation times measured since the last schedule was made. This schedule is then
+     * kept fixed until the next update.
+     */
+    private void updateTaskSchedule() {
+        final int callerCount = likelihoodCallers.size();
+        final int taskCount = evaluationTasks.length;
+
+        if (taskSchedule == null) {
+            taskSchedule = new int[callerCount];
+        }
+
+        for (int i = 0; i < callerCount; i++) {
+            LikelihoodCaller caller = likelihoodCallers.get(i);
+            scheduleCosts[i] = caller.getRecentCost();
+            caller.resetRecentCost();
+        }
+
+        CostBalancer.pack(scheduleCosts, callerCount, taskCount, packingOrder, taskLoads, taskSchedule);
+
+        lastScheduleCount = parallelEvaluationCount;
+
+        if (DEBUG_PARALLEL_EVALUATION) {
+            System.err.println("Likelihood schedule for " + getId() + ": " + Arrays.toString(taskSchedule) +
+                    " loads (ns): " + Arrays.toString(taskLoads));
+        }
+    }
+
     public void makeDirty() {
         for( Likelihood likelihood : likelihoods ) {
             likelihood.makeDirty();
@@ -515,7 +645,7 @@ public class CompoundLikelihood implements Likelihood, Profileable, Reportable,
 
     private final int threadCount;
 
-    private final ExecutorService pool;
+    private final boolean useThreadPool;
 
     private final ArrayList<Likelihood> likelihoods = new ArrayList<Likelihood>();
     private final CompoundModel compoundModel = new CompoundModel("compoundModel");
@@ -523,7 +653,25 @@ public class CompoundLikelihood implements Likelihood, Profileable, Reportable,
     private final ArrayList<Likelihood> earlyLikelihoods = new ArrayList<Likelihood>();
     private final ArrayList<Likelihood> lateLikelihoods = new ArrayList<Likelihood>();
 
-    private final List<Callable<Double>> likelihoodCallers = new ArrayList<Callable<Double>>();
+    private final List<LikelihoodCaller> likelihoodCallers = new ArrayList<LikelihoodCaller>();
+
+    // number of parallel evaluations for which the likelihoods are timed before a fixed schedule
+    // is made and the interval after which it is remade
+    private static final long SCHEDULE_WARM_UP = Long.parseLong(System.getProperty("likelihood.schedule.warmup", "2000"));
+    private static final long SCHEDULE_INTERVAL = Long.parseLong(System.getProperty("likelihood.schedule.interval", "10000"));
+
+    private long parallelEvaluationCount = 0;
+    private long lastScheduleCount = 0;
+    private int[] taskSchedule = null;
+
+    // preallocated work space for the parallel evaluation
+    private EvaluationTask[] evaluationTasks = null;
+    private int[] dirtyCallers;
+    private double[] dirtyCosts;
+    private double[] scheduleCosts;
+    private int[] packingOrder;
+    private int[] taskAssignment;
+    private double[] taskLoads;
 
     class LikelihoodCaller implements Callable<Double> {
 
@@ -533,21 +681,104 @@ public class CompoundLikelihood implements Likelihood, Profileable, Reportable,
         }
 
         public Double call() throws Exception {
+            return evaluate();
+        }
+
+        public double evaluate() {
             if (DEBUG_PARALLEL_EVALUATION) {
                 System.err.print("Invoking thread #" + index + " for " + likelihood.getId() + ": ");
             }
+            long time = System.nanoTime();
+            double logL = likelihood.getLogLikelihood();
+            time = System.nanoTime() - time;
+
+            totalTime += time;
+            evaluationCount++;
+            recentTime += time;
+            recentCount++;
+
             if (EVALUATION_TIMERS) {
-                long time = System.nanoTime();
-                double logL = likelihood.getLogLikelihood();
-                evaluationTimes[index] += System.nanoTime() - time;
+                evaluationTimes[index] += time;
                 evaluationCounts[index] ++;
-                return logL;
             }
-            return likelihood.getLogLikelihood();
+            return logL;
+        }
+
+        /**
+         * @return the mean evaluation time since the last reset (or the overall mean if not evaluated since)
+         */
+        public double getRecentCost() {
+            if (recentCount == 0) {
+                return getMeanCost();
+            }
+            return (double) recentTime / recentCount;
+        }
+
+        public void resetRecentCost() {
+            recentTime = 0;
+            recentCount = 0;
+        }
+
+        public boolean isLikelihoodKnown() {
+            return ((likelihood instanceof ThreadAwareLikelihood) &&
+                    ((ThreadAwareLikelihood) likelihood).isLikelihoodKnown());
+        }
+
+        /**
+         * @return the mean time (in ns) taken to evaluate this likelihood (1 if not yet evaluated)
+         */
+        public double getMeanCost() {
+            if (evaluationCount == 0) {
+                return 1.0;
+            }
+            return (double) totalTime / evaluationCount;
         }
 
         private final Likelihood likelihood;
         private final int index;
+
+        private long totalTime = 0;
+        private long evaluationCount = 0;
+        private long recentTime = 0;
+        private long recentCount = 0;
+    }
+
+    /**
+     * A reusable task that evaluates a group of likelihood callers and sums the result.
+     */
+    class EvaluationTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        EvaluationTask(int capacity) {
+            callers = new int[capacity];
+        }
+
+        void clear() {
+            size = 0;
+        }
+
+        void add(int caller) {
+            callers[size] = caller;
+            size++;
+        }
+
+        void evaluate() {
+            double sum = 0.0;
+            for (int i = 0; i < size; i++) {
+                sum += likelihoodCallers.get(callers[i]).evaluate();
+            }
+            logLikelihood = sum;
+        }
+
+        @Override
+        protected void compute() {
+            evaluate();
+        }
+
+        private final int[] callers;
+        private int size = 0;
+        private double logLikelihood;
     }
 
     public static final boolean DEBUG_PARALLEL_EVALUATION = false;
@@ -116,6 +116,14 @@ public class CompoundModel implements Model {
 		return true;
 	}
 
+	public long getStateVersion() {
+		long version = 0;
+		for (Model model : models) {
+			version += model.getStateVersion();
+		}
+		return version;
+	}
+
 	public int getVariableCount() { return 0; }
 
 	public Variable getVariable(int index) {
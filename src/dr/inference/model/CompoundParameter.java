@@ -26,6 +26,7 @@
 package dr.inference.model;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.List;
 
 /**
@@ -196,6 +197,38 @@ public class CompoundParameter extends Parameter.Abstract implements VariableLis
         fireParameterChangedEvent(-1, ChangeType.ALL_VALUES_CHANGED);
     }
 
+    /**
+     * Only the sub-parameters with changed values fire events, each one once with the set of
+     * its own dimensions that changed.
+     */
+    public void fireParameterChangedEvent(BitSet changed) {
+        int first = changed.nextSetBit(0);
+        if (first < 0) {
+            return;
+        }
+        if (changed.nextSetBit(first + 1) < 0) {
+            // passed up to the listeners of this parameter as a single change
+            parameters.get(first).fireParameterChangedEvent(pIndex.get(first), ChangeType.VALUE_CHANGED);
+            return;
+        }
+
+        doNotPropagateChangeUp = true;
+        // the dimensions of a sub-parameter are contiguous
+        BitSet subChanged = new BitSet();
+        Parameter subParameter = parameters.get(first);
+        for (int i = first; i >= 0; i = changed.nextSetBit(i + 1)) {
+            if (parameters.get(i) != subParameter) {
+                subParameter.fireParameterChangedEvent(subChanged);
+                subChanged.clear();
+                subParameter = parameters.get(i);
+            }
+            subChanged.set(pIndex.get(i));
+        }
+        subParameter.fireParameterChangedEvent(subChanged);
+        doNotPropagateChangeUp = false;
+        fireParameterChangedEvent(-1, ChangeType.ALL_VALUES_CHANGED);
+    }
+
     public double getParameterValue(int dim) {
         return parameters.get(dim).getParameterValue(pIndex.get(dim));
     }
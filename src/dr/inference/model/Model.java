@@ -110,6 +110,12 @@ public interface Model extends Identifiable, Serializable {
      */
     boolean isUsed();
 
+	/**
+	 * @return a counter that is incremented every time this model fires a change or is restored
+	 *         (changes to sub-models are counted by the sub-models themselves)
+	 */
+	long getStateVersion();
+
     /**
 	 * A helper class for storing listeners and firing events.
 	 */
@@ -124,6 +130,7 @@ public interface Model extends Identifiable, Serializable {
 		}
 
 		public void fireModelChanged(Model model, Object object, int index) {
+			stateVersion++;
 			if (listeners != null) {
                 for (ModelListener listener : listeners) {
                     listener.modelChangedEvent(model, object, index);
@@ -152,6 +159,7 @@ public interface Model extends Identifiable, Serializable {
         }
 
         public void fireModelRestored(Model model) {
+            stateVersion++;
             if (restoreListeners != null) {
                 for (ModelListener listener : restoreListeners ) {
                     listener.modelRestored(model);
@@ -163,9 +171,15 @@ public interface Model extends Identifiable, Serializable {
             return listeners != null ? listeners.size() : 0;
         }
 
+        public long getStateVersion() {
+            return stateVersion;
+        }
+
         private ArrayList<ModelListener> listeners = null;
 
         private ArrayList<ModelListener> restoreListeners = null;
+
+        private long stateVersion = 0;
     }
 
 
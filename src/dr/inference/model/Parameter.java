@@ -68,6 +68,15 @@ public interface Parameter extends Statistic, Variable<Double> {
     void setParameterValueQuietly(int dim, double value);
 
 
+    /**
+     * sets the values in all dimensions of this parameter, without firing any events. Bulk
+     * updates should be followed by a single fireParameterChangedEvent() (or
+     * fireParameterChangedEvent(BitSet) if only some of the values changed).
+     *
+     * @param values the values to set
+     */
+    void setAllParameterValuesQuietly(double[] values);
+
     /**
      * sets the scalar value in the given dimension of this parameter to val,
      * and notifies that values in all dimension have been changed
@@ -168,6 +177,14 @@ public interface Parameter extends Statistic, Variable<Double> {
 
     void fireParameterChangedEvent(int index, Parameter.ChangeType type);
 
+    /**
+     * Fires a single event for a set of changed dimensions (e.g., after a bulk update with
+     * setParameterValueQuietly) rather than an event for each one.
+     *
+     * @param changed the indices of the dimensions that have changed
+     */
+    void fireParameterChangedEvent(BitSet changed);
+
     boolean isUsed();
 
     /**
@@ -225,6 +242,24 @@ public interface Parameter extends Statistic, Variable<Double> {
             fireParameterChangedEvent(-1, Parameter.ChangeType.VALUE_CHANGED);
         }
 
+        /**
+         * Fired when some of the dimensions of the parameter have changed. A single change is
+         * reported by index, more than one as a change to the whole parameter.
+         *
+         * @param changed which dimensions changed
+         */
+        public void fireParameterChangedEvent(BitSet changed) {
+            int first = changed.nextSetBit(0);
+            if (first < 0) {
+                return;
+            }
+            if (changed.nextSetBit(first + 1) < 0) {
+                fireParameterChangedEvent(first, Parameter.ChangeType.VALUE_CHANGED);
+            } else {
+                fireParameterChangedEvent();
+            }
+        }
+
         /**
          * Fired when a single dimension of the parameter has changed
          *
@@ -232,6 +267,7 @@ public interface Parameter extends Statistic, Variable<Double> {
          * @param type  the type of parameter change event
          */
         public void fireParameterChangedEvent(int index, Parameter.ChangeType type) {
+            stateVersion++;
             if (listeners != null) {
                 for (VariableListener listener : listeners) {
                     listener.variableChangedEvent(this, index, type);
@@ -239,6 +275,12 @@ public interface Parameter extends Statistic, Variable<Double> {
             }
         }
 
+        public void setAllParameterValuesQuietly(double[] values) {
+            for (int i = 0; i < values.length; i++) {
+                setParameterValueQuietly(i, values[i]);
+            }
+        }
+
         public final void addParameterListener(VariableListener listener) {
             if (listeners == null) {
                 listeners = new ArrayList<VariableListener>();
@@ -305,6 +347,7 @@ public interface Parameter extends Statistic, Variable<Double> {
         public final void restoreParameterValues() {
             if (!isValid) {
                 restoreValues();
+                stateVersion++;
 
                 isValid = true;
             }
@@ -425,6 +468,10 @@ public interface Parameter extends Statistic, Variable<Double> {
             return false;
         }
 
+        public long getStateVersion() {
+            return stateVersion;
+        }
+
         public boolean isUsed() {
             return listeners != null && listeners.size() > 0;
         }
@@ -506,6 +553,8 @@ public interface Parameter extends Statistic, Variable<Double> {
 
         private ArrayList<VariableListener> listeners;
 
+        private long stateVersion = 0;
+
         private String[] dimensionNames = null;
     }
 
@@ -736,6 +785,11 @@ public interface Parameter extends Statistic, Variable<Double> {
         }
 
 
+        @Override
+        public void setAllParameterValuesQuietly(double[] values) {
+            System.arraycopy(values, 0, this.values, 0, values.length);
+        }
+
         /**
          * Sets the values of the parameter and notify that all values of the parameter have changed.
          *
@@ -99,12 +99,19 @@ public interface Variable<V> extends Identifiable {
 
     void addBounds(Bounds<V> bounds);
 
+    /**
+     * @return a counter that is incremented every time this variable fires a change or is restored,
+     *         so anything computed from it is known to be up to date while the counter is unchanged
+     */
+    long getStateVersion();
+
     public abstract class Base<V> implements Variable<V>, Loggable {
         Base(String id) {
             this.id = id;
         }
 
         protected void fireVariableChanged(int index) {
+            stateVersion++;
             for (VariableListener listener : listeners) {
                 listener.variableChangedEvent(this, index, ChangeType.VALUE_CHANGED);
             }
@@ -130,9 +137,15 @@ public interface Variable<V> extends Identifiable {
             return id;
         }
 
+        public long getStateVersion() {
+            return stateVersion;
+        }
+
         protected List<VariableListener> listeners = new ArrayList<VariableListener>();
 
         protected String id;
+
+        private long stateVersion = 0;
     }
 
 
@@ -227,6 +240,7 @@ public interface Variable<V> extends Identifiable {
         }
 
         private void fireVariableChanged(int index) {
+            stateVersion++;
             for (VariableListener listener : listeners) {
                 listener.variableChangedEvent(this, index, ChangeType.VALUE_CHANGED);
             }
@@ -236,6 +250,10 @@ public interface Variable<V> extends Identifiable {
             return values.length;
         }
 
+        public long getStateVersion() {
+            return stateVersion;
+        }
+
         public void addVariableListener(VariableListener listener) {
             listeners.add(listener);
         }
@@ -249,6 +267,7 @@ public interface Variable<V> extends Identifiable {
         }
 
         public void restoreVariableValues() {
+            stateVersion++;
             double[] temp = storedValues;
             storedValues = values;
             values = temp;
@@ -327,6 +346,7 @@ public interface Variable<V> extends Identifiable {
         double[] values;
         double[] storedValues;
         List<VariableListener> listeners = new ArrayList<VariableListener>();
+        private long stateVersion = 0;
         private IntersectionBounds bounds = null;
     }
 
@@ -378,6 +398,7 @@ public interface Variable<V> extends Identifiable {
         }
 
         private void fireVariableChanged(int index) {
+            stateVersion++;
             for (VariableListener listener : listeners) {
                 listener.variableChangedEvent(this, index, ChangeType.VALUE_CHANGED);
             }
@@ -387,6 +408,10 @@ public interface Variable<V> extends Identifiable {
             return values.length;
         }
 
+        public long getStateVersion() {
+            return stateVersion;
+        }
+
         public void addVariableListener(VariableListener listener) {
             listeners.add(listener);
         }
@@ -402,6 +427,7 @@ public interface Variable<V> extends Identifiable {
         }
 
         public void restoreVariableValues() {
+            stateVersion++;
             double[][] temp = storedValues;
             storedValues = values;
             values = temp;
@@ -472,6 +498,7 @@ public interface Variable<V> extends Identifiable {
         double[][] values;
         double[][] storedValues;
         List<VariableListener> listeners = new ArrayList<VariableListener>();
+        private long stateVersion = 0;
         double[] lower;
         double[] upper;
     }
@@ -533,6 +560,7 @@ public interface Variable<V> extends Identifiable {
         }
 
         private void fireVariableChanged(int index) {
+            stateVersion++;
             for (VariableListener listener : listeners) {
                 listener.variableChangedEvent(this, index, ChangeType.VALUE_CHANGED);
             }
@@ -542,6 +570,10 @@ public interface Variable<V> extends Identifiable {
             return values.length;
         }
 
+        public long getStateVersion() {
+            return stateVersion;
+        }
+
         public void addVariableListener(VariableListener listener) {
             listeners.add(listener);
         }
@@ -555,6 +587,7 @@ public interface Variable<V> extends Identifiable {
         }
 
         public void restoreVariableValues() {
+            stateVersion++;
             int[] temp = storedValues;
             storedValues = values;
             values = temp;
@@ -641,6 +674,7 @@ public interface Variable<V> extends Identifiable {
         int[] values;
         int[] storedValues;
         List<VariableListener> listeners = new ArrayList<VariableListener>();
+        private long stateVersion = 0;
         private Bounds<Integer> bounds = null;
     }
 }
@@ -218,10 +218,13 @@ public class MultiDimensionalScalingLikelihood extends AbstractModelLikelihood i
         }
 
         MultiDimensionalScalingCore core;
-        if (computeMode >= MultiDimensionalScalingCore.USE_NATIVE_MDS) {
+        if ((computeMode & MultiDimensionalScalingCore.USE_NATIVE_MDS) != 0) {
             System.err.println("Attempting to use a native MDS core with flag: " + computeMode + "; may the force be with you ....");
             core = new MassivelyParallelMDSImpl();
             flags = computeMode;
+        } else if ((computeMode & MultiDimensionalScalingCore.MULTI_CORE) != 0) {
+            System.err.println("Using a multithreaded Java MDS core");
+            core = new MultiThreadedMDSImpl();
         } else {
             System.err.println("Computer mode found: " + computeMode + " vs. " + r);
             core = new MultiDimensionalScalingCoreImpl();
@@ -0,0 +1,469 @@
+/*
+ * MultiThreadedMDSImpl.java
+ *
+ * Copyright (c) 2002-2020 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.inference.multidimensionalscaling;
+
+import dr.math.distributions.NormalDistribution;
+import dr.util.SharedThreadPool;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A multithreaded Java MDS core (selected with the MULTI_CORE flag without USE_NATIVE_MDS).
+ *
+ * The increments of the pairs i < j are held in a flat array, row by row, and each row keeps
+ * the sum of its increments so that the total is summed in the same order however the rows were
+ * computed. Rows are split into blocks of about equal numbers of pairs that are computed on the
+ * shared thread pool. When locations move only the pairs that involve them are recomputed and
+ * only those pairs are copied when the state is stored or restored.
+ *
+ * The observations are assumed to be symmetric (the upper triangle is used).
+ *
+ * @author Andrew Rambaut
+ * @author Marc Suchard
+ */
+public class MultiThreadedMDSImpl implements MultiDimensionalScalingCore {
+
+    // the smallest number of pairs that is worth splitting across threads
+    private static final int MIN_PAIRS_PER_THREAD = 4096;
+
+    @Override
+    public void initialize(int embeddingDimension, int locationCount, long flags) {
+        this.embeddingDimension = embeddingDimension;
+        this.locationCount = locationCount;
+        this.observationCount = (locationCount * (locationCount - 1)) / 2;
+
+        isLeftTruncated = (flags & MultiDimensionalScalingCore.LEFT_TRUNCATION) != 0;
+
+        rowOffsets = new int[locationCount + 1];
+        for (int i = 0; i < locationCount; i++) {
+            rowOffsets[i + 1] = rowOffsets[i] + (locationCount - i - 1);
+        }
+
+        observations = new double[observationCount];
+        diagonalObservations = new double[locationCount];
+        increments = new double[observationCount];
+        storedIncrements = new double[observationCount];
+        rowSums = new double[locationCount];
+        storedRowSums = new double[locationCount];
+
+        locations = new double[locationCount * embeddingDimension];
+        storedLocations = new double[locationCount * embeddingDimension];
+
+        movedLocations = new BitSet(locationCount);
+        changedLocations = new BitSet(locationCount);
+
+        threadCount = SharedThreadPool.getThreadCount();
+
+        incrementsKnown = false;
+        sumOfIncrementsKnown = false;
+    }
+
+    @Override
+    public void setPairwiseData(double[] observations) {
+        if (observations.length != (locationCount * locationCount)) {
+            throw new RuntimeException("Observation data is not the correct dimension");
+        }
+
+        for (int i = 0; i < locationCount; i++) {
+            System.arraycopy(observations, i * locationCount + i + 1, this.observations, rowOffsets[i], locationCount - i - 1);
+            diagonalObservations[i] = observations[i * locationCount + i];
+        }
+
+        incrementsKnown = false;
+        sumOfIncrementsKnown = false;
+    }
+
+    @Override
+    public double[] getPairwiseData() {
+        double[] data = new double[locationCount * locationCount];
+        for (int i = 0; i < locationCount; ++i) {
+            data[i * locationCount + i] = diagonalObservations[i];
+            for (int j = i + 1; j < locationCount; ++j) {
+                double observation = observations[rowOffsets[i] + j - i - 1];
+                data[i * locationCount + j] = observation;
+                data[j * locationCount + i] = observation;
+            }
+        }
+        return data;
+    }
+
+    @Override
+    public int getInternalDimension() {
+        return embeddingDimension;
+    }
+
+    @Override
+    public void setParameters(double[] parameters) {
+        precision = parameters[0];
+
+        // Handle truncations
+        if (isLeftTruncated) {
+            incrementsKnown = false;
+        }
+        sumOfIncrementsKnown = false;
+    }
+
+    @Override
+    public void updateLocation(int locationIndex, double[] location) {
+        if (locationIndex != -1) {
+            if (location.length != embeddingDimension) {
+                throw new RuntimeException("Location is not the correct dimension");
+            }
+
+            System.arraycopy(location, 0, locations, locationIndex * embeddingDimension, embeddingDimension);
+
+            movedLocations.set(locationIndex);
+
+        } else {
+            if (location.length != embeddingDimension * locationCount) {
+                throw new RuntimeException("Location is the not correct dimension");
+            }
+
+            System.arraycopy(location, 0, locations, 0, location.length);
+
+            incrementsKnown = false;
+        }
+
+        sumOfIncrementsKnown = false;
+    }
+
+    @Override
+    public double calculateLogLikelihood() {
+        if (!sumOfIncrementsKnown) {
+
+            // recomputing the moved rows and columns costs about as much as the whole
+            // triangle once a quarter of the locations have moved
+            if (!incrementsKnown || movedLocations.cardinality() * 4 > locationCount) {
+                computeSumOfSquaredResiduals();
+            } else if (!movedLocations.isEmpty()) {
+                updateSumOfSquaredResiduals();
+            }
+
+            sumOfIncrements = 0.0;
+            for (int i = 0; i < locationCount; i++) {
+                sumOfIncrements += rowSums[i];
+            }
+            sumOfIncrements += getDiagonalSum();
+
+            sumOfIncrementsKnown = true;
+        }
+
+        double logLikelihood = 0.5 * (Math.log(precision) - Math.log(2 * Math.PI)) * observationCount;
+
+        if (isLeftTruncated) {
+            logLikelihood -= sumOfIncrements; // If truncated, then values on difference scale
+        } else {
+            logLikelihood -= 0.5 * precision * sumOfIncrements;
+        }
+
+        return logLikelihood;
+    }
+
+    @Override
+    public void storeState() {
+        // bring the stored increments up to date with the pairs changed since the last store
+        if (incrementsKnown && movedLocations.isEmpty()) {
+            copyChangedIncrements(increments, storedIncrements);
+            System.arraycopy(rowSums, 0, storedRowSums, 0, locationCount);
+            storedIncrementsKnown = true;
+            allChanged = false;
+        } else {
+            storedIncrementsKnown = false;
+            // the stored increments are out of date so the next store must copy them all
+            allChanged = true;
+        }
+        changedLocations.clear();
+
+        storedSumOfIncrements = sumOfIncrements;
+        storedSumOfIncrementsKnown = sumOfIncrementsKnown;
+
+        // Handle locations
+        System.arraycopy(locations, 0, storedLocations, 0, locations.length);
+
+        // Handle precision
+        storedPrecision = precision;
+    }
+
+    @Override
+    public void restoreState() {
+        if (storedIncrementsKnown) {
+            copyChangedIncrements(storedIncrements, increments);
+            System.arraycopy(storedRowSums, 0, rowSums, 0, locationCount);
+            incrementsKnown = true;
+            allChanged = false;
+        } else {
+            incrementsKnown = false;
+            allChanged = true;
+        }
+        changedLocations.clear();
+        movedLocations.clear();
+
+        sumOfIncrements = storedSumOfIncrements;
+        sumOfIncrementsKnown = storedSumOfIncrementsKnown && incrementsKnown;
+
+        // Handle locations
+        double[] tmp = storedLocations;
+        storedLocations = locations;
+        locations = tmp;
+
+        // Handle precision
+        precision = storedPrecision;
+    }
+
+    @Override
+    public void acceptState() {
+        // the stored increments are brought up to date by the next store
+    }
+
+    @Override
+    public void getGradient(double[] location) {
+        throw new RuntimeException("Not yet implemented.");
+    }
+
+    @Override
+    public void makeDirty() {
+        sumOfIncrementsKnown = false;
+        incrementsKnown = false;
+    }
+
+    /**
+     * Copies the increments of the pairs that involve a changed location (or all of them).
+     */
+    private void copyChangedIncrements(double[] source, double[] destination) {
+        if (allChanged) {
+            System.arraycopy(source, 0, destination, 0, observationCount);
+            return;
+        }
+
+        for (int m = changedLocations.nextSetBit(0); m >= 0; m = changedLocations.nextSetBit(m + 1)) {
+            // row m
+            System.arraycopy(source, rowOffsets[m], destination, rowOffsets[m], locationCount - m - 1);
+            // column m
+            for (int k = 0; k < m; k++) {
+                int index = rowOffsets[k] + m - k - 1;
+                destination[index] = source[index];
+            }
+        }
+    }
+
+    private void computeSumOfSquaredResiduals() {
+        final double oneOverSd = Math.sqrt(precision);
+        final double scale = 0.5 * precision;
+
+        forRowBlocks(observationCount, new RowBlock() {
+            public void compute(int start, int end) {
+                for (int i = start; i < end; i++) {
+                    double sum = 0.0;
+                    for (int j = i + 1; j < locationCount; j++) {
+                        int index = rowOffsets[i] + j - i - 1;
+                        double increment = computeIncrement(i, j, index, scale, oneOverSd);
+                        increments[index] = increment;
+                        sum += increment;
+                    }
+                    rowSums[i] = sum;
+                }
+            }
+        });
+
+        movedLocations.clear();
+        allChanged = true;
+        incrementsKnown = true;
+    }
+
+    private void updateSumOfSquaredResiduals() {
+        final double oneOverSd = Math.sqrt(precision);
+        final double scale = 0.5 * precision;
+
+        final int[] moved = new int[movedLocations.cardinality()];
+        int n = 0;
+        for (int m = movedLocations.nextSetBit(0); m >= 0; m = movedLocations.nextSetBit(m + 1)) {
+            moved[n++] = m;
+        }
+
+        // each row is only written by the block it is in
+        forRowBlocks(moved.length * locationCount, new RowBlock() {
+            public void compute(int start, int end) {
+                int next = 0; // the first moved location after the row
+                for (int i = start; i < end; i++) {
+                    while (next < moved.length && moved[next] <= i) {
+                        next++;
+                    }
+
+                    if (movedLocations.get(i)) {
+                        // the whole row
+                        double sum = 0.0;
+                        for (int j = i + 1; j < locationCount; j++) {
+                            int index = rowOffsets[i] + j - i - 1;
+                            double increment = computeIncrement(i, j, index, scale, oneOverSd);
+                            increments[index] = increment;
+                            sum += increment;
+                        }
+                        rowSums[i] = sum;
+                    } else {
+                        // the columns of the moved locations
+                        double delta = 0.0;
+                        for (int k = next; k < moved.length; k++) {
+                            int j = moved[k];
+                            int index = rowOffsets[i] + j - i - 1;
+                            double increment = computeIncrement(i, j, index, scale, oneOverSd);
+                            delta += increment - increments[index];
+                            increments[index] = increment;
+                        }
+                        rowSums[i] += delta;
+                    }
+                }
+            }
+        });
+
+        changedLocations.or(movedLocations);
+        movedLocations.clear();
+    }
+
+    private double computeIncrement(int i, int j, int index, double scale, double oneOverSd) {
+        double distance = calculateDistance(i, j);
+        double residual = distance - observations[index];
+        double increment = residual * residual;
+        if (isLeftTruncated) {
+            increment = scale * increment + computeTruncation(distance, oneOverSd);
+        }
+        return increment;
+    }
+
+    /**
+     * The contribution of the diagonal (each self-distance is zero) which, as for the serial
+     * core, is counted once for each pair of symmetric entries.
+     */
+    private double getDiagonalSum() {
+        double sum = 0.0;
+        for (int i = 0; i < locationCount; i++) {
+            sum += diagonalObservations[i] * diagonalObservations[i];
+        }
+        if (isLeftTruncated) {
+            sum *= 0.5 * precision;
+        }
+        return 0.5 * sum;
+    }
+
+    private double calculateDistance(int i, int j) {
+        int x = i * embeddingDimension;
+        int y = j * embeddingDimension;
+        double sum = 0.0;
+        for (int k = 0; k < embeddingDimension; k++) {
+            double difference = locations[x + k] - locations[y + k];
+            sum += difference * difference;
+        }
+        return Math.sqrt(sum);
+    }
+
+    private double computeTruncation(double mean, double oneOverSd) {
+        return NormalDistribution.standardCDF(mean * oneOverSd, true); // Should be standardCDF(mean / sd, true);
+    }
+
+    private interface RowBlock {
+        void compute(int start, int end);
+    }
+
+    /**
+     * Splits the rows into blocks with about the same number of pairs in the upper triangle and
+     * computes them on the shared thread pool (or on this thread if there is too little work).
+     */
+    private void forRowBlocks(int work, final RowBlock block) {
+        int blockCount = Math.min(threadCount, work / MIN_PAIRS_PER_THREAD);
+        if (blockCount <= 1) {
+            block.compute(0, locationCount);
+            return;
+        }
+
+        final int[] starts = new int[blockCount + 1];
+        int row = 0;
+        for (int b = 1; b < blockCount; b++) {
+            long target = ((long) observationCount * b) / blockCount;
+            while (row < locationCount && rowOffsets[row] < target) {
+                row++;
+            }
+            starts[b] = row;
+        }
+        starts[blockCount] = locationCount;
+
+        SharedThreadPool.getPool().invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+                for (int b = 0; b < starts.length - 1; b++) {
+                    final int start = starts[b];
+                    final int end = starts[b + 1];
+                    if (start < end) {
+                        tasks.add(new RecursiveAction() {
+                            @Override
+                            protected void compute() {
+                                block.compute(start, end);
+                            }
+                        });
+                    }
+                }
+                invokeAll(tasks);
+            }
+        });
+    }
+
+    private int embeddingDimension;
+    private boolean isLeftTruncated = false;
+    private int locationCount;
+    private int observationCount;
+    private double precision;
+    private double storedPrecision;
+
+    private int threadCount;
+
+    // the index in the flat arrays of the first pair (i, j > i) of each row
+    private int[] rowOffsets;
+
+    private double[] observations;
+    private double[] diagonalObservations;
+    private double[] locations;
+    private double[] storedLocations;
+
+    // locations moved since the likelihood was last calculated
+    private BitSet movedLocations;
+    // locations with increments that differ from the stored ones
+    private BitSet changedLocations;
+    private boolean allChanged = false;
+
+    private boolean incrementsKnown = false;
+    private boolean storedIncrementsKnown = false;
+    private double[] increments;
+    private double[] storedIncrements;
+    private double[] rowSums;
+    private double[] storedRowSums;
+
+    private boolean sumOfIncrementsKnown = false;
+    private boolean storedSumOfIncrementsKnown = false;
+    private double sumOfIncrements;
+    private double storedSumOfIncrements;
+}
@@ -26,6 +26,7 @@
 package dr.inference.operators;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
@@ -36,7 +37,6 @@ import dr.inference.model.MatrixParameter;
 import dr.inference.model.Parameter;
 import dr.math.MathUtils;
 import dr.math.matrixAlgebra.CholeskyDecomposition;
-import dr.math.matrixAlgebra.IllegalDimension;
 import dr.math.matrixAlgebra.SymmetricMatrix;
 import dr.util.Author;
 import dr.util.Citable;
@@ -65,6 +65,7 @@ public class AdaptableVarianceMultivariateNormalOperator extends AbstractAdaptab
     public static final String FORM_XTX = "formXtXInverse";
     public static final String COEFFICIENT = "coefficient";
     public static final String SKIP_RANK_CHECK = "skipRankCheck";
+    public static final String BLOCK_DIAGONAL = "blockDiagonal";
 
     public static final String TRANSFORM = "transform";
     public static final String TYPE = "type";
@@ -84,15 +85,34 @@ public class AdaptableVarianceMultivariateNormalOperator extends AbstractAdaptab
     private double[] oldMeans, newMeans;
 
     final double[][] matrix;
-    private double[][] empirical;
-    private double[][] cholesky;
+
+    // the upper triangles of the empirical covariance and of the factor U of the proposal covariance
+    // (U^T U), stored row-major; only entries within the diagonal blocks are used
+    private double[] empirical;
+    private double[] cholesky;
+    private final int[] blockEnds;
+
+    // true while cholesky is the factor of the proposal formed from the current empirical covariance
+    private boolean choleskyCurrent = false;
+    private int rankOneUpdates = 0;
 
     // temporary storage, allocated once.
     private double[] epsilon;
-    private double[][] proposal;
+    private double[] delta;
 
     public AdaptableVarianceMultivariateNormalOperator(Parameter parameter, Transform[] transformations, int[] transformationSizes, double[] transformationSums, double scaleFactor, double[][] inMatrix,
                                                        double weight, double beta, int initial, int burnin, int every, AdaptationMode mode, boolean isVarianceMatrix, boolean skipRankCheck) {
+        this(parameter, transformations, transformationSizes, transformationSums, scaleFactor, inMatrix, weight, beta,
+                initial, burnin, every, mode, isVarianceMatrix, skipRankCheck, null);
+    }
+
+    /**
+     * @param blockSizes the sizes of the diagonal blocks of the adapted covariance (all others are taken
+     *                   to be zero), or null to adapt the full covariance
+     */
+    public AdaptableVarianceMultivariateNormalOperator(Parameter parameter, Transform[] transformations, int[] transformationSizes, double[] transformationSums, double scaleFactor, double[][] inMatrix,
+                                                       double weight, double beta, int initial, int burnin, int every, AdaptationMode mode, boolean isVarianceMatrix, boolean skipRankCheck,
+                                                       int[] blockSizes) {
 
         super(mode);
         this.scaleFactor = scaleFactor;
@@ -109,12 +129,31 @@ public class AdaptableVarianceMultivariateNormalOperator extends AbstractAdaptab
         this.initial = initial;
         this.burnin = burnin;
         this.every = every;
-        this.empirical = new double[dim][dim];
+        this.empirical = new double[dim * dim];
+        this.cholesky = new double[dim * dim];
         this.oldMeans = new double[dim];
         this.newMeans = new double[dim];
 
         this.epsilon = new double[dim];
-        this.proposal = new double[dim][dim];
+        this.delta = new double[dim];
+
+        this.blockEnds = new int[dim];
+        if (blockSizes == null) {
+            for (int i = 0; i < dim; i++) {
+                blockEnds[i] = dim;
+            }
+        } else {
+            int start = 0;
+            for (int size : blockSizes) {
+                for (int i = start; i < start + size; i++) {
+                    blockEnds[i] = start + size;
+                }
+                start += size;
+            }
+            if (start != dim) {
+                throw new RuntimeException("Block sizes in AdaptableVarianceMultivariateNormalOperator do not sum to the parameter dimension");
+            }
+        }
 
         if (!skipRankCheck) {
             SingularValueDecomposition svd = new SingularValueDecomposition(new DenseDoubleMatrix2D(inMatrix));
@@ -137,16 +176,21 @@ public class AdaptableVarianceMultivariateNormalOperator extends AbstractAdaptab
             System.err.println();
         }*/
 
-        try {
-            cholesky = (new CholeskyDecomposition(matrix)).getL();
-        } catch (IllegalDimension illegalDimension) {
+        if (matrix.length != dim || matrix[0].length != dim) {
             throw new RuntimeException("Unable to decompose matrix in AdaptableVarianceMultivariateNormalOperator");
         }
+        decomposeProposal(1.0);
     }
 
     public AdaptableVarianceMultivariateNormalOperator(Parameter parameter, Transform[] transformations, int[] transformationSizes, double[] transformationSums, double scaleFactor,
                                                        MatrixParameter varMatrix, double weight, double beta, int initial, int burnin, int every, AdaptationMode mode, boolean isVariance, boolean skipRankCheck) {
-        this(parameter, transformations, transformationSizes, transformationSums, scaleFactor, varMatrix.getParameterAsMatrix(), weight, beta, initial, burnin, every, mode, isVariance, skipRankCheck);
+        this(parameter, transformations, transformationSizes, transformationSums, scaleFactor, varMatrix.getParameterAsMatrix(), weight, beta, initial, burnin, every, mode, isVariance, skipRankCheck, null);
+    }
+
+    public AdaptableVarianceMultivariateNormalOperator(Parameter parameter, Transform[] transformations, int[] transformationSizes, double[] transformationSums, double scaleFactor,
+                                                       MatrixParameter varMatrix, double weight, double beta, int initial, int burnin, int every, AdaptationMode mode, boolean isVariance, boolean skipRankCheck,
+                                                       int[] blockSizes) {
+        this(parameter, transformations, transformationSizes, transformationSums, scaleFactor, varMatrix.getParameterAsMatrix(), weight, beta, initial, burnin, every, mode, isVariance, skipRankCheck, blockSizes);
     }
 
     private double[][] formXtXInverse(double[][] X) {
@@ -170,21 +214,54 @@ public class AdaptableVarianceMultivariateNormalOperator extends AbstractAdaptab
     }
 
     //act as if population mean is known
-    private double calculateCovariance(int number, double currentMatrixEntry, double[] values, int firstIndex, int secondIndex) {
+    private void updateCovariance(int number, double[] values) {
 
         // number will always be > 1 here
-        /*double result = currentMatrixEntry * (number - 1);
-        result += (values[firstIndex] * values[secondIndex]);
-        result += ((number - 1) * oldMeans[firstIndex] * oldMeans[secondIndex] - number * newMeans[firstIndex] * newMeans[secondIndex]);
-        result /= ((double) number);*/
+        // C_n = ((n - 2) C_{n-1} + x x^T + (n - 1) m_{n-1} m_{n-1}^T - n m_n m_n^T) / (n - 1)
+        //     = (n - 2) / (n - 1) C_{n-1} + (x - m_{n-1}) (x - m_{n-1})^T / n, a rank-1 update
+        final double scale = (number - 2) / (double) (number - 1);
+        final double weight = 1.0 / number;
 
-        double result = currentMatrixEntry * (number - 2);
-        result += (values[firstIndex] * values[secondIndex]);
-        result += ((number - 1) * oldMeans[firstIndex] * oldMeans[secondIndex] - number * newMeans[firstIndex] * newMeans[secondIndex]);
-        result /= ((double)(number - 1));
+        for (int i = 0; i < dim; i++) {
+            delta[i] = values[i] - oldMeans[i];
+        }
+        for (int i = 0; i < dim; i++) {
+            final int row = i * dim;
+            final double di = delta[i] * weight;
+            for (int j = i; j < blockEnds[i]; j++) {
+                empirical[row + j] = scale * empirical[row + j] + di * delta[j];
+            }
+        }
 
-        return result;
+        // without the fixed matrix the proposal is the empirical covariance, so its factor can be updated
+        // in O(dim^2); it is refactorized after dim updates so that rounding errors do not accumulate
+        if (choleskyCurrent && beta == 0.0 && number > 2 && rankOneUpdates < dim) {
+            final double rootScale = Math.sqrt(scale);
+            final double rootWeight = Math.sqrt(weight);
+            for (int i = 0; i < dim; i++) {
+                final int row = i * dim;
+                for (int j = i; j < blockEnds[i]; j++) {
+                    cholesky[row + j] *= rootScale;
+                }
+                delta[i] *= rootWeight;
+            }
+            CholeskyDecomposition.rankOneUpdateUpper(cholesky, dim, delta, blockEnds);
+            rankOneUpdates++;
+        } else {
+            choleskyCurrent = false;
+        }
+    }
 
+    // factorizes (1 - matrixWeight) * empirical + matrixWeight * matrix in place
+    private boolean decomposeProposal(double matrixWeight) {
+        for (int i = 0; i < dim; i++) {
+            final int row = i * dim;
+            for (int j = i; j < blockEnds[i]; j++) { // symmetric matrix
+                cholesky[row + j] = (1 - matrixWeight) * // constantFactor *  /* auto-tuning using scaleFactor */
+                        empirical[row + j] + matrixWeight * matrix[i][j];
+            }
+        }
+        return CholeskyDecomposition.executeUpperInPlace(cholesky, dim, blockEnds);
     }
 
     public double doOperation() {
@@ -261,13 +338,7 @@ public class AdaptableVarianceMultivariateNormalOperator extends AbstractAdaptab
                     }
 
                     if (updates > 1) {
-                        //here we can simply use the double[][] matrix
-                        for (int i = 0; i < dim; i++) {
-                            for (int j = i; j < dim; j++) {
-                                empirical[i][j] = calculateCovariance(updates, empirical[i][j], transformedX, i, j);
-                                empirical[j][i] = empirical[i][j];
-                            }
-                        }
+                        updateCovariance(updates, transformedX);
                     }
 
                     if (DEBUG) {
@@ -282,7 +353,7 @@ public class AdaptableVarianceMultivariateNormalOperator extends AbstractAdaptab
                         System.err.println("Empirical covariance matrix:");
                         for (int i = 0; i < dim; i++) {
                             for (int j = 0; j < dim; j++) {
-                                System.err.print(empirical[i][j] + " ");
+                                System.err.print(getEmpirical(i, j) + " ");
                             }
                             System.err.println();
                         }
@@ -307,11 +378,8 @@ public class AdaptableVarianceMultivariateNormalOperator extends AbstractAdaptab
                     newMeans[i] = 0.0;
                 }
 
-                for (int i = 0; i < dim; i++) {
-                    for (int j = 0; j < dim; j++) {
-                        empirical[i][j] = 0.0;
-                    }
-                }
+                Arrays.fill(empirical, 0.0);
+                choleskyCurrent = false;
 
             }
 
@@ -332,12 +400,8 @@ public class AdaptableVarianceMultivariateNormalOperator extends AbstractAdaptab
                 newMeans[i] = 0.0;
             }
 
-            for (int i = 0; i < dim; i++) {
-                for (int j = 0; j < dim; j++) {
-                    empirical[i][j] = 0.0;
-                    proposal[i][j] = matrix[i][j];
-                }
-            }
+            Arrays.fill(empirical, 0.0);
+            choleskyCurrent = false;
 
         }
 
@@ -351,24 +415,12 @@ public class AdaptableVarianceMultivariateNormalOperator extends AbstractAdaptab
                 System.err.println("  iterations > initial");
             }
 
-            if (iterations % every == 0) {
-                // TODO: For speed, it may not be necessary to update decomposition each and every iteration
+            if (iterations % every == 0 && !choleskyCurrent) {
                 //double start = System.nanoTime();
 
-                // double[][] proposal = new double[dim][dim];
-                for (int i = 0; i < dim; i++) {
-                    for (int j = i; j < dim; j++) { // symmetric matrix
-                        proposal[j][i] = proposal[i][j] = (1 - beta) * // constantFactor *  /* auto-tuning using scaleFactor */
-                                empirical[i][j] + beta * matrix[i][j];
-                    }
-                }
-
                 // not necessary for first test phase, but will need to be performed when covariance matrix is being updated
-                try {
-                    cholesky = (new CholeskyDecomposition(proposal)).getL();
-                } catch (IllegalDimension illegalDimension) {
-                    throw new RuntimeException("Unable to decompose matrix in AdaptableVarianceMultivariateNormalOperator");
-                }
+                choleskyCurrent = decomposeProposal(beta);
+                rankOneUpdates = 0;
 
                 //double end = System.nanoTime();
                 //double baseResult = end - start;
@@ -401,9 +453,9 @@ public class AdaptableVarianceMultivariateNormalOperator extends AbstractAdaptab
         }*/
 
         for (int i = 0; i < dim; i++) {
-            for (int j = i; j < dim; j++) {
-                transformedX[i] += cholesky[j][i] * epsilon[j];
-                // caution: decomposition returns lower triangular
+            final int row = i * dim;
+            for (int j = i; j < blockEnds[i]; j++) {
+                transformedX[i] += cholesky[row + j] * epsilon[j];
             }
         }
 
@@ -538,20 +590,21 @@ public class AdaptableVarianceMultivariateNormalOperator extends AbstractAdaptab
             }
             //set covariance matrix based on provided samples, but take into account transformation(s)
             for (int i = 0; i < dim; i++) {
-                for (int j = i; j < dim; j++) {
+                for (int j = i; j < blockEnds[i]; j++) {
+                    final int index = i * dim + j;
                     for (int k = 0; k < lowestNumberOfSamples; k++) {
-                        empirical[i][j] += transformations[i].transform(parameterSamples.get(i).get(k))*transformations[i].transform(parameterSamples.get(j).get(k));
+                        empirical[index] += transformations[i].transform(parameterSamples.get(i).get(k))*transformations[i].transform(parameterSamples.get(j).get(k));
                     }
-                    empirical[i][j] /= (double)lowestNumberOfSamples;
-                    empirical[i][j] -= newMeans[i]*newMeans[j];
-                    empirical[j][i] = empirical[i][j];
+                    empirical[index] /= (double)lowestNumberOfSamples;
+                    empirical[index] -= newMeans[i]*newMeans[j];
                 }
             }
+            choleskyCurrent = false;
             if (DEBUG) {
                 System.err.println();
                 for (int i = 0; i < dim; i++) {
                     for (int j = 0; j < dim; j++) {
-                        System.err.print(empirical[i][j] + "  ");
+                        System.err.print(getEmpirical(i, j) + "  ");
                     }
                     System.err.println();
                 }
@@ -570,7 +623,7 @@ public class AdaptableVarianceMultivariateNormalOperator extends AbstractAdaptab
             output += "\nVariance-covariance matrix:\n";
             for (int i = 0; i < dim; i++) {
                 for (int j = 0; j < dim; j++) {
-                    output += empirical[i][j] + " ";
+                    output += getEmpirical(i, j) + " ";
                 }
                 output += "\n";
             }
@@ -578,6 +631,13 @@ public class AdaptableVarianceMultivariateNormalOperator extends AbstractAdaptab
         return output;
     }
 
+    private double getEmpirical(int i, int j) {
+        if (i > j) {
+            return getEmpirical(j, i);
+        }
+        return j < blockEnds[i] ? empirical[i * dim + j] : 0.0;
+    }
+
     @Override
     protected double getAdaptableParameterValue() {
         return Math.log(scaleFactor);
@@ -656,6 +716,9 @@ public class AdaptableVarianceMultivariateNormalOperator extends AbstractAdaptab
 
             int transformationSizeCounter = 0;
 
+            // the diagonal blocks, one for each parameter or transformed set of parameters
+            List<Integer> blockSizeList = new ArrayList<Integer>();
+
             if (!oldXML) {
                 // if there are no ParsedTransform elements then use the new parser syntax
                 if (DEBUG) {
@@ -676,6 +739,7 @@ public class AdaptableVarianceMultivariateNormalOperator extends AbstractAdaptab
                         allParameters.addParameter(param);
                         transformCountList.add(param.getDimension());
                         transformSumList.add(0.0);
+                        blockSizeList.add(param.getDimension());
                     } else if (co instanceof Transform.ParsedTransform) {
                         Transform.ParsedTransform parsedTransform = (Transform.ParsedTransform)co;
 
@@ -688,6 +752,7 @@ public class AdaptableVarianceMultivariateNormalOperator extends AbstractAdaptab
                         }
                         transformCountList.add(dim);
                         transformSumList.add(parsedTransform.fixedSum);
+                        blockSizeList.add(dim);
                     } else {
                         throw new XMLParseException("Unknown element in " + AVMVN_OPERATOR);
                     }
@@ -746,6 +811,7 @@ public class AdaptableVarianceMultivariateNormalOperator extends AbstractAdaptab
                     Object child = xo.getChild(i);
                     if (child instanceof Transform.ParsedTransform) {
                         Transform.ParsedTransform thisObject = (Transform.ParsedTransform) child;
+                        blockSizeList.add(thisObject.end - thisObject.start);
 
                         if (DEBUG) {
                             System.err.println(thisObject.transform.getTransformName());
@@ -847,8 +913,23 @@ public class AdaptableVarianceMultivariateNormalOperator extends AbstractAdaptab
 
             boolean skipRankCheck = xo.getAttribute(SKIP_RANK_CHECK, false);
 
+            int[] blockSizes = null;
+            if (xo.getAttribute(BLOCK_DIAGONAL, false)) {
+                blockSizes = new int[blockSizeList.size()];
+                int total = 0;
+                for (int i = 0; i < blockSizes.length; i++) {
+                    blockSizes[i] = blockSizeList.get(i);
+                    total += blockSizes[i];
+                }
+                if (total != dim) {
+                    throw new XMLParseException("The blocks of a block-diagonal covariance must cover the whole parameter");
+                }
+                java.util.logging.Logger.getLogger("dr.inference").info("Adapting a block-diagonal covariance with " +
+                        blockSizes.length + " blocks in " + AVMVN_OPERATOR + " on " + parameter.getParameterName());
+            }
+
             return new AdaptableVarianceMultivariateNormalOperator(parameter, transformations, transformationSizes, transformationSums, scaleFactor, varMatrix, weight, beta, initial, burnin, every,
-                    mode, !formXtXInverse, skipRankCheck);
+                    mode, !formXtXInverse, skipRankCheck, blockSizes);
         }
 
         //************************************************************************
@@ -878,6 +959,7 @@ public class AdaptableVarianceMultivariateNormalOperator extends AbstractAdaptab
                 AttributeRule.newBooleanRule(AUTO_OPTIMIZE, true),
                 AttributeRule.newBooleanRule(FORM_XTX, true),
                 AttributeRule.newBooleanRule(SKIP_RANK_CHECK, true),
+                AttributeRule.newBooleanRule(BLOCK_DIAGONAL, true),
                 new ElementRule(Parameter.class, 0, Integer.MAX_VALUE),
                 new ElementRule(Transform.ParsedTransform.class, 0, Integer.MAX_VALUE)
         };
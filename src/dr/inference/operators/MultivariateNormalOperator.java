@@ -124,8 +124,8 @@ public class MultivariateNormalOperator extends AbstractAdaptableOperator {
                 x[i] += cholesky[j][i] * epsilon[j];
                 // caution: decomposition returns lower triangular
             }
-            parameter.setParameterValueQuietly(i, x[i]);
         }
+        parameter.setAllParameterValuesQuietly(x);
         parameter.fireParameterChangedEvent();
 
         return 0;
@@ -39,6 +39,7 @@ import dr.inference.state.Factory;
 import dr.inference.state.StateLoader;
 import dr.inference.state.StateLoaderSaver;
 import dr.inference.state.StateSaver;
+import dr.math.MathUtils;
 import dr.util.Identifiable;
 import dr.util.NumberFormatter;
 import dr.xml.Spawnable;
@@ -133,7 +134,13 @@ public class SMC implements Identifiable, Spawnable, Loggable {
 
         mc.addMarkovChainListener(chainListener);
 
+        int particle = 0;
         for (StateLoaderSaver particleState : particleStates) {
+            // each particle draws from its own random number stream so that its run doesn't
+            // depend on the particles that went before it
+            MathUtils.useStream(particle);
+            particle++;
+
             // Don't need the savedLnL - it won't be there
             particleState.loadState(mc, new double[1]);
 
@@ -146,6 +153,8 @@ public class SMC implements Identifiable, Spawnable, Loggable {
             particleState.saveState(mc, mc.getCurrentLength(), mc.getCurrentScore());
         }
 
+        MathUtils.useDefaultStream();
+
         mc.terminateChain();
 
         mc.removeMarkovChainListener(chainListener);
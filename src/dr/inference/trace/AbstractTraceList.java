@@ -25,7 +25,11 @@
 
 package dr.inference.trace;
 
+import dr.util.SharedThreadPool;
+
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * @author Alexei Drummond
@@ -63,6 +67,43 @@ public abstract class AbstractTraceList extends FilteredTraceList {
 //        System.out.println("index = " + index + " :  " + trace.getName() + "     " + trace.getTraceType());
     }
 
+    /**
+     * Analyses all the traces, in parallel on the shared thread pool (each trace is independent).
+     */
+    public void analyseTraces() {
+        final int traceCount = getTraceCount();
+        if (traceCount < 2 || SharedThreadPool.getThreadCount() < 2) {
+            for (int i = 0; i < traceCount; i++) {
+                analyseTrace(i);
+            }
+            return;
+        }
+
+        SharedThreadPool.getPool().invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+                for (int i = 0; i < traceCount; i++) {
+                    final int index = i;
+                    tasks.add(new RecursiveAction() {
+                        @Override
+                        protected void compute() {
+                            analyseTrace(index);
+                        }
+                    });
+                }
+                invokeAll(tasks);
+            }
+        });
+    }
+
+    @Override
+    protected void refreshStatistics() {
+        updateFlag();
+        // must update filtered[] before analyseTrace
+        analyseTraces();
+    }
+
 //    abstract Trace getTrace(int index);
 
 //    private TraceCorrelation[] traceStatistics = null;
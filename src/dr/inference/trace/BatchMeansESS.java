@@ -0,0 +1,156 @@
+/*
+ * BatchMeansESS.java
+ *
+ * Copyright (c) 2002-2020 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.inference.trace;
+
+/**
+ * An online estimate of the effective sample size of a trace by batch means, updated one value at a
+ * time in O(1) (amortised) without keeping the trace.
+ *
+ * The values are summed into batches of equal size. Whenever the number of complete batches has
+ * grown past both 2 MIN_BATCHES and twice the square root of the batch size, adjacent batches are
+ * merged and the batch size doubles. The number of batches therefore grows as n^1/3 (but is at least
+ * MIN_BATCHES and at most MAX_BATCHES), so the batches outgrow the autocorrelation time of slowly
+ * mixing chains. The ESS is n s^2 / (b s_b^2), where s^2 is the variance of the values and s_b^2
+ * that of the means of the complete batches of size b.
+ *
+ * @author Andrew Rambaut
+ * @author Marc A. Suchard
+ */
+public class BatchMeansESS {
+
+    private static final int MAX_BATCHES = 2048;
+    private static final int MIN_BATCHES = 32;
+
+    public BatchMeansESS() {
+        batchSums = new double[16];
+    }
+
+    public void addValue(double value) {
+        // Welford update of the mean and variance of all values
+        count++;
+        final double delta = value - mean;
+        mean += delta / count;
+        sumSquaredDeviations += delta * (value - mean);
+
+        currentSum += value;
+        currentCount++;
+        if (currentCount == batchSize) {
+            if (batchCount == batchSums.length) {
+                double[] tmp = new double[Math.min(2 * batchSums.length, MAX_BATCHES)];
+                System.arraycopy(batchSums, 0, tmp, 0, batchCount);
+                batchSums = tmp;
+            }
+            batchSums[batchCount++] = currentSum;
+            currentSum = 0.0;
+            currentCount = 0;
+
+            if ((batchCount >= 2 * MIN_BATCHES && (long) batchCount * batchCount >= 4L * batchSize)
+                    || batchCount == MAX_BATCHES) {
+                mergeBatches();
+            }
+        }
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getMean() {
+        return mean;
+    }
+
+    public double getVariance() {
+        return count > 1 ? sumSquaredDeviations / (count - 1) : 0.0;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * @return the effective sample size, or NaN if there are too few values (fewer than 2 MIN_BATCHES)
+     * or they are constant
+     */
+    public double getESS() {
+        if (batchSize == 1) {
+            // no batches have been merged yet, so nothing is known about the autocorrelation
+            return Double.NaN;
+        }
+
+        double batchMean = 0.0;
+        for (int i = 0; i < batchCount; i++) {
+            batchMean += batchSums[i];
+        }
+        batchMean /= ((double) batchCount * batchSize);
+
+        double batchVariance = 0.0;
+        for (int i = 0; i < batchCount; i++) {
+            final double delta = batchSums[i] / batchSize - batchMean;
+            batchVariance += delta * delta;
+        }
+        batchVariance /= (batchCount - 1);
+
+        final double variance = getVariance();
+        if (batchVariance <= 0.0 || variance <= 0.0) {
+            return Double.NaN;
+        }
+        return count * variance / (batchSize * batchVariance);
+    }
+
+    public void reset() {
+        count = 0;
+        mean = 0.0;
+        sumSquaredDeviations = 0.0;
+        batchSize = 1;
+        batchCount = 0;
+        currentSum = 0.0;
+        currentCount = 0;
+    }
+
+    private void mergeBatches() {
+        final int merged = batchCount / 2;
+        for (int i = 0; i < merged; i++) {
+            batchSums[i] = batchSums[2 * i] + batchSums[2 * i + 1];
+        }
+        if (batchCount % 2 == 1) {
+            // the odd batch out becomes the start of the current one
+            currentSum += batchSums[batchCount - 1];
+            currentCount += batchSize;
+        }
+        batchCount = merged;
+        batchSize *= 2;
+    }
+
+    private long count = 0;
+    private double mean = 0.0;
+    private double sumSquaredDeviations = 0.0;
+
+    private double[] batchSums;
+    private int batchSize = 1;
+    private int batchCount = 0;
+    private double currentSum = 0.0;
+    private int currentCount = 0;
+}
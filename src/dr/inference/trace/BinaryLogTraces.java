@@ -0,0 +1,612 @@
+/*
+ * BinaryLogTraces.java
+ *
+ * Copyright (c) 2002-2020 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.inference.trace;
+
+import dr.inference.loggers.BinaryLogFormatter;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * A class that stores a set of traces from a single chain logged in the binary format written
+ * by dr.inference.loggers.BinaryLogFormatter. Each block of rows is memory mapped and each trace
+ * is a read-only view of its column in the blocks so the values are never copied onto the heap.
+ * A block at the end of the file that is still being written is left out, so the log of a
+ * running chain can be read.
+ *
+ * @author Andrew Rambaut
+ */
+public class BinaryLogTraces extends AbstractTraceList {
+
+    public BinaryLogTraces(String name, File file) {
+        this.name = name;
+        this.file = file;
+    }
+
+    /**
+     * @param file the file
+     * @return true if the file starts with the binary log magic number
+     */
+    public static boolean isBinaryLog(File file) {
+        byte[] magic = new byte[BinaryLogFormatter.MAGIC.length];
+        try {
+            DataInputStream in = new DataInputStream(new FileInputStream(file));
+            try {
+                in.readFully(magic);
+            } finally {
+                in.close();
+            }
+        } catch (IOException ioe) {
+            return false;
+        }
+        return Arrays.equals(magic, BinaryLogFormatter.MAGIC);
+    }
+
+    /**
+     * @return the name of this traceset
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the path of this traceset
+     */
+    public String getFullName() {
+        return file.getPath();
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return the comment lines at the top of the log
+     */
+    public List<String> getComments() {
+        return comments;
+    }
+
+    /**
+     * @return the first state in the chain
+     */
+    long getFirstState() {
+        return firstState;
+    }
+
+    /**
+     * @return the last state in the chain
+     */
+    public long getMaxState() {
+        return lastState;
+    }
+
+    public boolean isIncomplete() {
+        return false;
+    }
+
+    /**
+     * @return the number of states excluding the burnin
+     */
+    public int getStateCount() {
+        // This is done as two integer divisions to ensure the same rounding for
+        // the burnin...
+        return (int) (((lastState - firstState) / stepSize) - (getBurnIn() / stepSize) + 1);
+    }
+
+    /**
+     * @return the number of states in the burnin
+     */
+    public int getBurninStateCount() {
+        return (int) (getBurnIn() / stepSize);
+    }
+
+    /**
+     * @return the size of the step between states
+     */
+    public long getStepSize() {
+        return stepSize;
+    }
+
+    public long getBurnIn() {
+        return burnIn;
+    }
+
+    public void setBurnIn(long burnin) {
+        this.burnIn = burnin;
+        for (Trace trace : traces) {
+            trace.setTraceStatistics(null);
+        }
+    }
+
+    /**
+     * @return the number of traces in this traceset
+     */
+    public int getTraceCount() {
+        return traces.size();
+    }
+
+    /**
+     * @return the index of the trace with the given name
+     */
+    public int getTraceIndex(String name) {
+        for (int i = 0; i < traces.size(); i++) {
+            if (name.equals(getTraceName(i))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the name of the trace with the given index
+     */
+    public String getTraceName(int index) {
+        return getTrace(index).getName();
+    }
+
+    /**
+     * @param index requested trace index
+     * @return the trace for a given index
+     */
+    public Trace getTrace(int index) {
+        return traces.get(index);
+    }
+
+    /**
+     * @return the number of rows in the complete blocks of the file
+     */
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * @param index the row index
+     * @return the state number of the row (as it is in the file)
+     */
+    public long getState(int index) {
+        return states.get(index / rowsPerBlock).get(index % rowsPerBlock);
+    }
+
+    public double getStateValue(int trace, int index) {
+        return getTrace(trace).getValue(index + (int) (getBurnIn() / stepSize));
+    }
+
+    /**
+     * Read several consecutive values of one state into a destination array
+     *
+     * @param nState      State index number
+     * @param destination array to store result
+     * @param offset      first trace index
+     */
+    public void getStateValues(int nState, double[] destination, int offset) {
+        final int index1 = nState + (int) (getBurnIn() / stepSize);
+        for (int k = 0; k < destination.length; ++k) {
+            destination[k] = getTrace(k + offset).getValue(index1);
+        }
+    }
+
+    public List<Double> getValues(int index, int fromIndex, int toIndex) {
+        return getTrace(index).getValues(fromIndex, toIndex, super.filtered);
+    }
+
+    public List<Double> getValues(int index) {
+        return this.getValues(index, getBurninStateCount(), getTrace(index).getValueCount());
+    }
+
+    public List<Double> getBurninValues(int index) {
+        return this.getValues(index, 0, getBurninStateCount());
+    }
+
+    /**
+     * Map the file given in the constructor and create the traces.
+     *
+     * @throws TraceException if the file is not a valid binary log
+     * @throws IOException
+     */
+    public void loadTraces() throws TraceException, IOException {
+
+        final RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            final FileChannel channel = in.getChannel();
+            final long fileSize = channel.size();
+
+            byte[] magic = new byte[BinaryLogFormatter.MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, BinaryLogFormatter.MAGIC)) {
+                throw new TraceException("File, " + file.getName() + ", is not a binary log file");
+            }
+            int version = in.readInt();
+            if (version != BinaryLogFormatter.VERSION) {
+                throw new TraceException("Binary log file version " + version + " is not supported");
+            }
+            long position = BinaryLogFormatter.getDataOffset(in.readInt());
+            final int columnCount = in.readInt();
+            rowsPerBlock = in.readInt();
+            if (columnCount < 0 || rowsPerBlock < 1) {
+                throw new TraceException("Binary log file, " + file.getName() + ", has an invalid header");
+            }
+
+            int commentCount = in.readInt();
+            for (int i = 0; i < commentCount; i++) {
+                comments.add(in.readUTF());
+            }
+
+            String[] labels = new String[columnCount];
+            for (int i = 0; i < columnCount; i++) {
+                labels[i] = in.readUTF();
+            }
+
+            byte[] types = new byte[columnCount];
+            List<List<DoubleBuffer>> columns = new ArrayList<List<DoubleBuffer>>();
+            List<List<Boolean>> categoricalBlocks = new ArrayList<List<Boolean>>();
+            List<List<String>> categoryLabels = new ArrayList<List<String>>();
+            for (int i = 0; i < columnCount; i++) {
+                columns.add(new ArrayList<DoubleBuffer>());
+                categoricalBlocks.add(new ArrayList<Boolean>());
+                categoryLabels.add(new ArrayList<String>());
+            }
+
+            long totalRowCount = 0;
+            int lastBlockRowCount = rowsPerBlock;
+            while (position + 8 <= fileSize) {
+                in.seek(position);
+                final int blockHeaderLength = in.readInt();
+                final long dataOffset = BinaryLogFormatter.getDataOffset(position + 4 + blockHeaderLength);
+                if (blockHeaderLength < 4 || dataOffset > fileSize) {
+                    // the block is still being written
+                    break;
+                }
+
+                final int blockRowCount = in.readInt();
+                final long blockSize = blockRowCount * 8L;
+                final long blockEnd = dataOffset + (columnCount + 1) * blockSize;
+                if (blockEnd > fileSize) {
+                    break;
+                }
+                if (blockRowCount < 1 || blockRowCount > rowsPerBlock || lastBlockRowCount < rowsPerBlock) {
+                    // only the last block may have fewer rows
+                    throw new TraceException("Binary log file, " + file.getName() + ", has an invalid block at " + position);
+                }
+
+                byte[] blockTypes = new byte[columnCount];
+                List<List<String>> newLabels = new ArrayList<List<String>>();
+                for (int i = 0; i < columnCount; i++) {
+                    blockTypes[i] = in.readByte();
+                    int labelCount = in.readInt();
+                    List<String> blockLabels = new ArrayList<String>();
+                    for (int j = 0; j < labelCount; j++) {
+                        blockLabels.add(in.readUTF());
+                    }
+                    newLabels.add(blockLabels);
+                }
+
+                MappedByteBuffer buffer = map(channel, dataOffset, blockEnd - dataOffset);
+                states.add(slice(buffer, 0, blockSize).asLongBuffer().asReadOnlyBuffer());
+                for (int i = 0; i < columnCount; i++) {
+                    columns.get(i).add(slice(buffer, (i + 1) * blockSize, blockSize).asDoubleBuffer().asReadOnlyBuffer());
+                    categoricalBlocks.get(i).add(blockTypes[i] == BinaryLogFormatter.CATEGORICAL_COLUMN);
+                    categoryLabels.get(i).addAll(newLabels.get(i));
+                    types[i] = blockTypes[i];
+                }
+
+                totalRowCount += blockRowCount;
+                lastBlockRowCount = blockRowCount;
+                position = blockEnd;
+            }
+
+            if (totalRowCount > Integer.MAX_VALUE) {
+                throw new TraceException("Too many states in binary log file (" + totalRowCount + ")");
+            }
+            rowCount = (int) totalRowCount;
+
+            for (int i = 0; i < columnCount; i++) {
+                Map<Integer, String> categoryLabelMap = null;
+                List<DoubleBuffer> values = columns.get(i);
+                if (types[i] == BinaryLogFormatter.CATEGORICAL_COLUMN) {
+                    categoryLabelMap = new HashMap<Integer, String>();
+                    for (String label : categoryLabels.get(i)) {
+                        categoryLabelMap.put(categoryLabelMap.size(), label);
+                    }
+                    convertNumericBlocks(values, categoricalBlocks.get(i), categoryLabelMap);
+                }
+                traces.add(new ColumnTrace(labels[i], getTraceType(types[i]),
+                        values.toArray(new DoubleBuffer[values.size()]), rowsPerBlock, rowCount, categoryLabelMap));
+            }
+        } finally {
+            // the mapped buffers remain valid after the file is closed
+            in.close();
+        }
+
+        readStates();
+    }
+
+    /**
+     * Numbers logged in blocks written before the column became categorical become labels (as in
+     * LogFileTraces). These blocks are copied onto the heap.
+     */
+    private static void convertNumericBlocks(List<DoubleBuffer> values, List<Boolean> categoricalBlocks,
+                                             Map<Integer, String> categoryLabelMap) {
+        Map<String, Integer> categoryIndices = new HashMap<String, Integer>();
+        for (Map.Entry<Integer, String> entry : categoryLabelMap.entrySet()) {
+            categoryIndices.put(entry.getValue(), entry.getKey());
+        }
+
+        for (int b = 0; b < values.size(); b++) {
+            if (!categoricalBlocks.get(b)) {
+                DoubleBuffer block = values.get(b);
+                double[] indices = new double[block.limit()];
+                for (int k = 0; k < indices.length; k++) {
+                    String label = Double.toString(block.get(k));
+                    Integer index = categoryIndices.get(label);
+                    if (index == null) {
+                        index = categoryLabelMap.size();
+                        categoryLabelMap.put(index, label);
+                        categoryIndices.put(label, index);
+                    }
+                    indices[k] = index;
+                }
+                values.set(b, DoubleBuffer.wrap(indices).asReadOnlyBuffer());
+            }
+        }
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, long position, long size) {
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position((int) position);
+        duplicate.limit((int) (position + size));
+        return duplicate.slice();
+    }
+
+    private static MappedByteBuffer map(FileChannel channel, long position, long size) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+    }
+
+    private static TraceType getTraceType(byte type) throws TraceException {
+        switch (type) {
+            case BinaryLogFormatter.INTEGER_COLUMN:
+                return TraceType.INTEGER;
+            case BinaryLogFormatter.REAL_COLUMN:
+                return TraceType.REAL;
+            case BinaryLogFormatter.CATEGORICAL_COLUMN:
+                return TraceType.CATEGORICAL;
+            default:
+                throw new TraceException("Unknown column type in binary log file: " + type);
+        }
+    }
+
+    /**
+     * Sets the first, last and step of the states in the same way as LogFileTraces.
+     */
+    private void readStates() throws TraceException {
+        if (rowCount == 0) {
+            throw new TraceException("Incorrect file format, no sample is found !");
+        }
+
+        long secondState = -1;
+        for (int i = 0; i < rowCount; i++) {
+            long state = getState(i);
+
+            if (i == 0) {
+                // MrBayes puts 1 as the first state, BEAST puts 0
+                // In order to get the same gap between subsequent samples,
+                // we force this to 0.
+                if (state == 1) state = 0;
+                firstState = state;
+            } else if (secondState < 0) {
+                secondState = state;
+            } else if (stepSize < 0) {
+                // delay setting of the stepSize until the step between
+                // the second and third step in case the first step is
+                // 1 (i.e., MrBayes) and the stepsize is 1.
+                stepSize = state - secondState;
+            } else if (state - lastState != stepSize) {
+                throw new TraceException("State " + state + " is not consistent with previous spacing (Row " +
+                        (i + 1) + ")");
+            }
+            lastState = state;
+        }
+
+        burnIn = lastState / 10;
+
+        if (lastState < 0)
+            lastState = firstState;
+        if (stepSize < 0 && lastState > 0)
+            stepSize = lastState;
+    }
+
+    /**
+     * A trace that is a view of a column in the mapped blocks of the file.
+     */
+    static class ColumnTrace extends Trace {
+
+        private static final int MAX_UNIQUE_VALUES = 100;
+
+        ColumnTrace(String name, TraceType traceType, DoubleBuffer[] blocks, int rowsPerBlock, int valueCount,
+                    Map<Integer, String> categoryLabelMap) {
+            super(name, traceType);
+            this.blocks = blocks;
+            this.rowsPerBlock = rowsPerBlock;
+            this.valueCount = valueCount;
+            this.categoryLabelMap = categoryLabelMap;
+        }
+
+        public void add(Double value) {
+            throw new UnsupportedOperationException("Binary log traces are read-only");
+        }
+
+        public void add(Integer value) {
+            throw new UnsupportedOperationException("Binary log traces are read-only");
+        }
+
+        public void add(String value) {
+            throw new UnsupportedOperationException("Binary log traces are read-only");
+        }
+
+        public int getValueCount() {
+            return valueCount;
+        }
+
+        public double getValue(int index) {
+            return blocks[index / rowsPerBlock].get(index % rowsPerBlock);
+        }
+
+        public int getCategory(int index) {
+            return (int) getValue(index);
+        }
+
+        public String getCategoryLabel(int index) {
+            return categoryLabelMap.get(getCategory(index));
+        }
+
+        public Map<Integer, String> getCategoryLabelMap() {
+            return categoryLabelMap;
+        }
+
+        public int getUniqueValueCount() {
+            if (uniqueValueCount < 0) {
+                // unique values are treated as integers
+                Set<Integer> uniqueValues = new HashSet<Integer>();
+                for (int i = 0; i < valueCount && uniqueValues.size() < MAX_UNIQUE_VALUES; i++) {
+                    uniqueValues.add((int) getValue(i));
+                }
+                uniqueValueCount = uniqueValues.size();
+            }
+            return uniqueValueCount;
+        }
+
+        public boolean isConstant() {
+            if (isConstant == null) {
+                boolean constant = true;
+                if (valueCount > 0) {
+                    double first = getValue(0);
+                    for (int i = 1; i < valueCount && constant; i++) {
+                        constant = getValue(i) == first;
+                    }
+                }
+                isConstant = constant;
+            }
+            return isConstant;
+        }
+
+        public double[] getRange() {
+            if (getValueCount() < 1) throw new IllegalArgumentException("Cannot find values in trace " + getName());
+
+            if (getTraceType().isNumber()) {
+                double min = Double.POSITIVE_INFINITY;
+                double max = Double.NEGATIVE_INFINITY;
+                for (int i = 0; i < valueCount; i++) {
+                    double value = getValue(i);
+                    if (value < min) {
+                        min = value;
+                    }
+                    if (value > max) {
+                        max = value;
+                    }
+                }
+                return new double[] {min, max};
+            } else {
+                throw new UnsupportedOperationException("cannot call getRange for categorical data");
+            }
+        }
+
+        public List<Double> getValues(final int fromIndex, final int toIndex, boolean[] filtered) {
+            if (toIndex > getValueCount() || fromIndex > toIndex) {
+                throw new RuntimeException("Invalid index : fromIndex = " + fromIndex + "; toIndex = " + toIndex
+                        + "; List size = " + getValueCount() + "; in Trace " + getName());
+            }
+
+            if (filtered == null || filtered.length < 1) {
+                return new ColumnView(this, fromIndex, toIndex);
+            } else {
+                List<Double> valuesList = new ArrayList<Double>();
+                for (int i = fromIndex; i < toIndex; i++) {
+                    if (!filtered[i])
+                        valuesList.add(getValue(i));
+                }
+                if (valuesList.size() < 1)
+                    throw new RuntimeException("There is no value left after all filters are applied !");
+
+                return valuesList;
+            }
+        }
+
+        private final DoubleBuffer[] blocks;
+        private final int rowsPerBlock;
+        private final int valueCount;
+        private final Map<Integer, String> categoryLabelMap;
+
+        private int uniqueValueCount = -1;
+        private Boolean isConstant = null;
+    }
+
+    /**
+     * A list view of part of a column.
+     */
+    private static class ColumnView extends AbstractList<Double> implements RandomAccess {
+
+        ColumnView(ColumnTrace trace, int fromIndex, int toIndex) {
+            this.trace = trace;
+            this.fromIndex = fromIndex;
+            this.size = toIndex - fromIndex;
+        }
+
+        public Double get(int index) {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+            }
+            return trace.getValue(fromIndex + index);
+        }
+
+        public int size() {
+            return size;
+        }
+
+        private final ColumnTrace trace;
+        private final int fromIndex;
+        private final int size;
+    }
+
+    protected final File file;
+    protected final String name;
+
+    private final List<ColumnTrace> traces = new ArrayList<ColumnTrace>();
+    private final List<String> comments = new ArrayList<String>();
+
+    private final List<LongBuffer> states = new ArrayList<LongBuffer>();
+    private int rowsPerBlock;
+    private int rowCount;
+
+    private long burnIn = -1;
+    private long firstState = -1;
+    private long lastState = -1;
+    private long stepSize = -1;
+}
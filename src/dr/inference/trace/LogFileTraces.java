@@ -208,11 +208,37 @@ public class LogFileTraces extends AbstractTraceList {
      * @throws IOException
      */
     public void loadTraces(File file) throws TraceException, IOException {
+        if (BinaryLogTraces.isBinaryLog(file)) {
+            loadBinaryTraces(file);
+            return;
+        }
         final Reader reader = new FileReader(file);
         loadTraces(reader);
         reader.close();
     }
 
+    /**
+     * Map a binary log file (see {@link BinaryLogTraces BinaryLogTraces}). The traces
+     * are views of the mapped file rather than copies of the values.
+     *
+     * @param file <code>File</code>
+     * @throws TraceException
+     * @throws IOException
+     */
+    private void loadBinaryTraces(File file) throws TraceException, IOException {
+        BinaryLogTraces binaryTraces = new BinaryLogTraces(name, file);
+        binaryTraces.loadTraces();
+
+        for (int i = 0; i < binaryTraces.getTraceCount(); i++) {
+            traces.add(binaryTraces.getTrace(i));
+        }
+
+        firstState = binaryTraces.getFirstState();
+        lastState = binaryTraces.getMaxState();
+        stepSize = binaryTraces.getStepSize();
+        burnIn = binaryTraces.getBurnIn();
+    }
+
     /**
      * Read through <code>InputStream</code> created from a log file,
      * fill in <code>traces</code> list, and set <code>TraceType</code>.
@@ -176,6 +176,7 @@ public class Trace {
         if (traceType == TraceType.CATEGORICAL) {
             List<Pair<Comparable, Integer>> values = new ArrayList<Pair<Comparable, Integer>>();
             int i = 0;
+            Map<Integer, String> categoryLabelMap = getCategoryLabelMap();
             for (Integer value : getFrequencyCounter().getUniqueValues()) {
                 if (categoryLabelMap != null) {
                     values.add(new Pair<Comparable, Integer>(categoryLabelMap.get(value), i));
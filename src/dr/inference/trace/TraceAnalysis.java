@@ -50,9 +50,7 @@ public class TraceAnalysis {
         traces.loadTraces();
         traces.setBurnIn(burnin);
 
-        for (int i = 0; i < traces.getTraceCount(); i++) {
-            traces.analyseTrace(i);
-        }
+        traces.analyseTraces();
         return traces;
     }
 
@@ -107,9 +105,10 @@ public class TraceAnalysis {
         }
         System.out.println();
 
+        traces.analyseTraces();
+
         int warning = 0;
         for (int i = 0; i < traces.getTraceCount(); i++) {
-            traces.analyseTrace(i);
             TraceCorrelation distribution = traces.getCorrelationStatistics(i);
 
             double ess = distribution.getESS();
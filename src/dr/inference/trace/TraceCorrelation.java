@@ -25,6 +25,8 @@
 
 package dr.inference.trace;
 
+import dr.math.FastFourierTransform;
+
 import java.util.List;
 import java.util.Map;
 
@@ -33,6 +35,10 @@ import java.util.Map;
  * The difference to TraceDistribution is mainly to add ACT and ESS
  * which require stepSize.
  *
+ * The autocovariances are summed directly for the first lags; if the stopping criterion has not
+ * been met by then, the remaining lags are taken from a single FFT of the trace, in O(n log n)
+ * rather than O(n) per lag.
+ *
  * @author Andrew Rambaut
  * @author Alexei Drummond
  * @version $Id: TraceCorrelation.java,v 1.2 2006/11/29 14:53:53 rambaut Exp $
@@ -87,6 +93,9 @@ public class TraceCorrelation extends TraceDistribution {
 
     private static final int MAX_LAG = 2000;
 
+    // lags summed directly, per doubling of the FFT length, before switching to the FFT
+    private static final int DIRECT_LAGS_PER_LOG2 = 8;
+
     private void analyseCorrelation(List<Double> values, long stepSize) {
 //        this.values = values; // move to TraceDistribution(T[] values)
 
@@ -136,12 +145,23 @@ public class TraceCorrelation extends TraceDistribution {
         //double assVarCor = 1.0;
         //double del1, del2;
 
+        final int fftLength = getFFTLength(samples + maxLag);
+        final int directLags = DIRECT_LAGS_PER_LOG2 * Integer.numberOfTrailingZeros(fftLength);
+        double[] lagSums = null;
+
         for (int lag = 0; lag < maxLag; lag++) {
-            for (int j = 0; j < samples - lag; j++) {
-                final double del1 = values[j] - mean;
-                final double del2 = values[j + lag] - mean;
-                gammaStat[lag] += (del1 * del2);
-                //varGammaStat[lag] += (del1*del1*del2*del2);
+            if (lag < directLags) {
+                for (int j = 0; j < samples - lag; j++) {
+                    final double del1 = values[j] - mean;
+                    final double del2 = values[j + lag] - mean;
+                    gammaStat[lag] += (del1 * del2);
+                    //varGammaStat[lag] += (del1*del1*del2*del2);
+                }
+            } else {
+                if (lagSums == null) {
+                    lagSums = getLaggedSums(values, mean, fftLength);
+                }
+                gammaStat[lag] = lagSums[lag];
             }
 
             gammaStat[lag] /= ((double) (samples - lag));
@@ -189,4 +209,38 @@ public class TraceCorrelation extends TraceDistribution {
 //        minEqualToMax = true;
     }
 
+    private static int getFFTLength(int length) {
+        int fftLength = 1;
+        while (fftLength < length) {
+            fftLength <<= 1;
+        }
+        return fftLength;
+    }
+
+    /**
+     * Sums of (x[j] - mean) * (x[j + lag] - mean) over j for every lag, from the inverse transform of the
+     * power spectrum. The zero padding to fftLength >= samples + maxLag stops the circular lags wrapping.
+     */
+    private static double[] getLaggedSums(double[] values, double mean, int fftLength) {
+        final double[] data = new double[2 * fftLength];
+        for (int j = 0; j < values.length; j++) {
+            data[2 * j] = values[j] - mean;
+        }
+
+        FastFourierTransform.fft(data, fftLength, false);
+        for (int k = 0; k < fftLength; k++) {
+            final double re = data[2 * k];
+            final double im = data[2 * k + 1];
+            data[2 * k] = re * re + im * im;
+            data[2 * k + 1] = 0.0;
+        }
+        FastFourierTransform.fft(data, fftLength, true);
+
+        final double[] sums = new double[fftLength];
+        for (int lag = 0; lag < fftLength; lag++) {
+            sums[lag] = data[2 * lag] / fftLength;
+        }
+        return sums;
+    }
+
 }
\ No newline at end of file
@@ -107,9 +107,15 @@ public class MCMCParser extends AbstractXMLObjectParser {
 
         int minOperatorCountForFullEvaluation = xo.getAttribute(MIN_OPS_EVALUATIONS, 1);
 
+        long fullEvaluationFrequency = xo.getAttribute(FULL_EVALUATION_FREQUENCY, 0L);
+        if (System.getProperty("mcmc.evaluation.frequency") != null) {
+            fullEvaluationFrequency = Long.parseLong(System.getProperty("mcmc.evaluation.frequency"));
+        }
+
         MCMCOptions options = new MCMCOptions(chainLength,
                 fullEvaluationCount,
                 minOperatorCountForFullEvaluation,
+                fullEvaluationFrequency,
                 evaluationTestThreshold,
                 useAdaptation,
                 adaptationDelay,
@@ -288,6 +294,7 @@ public class MCMCParser extends AbstractXMLObjectParser {
             AttributeRule.newDoubleRule(TEMPERATURE, true),
             AttributeRule.newIntegerRule(FULL_EVALUATION, true),
             AttributeRule.newIntegerRule(MIN_OPS_EVALUATIONS, true),
+            AttributeRule.newLongIntegerRule(FULL_EVALUATION_FREQUENCY, true),
             AttributeRule.newDoubleRule(EVALUATION_THRESHOLD, true),
             AttributeRule.newBooleanRule(SPAWN, true),
             AttributeRule.newStringRule(NAME, true),
@@ -309,6 +316,7 @@ public class MCMCParser extends AbstractXMLObjectParser {
     public static final String FULL_EVALUATION = "fullEvaluation";
     public static final String EVALUATION_THRESHOLD  = "evaluationThreshold";
     public static final String MIN_OPS_EVALUATIONS = "minOpsFullEvaluations";
+    public static final String FULL_EVALUATION_FREQUENCY = "fullEvaluationFrequency";
     public static final String WEIGHT = "weight";
     public static final String TEMPERATURE = "temperature";
     public static final String SPAWN = "spawn";
@@ -35,6 +35,7 @@ import dr.xml.*;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.logging.Logger;
 
 /**
  * @author Max Tolkoff
@@ -43,6 +44,7 @@ public class CompoundGradientParser extends AbstractXMLObjectParser {
 
     public final static String SUM_DERIVATIVE = "appendedPotentialDerivative";
     public static final String SUM_DERIVATIVE2 = "compoundGradient";
+    public static final String THREADS = "threads";
 
     @Override
     public String getParserName() {
@@ -98,7 +100,14 @@ public class CompoundGradientParser extends AbstractXMLObjectParser {
             likelihoodList.add(likelihood);
         }
 
-        return new CompoundDerivative(gradList);
+        // the components are evaluated in turn unless a number of threads is given (-1 for one per component)
+        int threads = xo.getAttribute(THREADS, 0);
+        if (threads != 0 && threads != 1) {
+            Logger.getLogger("dr.inference").info("Gradient components of " + xo.getName() +
+                    " are evaluated concurrently on the shared thread pool.");
+        }
+
+        return new CompoundDerivative(gradList, threads);
     }
 
     @Override
@@ -107,6 +116,8 @@ public class CompoundGradientParser extends AbstractXMLObjectParser {
     }
 
     private final XMLSyntaxRule[] rules = {
+            AttributeRule.newIntegerRule(THREADS, true,
+                    "The number of threads to evaluate the component gradients on (-1 for one per component)"),
             new ElementRule(GradientWrtParameterProvider.class, 1, Integer.MAX_VALUE),
     };
 
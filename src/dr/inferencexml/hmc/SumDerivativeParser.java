@@ -31,6 +31,7 @@ import dr.xml.*;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.logging.Logger;
 
 /**
  * @author Max Tolkoff
@@ -40,6 +41,7 @@ import java.util.List;
 public class SumDerivativeParser extends AbstractXMLObjectParser{
     public final static String SUM_DERIVATIVE = "sumDerivative";
     public final static String SUM_DERIVATIVE2 = "jointGradient";
+    public final static String THREADS = "threads";
 
 
     @Override
@@ -62,7 +64,14 @@ public class SumDerivativeParser extends AbstractXMLObjectParser{
             derivativeList.add(grad);
         }
 
-        return new SumDerivative(derivativeList);
+        // the components are evaluated in turn unless a number of threads is given (-1 for one per component)
+        int threads = xo.getAttribute(THREADS, 0);
+        if (threads != 0 && threads != 1) {
+            Logger.getLogger("dr.inference").info("Gradient components of " + xo.getName() +
+                    " are evaluated concurrently on the shared thread pool.");
+        }
+
+        return new SumDerivative(derivativeList, threads);
     }
 
     @Override
@@ -71,6 +80,8 @@ public class SumDerivativeParser extends AbstractXMLObjectParser{
     }
 
     private final XMLSyntaxRule[] rules = {
+            AttributeRule.newIntegerRule(THREADS, true,
+                    "The number of threads to evaluate the component gradients on (-1 for one per component)"),
             new ElementRule(GradientWrtParameterProvider.class, 1, Integer.MAX_VALUE),
     };
 
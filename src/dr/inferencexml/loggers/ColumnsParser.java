@@ -43,6 +43,7 @@ public class ColumnsParser extends AbstractXMLObjectParser {
     public static final String FORMAT = "format";
     public static final String PERCENT = "percent";
     public static final String BOOL = "boolean";
+    public static final String ESS = "ess";
 
     public String getParserName() {
         return COLUMN;
@@ -84,6 +85,12 @@ public class ColumnsParser extends AbstractXMLObjectParser {
                         cols[k] = new BooleanColumn((NumberColumn) cols[k]);
                     }
                 }
+            } else if (format.equals(ESS)) {
+                for (int k = 0; k < cols.length; ++k) {
+                    if (cols[k] instanceof NumberColumn) {
+                        cols[k] = new ESSColumn((NumberColumn) cols[k]);
+                    }
+                }
             }
 
             for (int j = 0; j < cols.length; j++) {
@@ -143,7 +150,9 @@ public class ColumnsParser extends AbstractXMLObjectParser {
             AttributeRule.newIntegerRule(SIGNIFICANT_FIGURES, true),
             AttributeRule.newIntegerRule(DECIMAL_PLACES, true),
             AttributeRule.newIntegerRule(WIDTH, true),
-            AttributeRule.newStringRule(FORMAT, true),
+            new StringAttributeRule(FORMAT,
+                    "The format of the column: '" + PERCENT + "', '" + BOOL + "' or '" + ESS +
+                            "' (the running effective sample size of the values logged so far)", true),
             // Anything goes???
             new ElementRule(Object.class, 1, Integer.MAX_VALUE),
     };
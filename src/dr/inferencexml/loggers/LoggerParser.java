@@ -54,8 +54,11 @@ public class LoggerParser extends AbstractXMLObjectParser {
     public static final String TAB = "tab";
     public static final String HTML = "html";
     public static final String PRETTY = "pretty";
+    public static final String BINARY = "binary";
     public static final String LOG_EVERY = "logEvery";
     public static final String ALLOW_OVERWRITE_LOG = "overwrite";
+    public static final String ASYNCHRONOUS = "asynchronous";
+    public static final String BUFFER_SIZE = "bufferSize";
 
     public static final String COLUMNS = "columns";
     public static final String COLUMN = "column";
@@ -76,9 +79,16 @@ public class LoggerParser extends AbstractXMLObjectParser {
         // You must say how often you want to log
         final int logEvery = xo.getIntegerAttribute(LOG_EVERY);
 
-        final PrintWriter pw = getLogFile(xo, getParserName());
-
-        final LogFormatter formatter = new TabDelimitedFormatter(pw);
+        final LogFormatter formatter;
+        if (xo.getAttribute(FORMAT, TAB).equalsIgnoreCase(BINARY)) {
+            if (!xo.hasAttribute(FILE_NAME)) {
+                throw new XMLParseException("A binary log must be written to a file");
+            }
+            formatter = new BinaryLogFormatter(XMLParser.getLogFile(xo, FILE_NAME));
+        } else {
+            final PrintWriter pw = getLogFile(xo, getParserName());
+            formatter = new TabDelimitedFormatter(pw);
+        }
 
         boolean performanceReport = false;
 
@@ -87,8 +97,17 @@ public class LoggerParser extends AbstractXMLObjectParser {
             performanceReport = true;
         }
 
-        // added a performance measurement delay to avoid the full evaluation period.
-        final MCLogger logger = new MCLogger(formatter, logEvery, performanceReport, 10000);
+        // file logs can be formatted and written on a background thread
+        boolean asynchronous = xo.getAttribute(ASYNCHRONOUS, Boolean.getBoolean("log.asynchronous"));
+
+        final MCLogger logger;
+        if (asynchronous && !performanceReport) {
+            int bufferSize = xo.getAttribute(BUFFER_SIZE, AsynchronousMCLogger.DEFAULT_BUFFER_SIZE);
+            logger = new AsynchronousMCLogger(formatter, logEvery, bufferSize);
+        } else {
+            // added a performance measurement delay to avoid the full evaluation period.
+            logger = new MCLogger(formatter, logEvery, performanceReport, 10000);
+        }
 
         String title = null;
         if (xo.hasAttribute(TITLE)) {
@@ -157,9 +176,16 @@ public class LoggerParser extends AbstractXMLObjectParser {
     private final XMLSyntaxRule[] rules = {
             AttributeRule.newIntegerRule(LOG_EVERY),
             AttributeRule.newBooleanRule(ALLOW_OVERWRITE_LOG, true),
+            AttributeRule.newBooleanRule(ASYNCHRONOUS, true,
+                    "Format and write the log on a background thread (file logs only)"),
+            AttributeRule.newIntegerRule(BUFFER_SIZE, true,
+                    "The number of logged states that can wait to be written before the chain is held up"),
             new StringAttributeRule(FILE_NAME,
                     "The name of the file to send log output to. " +
                             "If no file name is specified then log is sent to standard output", true),
+            new StringAttributeRule(FORMAT,
+                    "The format of the log file (a binary log can be read by LogAnalyser and Tracer but not as text)",
+                    new String[]{TAB, BINARY}, true),
             new StringAttributeRule(TITLE,
                     "The title of the log", true),
             new StringAttributeRule(HEADER,
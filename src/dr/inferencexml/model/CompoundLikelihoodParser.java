@@ -27,6 +27,7 @@ package dr.inferencexml.model;
 
 import dr.inference.model.CompoundLikelihood;
 import dr.inference.model.Likelihood;
+import dr.util.SharedThreadPool;
 import dr.xml.*;
 
 import java.util.ArrayList;
@@ -98,13 +99,14 @@ public class CompoundLikelihoodParser extends AbstractXMLObjectParser {
             compoundLikelihood = new CompoundLikelihood(threads, likelihoods);
             switch (threads) {
                 case -1:
-                    Logger.getLogger("dr.evomodel").info("\nLikelihood computation is using an auto sizing thread pool.");
+                    Logger.getLogger("dr.evomodel").info("\nLikelihood computation is using the shared thread pool (" +
+                            SharedThreadPool.getThreadCount() + " threads).");
                     break;
                 case 0:
                     Logger.getLogger("dr.evomodel").info("\nLikelihood computation is using a single thread.");
                     break;
                 default:
-                    Logger.getLogger("dr.evomodel").info("\nLikelihood computation is using a pool of " + threads + " threads.");
+                    Logger.getLogger("dr.evomodel").info("\nLikelihood computation is using up to " + threads + " threads from the shared thread pool.");
                     break;
             }
         } else {
@@ -29,6 +29,8 @@ import dr.util.NumberFormatter;
 
 import java.text.NumberFormat;
 import java.text.ParseException;
+import java.util.Map;
+import java.util.TreeMap;
 
 /**
  * Handy utility functions which have some Mathematical relavance.
@@ -54,6 +56,20 @@ public class MathUtils {
 	 */
 	private static final MersenneTwisterFast random = MersenneTwisterFast.DEFAULT_INSTANCE;
 
+	/**
+	 * Independent random number streams derived from the seed of the default instance. A thread
+	 * (an MCMCMC chain or an SMC particle, for example) that has a stream bound with useStream
+	 * draws from it through the static methods below, without synchronization, so that it
+	 * doesn't contend with other threads and its draws don't depend on how they are interleaved.
+	 */
+	private static final Map<Integer, MersenneTwisterFast> streams = new TreeMap<Integer, MersenneTwisterFast>();
+
+	private static final ThreadLocal<MersenneTwisterFast> threadStream = new ThreadLocal<MersenneTwisterFast>();
+	private static final ThreadLocal<Integer> threadStreamIndex = new ThreadLocal<Integer>();
+
+	// saves looking up the thread's stream until one has been bound
+	private static volatile boolean streamsBound = false;
+
 	// Chooses one category if a cumulative probability distribution is given
 	public static int randomChoice(double[] cf) {
 
@@ -180,54 +196,86 @@ public class MathUtils {
 	}
 
 	/**
-	 * Access a default instance of this class, access is synchronized
+	 * Access a default instance of this class, access is synchronized. Any streams that have
+	 * been created are re-derived from the new seed.
 	 */
 	public static void setSeed(long seed) {
 		synchronized (random) {
 			random.setSeed(seed);
 		}
+		synchronized (streams) {
+			for (Map.Entry<Integer, MersenneTwisterFast> entry : streams.entrySet()) {
+				entry.getValue().setStreamSeed(seed, entry.getKey());
+			}
+		}
 	}
 
 	/**
-	 * Access a default instance of this class, access is synchronized
+	 * Access this thread's stream or, if it has none, the default instance of this class
+	 * (access to which is synchronized)
 	 */
 	public static byte nextByte() {
+		final MersenneTwisterFast stream = getThreadStream();
+		if (stream != null) {
+			return stream.nextByte();
+		}
 		synchronized (random) {
 			return random.nextByte();
 		}
 	}
 
 	/**
-	 * Access a default instance of this class, access is synchronized
+	 * Access this thread's stream or, if it has none, the default instance of this class
+	 * (access to which is synchronized)
 	 */
 	public static boolean nextBoolean() {
+		final MersenneTwisterFast stream = getThreadStream();
+		if (stream != null) {
+			return stream.nextBoolean();
+		}
 		synchronized (random) {
 			return random.nextBoolean();
 		}
 	}
 
 	/**
-	 * Access a default instance of this class, access is synchronized
+	 * Access this thread's stream or, if it has none, the default instance of this class
+	 * (access to which is synchronized)
 	 */
 	public static void nextBytes(byte[] bs) {
+		final MersenneTwisterFast stream = getThreadStream();
+		if (stream != null) {
+			stream.nextBytes(bs);
+			return;
+		}
 		synchronized (random) {
 			random.nextBytes(bs);
 		}
 	}
 
 	/**
-	 * Access a default instance of this class, access is synchronized
+	 * Access this thread's stream or, if it has none, the default instance of this class
+	 * (access to which is synchronized)
 	 */
 	public static char nextChar() {
+		final MersenneTwisterFast stream = getThreadStream();
+		if (stream != null) {
+			return stream.nextChar();
+		}
 		synchronized (random) {
 			return random.nextChar();
 		}
 	}
 
 	/**
-	 * Access a default instance of this class, access is synchronized
+	 * Access this thread's stream or, if it has none, the default instance of this class
+	 * (access to which is synchronized)
 	 */
 	public static double nextGaussian() {
+		final MersenneTwisterFast stream = getThreadStream();
+		if (stream != null) {
+			return stream.nextGaussian();
+		}
 		synchronized (random) {
 			return random.nextGaussian();
 		}
@@ -237,6 +285,10 @@ public class MathUtils {
 	//Variance = alpha / (lambda*lambda)
 
 	public static double nextGamma(double alpha, double lambda) {
+		final MersenneTwisterFast stream = getThreadStream();
+		if (stream != null) {
+			return stream.nextGamma(alpha, lambda);
+		}
 		synchronized (random) {
 			return random.nextGamma(alpha, lambda);
 		}
@@ -253,11 +305,16 @@ public class MathUtils {
 
 
 	/**
-	 * Access a default instance of this class, access is synchronized
+	 * Access this thread's stream or, if it has none, the default instance of this class
+	 * (access to which is synchronized)
 	 *
 	 * @return a pseudo random double precision floating point number in [01)
 	 */
 	public static double nextDouble() {
+		final MersenneTwisterFast stream = getThreadStream();
+		if (stream != null) {
+			return stream.nextDouble();
+		}
 		synchronized (random) {
 			return random.nextDouble();
 		}
@@ -271,73 +328,96 @@ public class MathUtils {
 	}
 
 	/**
-	 * Access a default instance of this class, access is synchronized
+	 * Access this thread's stream or, if it has none, the default instance of this class
+	 * (access to which is synchronized)
 	 */
 	public static double nextExponential(double lambda) {
-		synchronized (random) {
-			return -1.0 * Math.log(1 - random.nextDouble()) / lambda;
-		}
+		return -1.0 * Math.log(1 - nextDouble()) / lambda;
 	}
 
 	/**
-	 * Access a default instance of this class, access is synchronized
+	 * Access this thread's stream or, if it has none, the default instance of this class
+	 * (access to which is synchronized)
 	 */
 	public static double nextInverseGaussian(double mu, double lambda) {
-		synchronized (random) {
-			/* CODE TAKEN FROM WIKIPEDIA. TESTING DONE WITH RESULTS GENERATED IN R AND LOOK COMPARABLE */
-			double v = random.nextGaussian();   // sample from a normal distribution with a mean of 0 and 1 standard deviation
-			double y = v * v;
-			double x = mu + (mu * mu * y) / (2 * lambda) - (mu / (2 * lambda)) * Math.sqrt(4 * mu * lambda * y + mu * mu * y * y);
-			double test = MathUtils.nextDouble();  // sample from a uniform distribution between 0 and 1
-			if (test <= (mu) / (mu + x)) {
-				return x;
-			} else {
-				return (mu * mu) / x;
-			}
+		/* CODE TAKEN FROM WIKIPEDIA. TESTING DONE WITH RESULTS GENERATED IN R AND LOOK COMPARABLE */
+		double v = nextGaussian();   // sample from a normal distribution with a mean of 0 and 1 standard deviation
+		double y = v * v;
+		double x = mu + (mu * mu * y) / (2 * lambda) - (mu / (2 * lambda)) * Math.sqrt(4 * mu * lambda * y + mu * mu * y * y);
+		double test = MathUtils.nextDouble();  // sample from a uniform distribution between 0 and 1
+		if (test <= (mu) / (mu + x)) {
+			return x;
+		} else {
+			return (mu * mu) / x;
 		}
 	}
 
 
 	/**
-	 * Access a default instance of this class, access is synchronized
+	 * Access this thread's stream or, if it has none, the default instance of this class
+	 * (access to which is synchronized)
 	 */
 	public static float nextFloat() {
+		final MersenneTwisterFast stream = getThreadStream();
+		if (stream != null) {
+			return stream.nextFloat();
+		}
 		synchronized (random) {
 			return random.nextFloat();
 		}
 	}
 
 	/**
-	 * Access a default instance of this class, access is synchronized
+	 * Access this thread's stream or, if it has none, the default instance of this class
+	 * (access to which is synchronized)
 	 */
 	public static long nextLong() {
+		final MersenneTwisterFast stream = getThreadStream();
+		if (stream != null) {
+			return stream.nextLong();
+		}
 		synchronized (random) {
 			return random.nextLong();
 		}
 	}
 
 	/**
-	 * Access a default instance of this class, access is synchronized
+	 * Access this thread's stream or, if it has none, the default instance of this class
+	 * (access to which is synchronized)
 	 */
 	public static short nextShort() {
+		final MersenneTwisterFast stream = getThreadStream();
+		if (stream != null) {
+			return stream.nextShort();
+		}
 		synchronized (random) {
 			return random.nextShort();
 		}
 	}
 
 	/**
-	 * Access a default instance of this class, access is synchronized
+	 * Access this thread's stream or, if it has none, the default instance of this class
+	 * (access to which is synchronized)
 	 */
 	public static int nextInt() {
+		final MersenneTwisterFast stream = getThreadStream();
+		if (stream != null) {
+			return stream.nextInt();
+		}
 		synchronized (random) {
 			return random.nextInt();
 		}
 	}
 
 	/**
-	 * Access a default instance of this class, access is synchronized
+	 * Access this thread's stream or, if it has none, the default instance of this class
+	 * (access to which is synchronized)
 	 */
 	public static int nextInt(int n) {
+		final MersenneTwisterFast stream = getThreadStream();
+		if (stream != null) {
+			return stream.nextInt(n);
+		}
 		synchronized (random) {
 			return random.nextInt(n);
 		}
@@ -356,6 +436,11 @@ public class MathUtils {
 	 * Shuffles an array.
 	 */
 	public static void shuffle(int[] array) {
+		final MersenneTwisterFast stream = getThreadStream();
+		if (stream != null) {
+			stream.shuffle(array);
+			return;
+		}
 		synchronized (random) {
 			random.shuffle(array);
 		}
@@ -365,6 +450,11 @@ public class MathUtils {
 	 * Shuffles an array. Shuffles numberOfShuffles times
 	 */
 	public static void shuffle(int[] array, int numberOfShuffles) {
+		final MersenneTwisterFast stream = getThreadStream();
+		if (stream != null) {
+			stream.shuffle(array, numberOfShuffles);
+			return;
+		}
 		synchronized (random) {
 			random.shuffle(array, numberOfShuffles);
 		}
@@ -376,6 +466,10 @@ public class MathUtils {
 	 * @param l length of the array required.
 	 */
 	public static int[] shuffled(int l) {
+		final MersenneTwisterFast stream = getThreadStream();
+		if (stream != null) {
+			return stream.shuffled(l);
+		}
 		synchronized (random) {
 			return random.shuffled(l);
 		}
@@ -383,18 +477,31 @@ public class MathUtils {
 
 
 	public static int[] sampleIndicesWithReplacement(int length) {
+		final MersenneTwisterFast stream = getThreadStream();
+		if (stream != null) {
+			return sampleIndicesWithReplacement(stream, length);
+		}
 		synchronized (random) {
-			int[] result = new int[length];
-			for (int i = 0; i < length; i++)
-				result[i] = random.nextInt(length);
-			return result;
+			return sampleIndicesWithReplacement(random, length);
 		}
 	}
 
+	private static int[] sampleIndicesWithReplacement(MersenneTwisterFast generator, int length) {
+		int[] result = new int[length];
+		for (int i = 0; i < length; i++)
+			result[i] = generator.nextInt(length);
+		return result;
+	}
+
 	/**
 	 * Permutes an array.
 	 */
 	public static void permute(int[] array) {
+		final MersenneTwisterFast stream = getThreadStream();
+		if (stream != null) {
+			stream.permute(array);
+			return;
+		}
 		synchronized (random) {
 			random.permute(array);
 		}
@@ -406,6 +513,10 @@ public class MathUtils {
 	 * @param l length of the array required.
 	 */
 	public static int[] permuted(int l) {
+		final MersenneTwisterFast stream = getThreadStream();
+		if (stream != null) {
+			return stream.permuted(l);
+		}
 		synchronized (random) {
 			return random.permuted(l);
 		}
@@ -462,6 +573,70 @@ public class MathUtils {
 		}
 	}
 
+	/**
+	 * Returns stream index, creating it from the current seed if it doesn't exist yet. Stream
+	 * index is always the same sequence for a given seed.
+	 */
+	private static MersenneTwisterFast getStream(int index) {
+		synchronized (streams) {
+			MersenneTwisterFast stream = streams.get(index);
+			if (stream == null) {
+				stream = MersenneTwisterFast.createStream(getSeed(), index);
+				streams.put(index, stream);
+			}
+			return stream;
+		}
+	}
+
+	/**
+	 * Binds stream index to the current thread so that the static methods of this class draw
+	 * from it. A stream should only be bound to one thread at a time.
+	 *
+	 * @param index the index of the stream
+	 */
+	public static void useStream(int index) {
+		threadStream.set(getStream(index));
+		threadStreamIndex.set(index);
+		streamsBound = true;
+	}
+
+	/**
+	 * Returns the current thread to the default (shared) instance.
+	 */
+	public static void useDefaultStream() {
+		threadStream.remove();
+		threadStreamIndex.remove();
+	}
+
+	/**
+	 * @return the index of the stream bound to the current thread or -1 if it uses the default instance
+	 */
+	public static int getStreamIndex() {
+		Integer index = threadStreamIndex.get();
+		return index != null ? index : -1;
+	}
+
+	private static MersenneTwisterFast getThreadStream() {
+		return streamsBound ? threadStream.get() : null;
+	}
+
+	/**
+	 * @return the states of all the streams that have been created, keyed by index
+	 */
+	public static Map<Integer, int[]> getStreamStates() {
+		Map<Integer, int[]> states = new TreeMap<Integer, int[]>();
+		synchronized (streams) {
+			for (Map.Entry<Integer, MersenneTwisterFast> entry : streams.entrySet()) {
+				states.put(entry.getKey(), entry.getValue().getRandomState());
+			}
+		}
+		return states;
+	}
+
+	public static void setStreamState(int index, int[] rngState) {
+		getStream(index).setRandomState(rngState);
+	}
+
 	public static boolean isClose(double[] x, double[] y, double tolerance) {
 		if (x.length != y.length) return false;
 
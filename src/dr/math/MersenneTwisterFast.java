@@ -176,6 +176,48 @@ class MersenneTwisterFast implements Serializable {
 		return initializationSeed;
 	}
 
+	/**
+	 * Creates the generator for one of a set of streams derived from a seed. The whole state
+	 * vector is filled from a SplitMix64 sequence keyed on the seed and the stream index so the
+	 * streams are reproducible and, unlike generators seeded with consecutive integers, don't
+	 * start from closely related states.
+	 *
+	 * @param seed  the seed the streams are derived from
+	 * @param index the index of the stream
+	 * @return a new generator
+	 */
+	public static MersenneTwisterFast createStream(long seed, long index) {
+		MersenneTwisterFast stream = new MersenneTwisterFast(GOOD_SEED);
+		stream.setStreamSeed(seed, index);
+		return stream;
+	}
+
+	/**
+	 * Re-initializes this generator as stream index of the given seed (see createStream).
+	 */
+	public final void setStreamSeed(long seed, long index) {
+		initializationSeed = seed;
+		haveNextNextGaussian = false;
+
+		mt = new int[N];
+
+		long x = mix64(seed) ^ mix64(~index);
+		for (int i = 0; i < N; i++) {
+			x += 0x9e3779b97f4a7c15L;
+			mt[i] = (int) (mix64(x) >>> 32);
+		}
+		// as in init_by_array of the reference implementation, the most significant bit
+		// assures a non-zero state
+		mt[0] = 0x80000000;
+		mti = N;
+	}
+
+	private static long mix64(long z) {
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+
 	public final int nextInt() {
 		int y;
 
@@ -116,6 +116,70 @@ public class CholeskyDecomposition {
         return L;
     }
 
+    /**
+     * Factorizes a block-diagonal symmetric matrix A = U^T U in place, where A and U are stored
+     * row-major in a flat array and only the upper triangle of A is read.
+     *
+     * @param A         the matrix, overwritten by U (the strictly lower triangle is left untouched)
+     * @param n         the dimension
+     * @param blockEnds for each row, one past the last index of the diagonal block containing it
+     *                  (n for every row when A is dense)
+     * @return false if A is not positive definite (the failing pivots are set to zero, as in the constructor)
+     */
+    public static boolean executeUpperInPlace(final double[] A, final int n, final int[] blockEnds) {
+        boolean isspd = true;
+        for (int k = 0; k < n; k++) {
+            final int end = blockEnds[k];
+            final int rowk = k * n;
+
+            double d = A[rowk + k];
+            isspd = isspd & (d > 0.0);
+            d = Math.sqrt(Math.max(d, 0.0));
+            A[rowk + k] = d;
+
+            for (int j = k + 1; j < end; j++) {
+                A[rowk + j] /= d;
+            }
+            // subtract the outer product of row k from the trailing block
+            for (int i = k + 1; i < end; i++) {
+                final double u = A[rowk + i];
+                final int rowi = i * n;
+                for (int j = i; j < end; j++) {
+                    A[rowi + j] -= u * A[rowk + j];
+                }
+            }
+        }
+        return isspd;
+    }
+
+    /**
+     * Updates an upper factor from executeUpperInPlace so that U'^T U' = U^T U + x x^T, in O(n^2) rather
+     * than refactorizing.
+     *
+     * @param U         the factor, row-major, updated in place
+     * @param n         the dimension
+     * @param x         the update vector, overwritten
+     * @param blockEnds as for executeUpperInPlace (x x^T is restricted to the diagonal blocks)
+     */
+    public static void rankOneUpdateUpper(final double[] U, final int n, final double[] x, final int[] blockEnds) {
+        for (int k = 0; k < n; k++) {
+            final int end = blockEnds[k];
+            final int rowk = k * n;
+
+            final double ukk = U[rowk + k];
+            final double r = Math.sqrt(ukk * ukk + x[k] * x[k]);
+            final double c = r / ukk;
+            final double s = x[k] / ukk;
+            U[rowk + k] = r;
+
+            for (int j = k + 1; j < end; j++) {
+                final double u = (U[rowk + j] + s * x[j]) / c;
+                x[j] = c * x[j] - s * u;
+                U[rowk + j] = u;
+            }
+        }
+    }
+
 	public double[] getUpperTriangular() {
 		double[] result = new double[n * (n + 1) / 2];
 		int k = 0;
@@ -122,13 +122,19 @@ public interface ReadableVector {
     class Utils {
 
         public static void setParameter(double[] value, Parameter parameter) {
-            for (int j = 0, dim = value.length; j < dim; ++j) {
-                parameter.setParameterValueQuietly(j, value[j]);
-            }
+            parameter.setAllParameterValuesQuietly(value);
             parameter.fireParameterChangedEvent();
         }
 
         public static void setParameter(ReadableVector position, Parameter parameter) {
+            if (position instanceof WrappedVector) {
+                WrappedVector wrapped = (WrappedVector) position;
+                if (wrapped.getOffset() == 0 && wrapped.getBuffer().length == wrapped.getDim()) {
+                    setParameter(wrapped.getBuffer(), parameter);
+                    return;
+                }
+            }
+
             for (int j = 0, dim = position.getDim(); j < dim; ++j) {
                 parameter.setParameterValueQuietly(j, position.get(j));
             }
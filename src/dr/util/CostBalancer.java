@@ -0,0 +1,97 @@
+/*
+ * CostBalancer.java
+ *
+ * Copyright (c) 2002-2020 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.util;
+
+/**
+ * Packs tasks with known (measured) costs into a fixed number of bins using the
+ * longest-processing-time-first heuristic: tasks are taken in decreasing order of
+ * cost and each is put in the bin with the smallest current load. The result is
+ * within 4/3 of the optimal makespan.
+ *
+ * All working storage is passed in by the caller so that repeated packing does
+ * not allocate.
+ *
+ * @author Andrew Rambaut
+ */
+public class CostBalancer {
+
+    private CostBalancer() {
+        // static access only
+    }
+
+    /**
+     * @param costs      the cost of each task
+     * @param taskCount  the number of tasks (costs may be longer)
+     * @param binCount   the number of bins to pack into
+     * @param order      workspace of at least taskCount in length (returns the tasks sorted by decreasing cost)
+     * @param binLoads   returns the total cost in each bin (at least binCount in length)
+     * @param assignment returns the bin for each task (at least taskCount in length)
+     */
+    public static void pack(double[] costs, int taskCount, int binCount,
+                            int[] order, double[] binLoads, int[] assignment) {
+
+        for (int i = 0; i < taskCount; i++) {
+            order[i] = i;
+        }
+
+        // insertion sort by decreasing cost - task counts are small and the order
+        // usually changes little between calls
+        for (int i = 1; i < taskCount; i++) {
+            int task = order[i];
+            double cost = costs[task];
+            int j = i - 1;
+            while (j >= 0 && costs[order[j]] < cost) {
+                order[j + 1] = order[j];
+                j--;
+            }
+            order[j + 1] = task;
+        }
+
+        for (int b = 0; b < binCount; b++) {
+            binLoads[b] = 0.0;
+        }
+
+        for (int i = 0; i < taskCount; i++) {
+            int task = order[i];
+            int lightest = getLightestBin(binLoads, binCount);
+            assignment[task] = lightest;
+            binLoads[lightest] += costs[task];
+        }
+    }
+
+    /**
+     * @return the index of the bin with the smallest load
+     */
+    public static int getLightestBin(double[] binLoads, int binCount) {
+        int lightest = 0;
+        for (int b = 1; b < binCount; b++) {
+            if (binLoads[b] < binLoads[lightest]) {
+                lightest = b;
+            }
+        }
+        return lightest;
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * SharedThreadPool.java
+ *
+ * Copyright (c) 2002-2020 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.util;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+
+/**
+ * A single, process-wide work-stealing pool that is shared by all parallel likelihood
+ * (and gradient) evaluations. The threads are daemons and persist for the lifetime of
+ * the run, so no threads are created or torn down per evaluation. Tasks that are
+ * submitted from within the pool (i.e., nested compound likelihoods) are joined by
+ * work-stealing rather than by blocking a thread.
+ *
+ * The number of threads defaults to the number of available processors and can be set
+ * with the system property "shared.thread.count".
+ *
+ * @author Andrew Rambaut
+ */
+public class SharedThreadPool {
+
+    public static final String THREAD_COUNT_PROPERTY = "shared.thread.count";
+
+    private SharedThreadPool() {
+        // static access only
+    }
+
+    /**
+     * @return the shared pool, created on first use
+     */
+    public static ForkJoinPool getPool() {
+        ForkJoinPool p = pool;
+        if (p == null) {
+            synchronized (SharedThreadPool.class) {
+                p = pool;
+                if (p == null) {
+                    p = createPool(getThreadCount());
+                    pool = p;
+                }
+            }
+        }
+        return p;
+    }
+
+    /**
+     * @return the number of threads the shared pool has (or will have once created)
+     */
+    public static int getThreadCount() {
+        int threadCount = Runtime.getRuntime().availableProcessors();
+        String property = System.getProperty(THREAD_COUNT_PROPERTY);
+        if (property != null) {
+            try {
+                int count = Integer.parseInt(property.trim());
+                if (count > 0) {
+                    threadCount = count;
+                }
+            } catch (NumberFormatException nfe) {
+                // fall back on the processor count
+            }
+        }
+        return threadCount;
+    }
+
+    private static ForkJoinPool createPool(int threadCount) {
+        return new ForkJoinPool(threadCount, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+            public ForkJoinWorkerThread newThread(ForkJoinPool forkJoinPool) {
+                ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(forkJoinPool);
+                thread.setDaemon(true);
+                thread.setName("beast-shared-" + thread.getPoolIndex());
+                return thread;
+            }
+        }, null, false);
+    }
+
+    private static volatile ForkJoinPool pool = null;
+}
@@ -426,6 +426,13 @@ public class XMLObject {
         return element.getTagName();
     }
 
+    /**
+     * @return the DOM element this XMLObject was constructed from
+     */
+    public Element getElement() {
+        return element;
+    }
+
     public Object getNativeObject() {
         return nativeObject;
     }
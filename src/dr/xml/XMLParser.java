@@ -137,6 +137,19 @@ public class XMLParser {
         javax.xml.parsers.DocumentBuilder documentBuilder = documentBuilderFactory.newDocumentBuilder();
         Document document = documentBuilder.parse(in);
 
+        return parse(document, target);
+    }
+
+    /**
+     * As parse(Reader, Class) but for a document that has already been read (and possibly modified).
+     *
+     * @param document the document
+     * @param target   the target class
+     * @return the first object of the target class
+     * @throws dr.xml.XMLParseException
+     */
+    public Object parse(Document document, Class target) throws dr.xml.XMLParseException {
+
         Element e = document.getDocumentElement();
         if (e.getTagName().equals("beast")) {
 
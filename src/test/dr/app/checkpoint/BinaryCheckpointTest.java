@@ -0,0 +1,261 @@
+package test.dr.app.checkpoint;
+
+import dr.app.checkpoint.BinaryCheckpoint;
+import dr.evolution.coalescent.CoalescentSimulator;
+import dr.evolution.coalescent.ConstantPopulation;
+import dr.evolution.tree.TreeUtils;
+import dr.evolution.util.Taxa;
+import dr.evolution.util.Taxon;
+import dr.evolution.util.Units;
+import dr.evomodel.operators.SubtreeSlideOperator;
+import dr.evomodel.tree.TreeModel;
+import dr.inference.distribution.DistributionLikelihood;
+import dr.inference.distribution.NormalDistributionModel;
+import dr.inference.loggers.Logger;
+import dr.inference.markovchain.MarkovChain;
+import dr.inference.mcmc.MCMC;
+import dr.inference.mcmc.MCMCOptions;
+import dr.inference.model.CompoundLikelihood;
+import dr.inference.model.Likelihood;
+import dr.inference.model.Model;
+import dr.inference.model.Parameter;
+import dr.inference.operators.AdaptableMCMCOperator;
+import dr.inference.operators.AdaptationMode;
+import dr.inference.operators.MCMCOperator;
+import dr.inference.operators.OperatorSchedule;
+import dr.inference.operators.RandomWalkOperator;
+import dr.inference.operators.SimpleOperatorSchedule;
+import dr.math.MathUtils;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Writes binary checkpoints (a full snapshot followed by deltas) of a small model with a tree and
+ * reads them back, and checks that a truncated or corrupt last delta is ignored so the state is
+ * that of the previous record.
+ *
+ * @author Andrew Rambaut
+ */
+public class BinaryCheckpointTest extends TestCase {
+
+    private static final int TAXON_COUNT = 10;
+
+    private File file;
+    private TreeModel treeModel;
+    private Parameter mean;
+    private Parameter x;
+    private MarkovChain markovChain;
+
+    public void setUp() throws Exception {
+        super.setUp();
+
+        MathUtils.setSeed(666);
+
+        // only this model is checkpointed
+        Parameter.CONNECTED_PARAMETER_SET.clear();
+        Model.CONNECTED_MODEL_SET.clear();
+
+        file = File.createTempFile("binaryCheckpointTest", ".state");
+        file.deleteOnExit();
+
+        Taxa taxa = new Taxa();
+        for (int i = 0; i < TAXON_COUNT; i++) {
+            taxa.addTaxon(new Taxon("taxon" + i));
+        }
+        ConstantPopulation constant = new ConstantPopulation(Units.Type.YEARS);
+        constant.setN0(10.0);
+        treeModel = new TreeModel("treeModel", new CoalescentSimulator().simulateTree(taxa, constant));
+
+        mean = new Parameter.Default("mean", 0.0, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY);
+        x = new Parameter.Default("x", new double[]{1.0, 2.0, 3.0, 4.0, 5.0});
+        DistributionLikelihood density = new DistributionLikelihood(new NormalDistributionModel(mean,
+                new Parameter.Default("sd", 1.0)));
+        density.addData(x);
+        Likelihood likelihood = new CompoundLikelihood(Collections.<Likelihood>singletonList(density));
+
+        OperatorSchedule schedule = new SimpleOperatorSchedule();
+        schedule.addOperator(new RandomWalkOperator(mean, 1.0, RandomWalkOperator.BoundaryCondition.reflecting, 1.0,
+                AdaptationMode.ADAPTATION_ON));
+        schedule.addOperator(new SubtreeSlideOperator(treeModel, 1.0, 1.0, true, false, false, false,
+                AdaptationMode.ADAPTATION_ON, 0.234));
+
+        MCMC mcmc = new MCMC("mcmc");
+        mcmc.init(new MCMCOptions(1000), likelihood, schedule, new Logger[0]);
+        markovChain = mcmc.getMarkovChain();
+    }
+
+    public void tearDown() throws Exception {
+        super.tearDown();
+        file.delete();
+    }
+
+    public void testRoundTrip() throws Exception {
+        BinaryCheckpoint checkpoint = new BinaryCheckpoint(3);
+
+        assertTrue(checkpoint.writeStateToFile(file, 100, -10.0, markovChain));
+        assertTrue(BinaryCheckpoint.isBinaryCheckpoint(file));
+        long fullLength = file.length();
+
+        change();
+        assertTrue(checkpoint.writeStateToFile(file, 200, -20.0, markovChain));
+        // appended rather than replaced
+        assertTrue(file.length() > fullLength);
+
+        change();
+        // only some of the values of x are different from the snapshot
+        x.setParameterValue(2, 30.0);
+        State expected = new State();
+        assertTrue(checkpoint.writeStateToFile(file, 300, -30.0, markovChain));
+
+        change();
+        for (int i = 0; i < markovChain.getSchedule().getOperatorCount(); i++) {
+            markovChain.getSchedule().getOperator(i).setAcceptCount(0);
+        }
+        MathUtils.setSeed(1);
+
+        assertRestored(expected, 300, -30.0);
+
+        // the third delta and then a full snapshot that replaces the records so far
+        change();
+        assertTrue(checkpoint.writeStateToFile(file, 400, -40.0, markovChain));
+        long deltaLength = file.length();
+        change();
+        assertTrue(checkpoint.writeStateToFile(file, 500, -50.0, markovChain));
+        assertTrue(file.length() < deltaLength);
+        change();
+        assertTrue(checkpoint.writeStateToFile(file, 600, -60.0, markovChain));
+        assertTrue(file.length() > fullLength);
+        expected = new State();
+        change();
+        assertRestored(expected, 600, -60.0);
+    }
+
+    public void testTruncatedOrCorruptDelta() throws Exception {
+        BinaryCheckpoint checkpoint = new BinaryCheckpoint(3);
+
+        assertTrue(checkpoint.writeStateToFile(file, 100, -10.0, markovChain));
+        change();
+        State expected = new State();
+        assertTrue(checkpoint.writeStateToFile(file, 200, -20.0, markovChain));
+        long deltaEnd = file.length();
+        change();
+        assertTrue(checkpoint.writeStateToFile(file, 300, -30.0, markovChain));
+        long length = file.length();
+        byte[] contents = read(file);
+
+        // cut into the checksum, then the payload, then the length of the last delta
+        for (long cut : new long[]{length - 4, (deltaEnd + length) / 2, deltaEnd + 3}) {
+            write(file, Arrays.copyOf(contents, (int) cut));
+            change();
+            assertRestored(expected, 200, -20.0);
+        }
+
+        // a byte of the last delta's payload changed so the checksum doesn't match
+        byte[] corrupt = contents.clone();
+        corrupt[(int) (deltaEnd + 10)] ^= 0x5a;
+        write(file, corrupt);
+        change();
+        assertRestored(expected, 200, -20.0);
+
+        // a corrupt full snapshot can't be ignored
+        corrupt = contents.clone();
+        corrupt[20] ^= 0x5a;
+        write(file, corrupt);
+        try {
+            new BinaryCheckpoint(3).readStateFromFile(file, markovChain, null);
+            fail("the snapshot is corrupt");
+        } catch (RuntimeException re) {
+            // expected
+        }
+    }
+
+    /**
+     * Moves the tree and the mean, and accepts the moves.
+     */
+    private void change() {
+        for (int i = 0; i < markovChain.getSchedule().getOperatorCount(); i++) {
+            MCMCOperator operator = markovChain.getSchedule().getOperator(i);
+            treeModel.storeModelState();
+            operator.operate();
+            operator.accept(0.0);
+            treeModel.acceptModelState();
+            if (operator instanceof AdaptableMCMCOperator) {
+                AdaptableMCMCOperator adaptable = (AdaptableMCMCOperator) operator;
+                adaptable.setAdaptableParameter(adaptable.getAdaptableParameter() + 0.1);
+            }
+        }
+    }
+
+    private void assertRestored(State expected, long state, double lnL) {
+        double[] restoredLnL = new double[1];
+        assertEquals(state, new BinaryCheckpoint(3).readStateFromFile(file, markovChain, restoredLnL));
+        assertEquals(lnL, restoredLnL[0], 0.0);
+        expected.assertSame(new State());
+    }
+
+    private static byte[] read(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            byte[] contents = new byte[(int) raf.length()];
+            raf.readFully(contents);
+            return contents;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static void write(File file, byte[] contents) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(0);
+            raf.write(contents);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * The values of the parameters, the tree, the operators and the random number generator.
+     */
+    private class State {
+
+        State() {
+            for (Parameter parameter : Parameter.CONNECTED_PARAMETER_SET) {
+                values.add(parameter.getParameterValues());
+            }
+            newick = TreeUtils.newick(treeModel);
+            OperatorSchedule schedule = markovChain.getSchedule();
+            acceptCounts = new long[schedule.getOperatorCount()];
+            adaptableParameters = new double[schedule.getOperatorCount()];
+            for (int i = 0; i < schedule.getOperatorCount(); i++) {
+                acceptCounts[i] = schedule.getOperator(i).getAcceptCount();
+                adaptableParameters[i] = ((AdaptableMCMCOperator) schedule.getOperator(i)).getAdaptableParameter();
+            }
+            randomState = MathUtils.getRandomState();
+        }
+
+        void assertSame(State restored) {
+            assertEquals(values.size(), restored.values.size());
+            for (int i = 0; i < values.size(); i++) {
+                assertTrue(Arrays.equals(values.get(i), restored.values.get(i)));
+            }
+            assertEquals(newick, restored.newick);
+            assertTrue(Arrays.equals(acceptCounts, restored.acceptCounts));
+            assertTrue(Arrays.equals(adaptableParameters, restored.adaptableParameters));
+            assertTrue(Arrays.equals(randomState, restored.randomState));
+        }
+
+        private final List<double[]> values = new ArrayList<double[]>();
+        private final String newick;
+        private final long[] acceptCounts;
+        private final double[] adaptableParameters;
+        private final int[] randomState;
+    }
+}
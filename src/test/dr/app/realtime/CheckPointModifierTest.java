@@ -0,0 +1,139 @@
+package test.dr.app.realtime;
+
+import dr.app.checkpoint.BeastCheckpointer;
+import dr.app.realtime.CheckPointModifier;
+import dr.evolution.coalescent.CoalescentSimulator;
+import dr.evolution.coalescent.ConstantPopulation;
+import dr.evolution.tree.TreeUtils;
+import dr.evolution.util.Taxa;
+import dr.evolution.util.Taxon;
+import dr.evolution.util.Units;
+import dr.evomodel.coalescent.CoalescentLikelihood;
+import dr.evomodel.coalescent.TreeIntervals;
+import dr.evomodel.coalescent.demographicmodel.ConstantPopulationModel;
+import dr.evomodel.operators.SubtreeSlideOperator;
+import dr.evomodel.tree.TreeModel;
+import dr.inference.distribution.DistributionLikelihood;
+import dr.inference.distribution.NormalDistributionModel;
+import dr.inference.loggers.Logger;
+import dr.inference.markovchain.MarkovChain;
+import dr.inference.mcmc.MCMC;
+import dr.inference.mcmc.MCMCOptions;
+import dr.inference.model.CompoundLikelihood;
+import dr.inference.model.Likelihood;
+import dr.inference.model.Model;
+import dr.inference.model.Parameter;
+import dr.inference.operators.AdaptationMode;
+import dr.inference.operators.OperatorSchedule;
+import dr.inference.operators.RandomWalkOperator;
+import dr.inference.operators.SimpleOperatorSchedule;
+import dr.math.MathUtils;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Writes a text state file, including the states of per-thread random number streams, with
+ * BeastCheckpointer and reads it back with CheckPointModifier.
+ *
+ * @author Guy Baele
+ */
+public class CheckPointModifierTest extends TestCase {
+
+    private static final int TAXON_COUNT = 10;
+    private static final int STREAM_COUNT = 2;
+
+    private File file;
+    private TreeModel treeModel;
+    private Parameter mean;
+    private MarkovChain markovChain;
+
+    public void setUp() throws Exception {
+        super.setUp();
+
+        MathUtils.setSeed(666);
+
+        // only this model is checkpointed
+        Parameter.CONNECTED_PARAMETER_SET.clear();
+        Model.CONNECTED_MODEL_SET.clear();
+
+        file = File.createTempFile("checkPointModifierTest", ".state");
+        file.deleteOnExit();
+        System.setProperty(BeastCheckpointer.LOAD_STATE_FILE, file.getPath());
+        System.setProperty(BeastCheckpointer.SAVE_STATE_FILE, file.getPath());
+
+        Taxa taxa = new Taxa();
+        for (int i = 0; i < TAXON_COUNT; i++) {
+            taxa.addTaxon(new Taxon("taxon" + i));
+        }
+        ConstantPopulation constant = new ConstantPopulation(Units.Type.YEARS);
+        constant.setN0(10.0);
+        treeModel = new TreeModel("treeModel", new CoalescentSimulator().simulateTree(taxa, constant));
+
+        mean = new Parameter.Default("mean", 0.0, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY);
+        DistributionLikelihood density = new DistributionLikelihood(new NormalDistributionModel(mean,
+                new Parameter.Default("sd", 1.0)));
+        density.addData(new Parameter.Default("x", new double[]{1.0, 2.0, 3.0}));
+        // the coalescent connects the tree so that it is checkpointed
+        Likelihood coalescent = new CoalescentLikelihood(new TreeIntervals(treeModel, null, null),
+                new ConstantPopulationModel(new Parameter.Default("popSize", 10.0), Units.Type.YEARS));
+        Likelihood likelihood = new CompoundLikelihood(Arrays.asList(density, coalescent));
+
+        OperatorSchedule schedule = new SimpleOperatorSchedule();
+        schedule.addOperator(new RandomWalkOperator(mean, 1.0, RandomWalkOperator.BoundaryCondition.reflecting, 1.0,
+                AdaptationMode.ADAPTATION_ON));
+        schedule.addOperator(new SubtreeSlideOperator(treeModel, 1.0, 1.0, true, false, false, false,
+                AdaptationMode.ADAPTATION_ON, 0.234));
+
+        MCMC mcmc = new MCMC("mcmc");
+        mcmc.init(new MCMCOptions(1000), likelihood, schedule, new Logger[0]);
+        markovChain = mcmc.getMarkovChain();
+    }
+
+    public void tearDown() throws Exception {
+        super.tearDown();
+        System.clearProperty(BeastCheckpointer.LOAD_STATE_FILE);
+        System.clearProperty(BeastCheckpointer.SAVE_STATE_FILE);
+        file.delete();
+    }
+
+    public void testRoundTripWithRandomNumberStreams() throws Exception {
+        // create and advance some per-thread streams so their states are written
+        for (int i = 0; i < STREAM_COUNT; i++) {
+            MathUtils.useStream(i);
+            for (int j = 0; j <= i; j++) {
+                MathUtils.nextDouble();
+            }
+        }
+        MathUtils.useDefaultStream();
+        Map<Integer, int[]> streamStates = MathUtils.getStreamStates();
+        assertEquals(STREAM_COUNT, streamStates.size());
+
+        mean.setParameterValue(0, 1.5);
+        String newick = TreeUtils.uniqueNewick(treeModel, treeModel.getRoot());
+
+        CheckPointModifier modifier = new CheckPointModifier();
+        assertTrue(modifier.saveState(markovChain, 1000, -12.5));
+
+        // change everything that is checkpointed
+        mean.setParameterValue(0, 0.0);
+        for (int i = 0; i < STREAM_COUNT; i++) {
+            MathUtils.useStream(i);
+            MathUtils.nextDouble();
+        }
+        MathUtils.useDefaultStream();
+
+        double[] lnL = new double[1];
+        assertEquals(1000, modifier.loadState(markovChain, lnL));
+        assertEquals(-12.5, lnL[0], 0.0);
+        assertEquals(1.5, mean.getParameterValue(0), 0.0);
+        assertEquals(newick, TreeUtils.uniqueNewick(treeModel, treeModel.getRoot()));
+
+        Map<Integer, int[]> restored = MathUtils.getStreamStates();
+        for (Map.Entry<Integer, int[]> entry : streamStates.entrySet()) {
+            assertTrue(Arrays.equals(entry.getValue(), restored.get(entry.getKey())));
+        }
+    }
+}
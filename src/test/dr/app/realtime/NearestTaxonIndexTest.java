@@ -0,0 +1,131 @@
+package test.dr.app.realtime;
+
+import dr.app.realtime.CheckPointUpdaterApp;
+import dr.app.realtime.NearestTaxonIndex;
+import dr.app.realtime.SimpleDistanceMatrix;
+import dr.evolution.alignment.SitePatterns;
+import dr.evolution.datatype.Nucleotides;
+import dr.evolution.distance.BitPackedPatterns;
+import dr.evolution.distance.DistanceMatrix;
+import dr.evolution.distance.JukesCantorDistanceMatrix;
+import dr.evolution.util.Taxon;
+import test.dr.inference.trace.TraceCorrelationAssert;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Checks the bit packed difference counts against DistanceMatrix, and that the index finds the same
+ * closest taxa as a search of the full distance matrix while taxa are added one at a time.
+ *
+ * @author Guy Baele
+ */
+public class NearestTaxonIndexTest extends TraceCorrelationAssert {
+
+    private SitePatterns patterns;
+
+    public NearestTaxonIndexTest(String name) {
+        super(name);
+    }
+
+    public void setUp() throws Exception {
+        super.setUp();
+
+        createAlignment(DENGUE4_TAXON_SEQUENCE, Nucleotides.INSTANCE);
+        patterns = new SitePatterns(alignment, null, -1, -1, 1, false);
+    }
+
+    public void testDifferenceCounts() {
+        BitPackedPatterns packed = new BitPackedPatterns(patterns);
+        DistanceMatrix matrix = new DistanceMatrix(patterns);
+        DistanceMatrix simple = new SimpleDistanceMatrix(patterns);
+
+        assertEquals((long) alignment.getSiteCount(), packed.getTotalWeight());
+        for (int i = 0; i < patterns.getTaxonCount(); i++) {
+            for (int j = 0; j < patterns.getTaxonCount(); j++) {
+                long differences = packed.getDifferenceCount(i, j);
+                // the matrices store their distances in single precision
+                assertEquals(matrix.getElement(i, j), (float) (((double) differences) / packed.getTotalWeight()), 0.0);
+                assertEquals(simple.getElement(i, j), (float) (((double) differences) / packed.getUngappedWeight(i, j)), 0.0);
+            }
+        }
+    }
+
+    public void testClosestTaxa() {
+        DistanceMatrix matrix = new JukesCantorDistanceMatrix(patterns);
+        for (int sketchSize = 0; sketchSize <= 3; sketchSize += 3) {
+            NearestTaxonIndex index = new NearestTaxonIndex(new BitPackedPatterns(patterns), false, sketchSize);
+
+            // start from the first half of the taxa and add the others in reverse order
+            final int taxonCount = patterns.getTaxonCount();
+            int[] queries = new int[taxonCount - taxonCount / 2];
+            for (int i = 0; i < taxonCount; i++) {
+                if (i < taxonCount / 2) {
+                    index.add(i);
+                } else {
+                    queries[taxonCount - 1 - i] = i;
+                }
+            }
+
+            int[] closest = index.getClosest(queries);
+            for (int q = 0; q < queries.length; q++) {
+                assertEquals(closestInMatrix(matrix, index, queries[q]), closest[q]);
+            }
+            for (int q = 0; q < queries.length; q++) {
+                index.add(queries[q]);
+                for (int r = q + 1; r < queries.length; r++) {
+                    assertEquals(closestInMatrix(matrix, index, queries[r]), index.getClosest(queries[r]));
+                }
+            }
+        }
+    }
+
+    public void testUpdateChoiceWithGrowingTaxa() {
+        CheckPointUpdaterApp.UpdateChoice choice = CheckPointUpdaterApp.UpdateChoice.JC69DISTANCE;
+        choice.setPatterns(patterns);
+        DistanceMatrix matrix = new JukesCantorDistanceMatrix(patterns);
+
+        // as CheckPointTreeModifier does, find the closest taxa for a batch and then insert them one at a time
+        final int taxonCount = patterns.getTaxonCount();
+        ArrayList<Taxon> currentTaxa = new ArrayList<Taxon>();
+        List<Taxon> newTaxa = new ArrayList<Taxon>();
+        for (int i = 0; i < taxonCount; i++) {
+            if (i < taxonCount / 2) {
+                currentTaxa.add(patterns.getTaxon(i));
+            } else {
+                newTaxa.add(patterns.getTaxon(i));
+            }
+        }
+        choice.findClosestTaxa(newTaxa, currentTaxa);
+
+        for (Taxon taxon : newTaxa) {
+            Set<Taxon> taxonSet = new HashSet<Taxon>(currentTaxa);
+            int taxonIndex = matrix.getTaxonIndex(taxon);
+            int closestIndex = 0;
+            double minimumDistance = Double.MAX_VALUE;
+            for (int i = 0; i < matrix.getColumnCount(); i++) {
+                if (i != taxonIndex && taxonSet.contains(matrix.getTaxon(i)) && matrix.getElement(taxonIndex, i) < minimumDistance) {
+                    minimumDistance = matrix.getElement(taxonIndex, i);
+                    closestIndex = i;
+                }
+            }
+            assertEquals(matrix.getTaxon(closestIndex), choice.getClosestTaxon(taxon, currentTaxa));
+            currentTaxa.add(taxon);
+        }
+    }
+
+    // the search in CheckPointUpdaterApp.UpdateChoice
+    private int closestInMatrix(DistanceMatrix matrix, NearestTaxonIndex index, int taxon) {
+        int closestIndex = 0;
+        double minimumDistance = Double.MAX_VALUE;
+        for (int i = 0; i < matrix.getColumnCount(); i++) {
+            if (i != taxon && index.contains(i) && matrix.getElement(taxon, i) < minimumDistance) {
+                minimumDistance = matrix.getElement(taxon, i);
+                closestIndex = i;
+            }
+        }
+        return closestIndex;
+    }
+}
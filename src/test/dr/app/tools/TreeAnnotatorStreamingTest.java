@@ -0,0 +1,140 @@
+package test.dr.app.tools;
+
+import dr.app.tools.NexusExporter;
+import dr.app.tools.TreeAnnotator;
+import dr.evolution.coalescent.CoalescentSimulator;
+import dr.evolution.coalescent.ConstantPopulation;
+import dr.evolution.io.NexusImporter;
+import dr.evolution.tree.NodeRef;
+import dr.evolution.tree.SimpleTree;
+import dr.evolution.tree.Tree;
+import dr.evolution.tree.TreeUtils;
+import dr.evolution.util.Taxa;
+import dr.evolution.util.Taxon;
+import dr.evolution.util.Units;
+import dr.math.MathUtils;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Annotates a maximum clade credibility tree from a sample of simulated trees with the standard
+ * (three pass) and the streaming (single pass) modes of TreeAnnotator and checks that they choose
+ * the same tree and give it the same posteriors, mean heights and mean numeric attributes.
+ *
+ * @author Andrew Rambaut
+ */
+public class TreeAnnotatorStreamingTest extends TestCase {
+
+    private static final int TAXON_COUNT = 6;
+    private static final int TREE_COUNT = 500;
+    private static final int BURNIN = 50;
+
+    private File treeFile;
+    private File standardFile;
+    private File streamingFile;
+
+    public void setUp() throws Exception {
+        super.setUp();
+
+        MathUtils.setSeed(666);
+
+        treeFile = File.createTempFile("treeAnnotatorStreamingTest", ".trees");
+        standardFile = File.createTempFile("treeAnnotatorStreamingTest", ".standard.tree");
+        streamingFile = File.createTempFile("treeAnnotatorStreamingTest", ".streaming.tree");
+
+        Taxa taxa = new Taxa();
+        for (int i = 0; i < TAXON_COUNT; i++) {
+            taxa.addTaxon(new Taxon("taxon" + i));
+        }
+        ConstantPopulation constant = new ConstantPopulation(Units.Type.YEARS);
+        constant.setN0(10.0);
+        CoalescentSimulator simulator = new CoalescentSimulator();
+
+        Tree[] trees = new Tree[TREE_COUNT];
+        String[] names = new String[TREE_COUNT];
+        for (int i = 0; i < TREE_COUNT; i++) {
+            SimpleTree tree = simulator.simulateTree(taxa, constant);
+            for (int j = 0; j < tree.getNodeCount(); j++) {
+                tree.setNodeAttribute(tree.getNode(j), "rate", MathUtils.nextDouble());
+            }
+            trees[i] = tree;
+            names[i] = "STATE_" + (i * 1000);
+        }
+
+        PrintStream out = new PrintStream(treeFile);
+        try {
+            new NexusExporter(out).exportTrees(trees, true, names);
+        } finally {
+            out.close();
+        }
+    }
+
+    public void tearDown() throws Exception {
+        super.tearDown();
+        treeFile.delete();
+        standardFile.delete();
+        streamingFile.delete();
+    }
+
+    public void testStreamingSameAsStandard() throws Exception {
+        annotate(standardFile, false);
+        annotate(streamingFile, true);
+
+        Tree standard = readTree(standardFile);
+        Tree streaming = readTree(streamingFile);
+
+        assertEquals(TreeUtils.uniqueNewick(standard, standard.getRoot()),
+                TreeUtils.uniqueNewick(streaming, streaming.getRoot()));
+
+        Map<Set<String>, NodeRef> standardNodes = getClades(standard);
+        for (int i = 0; i < streaming.getNodeCount(); i++) {
+            NodeRef node = streaming.getNode(i);
+            NodeRef standardNode = standardNodes.get(TreeUtils.getDescendantLeaves(streaming, node));
+            assertNotNull(standardNode);
+
+            assertEquals(standard.getNodeHeight(standardNode), streaming.getNodeHeight(node), 1E-10);
+            assertAttributeEquals(standard, standardNode, streaming, node, "rate");
+            if (!streaming.isExternal(node)) {
+                assertAttributeEquals(standard, standardNode, streaming, node, "posterior");
+            }
+        }
+    }
+
+    private void annotate(File outputFile, boolean streaming) throws Exception {
+        new TreeAnnotator(BURNIN, 0, TreeAnnotator.HeightsSummary.MEAN_HEIGHTS, 0.0, new double[]{0.80}, false,
+                TreeAnnotator.Target.MAX_CLADE_CREDIBILITY, null, treeFile.getPath(), outputFile.getPath(), streaming);
+    }
+
+    private static Tree readTree(File file) throws Exception {
+        FileReader reader = new FileReader(file);
+        try {
+            return new NexusImporter(reader).importNextTree();
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static Map<Set<String>, NodeRef> getClades(Tree tree) {
+        Map<Set<String>, NodeRef> clades = new HashMap<Set<String>, NodeRef>();
+        for (int i = 0; i < tree.getNodeCount(); i++) {
+            NodeRef node = tree.getNode(i);
+            clades.put(new TreeSet<String>(TreeUtils.getDescendantLeaves(tree, node)), node);
+        }
+        return clades;
+    }
+
+    private static void assertAttributeEquals(Tree expectedTree, NodeRef expectedNode, Tree tree, NodeRef node, String name) {
+        Object expected = expectedTree.getNodeAttribute(expectedNode, name);
+        Object actual = tree.getNodeAttribute(node, name);
+        assertNotNull(name, expected);
+        assertNotNull(name, actual);
+        assertEquals(name, ((Number) expected).doubleValue(), ((Number) actual).doubleValue(), 1E-10);
+    }
+}
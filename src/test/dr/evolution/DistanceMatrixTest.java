@@ -0,0 +1,96 @@
+package test.dr.evolution;
+
+import dr.evolution.alignment.SimpleAlignment;
+import dr.evolution.alignment.SitePatterns;
+import dr.evolution.datatype.Nucleotides;
+import dr.evolution.distance.DistanceMatrix;
+import dr.evolution.distance.F84DistanceMatrix;
+import dr.evolution.distance.JukesCantorDistanceMatrix;
+import dr.evolution.sequence.Sequence;
+import dr.evolution.util.Taxon;
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+/**
+ * Checks the distances calculated on bit packed patterns, in parallel tiles, against the ones
+ * calculated pattern by pattern.
+ *
+ * @author Andrew Rambaut
+ */
+public class DistanceMatrixTest extends TestCase {
+
+    private static final int TAXON_COUNT = 150;
+    private static final int SITE_COUNT = 300;
+
+    private SitePatterns patterns;
+
+    public void setUp() throws Exception {
+        super.setUp();
+
+        // closely related sequences, with a few ambiguities and gaps
+        Random random = new Random(666);
+        char[] ancestor = new char[SITE_COUNT];
+        for (int k = 0; k < SITE_COUNT; k++) {
+            ancestor[k] = "ACGT".charAt(random.nextInt(4));
+        }
+        SimpleAlignment alignment = new SimpleAlignment();
+        alignment.setDataType(Nucleotides.INSTANCE);
+        for (int i = 0; i < TAXON_COUNT; i++) {
+            char[] sequence = ancestor.clone();
+            for (int k = 0; k < SITE_COUNT; k++) {
+                if (random.nextDouble() < 0.1) {
+                    sequence[k] = "ACGTACGTRN-".charAt(random.nextInt(11));
+                }
+            }
+            Sequence s = new Sequence(new String(sequence));
+            s.setTaxon(new Taxon("taxon" + i));
+            s.setDataType(Nucleotides.INSTANCE);
+            alignment.addSequence(s);
+        }
+        patterns = new SitePatterns(alignment, null, -1, -1, 1, false);
+    }
+
+    public void testUncorrectedDistances() {
+        assertSameDistances(new DistanceMatrix(patterns), new DistanceMatrix(patterns) {
+            protected boolean hasBitPackedDistances() {
+                return false;
+            }
+        });
+    }
+
+    public void testJukesCantorDistances() {
+        assertSameDistances(new JukesCantorDistanceMatrix(patterns), new JukesCantorDistanceMatrix(patterns) {
+            protected boolean hasBitPackedDistances() {
+                return false;
+            }
+        });
+    }
+
+    public void testF84Distances() {
+        assertSameDistances(new F84DistanceMatrix(patterns), new F84DistanceMatrix(patterns) {
+            protected boolean hasBitPackedDistances() {
+                return false;
+            }
+        });
+    }
+
+    private void assertSameDistances(DistanceMatrix packed, DistanceMatrix unpacked) {
+        assertNotNull(packed.getBitPackedPatterns());
+        assertNull(unpacked.getBitPackedPatterns());
+
+        for (int i = 0; i < TAXON_COUNT; i++) {
+            // before and after the full matrix is calculated
+            assertEquals(unpacked.getPairwiseDistance(i, TAXON_COUNT - 1 - i),
+                    packed.getPairwiseDistance(i, TAXON_COUNT - 1 - i), 1E-12);
+        }
+        for (int i = 0; i < TAXON_COUNT; i++) {
+            for (int j = 0; j < TAXON_COUNT; j++) {
+                assertEquals(unpacked.getElement(i, j), packed.getElement(i, j), 0.0);
+                assertEquals(packed.getElement(i, j), packed.getElement(j, i), 0.0);
+            }
+            assertEquals(0.0, packed.getElement(i, i), 0.0);
+        }
+        assertEquals(unpacked.getMeanDistance(), packed.getMeanDistance(), 1E-12);
+    }
+}
@@ -0,0 +1,129 @@
+package test.dr.evolution;
+
+import dr.evolution.alignment.SimpleAlignment;
+import dr.evolution.alignment.SitePatterns;
+import dr.evolution.datatype.Nucleotides;
+import dr.evolution.sequence.Sequence;
+import dr.evolution.util.Taxon;
+import dr.math.MathUtils;
+import test.dr.inference.trace.TraceCorrelationAssert;
+
+import java.util.Arrays;
+
+/**
+ * Checks the hash-indexed pattern compression reproduces every site of the alignment, and that
+ * compressing a long alignment in parallel blocks gives the same patterns as compressing it serially.
+ *
+ * @author Andrew Rambaut
+ */
+public class SitePatternsTest extends TraceCorrelationAssert {
+
+    public SitePatternsTest(String name) {
+        super(name);
+    }
+
+    public void setUp() throws Exception {
+        super.setUp();
+
+        createAlignment(DENGUE4_TAXON_SEQUENCE, Nucleotides.INSTANCE);
+    }
+
+    public void testPatternCompression() {
+        SitePatterns patterns = new SitePatterns(alignment, null, -1, -1, 1, false);
+
+        // every site maps onto a pattern identical to it
+        for (int i = 0; i < alignment.getSiteCount(); i++) {
+            int index = patterns.getPatternIndex(i);
+            assertTrue(Arrays.equals(alignment.getSitePattern(i), patterns.getPattern(index)));
+        }
+
+        // the patterns are unique and each is first seen no later than the next
+        int lastFirstSite = -1;
+        for (int j = 0; j < patterns.getPatternCount(); j++) {
+            for (int k = j + 1; k < patterns.getPatternCount(); k++) {
+                assertFalse(Arrays.equals(patterns.getPattern(j), patterns.getPattern(k)));
+            }
+
+            int firstSite = -1;
+            int count = 0;
+            for (int i = 0; i < alignment.getSiteCount(); i++) {
+                if (patterns.getPatternIndex(i) == j) {
+                    if (firstSite < 0) {
+                        firstSite = i;
+                    }
+                    count++;
+                }
+            }
+            assertTrue(firstSite > lastFirstSite);
+            lastFirstSite = firstSite;
+
+            assertEquals((double) count, patterns.getPatternWeight(j), 0.0);
+        }
+    }
+
+    public void testParallelCompression() {
+        SimpleAlignment longAlignment = createLongAlignment(12, 12000);
+
+        // all the sites, every other site from an offset (both long enough to be split into blocks)
+        // and with the gaps stripped
+        assertParallelSameAsSerial(longAlignment, -1, -1, 1, false);
+        assertParallelSameAsSerial(longAlignment, 7, -1, 2, false);
+        assertParallelSameAsSerial(longAlignment, 100, 11000, 1, true);
+    }
+
+    private static void assertParallelSameAsSerial(SimpleAlignment alignment, int from, int to, int every, boolean strip) {
+        SitePatterns serial = new SitePatterns(alignment, null, from, to, every, strip);
+
+        SitePatterns parallel;
+        System.setProperty(SitePatterns.PARALLEL_COMPRESSION_PROPERTY, "true");
+        try {
+            parallel = new SitePatterns(alignment, null, from, to, every, strip);
+        } finally {
+            System.clearProperty(SitePatterns.PARALLEL_COMPRESSION_PROPERTY);
+        }
+
+        assertTrue(serial.getSiteCount() > 4096);
+        assertEquals(serial.getSiteCount(), parallel.getSiteCount());
+        assertEquals(serial.getPatternCount(), parallel.getPatternCount());
+        assertEquals(serial.getInvariantCount(), parallel.getInvariantCount());
+        for (int j = 0; j < serial.getPatternCount(); j++) {
+            assertTrue(Arrays.equals(serial.getPattern(j), parallel.getPattern(j)));
+            assertEquals(serial.getPatternWeight(j), parallel.getPatternWeight(j), 0.0);
+        }
+        for (int i = 0; i < serial.getSiteCount(); i++) {
+            assertEquals(serial.getPatternIndex(i), parallel.getPatternIndex(i));
+        }
+    }
+
+    /**
+     * Simulates sequences that differ from a random ancestral sequence at a few sites, with some gaps,
+     * so that many of the patterns are repeated in different blocks.
+     */
+    private static SimpleAlignment createLongAlignment(int taxonCount, int siteCount) {
+        MathUtils.setSeed(666);
+
+        final String states = "ACGT";
+        char[] ancestor = new char[siteCount];
+        for (int i = 0; i < siteCount; i++) {
+            ancestor[i] = states.charAt(MathUtils.nextInt(states.length()));
+        }
+
+        SimpleAlignment alignment = new SimpleAlignment();
+        alignment.setDataType(Nucleotides.INSTANCE);
+        for (int t = 0; t < taxonCount; t++) {
+            char[] sequence = ancestor.clone();
+            for (int i = 0; i < siteCount; i++) {
+                double u = MathUtils.nextDouble();
+                if (u < 0.01) {
+                    sequence[i] = '-';
+                } else if (u < 0.1) {
+                    sequence[i] = states.charAt(MathUtils.nextInt(states.length()));
+                }
+            }
+            Sequence s = new Sequence(new Taxon("taxon" + t), new String(sequence));
+            s.setDataType(Nucleotides.INSTANCE);
+            alignment.addSequence(s);
+        }
+        return alignment;
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * GMRFBlockUpdateProposalTest.java
+ *
+ * Copyright (c) 2002-2020 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package test.dr.evomodel.coalescent;
+
+import dr.evomodel.coalescent.TridiagonalPrecision;
+import dr.evomodel.coalescent.operators.GMRFBlockUpdateProposal;
+import dr.evomodel.coalescent.operators.GMRFMultilocusSkyrideBlockUpdateOperator;
+import dr.inference.model.Parameter;
+import dr.math.MathUtils;
+import junit.framework.TestCase;
+import no.uib.cipr.matrix.DenseCholesky;
+import no.uib.cipr.matrix.DenseMatrix;
+import no.uib.cipr.matrix.DenseVector;
+import no.uib.cipr.matrix.SymmTridiagMatrix;
+import no.uib.cipr.matrix.UpperSPDDenseMatrix;
+import no.uib.cipr.matrix.UpperTriangDenseMatrix;
+
+/**
+ * Compares the tridiagonal GMRF block update proposal with the MTJ Newton-Raphson and dense
+ * Cholesky computations it replaces.
+ *
+ * @author Marc A. Suchard
+ */
+public class GMRFBlockUpdateProposalTest extends TestCase {
+
+    private static final int DIM = 8;
+    private static final int MAX_ITERATIONS = 200;
+    private static final double STOP_VALUE = 1E-8;
+    private static final double TOLERANCE = 1E-8;
+
+    private SymmTridiagMatrix weights;
+    private double[] numCoalEvents;
+    private double[] sufficientStatistics;
+    private double[] zBeta;
+    private double[] gamma;
+
+    public void setUp() throws Exception {
+        super.setUp();
+
+        // time-aware weights from some interval lengths
+        double[] intervals = {0.5, 1.2, 0.3, 2.0, 0.8, 1.5, 0.4, 1.1};
+        double[] offDiagonal = new double[DIM - 1];
+        double[] diagonal = new double[DIM];
+        for (int i = 0; i < DIM - 1; i++) {
+            offDiagonal[i] = -2.0 / (intervals[i] + intervals[i + 1]);
+        }
+        for (int i = 1; i < DIM - 1; i++) {
+            diagonal[i] = -(offDiagonal[i] + offDiagonal[i - 1]);
+        }
+        diagonal[0] = -offDiagonal[0];
+        diagonal[DIM - 1] = -offDiagonal[DIM - 2];
+        weights = new SymmTridiagMatrix(diagonal, offDiagonal);
+
+        numCoalEvents = new double[]{1, 2, 1, 1, 3, 1, 2, 1};
+        sufficientStatistics = new double[]{2.5, 4.0, 1.5, 3.0, 6.5, 2.0, 3.5, 1.0};
+        zBeta = new double[]{0.1, -0.2, 0.3, 0.0, 0.25, -0.1, 0.05, 0.2};
+        gamma = new double[]{0.5, 0.8, 0.2, 1.0, 0.7, 0.4, 0.9, 0.3};
+    }
+
+    public void testNewtonRaphson() {
+        TridiagonalPrecision q = new TridiagonalPrecision(weights);
+        q.setScale(2.5, 0.9);
+        double[] qzBeta = new double[DIM];
+        q.multiply(zBeta, qzBeta);
+
+        GMRFBlockUpdateProposal proposal = new GMRFBlockUpdateProposal(q, MAX_ITERATIONS, STOP_VALUE);
+        double[] mode = new double[DIM];
+        assertTrue(proposal.newtonRaphson(q, qzBeta, numCoalEvents, sufficientStatistics, gamma, mode));
+
+        DenseVector expected = GMRFMultilocusSkyrideBlockUpdateOperator.newNewtonRaphson(numCoalEvents,
+                sufficientStatistics, new DenseVector(gamma), scaled(2.5, 0.9), MAX_ITERATIONS, STOP_VALUE,
+                new DenseVector(zBeta));
+        for (int i = 0; i < DIM; i++) {
+            assertEquals(expected.get(i), mode[i], TOLERANCE);
+        }
+    }
+
+    public void testProposalAndHastingsRatio() {
+        final double currentPrecision = 2.5;
+        final double proposedPrecision = 3.2;
+        final double lambda = 1.0;
+
+        TridiagonalPrecision q = new TridiagonalPrecision(weights);
+        GMRFBlockUpdateProposal proposal = new GMRFBlockUpdateProposal(q, MAX_ITERATIONS, STOP_VALUE);
+        Parameter popSize = new Parameter.Default(gamma.clone());
+
+        MathUtils.setSeed(666);
+        double hRatio = proposal.doProposal(q, currentPrecision, lambda, proposedPrecision, lambda,
+                numCoalEvents, sufficientStatistics, zBeta, popSize);
+
+        // the proposal as the operators made it with MTJ
+        MathUtils.setSeed(666);
+        DenseVector z = new DenseVector(DIM);
+        for (int i = 0; i < DIM; i++) {
+            z.set(i, MathUtils.nextGaussian());
+        }
+
+        DenseVector forwardMean = new DenseVector(DIM);
+        DenseMatrix forwardPrecision = gaussianApproximation(proposedPrecision, lambda, gamma, forwardMean);
+        UpperTriangDenseMatrix forwardU = DenseCholesky.factorize(new UpperSPDDenseMatrix(forwardPrecision)).getU();
+        DenseVector proposed = new DenseVector(DIM);
+        forwardU.solve(z, proposed);
+        proposed.add(forwardMean);
+        for (int i = 0; i < DIM; i++) {
+            assertEquals(proposed.get(i), popSize.getParameterValue(i), TOLERANCE);
+        }
+
+        DenseVector backwardMean = new DenseVector(DIM);
+        DenseMatrix backwardPrecision = gaussianApproximation(currentPrecision, lambda, proposed.getData(), backwardMean);
+        UpperTriangDenseMatrix backwardU = DenseCholesky.factorize(new UpperSPDDenseMatrix(backwardPrecision)).getU();
+        DenseVector diff = new DenseVector(gamma);
+        diff.add(-1.0, backwardMean);
+        DenseVector bDiff = new DenseVector(DIM);
+        backwardPrecision.mult(diff, bDiff);
+
+        double expected = logDiagonal(backwardU) - 0.5 * diff.dot(bDiff) - (logDiagonal(forwardU) - 0.5 * z.dot(z));
+        assertEquals(expected, hRatio, TOLERANCE);
+    }
+
+    /**
+     * @return the precision Q + diag(w * exp(-mode)) of the Gaussian approximation at the mode from start, and its mean
+     */
+    private DenseMatrix gaussianApproximation(double precision, double lambda, double[] start, DenseVector mean) {
+        SymmTridiagMatrix q = scaled(precision, lambda);
+        DenseVector mode = GMRFMultilocusSkyrideBlockUpdateOperator.newNewtonRaphson(numCoalEvents,
+                sufficientStatistics, new DenseVector(start), q, MAX_ITERATIONS, STOP_VALUE, new DenseVector(zBeta));
+        assertNotNull(mode);
+
+        DenseVector qzBeta = new DenseVector(DIM);
+        q.mult(new DenseVector(zBeta), qzBeta);
+
+        DenseMatrix a = new DenseMatrix(q);
+        DenseVector b = new DenseVector(DIM);
+        for (int i = 0; i < DIM; i++) {
+            double added = sufficientStatistics[i] * Math.exp(-mode.get(i));
+            a.add(i, i, added);
+            b.set(i, qzBeta.get(i) + added * (mode.get(i) + 1) - numCoalEvents[i]);
+        }
+        a.solve(b, mean);
+        return a;
+    }
+
+    private static double logDiagonal(UpperTriangDenseMatrix u) {
+        double logDet = 0.0;
+        for (int i = 0; i < DIM; i++) {
+            logDet += Math.log(u.get(i, i));
+        }
+        return logDet;
+    }
+
+    private SymmTridiagMatrix scaled(double precision, double lambda) {
+        SymmTridiagMatrix q = weights.copy();
+        for (int i = 0; i < DIM; i++) {
+            q.set(i, i, precision * (1 - lambda + lambda * weights.get(i, i)));
+            if (i < DIM - 1) {
+                q.set(i + 1, i, precision * lambda * weights.get(i + 1, i));
+            }
+        }
+        return q;
+    }
+}
@@ -0,0 +1,123 @@
+package test.dr.evomodel.coalescent;
+
+import dr.evolution.coalescent.CoalescentSimulator;
+import dr.evolution.coalescent.ConstantPopulation;
+import dr.evolution.coalescent.IncrementalIntervals;
+import dr.evolution.coalescent.Intervals;
+import dr.evolution.tree.NodeRef;
+import dr.evolution.util.Taxa;
+import dr.evolution.util.Taxon;
+import dr.evolution.util.Units;
+import dr.evomodel.coalescent.TreeIntervals;
+import dr.evomodel.operators.ExchangeOperator;
+import dr.evomodel.operators.SubtreeSlideOperator;
+import dr.evomodel.operators.WilsonBalding;
+import dr.evomodel.tree.TreeModel;
+import dr.inference.operators.AdaptationMode;
+import dr.inference.operators.SimpleMCMCOperator;
+import dr.math.MathUtils;
+import junit.framework.TestCase;
+
+/**
+ * Makes random height and topology changes to a tree and checks that the intervals kept up to date
+ * incrementally by TreeIntervals (and undone by restoring the model state) are the same as those
+ * collected from the whole tree again.
+ *
+ * @author Andrew Rambaut
+ */
+public class TreeIntervalsTest extends TestCase {
+
+    private static final int TAXON_COUNT = 30;
+    private static final int CYCLE_COUNT = 2000;
+
+    private TreeModel treeModel;
+    private TreeIntervals treeIntervals;
+    private SimpleMCMCOperator[] operators;
+
+    public void setUp() throws Exception {
+        super.setUp();
+
+        MathUtils.setSeed(666);
+
+        Taxa taxa = new Taxa();
+        for (int i = 0; i < TAXON_COUNT; i++) {
+            taxa.addTaxon(new Taxon("taxon" + i));
+        }
+        ConstantPopulation constant = new ConstantPopulation(Units.Type.YEARS);
+        constant.setN0(10.0);
+        treeModel = new TreeModel(new CoalescentSimulator().simulateTree(taxa, constant));
+        treeIntervals = new TreeIntervals(treeModel, null, null);
+
+        operators = new SimpleMCMCOperator[]{
+                new ExchangeOperator(ExchangeOperator.NARROW, treeModel, 1.0),
+                new WilsonBalding(treeModel, 1.0),
+                new SubtreeSlideOperator(treeModel, 1.0, 1.0, true, false, false, false,
+                        AdaptationMode.ADAPTATION_OFF, 0.234)
+        };
+    }
+
+    public void testIncrementalIntervals() {
+        assertTrue(treeIntervals.getIntervals() instanceof IncrementalIntervals);
+
+        for (int cycle = 0; cycle < CYCLE_COUNT; cycle++) {
+            treeIntervals.storeModelState();
+
+            final boolean topologyChange = MathUtils.nextInt(10) == 0;
+            final int editCount = 1 + MathUtils.nextInt(4);
+            for (int e = 0; e < editCount; e++) {
+                if (topologyChange && e == 0) {
+                    operators[MathUtils.nextInt(operators.length)].doOperation();
+                } else {
+                    changeHeight();
+                }
+                // sometimes the intervals are used part way through the changes
+                if (MathUtils.nextBoolean()) {
+                    assertSameAsRecalculated();
+                }
+            }
+            assertSameAsRecalculated();
+
+            if (MathUtils.nextInt(4) == 0) {
+                treeIntervals.acceptModelState();
+            } else {
+                treeIntervals.restoreModelState();
+                assertSameAsRecalculated();
+            }
+        }
+    }
+
+    /**
+     * Moves the height of a random internal node between those of its oldest child and its parent.
+     */
+    private void changeHeight() {
+        NodeRef node = treeModel.getInternalNode(MathUtils.nextInt(treeModel.getInternalNodeCount()));
+        double lower = Math.max(treeModel.getNodeHeight(treeModel.getChild(node, 0)),
+                treeModel.getNodeHeight(treeModel.getChild(node, 1)));
+        double upper = (treeModel.isRoot(node) ? 2.0 * treeModel.getNodeHeight(node) - lower :
+                treeModel.getNodeHeight(treeModel.getParent(node)));
+        treeModel.setNodeHeight(node, lower + MathUtils.nextDouble() * (upper - lower));
+    }
+
+    private void assertSameAsRecalculated() {
+        Intervals expected = new Intervals(treeModel.getNodeCount());
+        for (int i = 0; i < treeModel.getNodeCount(); i++) {
+            NodeRef node = treeModel.getNode(i);
+            if (treeModel.isExternal(node)) {
+                expected.addSampleEvent(treeModel.getNodeHeight(node));
+            } else {
+                expected.addCoalescentEvent(treeModel.getNodeHeight(node));
+            }
+        }
+
+        assertEquals(expected.getIntervalCount(), treeIntervals.getIntervalCount());
+        assertEquals(expected.getSampleCount(), treeIntervals.getSampleCount());
+        for (int i = 0; i < expected.getIntervalCount(); i++) {
+            assertEquals(expected.getInterval(i), treeIntervals.getInterval(i), 0.0);
+            assertEquals(expected.getIntervalTime(i), treeIntervals.getIntervalTime(i), 0.0);
+            assertEquals(expected.getLineageCount(i), treeIntervals.getLineageCount(i));
+            assertEquals(expected.getCoalescentEvents(i), treeIntervals.getCoalescentEvents(i));
+            assertEquals(expected.getIntervalType(i), treeIntervals.getIntervalType(i));
+        }
+        assertEquals(expected.getTotalDuration(), treeIntervals.getTotalDuration(), 0.0);
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * TridiagonalPrecisionTest.java
+ *
+ * Copyright (c) 2002-2020 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package test.dr.evomodel.coalescent;
+
+import dr.evomodel.coalescent.TridiagonalPrecision;
+import junit.framework.TestCase;
+import no.uib.cipr.matrix.DenseCholesky;
+import no.uib.cipr.matrix.DenseMatrix;
+import no.uib.cipr.matrix.DenseVector;
+import no.uib.cipr.matrix.SymmTridiagMatrix;
+import no.uib.cipr.matrix.UpperSPDDenseMatrix;
+
+/**
+ * Compares the tridiagonal precision operations and factorization with dense MTJ ones.
+ *
+ * @author Marc A. Suchard
+ */
+public class TridiagonalPrecisionTest extends TestCase {
+
+    private static final int DIM = 6;
+    private static final double TOLERANCE = 1E-10;
+
+    private SymmTridiagMatrix weights;
+
+    public void setUp() {
+        double[] diagonal = new double[DIM];
+        double[] offDiagonal = new double[DIM - 1];
+        for (int i = 0; i < DIM; i++) {
+            diagonal[i] = (i == 0 || i == DIM - 1) ? 1.0 : 2.0;
+        }
+        for (int i = 0; i < DIM - 1; i++) {
+            offDiagonal[i] = -1.0;
+        }
+        weights = new SymmTridiagMatrix(diagonal, offDiagonal);
+    }
+
+    public void testQuadraticFormAndScaling() {
+        TridiagonalPrecision precision = new TridiagonalPrecision(weights);
+        double[] x = {0.5, -1.0, 2.0, 0.25, -0.75, 1.5};
+
+        precision.setScale(3.0, 0.8);
+        DenseMatrix q = scaled(3.0, 0.8);
+
+        DenseVector qx = new DenseVector(DIM);
+        q.mult(new DenseVector(x), qx);
+
+        double[] y = new double[DIM];
+        precision.multiply(x, y);
+        for (int i = 0; i < DIM; i++) {
+            assertEquals(qx.get(i), y[i], TOLERANCE);
+        }
+        assertEquals(qx.dot(new DenseVector(x)), precision.quadraticForm(x), TOLERANCE);
+
+        precision.storeState();
+        precision.setScale(5.0, 1.0);
+        assertEquals(5.0, precision.getDiagonal(0), 0.0);
+        precision.restoreState();
+        assertEquals(q.get(0, 0), precision.getDiagonal(0), TOLERANCE);
+    }
+
+    public void testFactorization() {
+        TridiagonalPrecision precision = new TridiagonalPrecision(weights);
+        precision.setScale(2.0, 1.0);
+
+        // the intrinsic GMRF precision is singular
+        assertFalse(precision.factor(null));
+
+        double[] added = {0.1, 0.2, 0.3, 0.4, 0.5, 0.6};
+        assertTrue(precision.factor(added));
+
+        DenseMatrix q = scaled(2.0, 1.0);
+        for (int i = 0; i < DIM; i++) {
+            q.add(i, i, added[i]);
+        }
+        assertEquals(logDeterminant(q), precision.getLogDeterminant(), TOLERANCE);
+
+        double[] b = {1.0, -2.0, 0.5, 3.0, -1.0, 0.0};
+        double[] x = new double[DIM];
+        precision.solve(b, x);
+
+        DenseVector qx = new DenseVector(DIM);
+        q.mult(new DenseVector(x), qx);
+        for (int i = 0; i < DIM; i++) {
+            assertEquals(b[i], qx.get(i), TOLERANCE);
+        }
+
+        // U x = z with U^T U = Q, so x^T Q x = z^T z
+        precision.solveUpper(b, x);
+        q.mult(new DenseVector(x), qx);
+        assertEquals(new DenseVector(b).dot(new DenseVector(b)), qx.dot(new DenseVector(x)), TOLERANCE);
+    }
+
+    public void testCachedFactorStoreAndRestore() {
+        TridiagonalPrecision precision = new TridiagonalPrecision(weights);
+        precision.setScale(3.0, 0.8);
+        assertTrue(precision.factor());
+        double logDet = logDeterminant(scaled(3.0, 0.8));
+        assertEquals(logDet, precision.getLogDeterminant(), TOLERANCE);
+
+        precision.storeState();
+        precision.setScale(5.0, 0.5);
+        assertTrue(precision.factor());
+        assertEquals(logDeterminant(scaled(5.0, 0.5)), precision.getLogDeterminant(), TOLERANCE);
+
+        precision.restoreState();
+        assertEquals(logDet, precision.getLogDeterminant(), TOLERANCE);
+        assertTrue(precision.factor());
+        assertEquals(logDet, precision.getLogDeterminant(), TOLERANCE);
+
+        // new weights invalidate the scale and the factor
+        precision.storeState();
+        SymmTridiagMatrix doubled = weights.copy();
+        doubled.scale(2.0);
+        precision.setWeights(doubled);
+        precision.setScale(3.0, 0.8);
+        assertTrue(precision.factor());
+        weights = doubled;
+        assertEquals(logDeterminant(scaled(3.0, 0.8)), precision.getLogDeterminant(), TOLERANCE);
+
+        precision.restoreState();
+        assertEquals(logDet, precision.getLogDeterminant(), TOLERANCE);
+        assertEquals(3.0 * (0.2 + 0.8 * 1.0), precision.getDiagonal(0), TOLERANCE);
+    }
+
+    private static double logDeterminant(DenseMatrix q) {
+        DenseCholesky cholesky = DenseCholesky.factorize(new UpperSPDDenseMatrix(q));
+        double logDet = 0.0;
+        for (int i = 0; i < DIM; i++) {
+            logDet += 2.0 * Math.log(cholesky.getU().get(i, i));
+        }
+        return logDet;
+    }
+
+    private DenseMatrix scaled(double scale, double lambda) {
+        DenseMatrix q = new DenseMatrix(DIM, DIM);
+        for (int i = 0; i < DIM; i++) {
+            for (int j = 0; j < DIM; j++) {
+                double identity = (i == j) ? 1.0 : 0.0;
+                q.set(i, j, scale * (lambda * weights.get(i, j) + (1 - lambda) * identity));
+            }
+        }
+        return q;
+    }
+}
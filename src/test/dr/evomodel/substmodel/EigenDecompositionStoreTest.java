@@ -0,0 +1,145 @@
+package test.dr.evomodel.substmodel;
+
+import dr.evolution.datatype.Nucleotides;
+import dr.evomodel.substmodel.BaseSubstitutionModel;
+import dr.evomodel.substmodel.ComplexSubstitutionModel;
+import dr.evomodel.substmodel.FrequencyModel;
+import dr.evomodel.substmodel.GeneralSubstitutionModel;
+import dr.evomodel.substmodel.nucleotide.GTR;
+import dr.evomodel.substmodel.nucleotide.HKY;
+import dr.evomodel.substmodel.nucleotide.TN93;
+import dr.inference.model.Parameter;
+import dr.math.MathUtils;
+import junit.framework.TestCase;
+
+/**
+ * Makes random changes to the parameters of substitution models, sometimes calculating the transition
+ * probabilities in between, and checks that after the changes, and after they are accepted or restored,
+ * the transition probabilities are the same as those of a new model with the same parameter values
+ * (i.e., with the eigen decomposition calculated from scratch).
+ *
+ * @author Marc A. Suchard
+ */
+public class EigenDecompositionStoreTest extends TestCase {
+
+    private static final int CYCLE_COUNT = 500;
+    private static final double[] DISTANCES = {0.01, 0.1, 1.0};
+
+    private interface ModelFactory {
+        BaseSubstitutionModel createModel(Parameter[] rates, FrequencyModel frequencyModel);
+    }
+
+    public void setUp() throws Exception {
+        super.setUp();
+        MathUtils.setSeed(666);
+    }
+
+    public void testHKY() {
+        // updates the decomposition in place
+        assertSameAsRecalculated(new int[]{1}, new ModelFactory() {
+            public BaseSubstitutionModel createModel(Parameter[] rates, FrequencyModel frequencyModel) {
+                return new HKY(rates[0], frequencyModel);
+            }
+        });
+    }
+
+    public void testTN93() {
+        // updates the decomposition in place
+        assertSameAsRecalculated(new int[]{1, 1}, new ModelFactory() {
+            public BaseSubstitutionModel createModel(Parameter[] rates, FrequencyModel frequencyModel) {
+                return new TN93(rates[0], rates[1], frequencyModel);
+            }
+        });
+    }
+
+    public void testGTR() {
+        assertSameAsRecalculated(new int[]{6}, new ModelFactory() {
+            public BaseSubstitutionModel createModel(Parameter[] rates, FrequencyModel frequencyModel) {
+                return new GTR(rates[0], frequencyModel);
+            }
+        });
+    }
+
+    public void testGeneralSubstitutionModel() {
+        assertSameAsRecalculated(new int[]{6}, new ModelFactory() {
+            public BaseSubstitutionModel createModel(Parameter[] rates, FrequencyModel frequencyModel) {
+                return new GeneralSubstitutionModel("general", Nucleotides.INSTANCE, frequencyModel, rates[0], -1);
+            }
+        });
+    }
+
+    public void testComplexSubstitutionModel() {
+        assertSameAsRecalculated(new int[]{12}, new ModelFactory() {
+            public BaseSubstitutionModel createModel(Parameter[] rates, FrequencyModel frequencyModel) {
+                return new ComplexSubstitutionModel("complex", Nucleotides.INSTANCE, frequencyModel, rates[0]);
+            }
+        });
+    }
+
+    private void assertSameAsRecalculated(int[] rateDimensions, ModelFactory factory) {
+        Parameter[] rates = new Parameter[rateDimensions.length];
+        for (int i = 0; i < rates.length; i++) {
+            rates[i] = new Parameter.Default(rateDimensions[i], 2.0);
+        }
+        Parameter frequencies = new Parameter.Default(new double[]{0.1, 0.2, 0.3, 0.4});
+        BaseSubstitutionModel model = factory.createModel(rates, new FrequencyModel(Nucleotides.INSTANCE, frequencies));
+
+        for (int cycle = 0; cycle < CYCLE_COUNT; cycle++) {
+            model.storeModelState();
+
+            final int changeCount = MathUtils.nextInt(3);
+            for (int c = 0; c < changeCount; c++) {
+                if (MathUtils.nextInt(4) == 0) {
+                    changeFrequencies(frequencies);
+                } else {
+                    Parameter parameter = rates[MathUtils.nextInt(rates.length)];
+                    int index = MathUtils.nextInt(parameter.getDimension());
+                    parameter.setParameterValue(index, parameter.getParameterValue(index) * Math.exp(MathUtils.nextDouble() - 0.5));
+                }
+                // sometimes the model is used part way through the changes
+                if (MathUtils.nextBoolean()) {
+                    assertSameAsRecalculated(model, factory, rates, frequencies);
+                }
+            }
+
+            if (MathUtils.nextInt(4) == 0) {
+                model.acceptModelState();
+            } else {
+                model.restoreModelState();
+            }
+            assertSameAsRecalculated(model, factory, rates, frequencies);
+        }
+    }
+
+    /**
+     * Moves some of the frequency of one state to another.
+     */
+    private static void changeFrequencies(Parameter frequencies) {
+        int from = MathUtils.nextInt(frequencies.getDimension());
+        int to = (from + 1 + MathUtils.nextInt(frequencies.getDimension() - 1)) % frequencies.getDimension();
+        double amount = 0.5 * MathUtils.nextDouble() * frequencies.getParameterValue(from);
+        frequencies.setParameterValue(from, frequencies.getParameterValue(from) - amount);
+        frequencies.setParameterValue(to, frequencies.getParameterValue(to) + amount);
+    }
+
+    private static void assertSameAsRecalculated(BaseSubstitutionModel model, ModelFactory factory,
+                                                 Parameter[] rates, Parameter frequencies) {
+        Parameter[] expectedRates = new Parameter[rates.length];
+        for (int i = 0; i < rates.length; i++) {
+            expectedRates[i] = new Parameter.Default(rates[i].getParameterValues());
+        }
+        BaseSubstitutionModel expected = factory.createModel(expectedRates,
+                new FrequencyModel(Nucleotides.INSTANCE, new Parameter.Default(frequencies.getParameterValues())));
+
+        final int stateCount = Nucleotides.INSTANCE.getStateCount();
+        double[] expectedMatrix = new double[stateCount * stateCount];
+        double[] matrix = new double[stateCount * stateCount];
+        for (double distance : DISTANCES) {
+            expected.getTransitionProbabilities(distance, expectedMatrix);
+            model.getTransitionProbabilities(distance, matrix);
+            for (int k = 0; k < matrix.length; k++) {
+                assertEquals(expectedMatrix[k], matrix[k], 0.0);
+            }
+        }
+    }
+}
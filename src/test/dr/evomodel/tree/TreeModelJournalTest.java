@@ -0,0 +1,167 @@
+package test.dr.evomodel.tree;
+
+import dr.evolution.coalescent.CoalescentSimulator;
+import dr.evolution.coalescent.ConstantPopulation;
+import dr.evolution.tree.NodeRef;
+import dr.evolution.tree.TreeUtils;
+import dr.evolution.util.Taxa;
+import dr.evolution.util.Taxon;
+import dr.evolution.util.Units;
+import dr.evomodel.operators.ExchangeOperator;
+import dr.evomodel.operators.SubtreeSlideOperator;
+import dr.evomodel.operators.WilsonBalding;
+import dr.evomodel.tree.TreeModel;
+import dr.inference.operators.AdaptationMode;
+import dr.inference.operators.SimpleMCMCOperator;
+import dr.math.MathUtils;
+import junit.framework.TestCase;
+
+/**
+ * Makes random topology and height changes to a TreeModel and checks that restoring the model
+ * state gives back exactly the tree that was stored (compared to a copy taken at the store).
+ *
+ * @author Andrew Rambaut
+ */
+public class TreeModelJournalTest extends TestCase {
+
+    private static final int TAXON_COUNT = 30;
+    private static final int CYCLE_COUNT = 2000;
+
+    private TreeModel treeModel;
+    private SimpleMCMCOperator[] operators;
+
+    public void setUp() throws Exception {
+        super.setUp();
+
+        MathUtils.setSeed(666);
+
+        Taxa taxa = new Taxa();
+        for (int i = 0; i < TAXON_COUNT; i++) {
+            taxa.addTaxon(new Taxon("taxon" + i));
+        }
+        ConstantPopulation constant = new ConstantPopulation(Units.Type.YEARS);
+        constant.setN0(10.0);
+        treeModel = new TreeModel(new CoalescentSimulator().simulateTree(taxa, constant));
+
+        operators = new SimpleMCMCOperator[]{
+                new ExchangeOperator(ExchangeOperator.NARROW, treeModel, 1.0),
+                new ExchangeOperator(ExchangeOperator.WIDE, treeModel, 1.0),
+                new WilsonBalding(treeModel, 1.0),
+                new SubtreeSlideOperator(treeModel, 1.0, 1.0, true, false, false, false,
+                        AdaptationMode.ADAPTATION_OFF, 0.234)
+        };
+    }
+
+    public void testRestore() {
+        for (int cycle = 0; cycle < CYCLE_COUNT; cycle++) {
+            TreeCopy stored = new TreeCopy(treeModel);
+            treeModel.storeModelState();
+
+            final int editCount = 1 + MathUtils.nextInt(4);
+            for (int e = 0; e < editCount; e++) {
+                if (MathUtils.nextBoolean()) {
+                    operators[MathUtils.nextInt(operators.length)].doOperation();
+                } else {
+                    changeHeight();
+                }
+            }
+
+            if (MathUtils.nextInt(4) == 0) {
+                // accepted, so the next store starts from the changed tree
+                treeModel.acceptModelState();
+            } else {
+                treeModel.restoreModelState();
+                stored.assertSame(treeModel);
+            }
+        }
+    }
+
+    public void testFailedRemoveChild() {
+        TreeCopy stored = new TreeCopy(treeModel);
+        treeModel.storeModelState();
+
+        treeModel.beginTreeEdit();
+        TreeModel.Node tip = (TreeModel.Node) treeModel.getExternalNode(0);
+        TreeModel.Node parent = (TreeModel.Node) treeModel.getParent(tip);
+        try {
+            tip.removeChild(0);
+            fail("a tip has no children");
+        } catch (IllegalArgumentException iae) {
+            // expected
+        }
+        try {
+            parent.removeChild(2);
+            fail("a node has two children");
+        } catch (IllegalArgumentException iae) {
+            // expected
+        }
+        try {
+            parent.removeChild((TreeModel.Node) treeModel.getRoot());
+            fail("the root is not a child");
+        } catch (IllegalArgumentException iae) {
+            // expected
+        }
+        parent.removeChild(tip);
+        parent.addChild(tip);
+        treeModel.endTreeEdit();
+
+        treeModel.restoreModelState();
+        stored.assertSame(treeModel);
+    }
+
+    /**
+     * Moves the height of a random internal node between those of its oldest child and its parent.
+     */
+    private void changeHeight() {
+        NodeRef node = treeModel.getInternalNode(MathUtils.nextInt(treeModel.getInternalNodeCount()));
+        double lower = Math.max(treeModel.getNodeHeight(treeModel.getChild(node, 0)),
+                treeModel.getNodeHeight(treeModel.getChild(node, 1)));
+        double upper = (treeModel.isRoot(node) ? 2.0 * treeModel.getNodeHeight(node) - lower :
+                treeModel.getNodeHeight(treeModel.getParent(node)));
+        treeModel.setNodeHeight(node, lower + MathUtils.nextDouble() * (upper - lower));
+    }
+
+    /**
+     * A deep copy of the links and heights of the nodes, by node number.
+     */
+    private static class TreeCopy {
+
+        TreeCopy(TreeModel tree) {
+            final int nodeCount = tree.getNodeCount();
+            root = tree.getRoot().getNumber();
+            parents = new int[nodeCount];
+            children = new int[nodeCount][];
+            heights = new double[nodeCount];
+            for (int i = 0; i < nodeCount; i++) {
+                NodeRef node = tree.getNode(i);
+                parents[i] = (tree.isRoot(node) ? -1 : tree.getParent(node).getNumber());
+                children[i] = new int[tree.getChildCount(node)];
+                for (int j = 0; j < children[i].length; j++) {
+                    children[i][j] = tree.getChild(node, j).getNumber();
+                }
+                heights[i] = tree.getNodeHeight(node);
+            }
+            newick = TreeUtils.newick(tree);
+        }
+
+        void assertSame(TreeModel tree) {
+            TreeCopy restored = new TreeCopy(tree);
+            assertEquals(root, restored.root);
+            for (int i = 0; i < parents.length; i++) {
+                assertEquals(parents[i], restored.parents[i]);
+                assertEquals(children[i].length, restored.children[i].length);
+                for (int j = 0; j < children[i].length; j++) {
+                    assertEquals(children[i][j], restored.children[i][j]);
+                }
+                assertEquals(heights[i], restored.heights[i], 0.0);
+            }
+            assertEquals(newick, restored.newick);
+        }
+
+        private final int root;
+        private final int[] parents;
+        private final int[][] children;
+        private final double[] heights;
+        private final String newick;
+    }
+}
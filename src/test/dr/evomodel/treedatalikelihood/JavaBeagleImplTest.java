@@ -0,0 +1,426 @@
+/*
+ * JavaBeagleImplTest.java
+ *
+ * Copyright (c) 2002-2020 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package test.dr.evomodel.treedatalikelihood;
+
+import beagle.Beagle;
+import dr.evolution.datatype.Nucleotides;
+import dr.evomodel.substmodel.ComplexColtEigenSystem;
+import dr.evomodel.substmodel.EigenDecomposition;
+import dr.evomodel.substmodel.FrequencyModel;
+import dr.evomodel.substmodel.nucleotide.HKY;
+import dr.evomodel.treedatalikelihood.JavaBeagleImpl;
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+/**
+ * Checks the pure Java BEAGLE implementation against direct computation on the three-taxon tree
+ * ((0, 1)3, 2)4, and the derivatives against finite differences.
+ *
+ * @author Marc A. Suchard
+ */
+public class JavaBeagleImplTest extends TestCase {
+
+    private static final int PATTERN_COUNT = 500;
+    private static final int CATEGORY_COUNT = 2;
+    private static final double TOLERANCE = 1E-10;
+
+    private static final double[] FREQUENCIES = {0.1, 0.2, 0.3, 0.4};
+    private static final double[] CATEGORY_RATES = {0.5, 1.5};
+    private static final double[] CATEGORY_WEIGHTS = {0.5, 0.5};
+
+    public void testRootLikelihood() {
+        // 4 states uses the unrolled kernels, 5 and 20 the general ones (with odd and even row counts)
+        for (int stateCount : new int[]{4, 5, 20}) {
+            Random random = new Random(666);
+
+            double[][] matrices = new double[4][];
+            for (int b = 0; b < 4; b++) {
+                matrices[b] = randomMatrices(random, stateCount);
+            }
+            int[][] states = new int[2][PATTERN_COUNT];
+            for (int k = 0; k < PATTERN_COUNT; k++) {
+                states[0][k] = random.nextInt(stateCount + 1); // including gaps
+                states[1][k] = random.nextInt(stateCount);
+            }
+            double[] tipPartials = new double[PATTERN_COUNT * stateCount];
+            for (int n = 0; n < tipPartials.length; n++) {
+                tipPartials[n] = random.nextDouble();
+            }
+            double[] frequencies = new double[stateCount];
+            for (int i = 0; i < stateCount; i++) {
+                frequencies[i] = 1.0 / stateCount;
+            }
+
+            double expected = 0.0;
+            for (int k = 0; k < PATTERN_COUNT; k++) {
+                double sum = 0.0;
+                for (int l = 0; l < CATEGORY_COUNT; l++) {
+                    int offset = l * stateCount * stateCount;
+                    for (int r = 0; r < stateCount; r++) {
+                        double left = 0.0;
+                        for (int s = 0; s < stateCount; s++) {
+                            double p0 = states[0][k] < stateCount ? matrices[0][offset + s * stateCount + states[0][k]] : 1.0;
+                            double p1 = matrices[1][offset + s * stateCount + states[1][k]];
+                            left += matrices[3][offset + r * stateCount + s] * p0 * p1;
+                        }
+                        double right = 0.0;
+                        for (int s = 0; s < stateCount; s++) {
+                            right += matrices[2][offset + r * stateCount + s] * tipPartials[k * stateCount + s];
+                        }
+                        sum += CATEGORY_WEIGHTS[l] * frequencies[r] * left * right;
+                    }
+                }
+                expected += Math.log(sum);
+            }
+
+            double single = rootLikelihood(1, stateCount, matrices, states, tipPartials, frequencies);
+            double multiple = rootLikelihood(3, stateCount, matrices, states, tipPartials, frequencies);
+
+            assertEquals(expected, single, TOLERANCE * Math.abs(expected));
+            assertEquals(single, multiple, 0.0);
+        }
+    }
+
+    public void testTransitionMatrices() {
+        HKY hky = new HKY(2.0, new FrequencyModel(Nucleotides.INSTANCE, FREQUENCIES));
+        JavaBeagleImpl beagle = createInstance(4);
+        setEigenDecomposition(beagle, hky);
+
+        double[] edgeLengths = {0.05, 0.3};
+        beagle.updateTransitionMatrices(0, new int[]{0, 1}, new int[]{2, 3}, null, edgeLengths, 2);
+
+        double[] matrix = new double[CATEGORY_COUNT * 16];
+        double[] derivative = new double[CATEGORY_COUNT * 16];
+        double[] expected = new double[16];
+        double[] plus = new double[16];
+        double[] minus = new double[16];
+        double h = 1E-6;
+
+        for (int b = 0; b < edgeLengths.length; b++) {
+            beagle.getTransitionMatrix(b, matrix);
+            beagle.getTransitionMatrix(b + 2, derivative);
+            for (int l = 0; l < CATEGORY_COUNT; l++) {
+                double rate = CATEGORY_RATES[l];
+                hky.getTransitionProbabilities(edgeLengths[b] * rate, expected);
+                hky.getTransitionProbabilities((edgeLengths[b] + h) * rate, plus);
+                hky.getTransitionProbabilities((edgeLengths[b] - h) * rate, minus);
+                for (int n = 0; n < 16; n++) {
+                    assertEquals(expected[n], matrix[l * 16 + n], TOLERANCE);
+                    assertEquals((plus[n] - minus[n]) / (2 * h), derivative[l * 16 + n], 1E-6);
+                }
+            }
+        }
+    }
+
+    public void testEdgeDifferentials() {
+        HKY hky = new HKY(2.0, new FrequencyModel(Nucleotides.INSTANCE, FREQUENCIES));
+        Random random = new Random(42);
+
+        int[][] states = new int[3][PATTERN_COUNT];
+        for (int t = 0; t < 3; t++) {
+            for (int k = 0; k < PATTERN_COUNT; k++) {
+                states[t][k] = random.nextInt(4);
+            }
+        }
+        double[] edgeLengths = {0.1, 0.2, 0.3, 0.15};
+
+        JavaBeagleImpl beagle = createInstance(4);
+        setEigenDecomposition(beagle, hky);
+        double logL = postOrder(beagle, states, edgeLengths);
+
+        // differential matrix Q scaled by the category rates
+        double[] q = new double[16];
+        hky.getInfinitesimalMatrix(q);
+        double[] differential = new double[CATEGORY_COUNT * 16];
+        for (int l = 0; l < CATEGORY_COUNT; l++) {
+            for (int n = 0; n < 16; n++) {
+                differential[l * 16 + n] = q[n] * CATEGORY_RATES[l];
+            }
+        }
+        beagle.setDifferentialMatrix(7, differential);
+
+        // pre-order partials: root (buffer 9) = frequencies, then node 3 (buffer 8) and tip 0 (buffer 5)
+        beagle.setRootPrePartials(new int[]{9}, new int[]{0}, 1);
+        beagle.updatePrePartials(new int[]{
+                8, Beagle.NONE, Beagle.NONE, 9, 3, 2, 2,
+                5, Beagle.NONE, Beagle.NONE, 8, 0, 1, 1}, 2, Beagle.NONE);
+
+        double[] sum = new double[2];
+        double[] sumSquared = new double[2];
+        beagle.calculateEdgeDifferentials(new int[]{3, 0}, new int[]{8, 5}, new int[]{7, 7}, new int[]{0}, 2,
+                null, sum, sumSquared);
+
+        double h = 1E-6;
+        for (int e = 0; e < 2; e++) {
+            int branch = (e == 0 ? 3 : 0);
+            double[] shifted = edgeLengths.clone();
+            shifted[branch] += h;
+            double plus = postOrder(beagle, states, shifted);
+            shifted[branch] -= 2 * h;
+            double minus = postOrder(beagle, states, shifted);
+            assertEquals((plus - minus) / (2 * h), sum[e], 1E-4);
+            assertTrue(sumSquared[e] > 0.0);
+        }
+        postOrder(beagle, states, edgeLengths);
+        assertEquals(logL, postOrder(beagle, states, edgeLengths), 0.0);
+    }
+
+    public void testComplexTransitionMatrices() {
+        // an irreversible rate matrix with a complex conjugate pair of eigenvalues
+        double[][] q = {
+                {-1.1, 1.0, 0.05, 0.05},
+                {0.05, -1.1, 1.0, 0.05},
+                {0.05, 0.05, -1.1, 1.0},
+                {1.0, 0.05, 0.05, -1.1}};
+        EigenDecomposition ed = new ComplexColtEigenSystem(4).decomposeMatrix(q);
+        boolean complex = false;
+        for (int i = 4; i < 8; i++) {
+            complex |= ed.getEigenValues()[i] != 0.0;
+        }
+        assertTrue(complex);
+
+        JavaBeagleImpl beagle = createInstance(4);
+        beagle.setEigenDecomposition(0, ed.getEigenVectors(), ed.getInverseEigenVectors(), ed.getEigenValues());
+
+        double h = 1E-5;
+        double t = 0.4;
+        beagle.updateTransitionMatrices(0, new int[]{0, 1, 2}, new int[]{3, Beagle.NONE, Beagle.NONE},
+                new int[]{4, Beagle.NONE, Beagle.NONE}, new double[]{t, t + h, t - h}, 3);
+
+        double[][] matrices = new double[5][CATEGORY_COUNT * 16];
+        for (int b = 0; b < 5; b++) {
+            beagle.getTransitionMatrix(b, matrices[b]);
+        }
+        double[] expected = new double[16];
+        for (int l = 0; l < CATEGORY_COUNT; l++) {
+            new ComplexColtEigenSystem(4).computeExponential(ed, t * CATEGORY_RATES[l], expected);
+            for (int n = 0; n < 16; n++) {
+                int x = l * 16 + n;
+                assertEquals(expected[n], matrices[0][x], TOLERANCE);
+                assertEquals((matrices[1][x] - matrices[2][x]) / (2 * h), matrices[3][x], 1E-6);
+                assertEquals((matrices[1][x] - 2 * matrices[0][x] + matrices[2][x]) / (h * h), matrices[4][x], 1E-3);
+            }
+        }
+    }
+
+    public void testEdgeDerivative() {
+        HKY hky = new HKY(2.0, new FrequencyModel(Nucleotides.INSTANCE, FREQUENCIES));
+        Random random = new Random(42);
+
+        int[][] states = new int[3][PATTERN_COUNT];
+        for (int t = 0; t < 3; t++) {
+            for (int k = 0; k < PATTERN_COUNT; k++) {
+                states[t][k] = random.nextInt(4);
+            }
+        }
+        double[] edgeLengths = {0.1, 0.2, 0.3, 0.15};
+
+        JavaBeagleImpl beagle = createInstance(4);
+        setEigenDecomposition(beagle, hky);
+        double logL = postOrder(beagle, states, edgeLengths);
+
+        // the first and second differentials, Q and Q^2 scaled by the category rates
+        double[] q = new double[16];
+        hky.getInfinitesimalMatrix(q);
+        double[] first = new double[CATEGORY_COUNT * 16];
+        double[] second = new double[CATEGORY_COUNT * 16];
+        for (int l = 0; l < CATEGORY_COUNT; l++) {
+            double rate = CATEGORY_RATES[l];
+            for (int i = 0; i < 4; i++) {
+                for (int j = 0; j < 4; j++) {
+                    first[l * 16 + i * 4 + j] = q[i * 4 + j] * rate;
+                    for (int k = 0; k < 4; k++) {
+                        second[l * 16 + i * 4 + j] += q[i * 4 + k] * q[k * 4 + j] * rate * rate;
+                    }
+                }
+            }
+        }
+        beagle.setDifferentialMatrix(6, first);
+        beagle.setDifferentialMatrix(7, second);
+
+        beagle.setRootPrePartials(new int[]{9}, new int[]{0}, 1);
+        beagle.updatePrePartials(new int[]{
+                8, Beagle.NONE, Beagle.NONE, 9, 3, 2, 2,
+                5, Beagle.NONE, Beagle.NONE, 8, 0, 1, 1}, 2, Beagle.NONE);
+
+        double[] firstDerivatives = new double[2];
+        double[] secondDerivatives = new double[2];
+        beagle.calculateEdgeDerivative(new int[]{3, 0}, new int[]{8, 5}, 4, new int[]{6, 6}, new int[]{7, 7},
+                0, 0, 0, null, 2, firstDerivatives, secondDerivatives);
+
+        double h = 1E-4;
+        for (int e = 0; e < 2; e++) {
+            int branch = (e == 0 ? 3 : 0);
+            double[] shifted = edgeLengths.clone();
+            shifted[branch] += h;
+            double plus = postOrder(beagle, states, shifted);
+            shifted[branch] -= 2 * h;
+            double minus = postOrder(beagle, states, shifted);
+            assertEquals((plus - minus) / (2 * h), firstDerivatives[e], 1E-4 * Math.abs(firstDerivatives[e]));
+            assertEquals((plus - 2 * logL + minus) / (h * h), secondDerivatives[e], 1E-3 * Math.abs(secondDerivatives[e]));
+        }
+    }
+
+    public void testPartitions() {
+        HKY hky = new HKY(2.0, new FrequencyModel(Nucleotides.INSTANCE, FREQUENCIES));
+        Random random = new Random(7);
+
+        int[][] states = new int[3][PATTERN_COUNT];
+        for (int t = 0; t < 3; t++) {
+            for (int k = 0; k < PATTERN_COUNT; k++) {
+                states[t][k] = random.nextInt(5);
+            }
+        }
+        double[] edgeLengths = {0.1, 0.2, 0.3, 0.15};
+
+        // the whole alignment, with scaling, and its site log likelihoods
+        JavaBeagleImpl beagle = createInstance(4);
+        setEigenDecomposition(beagle, hky);
+        for (int t = 0; t < 3; t++) {
+            beagle.setTipStates(t, states[t]);
+        }
+        beagle.setStateFrequencies(0, FREQUENCIES);
+        beagle.updateTransitionMatrices(0, new int[]{0, 1, 2, 3}, null, null, edgeLengths, 4);
+        beagle.resetScaleFactors(2);
+        beagle.updatePartials(new int[]{
+                3, 0, Beagle.NONE, 0, 0, 1, 1,
+                4, 1, Beagle.NONE, 3, 3, 2, 2}, 2, 2);
+        double[] logL = new double[1];
+        beagle.calculateRootLogLikelihoods(new int[]{4}, new int[]{0}, new int[]{0}, new int[]{2}, 1, logL);
+        double[] siteLogLikelihoods = new double[PATTERN_COUNT];
+        beagle.getSiteLogLikelihoods(siteLogLikelihoods);
+
+        // two partitions sharing the buffers, with scaling applied separately
+        int split = PATTERN_COUNT / 3;
+        int[] patternPartitions = new int[PATTERN_COUNT];
+        for (int k = split; k < PATTERN_COUNT; k++) {
+            patternPartitions[k] = 1;
+        }
+        JavaBeagleImpl partitioned = createInstance(4);
+        partitioned.setCPUThreadCount(3);
+        setEigenDecomposition(partitioned, hky);
+        for (int t = 0; t < 3; t++) {
+            partitioned.setTipStates(t, states[t]);
+        }
+        partitioned.setStateFrequencies(0, FREQUENCIES);
+        partitioned.setPatternPartitions(2, patternPartitions);
+        partitioned.updateTransitionMatrices(0, new int[]{0, 1, 2, 3}, null, null, edgeLengths, 4);
+        partitioned.updatePartialsByPartition(new int[]{
+                3, 0, Beagle.NONE, 0, 0, 1, 1, 0, Beagle.NONE,
+                3, 0, Beagle.NONE, 0, 0, 1, 1, 1, Beagle.NONE,
+                4, 1, Beagle.NONE, 3, 3, 2, 2, 0, Beagle.NONE,
+                4, 1, Beagle.NONE, 3, 3, 2, 2, 1, Beagle.NONE}, 4);
+        for (int p = 0; p < 2; p++) {
+            partitioned.resetScaleFactorsByPartition(2, p);
+            partitioned.accumulateScaleFactorsByPartition(new int[]{0, 1}, 2, 2, p);
+        }
+
+        double[] partitionLogL = new double[2];
+        double[] sumLogL = new double[1];
+        partitioned.calculateRootLogLikelihoodsByPartition(new int[]{4, 4}, new int[]{0, 0}, new int[]{0, 0},
+                new int[]{2, 2}, new int[]{0, 1}, 2, 1, partitionLogL, sumLogL);
+
+        double expected0 = 0.0;
+        double expected1 = 0.0;
+        for (int k = 0; k < PATTERN_COUNT; k++) {
+            if (k < split) {
+                expected0 += siteLogLikelihoods[k];
+            } else {
+                expected1 += siteLogLikelihoods[k];
+            }
+        }
+        assertEquals(expected0, partitionLogL[0], TOLERANCE * Math.abs(expected0));
+        assertEquals(expected1, partitionLogL[1], TOLERANCE * Math.abs(expected1));
+        assertEquals(logL[0], sumLogL[0], TOLERANCE * Math.abs(logL[0]));
+
+        // only the second partition
+        partitioned.removeScaleFactorsByPartition(new int[]{1}, 1, 2, 1);
+        partitioned.accumulateScaleFactorsByPartition(new int[]{1}, 1, 2, 1);
+        partitioned.calculateRootLogLikelihoodsByPartition(new int[]{4}, new int[]{0}, new int[]{0},
+                new int[]{2}, new int[]{1}, 1, 1, partitionLogL, sumLogL);
+        assertEquals(expected1, sumLogL[0], TOLERANCE * Math.abs(expected1));
+    }
+
+    private double rootLikelihood(int threadCount, int stateCount, double[][] matrices, int[][] states,
+                                  double[] tipPartials, double[] frequencies) {
+        JavaBeagleImpl beagle = createInstance(stateCount);
+        beagle.setCPUThreadCount(threadCount);
+
+        beagle.setTipStates(0, states[0]);
+        beagle.setTipStates(1, states[1]);
+        beagle.setTipPartials(2, tipPartials);
+        for (int b = 0; b < 4; b++) {
+            beagle.setTransitionMatrix(b, matrices[b], 1.0);
+        }
+        beagle.setStateFrequencies(0, frequencies);
+
+        beagle.resetScaleFactors(2);
+        beagle.updatePartials(new int[]{
+                3, 0, Beagle.NONE, 0, 0, 1, 1,
+                4, 1, Beagle.NONE, 3, 3, 2, 2}, 2, 2);
+
+        double[] logL = new double[1];
+        beagle.calculateRootLogLikelihoods(new int[]{4}, new int[]{0}, new int[]{0}, new int[]{2}, 1, logL);
+        return logL[0];
+    }
+
+    private double postOrder(JavaBeagleImpl beagle, int[][] states, double[] edgeLengths) {
+        for (int t = 0; t < 3; t++) {
+            beagle.setTipStates(t, states[t]);
+        }
+        beagle.setStateFrequencies(0, FREQUENCIES);
+        beagle.updateTransitionMatrices(0, new int[]{0, 1, 2, 3}, null, null, edgeLengths, 4);
+        beagle.updatePartials(new int[]{
+                3, Beagle.NONE, Beagle.NONE, 0, 0, 1, 1,
+                4, Beagle.NONE, Beagle.NONE, 3, 3, 2, 2}, 2, Beagle.NONE);
+
+        double[] logL = new double[1];
+        beagle.calculateRootLogLikelihoods(new int[]{4}, new int[]{0}, new int[]{0}, new int[]{Beagle.NONE}, 1, logL);
+        return logL[0];
+    }
+
+    private static JavaBeagleImpl createInstance(int stateCount) {
+        JavaBeagleImpl beagle = new JavaBeagleImpl(3, 10, 3, stateCount, PATTERN_COUNT, 1, 8,
+                CATEGORY_COUNT, 3, 0);
+        beagle.setCategoryRates(CATEGORY_RATES);
+        beagle.setCategoryWeights(0, CATEGORY_WEIGHTS);
+        return beagle;
+    }
+
+    private static void setEigenDecomposition(JavaBeagleImpl beagle, HKY hky) {
+        EigenDecomposition ed = hky.getEigenDecomposition();
+        beagle.setEigenDecomposition(0, ed.getEigenVectors(), ed.getInverseEigenVectors(), ed.getEigenValues());
+    }
+
+    private static double[] randomMatrices(Random random, int stateCount) {
+        double[] matrices = new double[CATEGORY_COUNT * stateCount * stateCount];
+        for (int n = 0; n < matrices.length; n++) {
+            matrices[n] = random.nextDouble();
+        }
+        return matrices;
+    }
+}
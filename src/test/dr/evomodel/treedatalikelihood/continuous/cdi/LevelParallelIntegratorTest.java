@@ -0,0 +1,162 @@
+package test.dr.evomodel.treedatalikelihood.continuous.cdi;
+
+import dr.evomodel.treedatalikelihood.continuous.cdi.ContinuousDiffusionIntegrator;
+import dr.evomodel.treedatalikelihood.continuous.cdi.MultivariateIntegrator;
+import dr.evomodel.treedatalikelihood.continuous.cdi.PrecisionType;
+import dr.evomodel.treedatalikelihood.continuous.cdi.SafeMultivariateIntegrator;
+import dr.util.SharedThreadPool;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks that the post-order partials and root log likelihoods calculated a level at a time on several
+ * threads are identical to the serial ones, on a random tree with many levels and several traits.
+ *
+ * @author Marc A. Suchard
+ */
+public class LevelParallelIntegratorTest extends TestCase {
+
+    private static final int TIP_COUNT = 60;
+    private static final int NODE_COUNT = 2 * TIP_COUNT - 1;
+    private static final int NUM_TRAITS = 3;
+    private static final int DIM_TRAIT = 2;
+    private static final int THREAD_COUNT = 4;
+
+    private static final double[] DIFFUSION_PRECISION = {2.0, 0.5, 0.5, 1.0};
+
+    private final PrecisionType precisionType = PrecisionType.FULL;
+    private final int dimPartial = NUM_TRAITS * (DIM_TRAIT + precisionType.getMatrixLength(DIM_TRAIT));
+    private final int priorBuffer = NODE_COUNT;
+
+    private int[] operations;
+    private double[] edgeLengths;
+    private double[][] tipPartials;
+    private double[] priorPartial;
+    private int root;
+
+    public void setUp() throws Exception {
+        super.setUp();
+
+        // more threads than there are traits, so that the updates near the root are split into blocks of traits
+        if (System.getProperty(SharedThreadPool.THREAD_COUNT_PROPERTY) == null) {
+            System.setProperty(SharedThreadPool.THREAD_COUNT_PROPERTY, Integer.toString(THREAD_COUNT));
+        }
+
+        Random random = new Random(666);
+
+        // join random pairs of the nodes that have no parent yet, so the levels are uneven
+        List<Integer> orphans = new ArrayList<Integer>();
+        for (int i = 0; i < TIP_COUNT; i++) {
+            orphans.add(i);
+        }
+        operations = new int[(TIP_COUNT - 1) * ContinuousDiffusionIntegrator.OPERATION_TUPLE_SIZE];
+        int offset = 0;
+        for (int node = TIP_COUNT; node < NODE_COUNT; node++) {
+            int child1 = orphans.remove(random.nextInt(orphans.size()));
+            int child2 = orphans.remove(random.nextInt(orphans.size()));
+            operations[offset] = node;
+            operations[offset + 1] = child1;
+            operations[offset + 2] = child1;
+            operations[offset + 3] = child2;
+            operations[offset + 4] = child2;
+            offset += ContinuousDiffusionIntegrator.OPERATION_TUPLE_SIZE;
+            orphans.add(node);
+        }
+        root = NODE_COUNT - 1;
+
+        edgeLengths = new double[NODE_COUNT];
+        for (int i = 0; i < NODE_COUNT; i++) {
+            edgeLengths[i] = 0.1 + random.nextDouble();
+        }
+
+        // observed tips, with some values missing
+        tipPartials = new double[TIP_COUNT][dimPartial];
+        for (int i = 0; i < TIP_COUNT; i++) {
+            for (int trait = 0; trait < NUM_TRAITS; trait++) {
+                int partialOffset = trait * dimPartial / NUM_TRAITS;
+                int effectiveDimension = 0;
+                for (int j = 0; j < DIM_TRAIT; j++) {
+                    boolean missing = random.nextDouble() < 0.1;
+                    tipPartials[i][partialOffset + j] = missing ? 0.0 : random.nextGaussian();
+                    precisionType.fillPrecisionInPartials(tipPartials[i], partialOffset, j,
+                            PrecisionType.getObservedPrecisionValue(missing), DIM_TRAIT);
+                    if (!missing) {
+                        effectiveDimension++;
+                    }
+                }
+                precisionType.fillEffDimInPartials(tipPartials[i], partialOffset, effectiveDimension, DIM_TRAIT);
+            }
+        }
+
+        // a conjugate prior on the root
+        priorPartial = new double[dimPartial];
+        for (int trait = 0; trait < NUM_TRAITS; trait++) {
+            int partialOffset = trait * dimPartial / NUM_TRAITS;
+            for (int j = 0; j < DIM_TRAIT; j++) {
+                priorPartial[partialOffset + j] = 0.5;
+                precisionType.fillPrecisionInPartials(priorPartial, partialOffset, j, 0.1, DIM_TRAIT);
+            }
+            precisionType.fillEffDimInPartials(priorPartial, partialOffset, DIM_TRAIT, DIM_TRAIT);
+        }
+    }
+
+    public void testMultivariateIntegrator() {
+        assertSameAsSerial(new MultivariateIntegrator(precisionType, NUM_TRAITS, DIM_TRAIT, DIM_TRAIT, NODE_COUNT + 1, 1),
+                new MultivariateIntegrator(precisionType, NUM_TRAITS, DIM_TRAIT, DIM_TRAIT, NODE_COUNT + 1, 1));
+    }
+
+    public void testSafeMultivariateIntegrator() {
+        assertSameAsSerial(new SafeMultivariateIntegrator(precisionType, NUM_TRAITS, DIM_TRAIT, DIM_TRAIT, NODE_COUNT + 1, 1),
+                new SafeMultivariateIntegrator(precisionType, NUM_TRAITS, DIM_TRAIT, DIM_TRAIT, NODE_COUNT + 1, 1));
+    }
+
+    private void assertSameAsSerial(ContinuousDiffusionIntegrator.Basic serial, ContinuousDiffusionIntegrator.Basic threaded) {
+        threaded.setThreadCount(THREAD_COUNT);
+
+        double[] serialLogLikelihoods = calculate(serial);
+        double[] threadedLogLikelihoods = calculate(threaded);
+
+        double[] serialPartial = new double[dimPartial];
+        double[] threadedPartial = new double[dimPartial];
+        for (int node = TIP_COUNT; node < NODE_COUNT; node++) {
+            serial.getPostOrderPartial(node, serialPartial);
+            threaded.getPostOrderPartial(node, threadedPartial);
+            for (int k = 0; k < dimPartial; k++) {
+                assertEquals(serialPartial[k], threadedPartial[k], 0.0);
+            }
+        }
+
+        for (int trait = 0; trait < NUM_TRAITS; trait++) {
+            assertFalse(Double.isNaN(serialLogLikelihoods[trait]) || Double.isInfinite(serialLogLikelihoods[trait]));
+            assertEquals(serialLogLikelihoods[trait], threadedLogLikelihoods[trait], 0.0);
+        }
+    }
+
+    private double[] calculate(ContinuousDiffusionIntegrator integrator) {
+        for (int i = 0; i < TIP_COUNT; i++) {
+            integrator.setPostOrderPartial(i, tipPartials[i]);
+        }
+        integrator.setPostOrderPartial(priorBuffer, priorPartial);
+
+        double logDeterminant = Math.log(DIFFUSION_PRECISION[0] * DIFFUSION_PRECISION[3] -
+                DIFFUSION_PRECISION[1] * DIFFUSION_PRECISION[2]);
+        integrator.setDiffusionPrecision(0, DIFFUSION_PRECISION, logDeterminant);
+
+        int[] branches = new int[NODE_COUNT - 1];
+        double[] lengths = new double[NODE_COUNT - 1];
+        for (int i = 0; i < NODE_COUNT - 1; i++) {
+            branches[i] = i;
+            lengths[i] = edgeLengths[i];
+        }
+        integrator.updateBrownianDiffusionMatrices(0, branches, lengths, null, branches.length);
+
+        integrator.updatePostOrderPartials(operations, TIP_COUNT - 1, 0, true, false);
+
+        double[] logLikelihoods = new double[NUM_TRAITS];
+        integrator.calculateRootLogLikelihood(root, priorBuffer, 0, logLikelihoods, false, false);
+        return logLikelihoods;
+    }
+}
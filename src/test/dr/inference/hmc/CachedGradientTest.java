@@ -0,0 +1,57 @@
+package test.dr.inference.hmc;
+
+import dr.inference.distribution.DistributionLikelihood;
+import dr.inference.hmc.CachedGradient;
+import dr.inference.hmc.GradientWrtParameterProvider;
+import dr.inference.model.GradientProvider;
+import dr.inference.model.Parameter;
+import dr.math.distributions.NormalDistribution;
+import junit.framework.TestCase;
+
+/**
+ * Tests that a cached gradient is only recomputed when the state changes.
+ */
+public class CachedGradientTest extends TestCase {
+
+    private int evaluationCount = 0;
+
+    public void testCaching() {
+        final Parameter parameter = new Parameter.Default(new double[]{1.0, 2.0});
+        DistributionLikelihood likelihood = new DistributionLikelihood(new NormalDistribution(0.0, 1.0));
+        likelihood.addData(parameter);
+
+        CachedGradient gradient = new CachedGradient(new GradientWrtParameterProvider.ParameterWrapper(
+                new GradientProvider() {
+                    public int getDimension() {
+                        return parameter.getDimension();
+                    }
+
+                    public double[] getGradientLogDensity(Object x) {
+                        evaluationCount++;
+                        double[] values = (double[]) x;
+                        double[] result = new double[values.length];
+                        for (int i = 0; i < values.length; i++) {
+                            result[i] = -values[i];
+                        }
+                        return result;
+                    }
+                }, parameter, likelihood));
+
+        double[] first = gradient.getGradientLogDensity();
+        first[0] = 100.0; // callers may write into the array they are given
+        double[] second = gradient.getGradientLogDensity();
+        assertEquals(1, evaluationCount);
+        assertEquals(-1.0, second[0], 0.0);
+
+        parameter.setParameterValue(0, 3.0);
+        assertEquals(-3.0, gradient.getGradientLogDensity()[0], 0.0);
+        assertEquals(2, evaluationCount);
+
+        parameter.storeParameterValues();
+        parameter.setParameterValue(1, 4.0);
+        assertEquals(-4.0, gradient.getGradientLogDensity()[1], 0.0);
+        parameter.restoreParameterValues();
+        assertEquals(-2.0, gradient.getGradientLogDensity()[1], 0.0);
+        assertEquals(4, evaluationCount);
+    }
+}
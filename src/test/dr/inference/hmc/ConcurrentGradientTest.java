@@ -0,0 +1,149 @@
+package test.dr.inference.hmc;
+
+import dr.inference.distribution.DistributionLikelihood;
+import dr.inference.distribution.NormalDistributionModel;
+import dr.inference.hmc.CompoundDerivative;
+import dr.inference.hmc.GradientWrtParameterProvider;
+import dr.inference.hmc.SumDerivative;
+import dr.inference.model.CompoundModel;
+import dr.inference.model.DummyLikelihood;
+import dr.inference.model.GradientProvider;
+import dr.inference.model.Likelihood;
+import dr.inference.model.Parameter;
+import dr.math.distributions.NormalDistribution;
+import dr.util.SharedThreadPool;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests that the compound and summed gradients are the same when the components are evaluated concurrently.
+ */
+public class ConcurrentGradientTest extends TestCase {
+
+    public void setUp() throws Exception {
+        super.setUp();
+
+        // more than one thread even on a single processor, so that the components can overlap
+        if (System.getProperty(SharedThreadPool.THREAD_COUNT_PROPERTY) == null) {
+            System.setProperty(SharedThreadPool.THREAD_COUNT_PROPERTY, "4");
+        }
+    }
+
+    public void testCompoundGradient() {
+        Likelihood shared = new DistributionLikelihood(new NormalDistribution(0.0, 1.0));
+
+        List<GradientWrtParameterProvider> gradients = new ArrayList<GradientWrtParameterProvider>();
+        gradients.add(createGradient(new double[]{1.0, 2.0}, 2.0, shared));
+        gradients.add(createGradient(new double[]{3.0}, 3.0, new DistributionLikelihood(new NormalDistribution(0.0, 1.0))));
+        gradients.add(createGradient(new double[]{4.0, 5.0, 6.0}, 4.0, shared));
+
+        double[] serial = new CompoundDerivative(gradients).getGradientLogDensity();
+        double[] concurrent = new CompoundDerivative(gradients, -1).getGradientLogDensity();
+
+        assertEquals(6, concurrent.length);
+        for (int i = 0; i < serial.length; i++) {
+            assertEquals(serial[i], concurrent[i], 0.0);
+        }
+        assertEquals(-20.0, concurrent[4], 0.0);
+    }
+
+    public void testSumDerivative() {
+        Parameter parameter = new Parameter.Default(new double[]{1.0, 2.0, 3.0});
+
+        List<GradientWrtParameterProvider> gradients = new ArrayList<GradientWrtParameterProvider>();
+        for (int i = 1; i <= 4; i++) {
+            gradients.add(createGradient(parameter, i, new DistributionLikelihood(new NormalDistribution(0.0, 1.0))));
+        }
+
+        double[] serial = new SumDerivative(gradients).getGradientLogDensity();
+        double[] concurrent = new SumDerivative(gradients, 2).getGradientLogDensity();
+
+        for (int i = 0; i < serial.length; i++) {
+            assertEquals(serial[i], concurrent[i], 0.0);
+            assertEquals(-10.0 * (i + 1), concurrent[i], 0.0);
+        }
+    }
+
+    public void testSharedModel() {
+        // two likelihoods that depend on the same model (one through a compound model) and one
+        // that doesn't
+        NormalDistributionModel shared = new NormalDistributionModel(
+                new Parameter.Default(0.0), new Parameter.Default(1.0));
+        CompoundModel compound = new CompoundModel("compound");
+        compound.addModel(shared);
+
+        final AtomicInteger running = new AtomicInteger(0);
+        final AtomicInteger maxRunning = new AtomicInteger(0);
+
+        List<GradientWrtParameterProvider> gradients = new ArrayList<GradientWrtParameterProvider>();
+        gradients.add(createSlowGradient(new DummyLikelihood(shared), running, maxRunning));
+        gradients.add(createGradient(new double[]{1.0}, 1.0,
+                new DummyLikelihood(new NormalDistributionModel(new Parameter.Default(0.0), new Parameter.Default(1.0)))));
+        gradients.add(createSlowGradient(new DummyLikelihood(compound), running, maxRunning));
+
+        CompoundDerivative concurrent = new CompoundDerivative(gradients, -1);
+        for (int k = 0; k < 5; k++) {
+            double[] gradient = concurrent.getGradientLogDensity();
+            assertEquals(3, gradient.length);
+            assertEquals(-1.0, gradient[1], 0.0);
+        }
+
+        // the two components over the shared model are never evaluated at the same time
+        assertEquals(1, maxRunning.get());
+    }
+
+    /**
+     * A gradient of zero that takes a while and records how many such gradients run at once.
+     */
+    private static GradientWrtParameterProvider createSlowGradient(Likelihood likelihood,
+                                                                   final AtomicInteger running,
+                                                                   final AtomicInteger maxRunning) {
+        return new GradientWrtParameterProvider.ParameterWrapper(new GradientProvider() {
+            public int getDimension() {
+                return 1;
+            }
+
+            public double[] getGradientLogDensity(Object x) {
+                int count = running.incrementAndGet();
+                while (maxRunning.get() < count) {
+                    maxRunning.compareAndSet(maxRunning.get(), count);
+                }
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+                running.decrementAndGet();
+                return new double[1];
+            }
+        }, new Parameter.Default(1.0), likelihood);
+    }
+
+    private static GradientWrtParameterProvider createGradient(double[] values, double scale, Likelihood likelihood) {
+        return createGradient(new Parameter.Default(values), scale, likelihood);
+    }
+
+    /**
+     * The gradient of -scale * x^2 / 2
+     */
+    private static GradientWrtParameterProvider createGradient(final Parameter parameter, final double scale,
+                                                               Likelihood likelihood) {
+        return new GradientWrtParameterProvider.ParameterWrapper(new GradientProvider() {
+            public int getDimension() {
+                return parameter.getDimension();
+            }
+
+            public double[] getGradientLogDensity(Object x) {
+                double[] values = (double[]) x;
+                double[] gradient = new double[values.length];
+                for (int i = 0; i < values.length; i++) {
+                    gradient[i] = -scale * values[i];
+                }
+                return gradient;
+            }
+        }, parameter, likelihood);
+    }
+}
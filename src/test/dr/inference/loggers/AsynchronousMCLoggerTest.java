@@ -0,0 +1,133 @@
+package test.dr.inference.loggers;
+
+import dr.inference.loggers.AsynchronousMCLogger;
+import dr.inference.loggers.LogColumn;
+import dr.inference.loggers.MCLogger;
+import dr.inference.loggers.NumberColumn;
+import dr.inference.loggers.TabDelimitedFormatter;
+import junit.framework.TestCase;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * Checks that the asynchronous logger writes the same rows as the synchronous one, in order, and
+ * that all the rows are written by the time stopLogging() returns.
+ *
+ * @author Andrew Rambaut
+ */
+public class AsynchronousMCLoggerTest extends TestCase {
+
+    private static final int STATE_COUNT = 10000;
+    private static final int LOG_EVERY = 10;
+
+    public void testSameOutput() {
+        String expected = runLogger(false);
+        String actual = runLogger(true);
+
+        // the labels and one row per logged state
+        assertEquals(STATE_COUNT / LOG_EVERY + 1, actual.split("\n").length);
+        assertEquals(expected, actual);
+    }
+
+    public void testOrder() {
+        String[] lines = runLogger(true).split("\n");
+        long previous = -LOG_EVERY;
+        for (int i = 1; i < lines.length; i++) {
+            long state = Long.parseLong(lines[i].split("\t")[0]);
+            assertEquals(previous + LOG_EVERY, state);
+            previous = state;
+        }
+        assertEquals(STATE_COUNT - LOG_EVERY, previous);
+    }
+
+    public void testWriterError() throws InterruptedException {
+        // a formatter that fails with an Error (not a RuntimeException) part way through
+        final TabDelimitedFormatter formatter = new TabDelimitedFormatter(new PrintWriter(new StringWriter())) {
+            public void logValues(String[] values) {
+                if (++rowCount > 10) {
+                    throw new AssertionError("disk full");
+                }
+                super.logValues(values);
+            }
+
+            private int rowCount = 0;
+        };
+
+        final MCLogger logger = new AsynchronousMCLogger(formatter, 1, 4);
+        logger.addColumn(new StateColumn("full", new long[1], -1, -1));
+
+        // the chain must see the error rather than wait for space in the buffer forever
+        final Throwable[] thrown = new Throwable[1];
+        Thread chain = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    logger.startLogging();
+                    for (long state = 0; state < STATE_COUNT; state++) {
+                        logger.log(state);
+                    }
+                    logger.stopLogging();
+                } catch (Throwable t) {
+                    thrown[0] = t;
+                }
+            }
+        });
+        chain.setDaemon(true);
+        chain.start();
+        chain.join(10000);
+
+        assertFalse("the chain is still waiting for the writer", chain.isAlive());
+        assertTrue(thrown[0] instanceof AssertionError);
+        assertEquals("disk full", thrown[0].getMessage());
+    }
+
+    private String runLogger(boolean asynchronous) {
+        StringWriter writer = new StringWriter();
+        TabDelimitedFormatter formatter = new TabDelimitedFormatter(new PrintWriter(writer));
+
+        // a small buffer, so that the chain has to wait for the writer
+        MCLogger logger = (asynchronous ?
+                new AsynchronousMCLogger(formatter, LOG_EVERY, 4) :
+                new MCLogger(formatter, LOG_EVERY, false));
+
+        final long[] state = new long[1];
+
+        // plain number columns (formatted by the writer thread)...
+        logger.addColumn(new StateColumn("full", state, -1, -1));
+        logger.addColumn(new StateColumn("sf", state, 4, -1));
+        logger.addColumn(new StateColumn("dp", state, -1, 2));
+
+        // ...and one that is formatted on the chain's thread
+        logger.addColumn(new LogColumn.Abstract("text") {
+            protected String getFormattedValue() {
+                return "s" + state[0];
+            }
+        });
+
+        logger.startLogging();
+        for (state[0] = 0; state[0] < STATE_COUNT; state[0]++) {
+            logger.log(state[0]);
+        }
+        logger.stopLogging();
+
+        return writer.toString();
+    }
+
+    private static class StateColumn extends NumberColumn {
+        StateColumn(String label, long[] state, int sf, int dp) {
+            super(label);
+            this.state = state;
+            if (sf > 0) {
+                setSignificantFigures(sf);
+            } else if (dp >= 0) {
+                setDecimalPlaces(dp);
+            }
+        }
+
+        public double getDoubleValue() {
+            return Math.sqrt(state[0]) / 7.0;
+        }
+
+        private final long[] state;
+    }
+}
@@ -0,0 +1,237 @@
+package test.dr.inference.loggers;
+
+import dr.inference.loggers.AsynchronousMCLogger;
+import dr.inference.loggers.BinaryLogFormatter;
+import dr.inference.loggers.LogColumn;
+import dr.inference.loggers.LogFormatter;
+import dr.inference.loggers.MCLogger;
+import dr.inference.loggers.NumberColumn;
+import dr.inference.loggers.TabDelimitedFormatter;
+import dr.inference.trace.BinaryLogTraces;
+import dr.inference.trace.LogFileTraces;
+import dr.inference.trace.Trace;
+import junit.framework.TestCase;
+
+import java.io.*;
+
+/**
+ * Writes a log in the binary format and reads it back, compared to the same log read from the
+ * tab-delimited format, including while it is still being written, with a truncated last block
+ * and with the numbers passed as doubles by a logger.
+ *
+ * @author Andrew Rambaut
+ */
+public class BinaryLogFormatterTest extends TestCase {
+
+    private static final int ROWS_PER_BLOCK = 7;
+    private static final int ROW_COUNT = 50;
+    private static final int LOG_EVERY = 100;
+
+    private static final String[] LABELS = {"state", "count", "x", "mixed"};
+
+    private File file;
+
+    public void setUp() throws Exception {
+        super.setUp();
+        file = File.createTempFile("binaryLogFormatterTest", ".blog");
+        file.deleteOnExit();
+    }
+
+    public void tearDown() throws Exception {
+        super.tearDown();
+        file.delete();
+    }
+
+    public void testRoundTrip() throws Exception {
+        BinaryLogFormatter formatter = new BinaryLogFormatter(file, ROWS_PER_BLOCK);
+        logRows(formatter, ROW_COUNT);
+        formatter.stopLogging();
+
+        StringWriter text = new StringWriter();
+        TabDelimitedFormatter textFormatter = new TabDelimitedFormatter(new PrintWriter(text));
+        logRows(textFormatter, ROW_COUNT);
+        textFormatter.stopLogging();
+
+        LogFileTraces expected = new LogFileTraces("text", file);
+        expected.loadTraces(new ByteArrayInputStream(text.toString().getBytes()));
+
+        BinaryLogTraces traces = load(file);
+        assertEquals(ROW_COUNT, traces.getRowCount());
+        assertEquals(1, traces.getComments().size());
+        assertEquals("a comment", traces.getComments().get(0));
+        assertEquals(0, traces.getMaxState() % LOG_EVERY);
+        assertEquals(expected.getMaxState(), traces.getMaxState());
+        assertEquals(expected.getStepSize(), traces.getStepSize());
+
+        assertSameTraces(expected, traces);
+    }
+
+    public void testReadWhileLogging() throws Exception {
+        BinaryLogFormatter formatter = new BinaryLogFormatter(file, ROWS_PER_BLOCK);
+        logRows(formatter, 3 * ROWS_PER_BLOCK - 1);
+
+        // only the complete blocks have been written
+        BinaryLogTraces traces = load(file);
+        assertEquals(2 * ROWS_PER_BLOCK, traces.getRowCount());
+        for (int k = 0; k < traces.getRowCount(); k++) {
+            assertEquals((long) k * LOG_EVERY, traces.getState(k));
+            assertEquals(getX(k), traces.getTrace(1).getValue(k), 0.0);
+        }
+
+        formatter.stopLogging();
+        assertEquals(3 * ROWS_PER_BLOCK - 1, load(file).getRowCount());
+    }
+
+    public void testTruncatedBlock() throws Exception {
+        BinaryLogFormatter formatter = new BinaryLogFormatter(file, ROWS_PER_BLOCK);
+        logRows(formatter, 3 * ROWS_PER_BLOCK);
+        formatter.stopLogging();
+
+        // cut into the values, and then into the header, of the last block
+        for (long cut : new long[]{8, (ROWS_PER_BLOCK * 8 * LABELS.length) + 4}) {
+            File truncated = File.createTempFile("binaryLogFormatterTest", ".blog");
+            truncated.deleteOnExit();
+            copy(file, truncated, file.length() - cut);
+
+            BinaryLogTraces traces = load(truncated);
+            assertEquals(2 * ROWS_PER_BLOCK, traces.getRowCount());
+            assertEquals((2 * ROWS_PER_BLOCK - 1) * LOG_EVERY, traces.getMaxState());
+            truncated.delete();
+        }
+    }
+
+    public void testLoggedNumbers() throws Exception {
+        for (boolean asynchronous : new boolean[]{false, true}) {
+            BinaryLogFormatter formatter = new BinaryLogFormatter(file, ROWS_PER_BLOCK);
+            runLogger(formatter, asynchronous);
+
+            StringWriter text = new StringWriter();
+            runLogger(new TabDelimitedFormatter(new PrintWriter(text)), false);
+
+            LogFileTraces expected = new LogFileTraces("text", file);
+            expected.loadTraces(new ByteArrayInputStream(text.toString().getBytes()));
+
+            BinaryLogTraces traces = load(file);
+            assertEquals(ROW_COUNT, traces.getRowCount());
+            assertEquals(expected.getMaxState(), traces.getMaxState());
+            assertSameTraces(expected, traces);
+
+            // the numbers are stored unformatted, so a column logged to 4 significant figures
+            // has the full values
+            Trace rounded = traces.getTrace(LABELS.length - 1);
+            assertEquals("rounded", rounded.getName());
+            for (int k = 0; k < rounded.getValueCount(); k++) {
+                assertEquals(getX(k), rounded.getValue(k), 0.0);
+            }
+            assertTrue(expected.getTrace(LABELS.length - 1).getValue(7) != getX(7));
+        }
+    }
+
+    /**
+     * The columns of logRows logged by an MCLogger, with an extra one logged to 4 significant
+     * figures (which is real in the binary log and compared separately).
+     */
+    private void runLogger(LogFormatter formatter, boolean asynchronous) {
+        final int[] row = new int[1];
+
+        MCLogger logger = (asynchronous ?
+                new AsynchronousMCLogger(formatter, LOG_EVERY, 4) :
+                new MCLogger(formatter, LOG_EVERY, false));
+        logger.addColumn(new NumberColumn(LABELS[1]) {
+            {
+                setDecimalPlaces(0);
+            }
+
+            public double getDoubleValue() {
+                return row[0] % 5;
+            }
+        });
+        logger.addColumn(new NumberColumn(LABELS[2]) {
+            public double getDoubleValue() {
+                return getX(row[0]);
+            }
+        });
+        logger.addColumn(new LogColumn.Abstract(LABELS[3]) {
+            protected String getFormattedValue() {
+                int k = row[0];
+                return (k < 10 ? Integer.toString(k % 3) : (k % 2 == 0 ? "a" : "b"));
+            }
+        });
+        logger.addColumn(new NumberColumn("rounded", 4) {
+            public double getDoubleValue() {
+                return getX(row[0]);
+            }
+        });
+
+        logger.startLogging();
+        for (row[0] = 0; row[0] < ROW_COUNT; row[0]++) {
+            logger.log((long) row[0] * LOG_EVERY);
+        }
+        logger.stopLogging();
+    }
+
+    /**
+     * The traces of the tab-delimited log, apart from any column named "rounded".
+     */
+    private static void assertSameTraces(LogFileTraces expected, BinaryLogTraces traces) {
+        assertEquals(expected.getTraceCount(), traces.getTraceCount());
+        for (int i = 0; i < traces.getTraceCount(); i++) {
+            Trace expectedTrace = expected.getTrace(i);
+            Trace trace = traces.getTrace(i);
+            assertEquals(expectedTrace.getName(), trace.getName());
+            if (trace.getName().equals("rounded")) {
+                continue;
+            }
+            assertEquals(expectedTrace.getTraceType(), trace.getTraceType());
+            assertEquals(expectedTrace.getValueCount(), trace.getValueCount());
+            for (int k = 0; k < trace.getValueCount(); k++) {
+                if (trace.getTraceType().isCategorical()) {
+                    assertEquals(expectedTrace.getCategoryLabel(k), trace.getCategoryLabel(k));
+                } else {
+                    assertEquals(expectedTrace.getValue(k), trace.getValue(k), 0.0);
+                }
+            }
+        }
+    }
+
+    /**
+     * An integer column, a real column and one that is numeric for the first 10 rows and
+     * categorical after that (so part of a block and a whole block precede the change).
+     */
+    private void logRows(LogFormatter formatter, int rowCount) {
+        formatter.startLogging(null);
+        formatter.logHeading("a comment");
+        formatter.logLabels(LABELS);
+        for (int k = 0; k < rowCount; k++) {
+            formatter.logValues(new String[]{
+                    Integer.toString(k * LOG_EVERY),
+                    Integer.toString(k % 5),
+                    Double.toString(getX(k)),
+                    (k < 10 ? Integer.toString(k % 3) : (k % 2 == 0 ? "a" : "b"))
+            });
+        }
+    }
+
+    private static double getX(int k) {
+        return Math.sin(k * 0.1) * 1000.0;
+    }
+
+    private static BinaryLogTraces load(File file) throws Exception {
+        BinaryLogTraces traces = new BinaryLogTraces("binary", file);
+        traces.loadTraces();
+        return traces;
+    }
+
+    private static void copy(File from, File to, long length) throws IOException {
+        InputStream in = new FileInputStream(from);
+        OutputStream out = new FileOutputStream(to);
+        try {
+            for (long k = 0; k < length; k++) {
+                out.write(in.read());
+            }
+        } finally {
+            in.close();
+            out.close();
+        }
+    }
+}
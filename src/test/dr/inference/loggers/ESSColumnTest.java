@@ -0,0 +1,57 @@
+package test.dr.inference.loggers;
+
+import dr.inference.loggers.ESSColumn;
+import dr.inference.loggers.MCLogger;
+import dr.inference.loggers.NumberColumn;
+import dr.inference.loggers.TabDelimitedFormatter;
+import dr.inference.trace.BatchMeansESS;
+import junit.framework.TestCase;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * Checks that the ESS column gets one sample per logged state from the logger, and that formatting
+ * it doesn't change the estimate.
+ *
+ * @author Andrew Rambaut
+ */
+public class ESSColumnTest extends TestCase {
+
+    private static final int STATE_COUNT = 5000;
+    private static final int LOG_EVERY = 5;
+
+    public void testOneSamplePerLoggedState() {
+        final double[] value = new double[1];
+        NumberColumn column = new NumberColumn("x") {
+            public double getDoubleValue() {
+                return value[0];
+            }
+        };
+        ESSColumn essColumn = new ESSColumn(column);
+
+        MCLogger logger = new MCLogger(new TabDelimitedFormatter(new PrintWriter(new StringWriter())), LOG_EVERY, false);
+        logger.addColumn(column);
+        logger.addColumn(essColumn);
+
+        BatchMeansESS expected = new BatchMeansESS();
+        double x = 0.0;
+
+        logger.startLogging();
+        for (long state = 0; state < STATE_COUNT; state++) {
+            // an autocorrelated trace
+            x = 0.9 * x + Math.sin(state * 0.37);
+            value[0] = x;
+            logger.log(state);
+            if (state % LOG_EVERY == 0) {
+                expected.addValue(x);
+            }
+
+            // rendering the column again must not add a sample
+            essColumn.getFormatted();
+        }
+        logger.stopLogging();
+
+        assertEquals(expected.getESS(), essColumn.getDoubleValue(), 0.0);
+    }
+}
@@ -0,0 +1,171 @@
+package test.dr.inference.markovchain;
+
+import dr.inference.markovchain.Acceptor;
+import dr.inference.markovchain.MarkovChain;
+import dr.inference.model.AbstractModelLikelihood;
+import dr.inference.model.Model;
+import dr.inference.model.Parameter;
+import dr.inference.model.Variable;
+import dr.inference.operators.OperatorSchedule;
+import dr.inference.operators.SimpleMCMCOperator;
+import dr.inference.operators.SimpleOperatorSchedule;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests the sampled full evaluation check of the chain (mcmc.evaluation.frequency): after the
+ * initial test phase every Nth state is fully evaluated, and a state whose cached likelihood
+ * differs from the full evaluation stops the run.
+ *
+ * @author Andrew Rambaut
+ */
+public class MarkovChainTest extends TestCase {
+
+    private static final int FREQUENCY = 7;
+    private static final int LENGTH = 100;
+
+    public void testSampledChecks() {
+        CachedLikelihood likelihood = new CachedLikelihood();
+        MarkovChain chain = createChain(likelihood, -1);
+
+        chain.runChain(LENGTH, true);
+
+        // one full evaluation at the start of the run and then one at each Nth state
+        List<Integer> expected = new ArrayList<Integer>();
+        expected.add(-1);
+        for (int state = 0; state < LENGTH; state += FREQUENCY) {
+            expected.add(state);
+        }
+        assertEquals(expected, likelihood.fullEvaluationStates);
+    }
+
+    public void testSampledCheckFindsMismatch() {
+        // a stale cache at a state that is checked stops the run at that state
+        CachedLikelihood likelihood = new CachedLikelihood();
+        MarkovChain chain = createChain(likelihood, 3 * FREQUENCY);
+
+        try {
+            chain.runChain(LENGTH, true);
+            fail("the mismatch between the cached and the full evaluation wasn't found");
+        } catch (RuntimeException re) {
+            assertTrue(re.getMessage(), re.getMessage().contains("state " + (3 * FREQUENCY)));
+        }
+    }
+
+    public void testUncheckedStatesAreNotEvaluated() {
+        // the same mismatch at a state that isn't checked goes unnoticed
+        CachedLikelihood likelihood = new CachedLikelihood();
+        MarkovChain chain = createChain(likelihood, 3 * FREQUENCY + 1);
+
+        chain.runChain(LENGTH, true);
+        assertEquals(LENGTH / FREQUENCY + 2, likelihood.fullEvaluationStates.size());
+    }
+
+    /**
+     * A chain with no initial test phase, a full evaluation check every FREQUENCY states and a
+     * move that changes the parameter without telling the likelihood at the given state.
+     */
+    private static MarkovChain createChain(CachedLikelihood likelihood, int staleState) {
+        OperatorSchedule schedule = new SimpleOperatorSchedule();
+        schedule.addOperator(new StepOperator(likelihood, staleState));
+
+        Acceptor acceptAll = new Acceptor() {
+            public boolean accept(double oldScore, double newScore, double hastingsRatio, double[] logr) {
+                logr[0] = 0.0;
+                return true;
+            }
+        };
+
+        return new MarkovChain(likelihood, schedule, acceptAll, 0, 1, FREQUENCY, 1E-6, false, false);
+    }
+
+    /**
+     * The log density of a standard normal that is only recalculated when its parameter changes
+     * or it is made dirty. It records the state at which each full evaluation is made.
+     */
+    private static class CachedLikelihood extends AbstractModelLikelihood {
+
+        CachedLikelihood() {
+            super("cached");
+            addVariable(x);
+        }
+
+        protected void handleModelChangedEvent(Model model, Object object, int index) {
+        }
+
+        protected void handleVariableChangedEvent(Variable variable, int index, Parameter.ChangeType type) {
+            likelihoodKnown = false;
+        }
+
+        protected void storeState() {
+            storedLikelihoodKnown = likelihoodKnown;
+            storedLogLikelihood = logLikelihood;
+        }
+
+        protected void restoreState() {
+            likelihoodKnown = storedLikelihoodKnown;
+            logLikelihood = storedLogLikelihood;
+        }
+
+        protected void acceptState() {
+        }
+
+        public Model getModel() {
+            return this;
+        }
+
+        public double getLogLikelihood() {
+            if (!likelihoodKnown) {
+                logLikelihood = -0.5 * x.getParameterValue(0) * x.getParameterValue(0);
+                likelihoodKnown = true;
+            }
+            return logLikelihood;
+        }
+
+        public void makeDirty() {
+            fullEvaluationStates.add(state);
+            likelihoodKnown = false;
+        }
+
+        private final Parameter x = new Parameter.Default(0.0);
+
+        private boolean likelihoodKnown = false;
+        private boolean storedLikelihoodKnown;
+        private double logLikelihood;
+        private double storedLogLikelihood;
+
+        // the state being operated on (-1 before the first move)
+        private int state = -1;
+        private final List<Integer> fullEvaluationStates = new ArrayList<Integer>();
+    }
+
+    private static class StepOperator extends SimpleMCMCOperator {
+
+        StepOperator(CachedLikelihood likelihood, int staleState) {
+            this.likelihood = likelihood;
+            this.staleState = staleState;
+            setWeight(1.0);
+        }
+
+        public String getOperatorName() {
+            return "step";
+        }
+
+        public double doOperation() {
+            likelihood.state++;
+            double value = likelihood.x.getParameterValue(0) + (likelihood.state % 2 == 0 ? 0.5 : -0.5);
+            if (likelihood.state == staleState) {
+                // the likelihood isn't told and keeps its cached value
+                likelihood.x.setParameterValueQuietly(0, value);
+            } else {
+                likelihood.x.setParameterValue(0, value);
+            }
+            return 0.0;
+        }
+
+        private final CachedLikelihood likelihood;
+        private final int staleState;
+    }
+}
@@ -0,0 +1,266 @@
+package test.dr.inference.mcmc;
+
+import dr.app.beast.MarginalLikelihoodReplicaFactory;
+import dr.inference.model.ParameterParser;
+import dr.inference.model.PathLikelihood;
+import dr.inferencexml.MCMCParser;
+import dr.inferencexml.distribution.DistributionLikelihoodParser;
+import dr.inferencexml.distribution.GammaDistributionModelParser;
+import dr.inferencexml.distribution.NormalDistributionModelParser;
+import dr.inferencexml.loggers.LoggerParser;
+import dr.inferencexml.model.CompoundLikelihoodParser;
+import dr.inferencexml.operators.RandomWalkOperatorParser;
+import dr.inferencexml.operators.ScaleOperatorParser;
+import dr.inferencexml.operators.SimpleOperatorScheduleParser;
+import dr.inference.loggers.LogFormatter;
+import dr.inference.loggers.MCLogger;
+import dr.inference.loggers.TabDelimitedFormatter;
+import dr.inference.mcmc.MarginalLikelihoodEstimator;
+import dr.math.MathUtils;
+import dr.xml.XMLParser;
+import junit.framework.TestCase;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Checks that a copy of the model made by parsing the XML again (without the log files and the elements
+ * that have no ids) samples exactly as the original does from the same random number stream, and that
+ * the parallel blocks of path parameters log the same states as a sequential run.
+ *
+ * @author Guy Baele
+ */
+public class MarginalLikelihoodEstimatorTest extends TestCase {
+
+    private static final int STREAM = 42;
+    private static final int PATH_STEPS = 6;
+    private static final int CHAIN_LENGTH = 200;
+    private static final int LOG_EVERY = 10;
+
+    private File directory;
+    private File xmlFile;
+
+    public void setUp() throws Exception {
+        super.setUp();
+
+        MathUtils.setSeed(666);
+
+        directory = File.createTempFile("marginalLikelihoodEstimatorTest", "");
+        directory.delete();
+        directory.mkdir();
+
+        xmlFile = new File(directory, "test.xml");
+        PrintWriter writer = new PrintWriter(new FileWriter(xmlFile));
+        writer.println("<beast>");
+        writer.println("  <distributionLikelihood id=\"samplingDensity\">");
+        writer.println("    <distribution><normalDistributionModel>");
+        writer.println("      <mean><parameter id=\"mu\" value=\"0\"/></mean>");
+        writer.println("      <precision><parameter id=\"tau\" value=\"1\"/></precision>");
+        writer.println("    </normalDistributionModel></distribution>");
+        writer.println("    <data><parameter id=\"x\" value=\"5\"/></data>");
+        writer.println("  </distributionLikelihood>");
+        writer.println("  <distributionLikelihood id=\"meanPrior\">");
+        writer.println("    <distribution><normalDistributionModel>");
+        writer.println("      <mean><parameter value=\"0\"/></mean>");
+        writer.println("      <precision><parameter idref=\"tau\"/></precision>");
+        writer.println("    </normalDistributionModel></distribution>");
+        writer.println("    <data><parameter idref=\"mu\"/></data>");
+        writer.println("  </distributionLikelihood>");
+        writer.println("  <distributionLikelihood id=\"precisionPrior\">");
+        writer.println("    <distribution><gammaDistributionModel><shape>1</shape><scale>1</scale></gammaDistributionModel></distribution>");
+        writer.println("    <data><parameter idref=\"tau\"/></data>");
+        writer.println("  </distributionLikelihood>");
+        writer.println("  <operators id=\"operators\">");
+        writer.println("    <randomWalkOperator windowSize=\"0.75\" weight=\"1\"><parameter idref=\"mu\"/></randomWalkOperator>");
+        writer.println("    <scaleOperator scaleFactor=\"0.75\" weight=\"1\"><parameter idref=\"tau\"/></scaleOperator>");
+        writer.println("  </operators>");
+        writer.println("  <mcmc id=\"mcmc\" chainLength=\"1000\">");
+        writer.println("    <posterior id=\"posterior\">");
+        writer.println("      <likelihood id=\"likelihood\"><distributionLikelihood idref=\"samplingDensity\"/></likelihood>");
+        writer.println("      <prior id=\"prior\">");
+        writer.println("        <distributionLikelihood idref=\"meanPrior\"/>");
+        writer.println("        <distributionLikelihood idref=\"precisionPrior\"/>");
+        writer.println("      </prior>");
+        writer.println("    </posterior>");
+        writer.println("    <operators idref=\"operators\"/>");
+        writer.println("    <log logEvery=\"100\" fileName=\"" + new File(directory, "mcmc.log").getAbsolutePath() + "\">");
+        writer.println("      <parameter idref=\"mu\"/>");
+        writer.println("    </log>");
+        writer.println("  </mcmc>");
+        // no id, so not in the copies
+        writer.println("  <report>a report</report>");
+        writer.println("  <marginalLikelihoodEstimator chainLength=\"" + CHAIN_LENGTH + "\" burnin=\"50\" pathSteps=\"" + PATH_STEPS + "\" pathScheme=\"betaQuantile\" alpha=\"0.3\">");
+        writer.println("    <samplers><mcmc idref=\"mcmc\"/></samplers>");
+        writer.println("    <pathLikelihood id=\"pathLikelihood\">");
+        writer.println("      <source><posterior idref=\"posterior\"/></source>");
+        writer.println("      <destination><prior idref=\"prior\"/></destination>");
+        writer.println("    </pathLikelihood>");
+        writer.println("    <log logEvery=\"" + LOG_EVERY + "\" fileName=\"" + new File(directory, "mle.log").getAbsolutePath() + "\">");
+        writer.println("      <pathLikelihood idref=\"pathLikelihood\"/>");
+        writer.println("      <parameter idref=\"mu\"/>");
+        writer.println("      <parameter idref=\"tau\"/>");
+        writer.println("    </log>");
+        writer.println("  </marginalLikelihoodEstimator>");
+        writer.println("</beast>");
+        writer.close();
+    }
+
+    public void tearDown() throws Exception {
+        super.tearDown();
+        MathUtils.useDefaultStream();
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    public void testReplica() throws Exception {
+        MarginalLikelihoodEstimator estimator = parse();
+        PrintStream out = System.out;
+        ByteArrayOutputStream replicaOutput = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(replicaOutput));
+        MarginalLikelihoodEstimator replica;
+        try {
+            replica = createFactory().createReplica(0);
+        } finally {
+            System.setOut(out);
+        }
+        assertFalse(replicaOutput.toString().contains("a report"));
+        assertNotSame(estimator, replica);
+        assertEquals(estimator.getLoggers().size(), replica.getLoggers().size());
+
+        // both run on the same random numbers from the same starting state
+        MathUtils.useStream(STREAM);
+        int[] streamState = MathUtils.getStreamStates().get(STREAM);
+
+        StringWriter expected = new StringWriter();
+        run(estimator, expected);
+        String[] expectedState = getCurrentValues(estimator);
+
+        MathUtils.setStreamState(STREAM, streamState);
+        StringWriter actual = new StringWriter();
+        run(replica, actual);
+
+        // the labels and the samples of every path parameter
+        final int valueCount = estimator.getLoggers().get(0).getColumnCount() + 1;
+        List<String> rows = getRows(actual, valueCount);
+        assertEquals((PATH_STEPS + 1) * CHAIN_LENGTH / LOG_EVERY + 1, rows.size());
+        assertEquals(getRows(expected, valueCount), rows);
+        assertEquals(Arrays.asList(expectedState), Arrays.asList(getCurrentValues(replica)));
+    }
+
+    public void testParallelBlocks() throws Exception {
+        StringWriter sequential = new StringWriter();
+        run(parse(), sequential);
+
+        MarginalLikelihoodEstimator estimator = parse();
+        estimator.setReplicaFactory(createFactory());
+        estimator.setThreadCount(3);
+        StringWriter parallel = new StringWriter();
+        run(estimator, parallel);
+
+        // the same states and path parameters, in the same order
+        final int valueCount = estimator.getLoggers().get(0).getColumnCount() + 1;
+        List<String> expectedRows = getRows(sequential, valueCount);
+        List<String> rows = getRows(parallel, valueCount);
+        assertEquals(expectedRows.size(), rows.size());
+        assertEquals(expectedRows.get(0), rows.get(0));
+        int thetaColumn = Arrays.asList(rows.get(0).split("\t")).indexOf("pathLikelihood.theta");
+        assertTrue(thetaColumn > 0);
+        for (int i = 1; i < rows.size(); i++) {
+            String[] expectedValues = expectedRows.get(i).split("\t");
+            String[] values = rows.get(i).split("\t");
+            assertEquals(expectedValues[0], values[0]);
+            assertEquals(expectedValues[thetaColumn], values[thetaColumn]);
+        }
+
+        // the blocks have given the thread back its stream
+        assertEquals(-1, MathUtils.getStreamIndex());
+    }
+
+    private MarginalLikelihoodEstimator parse() throws Exception {
+        for (String name : new String[]{"mcmc.log", "mle.log"}) {
+            new File(directory, name).delete();
+        }
+        Reader reader = new FileReader(xmlFile);
+        try {
+            return (MarginalLikelihoodEstimator) createParser().parse(reader, MarginalLikelihoodEstimator.class);
+        } finally {
+            reader.close();
+        }
+    }
+
+    private MarginalLikelihoodReplicaFactory createFactory() {
+        return new MarginalLikelihoodReplicaFactory(xmlFile, null, false, false, null) {
+            @Override
+            protected XMLParser createParser() {
+                return MarginalLikelihoodEstimatorTest.createParser();
+            }
+        };
+    }
+
+    // just the parsers for the elements in the test's XML
+    private static XMLParser createParser() {
+        XMLParser parser = new XMLParser(false, false, false, null);
+        parser.addXMLObjectParser(new ParameterParser());
+        parser.addXMLObjectParser(new DistributionLikelihoodParser());
+        parser.addXMLObjectParser(new NormalDistributionModelParser());
+        parser.addXMLObjectParser(new GammaDistributionModelParser());
+        parser.addXMLObjectParser(new CompoundLikelihoodParser());
+        parser.addXMLObjectParser(new RandomWalkOperatorParser());
+        parser.addXMLObjectParser(new ScaleOperatorParser());
+        parser.addXMLObjectParser(new SimpleOperatorScheduleParser());
+        parser.addXMLObjectParser(new LoggerParser());
+        parser.addXMLObjectParser(new MCMCParser());
+        parser.addXMLObjectParser(PathLikelihood.PARSER);
+        parser.addXMLObjectParser(MarginalLikelihoodEstimator.PARSER);
+        return parser;
+    }
+
+    private static void run(MarginalLikelihoodEstimator estimator, StringWriter writer) {
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(new ByteArrayOutputStream()));
+        try {
+            for (MCLogger logger : estimator.getLoggers()) {
+                logger.setFormatters(new ArrayList<LogFormatter>(Collections.singletonList(
+                        new TabDelimitedFormatter(new PrintWriter(writer)))));
+            }
+            estimator.run();
+            for (MCLogger logger : estimator.getLoggers()) {
+                logger.stopLogging();
+            }
+        } finally {
+            System.setOut(out);
+        }
+    }
+
+    // the lines of the log without the comments (which include the time) or the performance report
+    // that a log to the screen (as in a copy) adds
+    private static List<String> getRows(StringWriter writer, int valueCount) {
+        List<String> rows = new ArrayList<String>();
+        for (String line : writer.toString().split("\n")) {
+            if (!line.startsWith("#")) {
+                String[] values = line.split("\t");
+                StringBuilder row = new StringBuilder(values[0]);
+                for (int i = 1; i < valueCount; i++) {
+                    row.append("\t").append(values[i]);
+                }
+                rows.add(row.toString());
+            }
+        }
+        return rows;
+    }
+
+    // the values of the model when the run ends
+    private static String[] getCurrentValues(MarginalLikelihoodEstimator estimator) {
+        MCLogger logger = estimator.getLoggers().get(0);
+        String[] values = new String[logger.getColumnCount()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = logger.getColumn(i).getFormatted();
+        }
+        return values;
+    }
+}
@@ -0,0 +1,191 @@
+package test.dr.inference.mcmcmc;
+
+import dr.inference.distribution.DistributionLikelihood;
+import dr.inference.distribution.NormalDistributionModel;
+import dr.inference.loggers.ArrayLogFormatter;
+import dr.inference.loggers.Logger;
+import dr.inference.loggers.MCLogger;
+import dr.inference.markovchain.MarkovChain;
+import dr.inference.markovchain.MarkovChainListener;
+import dr.inference.mcmc.MCMC;
+import dr.inference.mcmc.MCMCCriterion;
+import dr.inference.mcmc.MCMCOptions;
+import dr.inference.mcmcmc.MCMCMC;
+import dr.inference.mcmcmc.MCMCMCOptions;
+import dr.inference.model.CompoundLikelihood;
+import dr.inference.model.Likelihood;
+import dr.inference.model.Model;
+import dr.inference.model.Parameter;
+import dr.inference.operators.AdaptationMode;
+import dr.inference.operators.RandomWalkOperator;
+import dr.inference.operators.SimpleOperatorSchedule;
+import dr.math.MathUtils;
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Runs MCMCMC on a small model with 2 and 4 chains and checks that the temperatures are swapped,
+ * that with adjacent swaps only the chains with adjacent temperatures (in the alternating pairs)
+ * exchange them, that a run with the same seed makes the same swaps and that the run finishes.
+ *
+ * @author Andrew Rambaut
+ */
+public class MCMCMCTest extends TestCase {
+
+    private static final int SWAP_EVERY = 10;
+    private static final int CHAIN_LENGTH = 2000;
+    private static final int LOG_EVERY = 100;
+    private static final long TIMEOUT = 60000;
+
+    public void testAdjacentSwapsTwoChains() throws Exception {
+        assertAdjacentSwaps(new double[]{1.0, 0.5});
+    }
+
+    public void testAdjacentSwapsFourChains() throws Exception {
+        assertAdjacentSwaps(new double[]{1.0, 0.5, 0.25, 0.125});
+    }
+
+    public void testBarrierSwapsTwoChains() throws Exception {
+        assertBarrierSwaps(new double[]{1.0, 0.5});
+    }
+
+    public void testBarrierSwapsFourChains() throws Exception {
+        assertBarrierSwaps(new double[]{1.0, 0.5, 0.25, 0.125});
+    }
+
+    private void assertAdjacentSwaps(double[] temperatures) throws Exception {
+        int[][] ranks = run(temperatures, true);
+        assertSwapped(ranks);
+
+        for (int chain = 0; chain < ranks.length; chain++) {
+            for (int interval = 0; interval < ranks[chain].length - 1; interval++) {
+                int rank1 = ranks[chain][interval];
+                int rank2 = ranks[chain][interval + 1];
+                if (rank1 != rank2) {
+                    // only the pairs (0,1), (2,3)... after even intervals and (1,2), (3,4)... after odd ones
+                    assertEquals(1, Math.abs(rank1 - rank2));
+                    assertEquals(interval % 2, Math.min(rank1, rank2) % 2);
+                }
+            }
+        }
+
+        assertTrue(Arrays.deepEquals(ranks, run(temperatures, true)));
+    }
+
+    private void assertBarrierSwaps(double[] temperatures) throws Exception {
+        int[][] ranks = run(temperatures, false);
+        assertSwapped(ranks);
+
+        assertTrue(Arrays.deepEquals(ranks, run(temperatures, false)));
+    }
+
+    /**
+     * At every interval the chains hold all the temperatures between them, and some have changed.
+     */
+    private static void assertSwapped(int[][] ranks) {
+        int swapCount = 0;
+        for (int interval = 0; interval < ranks[0].length; interval++) {
+            boolean[] held = new boolean[ranks.length];
+            for (int chain = 0; chain < ranks.length; chain++) {
+                assertFalse(held[ranks[chain][interval]]);
+                held[ranks[chain][interval]] = true;
+                if (interval > 0 && ranks[chain][interval] != ranks[chain][interval - 1]) {
+                    swapCount++;
+                }
+            }
+        }
+        assertTrue(swapCount > 0);
+    }
+
+    /**
+     * Runs the chains and returns the rank of the temperature (0 being the cold chain) that each
+     * chain had during each swap interval.
+     */
+    private static int[][] run(final double[] temperatures, boolean adjacentSwaps) throws Exception {
+        MathUtils.setSeed(666);
+
+        final int chainCount = temperatures.length;
+        final int intervalCount = CHAIN_LENGTH / SWAP_EVERY;
+        final int[][] ranks = new int[chainCount][intervalCount];
+
+        MCMC[] mcmcs = new MCMC[chainCount];
+        List<ArrayLogFormatter> formatters = new ArrayList<ArrayLogFormatter>();
+        for (int i = 0; i < chainCount; i++) {
+            ArrayLogFormatter formatter = new ArrayLogFormatter(false);
+            formatters.add(formatter);
+            mcmcs[i] = createChain(i, formatter);
+
+            final MarkovChain markovChain = mcmcs[i].getMarkovChain();
+            final int chain = i;
+            markovChain.addMarkovChainListener(new MarkovChainListener() {
+                public void currentState(long state, MarkovChain markovChain, Model currentModel) {
+                    if (state % SWAP_EVERY == 0) {
+                        double temperature = ((MCMCCriterion) markovChain.getAcceptor()).getTemperature();
+                        int rank = 0;
+                        while (temperatures[rank] != temperature) {
+                            rank++;
+                        }
+                        ranks[chain][(int) (state / SWAP_EVERY)] = rank;
+                    }
+                }
+
+                public void bestState(long state, MarkovChain markovChain, Model bestModel) {
+                }
+
+                public void finished(long chainLength, MarkovChain markovChain) {
+                }
+            });
+        }
+
+        final MCMCMC mc3 = new MCMCMC(mcmcs, new MCMCMCOptions(temperatures, SWAP_EVERY, adjacentSwaps));
+        mc3.setShowOperatorAnalysis(false);
+
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(new ByteArrayOutputStream()));
+        Thread thread = new Thread(mc3);
+        try {
+            thread.start();
+            thread.join(TIMEOUT);
+            if (thread.isAlive()) {
+                mc3.pleaseStop();
+                fail("the chains have not finished (deadlocked?)");
+            }
+        } finally {
+            System.setOut(out);
+        }
+
+        // the chains have all finished and the log destinations have followed the cold chain
+        assertEquals(-1, MathUtils.getStreamIndex());
+        assertEquals(CHAIN_LENGTH / LOG_EVERY, formatters.get(0).getTraces().get(0).getValueCount());
+        for (int i = 1; i < chainCount; i++) {
+            assertEquals(0, formatters.get(i).getTraces().size());
+        }
+        return ranks;
+    }
+
+    private static MCMC createChain(int chain, ArrayLogFormatter formatter) {
+        Parameter x = new Parameter.Default("x" + chain, 0.0, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY);
+
+        DistributionLikelihood density = new DistributionLikelihood(new NormalDistributionModel(
+                new Parameter.Default(0.0), new Parameter.Default(1.0)));
+        density.addData(x);
+        Likelihood posterior = new CompoundLikelihood(Collections.<Likelihood>singletonList(density));
+
+        SimpleOperatorSchedule schedule = new SimpleOperatorSchedule();
+        schedule.addOperator(new RandomWalkOperator(x, 1.0, RandomWalkOperator.BoundaryCondition.reflecting, 1.0,
+                AdaptationMode.ADAPTATION_OFF));
+
+        MCLogger logger = new MCLogger(formatter, LOG_EVERY, false);
+        logger.add(x);
+
+        MCMC mcmc = new MCMC("mcmc" + chain);
+        mcmc.init(new MCMCOptions(CHAIN_LENGTH), posterior, schedule, new Logger[]{logger});
+        return mcmc;
+    }
+}
@@ -0,0 +1,98 @@
+package test.dr.inference.model;
+
+import dr.evolution.io.NewickImporter;
+import dr.evolution.tree.Tree;
+import dr.evomodel.tree.TreeChangedEvent;
+import dr.evomodel.tree.TreeModel;
+import dr.inference.model.*;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Tests bulk updates of parameters (setAllParameterValuesQuietly and fireParameterChangedEvent(BitSet)).
+ */
+public class BulkParameterUpdateTest extends TestCase {
+
+    public void testCompoundParameterFiresChangedSubParameters() {
+        Parameter pA = new Parameter.Default(new double[]{0.0, 1.0});
+        Parameter pB = new Parameter.Default(new double[]{2.0, 3.0});
+        Parameter pC = new Parameter.Default(new double[]{4.0, 5.0});
+
+        CompoundParameter compound = new CompoundParameter("compound");
+        compound.addParameter(pA);
+        compound.addParameter(pB);
+        compound.addParameter(pC);
+
+        final List<String> events = new ArrayList<String>();
+        listen(pA, "A", events);
+        listen(pB, "B", events);
+        listen(pC, "C", events);
+        listen(compound, "compound", events);
+
+        compound.setAllParameterValuesQuietly(new double[]{0.0, 11.0, 2.0, 3.0, 14.0, 5.0});
+        assertEquals(11.0, pA.getParameterValue(1));
+        assertEquals(14.0, pC.getParameterValue(0));
+        assertTrue(events.isEmpty());
+
+        BitSet changed = new BitSet();
+        changed.set(1);
+        changed.set(4);
+        compound.fireParameterChangedEvent(changed);
+
+        // B didn't change and the compound parameter has a single event
+        assertEquals(3, events.size());
+        assertEquals("A:1", events.get(0));
+        assertEquals("C:0", events.get(1));
+        assertEquals("compound:-1", events.get(2));
+    }
+
+    public void testTreeCoalescesNodeHeightEvents() throws Exception {
+        Tree tree = new NewickImporter("((((A:1,B:1):1,C:2):1,D:3):1,E:4);").importTree(null);
+        TreeModel treeModel = new TreeModel("treeModel", tree);
+        Parameter heights = treeModel.createNodeHeightsParameter(true, true, false);
+
+        final List<Object> events = new ArrayList<Object>();
+        treeModel.addModelListener(new ModelListener() {
+            public void modelChangedEvent(Model model, Object object, int index) {
+                events.add(object);
+            }
+
+            public void modelRestored(Model model) {
+            }
+        });
+
+        double[] values = heights.getParameterValues();
+        for (int i = 0; i < values.length; i++) {
+            values[i] *= 1.5;
+        }
+        heights.setAllParameterValuesQuietly(values);
+        heights.fireParameterChangedEvent();
+
+        // one event for the whole tree
+        assertEquals(1, events.size());
+        assertTrue(((TreeChangedEvent) events.get(0)).isTreeChanged());
+        assertEquals(6.0, treeModel.getNodeHeight(treeModel.getRoot()));
+
+        events.clear();
+        BitSet changed = new BitSet();
+        changed.set(0);
+        changed.set(1);
+        heights.fireParameterChangedEvent(changed);
+
+        // an event for each of the two nodes
+        assertEquals(2, events.size());
+        assertTrue(((TreeChangedEvent) events.get(0)).isNodeChanged());
+        assertTrue(((TreeChangedEvent) events.get(1)).isNodeChanged());
+    }
+
+    private static void listen(Parameter parameter, final String name, final List<String> events) {
+        parameter.addParameterListener(new VariableListener() {
+            public void variableChangedEvent(Variable variable, int index, Variable.ChangeType type) {
+                events.add(name + ":" + index);
+            }
+        });
+    }
+}
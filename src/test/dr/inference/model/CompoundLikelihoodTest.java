@@ -0,0 +1,104 @@
+package test.dr.inference.model;
+
+import dr.inference.model.CompoundLikelihood;
+import dr.inference.model.Likelihood;
+import dr.inference.model.ThreadAwareLikelihood;
+import dr.util.SharedThreadPool;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests that a compound likelihood evaluated in parallel gives the same log likelihood as one
+ * evaluated serially when only some of its components have changed, and that only those are
+ * recalculated.
+ *
+ * @author Andrew Rambaut
+ */
+public class CompoundLikelihoodTest extends TestCase {
+
+    private static final int CHILD_COUNT = 8;
+    private static final int THREAD_COUNT = 4;
+
+    // past the timed warm up (likelihood.schedule.warmup), so the fixed schedule is used as well
+    private static final int ROUND_COUNT = 2500;
+
+    public void setUp() throws Exception {
+        super.setUp();
+
+        // more than one thread even on a single processor
+        if (System.getProperty(SharedThreadPool.THREAD_COUNT_PROPERTY) == null) {
+            System.setProperty(SharedThreadPool.THREAD_COUNT_PROPERTY, Integer.toString(THREAD_COUNT));
+        }
+    }
+
+    public void testPartiallyDirtyParallelEvaluation() {
+        Random random = new Random(666);
+
+        List<Likelihood> serialChildren = new ArrayList<Likelihood>();
+        List<Likelihood> parallelChildren = new ArrayList<Likelihood>();
+        for (int i = 0; i < CHILD_COUNT; i++) {
+            serialChildren.add(new Child(-i));
+            parallelChildren.add(new Child(-i));
+        }
+
+        CompoundLikelihood serial = new CompoundLikelihood(serialChildren);
+        CompoundLikelihood parallel = new CompoundLikelihood(THREAD_COUNT, parallelChildren);
+        assertEquals(serial.getLogLikelihood(), parallel.getLogLikelihood(), 0.0);
+
+        boolean[] changed = new boolean[CHILD_COUNT];
+        int[] counts = new int[CHILD_COUNT];
+
+        for (int round = 0; round < ROUND_COUNT; round++) {
+            // no, one, some or all of the children change
+            double p = (round % 4) / 3.0;
+            for (int i = 0; i < CHILD_COUNT; i++) {
+                changed[i] = random.nextDouble() < p;
+                if (changed[i]) {
+                    // quarters, so that the sums are exact in any order
+                    double value = -0.25 * random.nextInt(400);
+                    ((Child) serialChildren.get(i)).setValue(value);
+                    ((Child) parallelChildren.get(i)).setValue(value);
+                }
+                counts[i] = ((Child) parallelChildren.get(i)).calculationCount;
+            }
+
+            assertEquals("round " + round, serial.getLogLikelihood(), parallel.getLogLikelihood(), 0.0);
+
+            for (int i = 0; i < CHILD_COUNT; i++) {
+                assertEquals("round " + round + ", child " + i,
+                        counts[i] + (changed[i] ? 1 : 0), ((Child) parallelChildren.get(i)).calculationCount);
+            }
+        }
+    }
+
+    /**
+     * A likelihood with a given value that counts how often it is calculated.
+     */
+    private static class Child extends Likelihood.Abstract implements ThreadAwareLikelihood {
+
+        Child(double value) {
+            super(null);
+            this.value = value;
+        }
+
+        void setValue(double value) {
+            this.value = value;
+            makeDirty();
+        }
+
+        public boolean isLikelihoodKnown() {
+            return getLikelihoodKnown();
+        }
+
+        protected double calculateLogLikelihood() {
+            calculationCount++;
+            return value;
+        }
+
+        private double value;
+        private volatile int calculationCount = 0;
+    }
+}
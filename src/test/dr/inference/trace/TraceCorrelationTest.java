@@ -0,0 +1,114 @@
+/*
+ * TraceCorrelationTest.java
+ *
+ * Copyright (c) 2002-2020 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package test.dr.inference.trace;
+
+import dr.inference.trace.BatchMeansESS;
+import dr.inference.trace.TraceCorrelation;
+import dr.inference.trace.TraceType;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares the ESS of TraceCorrelation with the direct sum over lags, and the online batch means
+ * ESS with that of an AR(1) process, n (1 - phi) / (1 + phi).
+ *
+ * @author Andrew Rambaut
+ */
+public class TraceCorrelationTest extends TestCase {
+
+    public void testESS() {
+        // slowly mixing, so that most of the lags come from the FFT
+        List<Double> values = autoregressive(0.99, 20000, new Random(123));
+        TraceCorrelation correlation = new TraceCorrelation(values, TraceType.REAL, 1);
+
+        double expected = directESS(values, correlation.getMean());
+        assertEquals(expected, correlation.getESS(), 1E-8 * expected);
+    }
+
+    public void testBatchMeansESS() {
+        double phi = 0.9;
+        int n = 100000;
+        int replicates = 10;
+
+        // a single estimate from ~50 batches is noisy, so average over independent chains
+        Random random = new Random(666);
+        double meanESS = 0.0;
+        for (int r = 0; r < replicates; r++) {
+            List<Double> values = autoregressive(phi, n, random);
+
+            BatchMeansESS ess = new BatchMeansESS();
+            for (double value : values) {
+                ess.addValue(value);
+            }
+            assertEquals(n, ess.getCount());
+            assertEquals(new TraceCorrelation(values, TraceType.REAL, 1).getMean(), ess.getMean(), 1E-10);
+
+            meanESS += ess.getESS() / replicates;
+        }
+
+        double expected = n * (1 - phi) / (1 + phi);
+        assertEquals(expected, meanESS, 0.15 * expected);
+    }
+
+    private static List<Double> autoregressive(double phi, int n, Random random) {
+        List<Double> values = new ArrayList<Double>(n);
+        double x = 0.0;
+        for (int i = 0; i < n; i++) {
+            x = phi * x + random.nextGaussian();
+            values.add(x);
+        }
+        return values;
+    }
+
+    // the lag-by-lag estimate, with the same stopping criterion
+    private static double directESS(List<Double> values, double mean) {
+        final int samples = values.size();
+        int maxLag = Math.min(samples - 1, 2000);
+        double[] gammaStat = new double[maxLag];
+        double varStat = 0.0;
+
+        for (int lag = 0; lag < maxLag; lag++) {
+            for (int j = 0; j < samples - lag; j++) {
+                gammaStat[lag] += (values.get(j) - mean) * (values.get(j + lag) - mean);
+            }
+            gammaStat[lag] /= ((double) (samples - lag));
+
+            if (lag == 0) {
+                varStat = gammaStat[0];
+            } else if (lag % 2 == 0) {
+                if (gammaStat[lag - 1] + gammaStat[lag] > 0) {
+                    varStat += 2.0 * (gammaStat[lag - 1] + gammaStat[lag]);
+                } else {
+                    maxLag = lag;
+                }
+            }
+        }
+        return samples * gammaStat[0] / varStat;
+    }
+}
@@ -0,0 +1,80 @@
+package test.dr.math;
+
+import dr.math.MathUtils;
+
+import java.util.Map;
+
+/**
+ * Tests the per-thread random number streams of MathUtils.
+ */
+public class RandomStreamTest extends MathTestCase {
+
+    public void testStreamsAreDeterministic() throws InterruptedException {
+        MathUtils.setSeed(666);
+        double[] first = drawOnThread(3, 100);
+
+        // draws from the default instance and other streams in between don't matter
+        MathUtils.nextDouble();
+        drawOnThread(2, 100);
+
+        MathUtils.setSeed(666);
+        double[] second = drawOnThread(3, 100);
+
+        assertEquals(first, second, 0.0);
+    }
+
+    public void testStreamsAreDistinct() throws InterruptedException {
+        MathUtils.setSeed(666);
+        double[] stream0 = drawOnThread(0, 10);
+        double[] stream1 = drawOnThread(1, 10);
+
+        for (int i = 0; i < stream0.length; i++) {
+            assertFalse(stream0[i] == stream1[i]);
+        }
+    }
+
+    public void testStreamDoesNotTouchDefaultInstance() {
+        MathUtils.setSeed(666);
+        double expected = MathUtils.nextDouble();
+
+        MathUtils.setSeed(666);
+        MathUtils.useStream(0);
+        MathUtils.nextDouble();
+        MathUtils.useDefaultStream();
+
+        assertEquals(expected, MathUtils.nextDouble());
+    }
+
+    public void testStreamState() {
+        MathUtils.setSeed(666);
+        MathUtils.useStream(5);
+        MathUtils.nextGaussian();
+        Map<Integer, int[]> states = MathUtils.getStreamStates();
+
+        double[] expected = new double[10];
+        for (int i = 0; i < expected.length; i++) {
+            expected[i] = MathUtils.nextGaussian();
+        }
+
+        MathUtils.setStreamState(5, states.get(5));
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], MathUtils.nextGaussian());
+        }
+        MathUtils.useDefaultStream();
+    }
+
+    private static double[] drawOnThread(final int stream, int count) throws InterruptedException {
+        final double[] values = new double[count];
+        Thread thread = new Thread() {
+            public void run() {
+                MathUtils.useStream(stream);
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = MathUtils.nextDouble();
+                }
+            }
+        };
+        thread.start();
+        thread.join();
+        return values;
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * CholeskyDecompositionTest.java
+ *
+ * Copyright (c) 2002-2020 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package test.dr.math.matrixAlgebra;
+
+import dr.math.matrixAlgebra.CholeskyDecomposition;
+import dr.math.matrixAlgebra.IllegalDimension;
+import junit.framework.TestCase;
+
+/**
+ * Compares the in-place, flat factorization and its rank-1 update with the two-dimensional decomposition.
+ *
+ * @author Marc A. Suchard
+ */
+public class CholeskyDecompositionTest extends TestCase {
+
+    private static final double TOLERANCE = 1E-10;
+
+    private static final double[][] A = {
+            {4.0, 1.0, 0.5, 0.2},
+            {1.0, 3.0, 0.3, 0.1},
+            {0.5, 0.3, 2.0, 0.4},
+            {0.2, 0.1, 0.4, 1.5}
+    };
+
+    public void testFactorization() throws IllegalDimension {
+        int n = A.length;
+        double[] flat = flatten(A);
+        assertTrue(CholeskyDecomposition.executeUpperInPlace(flat, n, dense(n)));
+
+        double[][] L = new CholeskyDecomposition(A).getL();
+        for (int i = 0; i < n; i++) {
+            for (int j = i; j < n; j++) {
+                assertEquals(L[j][i], flat[i * n + j], TOLERANCE);
+            }
+        }
+
+        double[] notPositiveDefinite = {1.0, 2.0, 2.0, 1.0};
+        assertFalse(CholeskyDecomposition.executeUpperInPlace(notPositiveDefinite, 2, dense(2)));
+    }
+
+    public void testRankOneUpdate() throws IllegalDimension {
+        int n = A.length;
+        double[] x = {0.3, -1.2, 0.7, 2.0};
+
+        double[][] updated = new double[n][n];
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < n; j++) {
+                updated[i][j] = A[i][j] + x[i] * x[j];
+            }
+        }
+
+        double[] flat = flatten(A);
+        CholeskyDecomposition.executeUpperInPlace(flat, n, dense(n));
+        CholeskyDecomposition.rankOneUpdateUpper(flat, n, x.clone(), dense(n));
+
+        double[][] L = new CholeskyDecomposition(updated).getL();
+        for (int i = 0; i < n; i++) {
+            for (int j = i; j < n; j++) {
+                assertEquals(L[j][i], flat[i * n + j], TOLERANCE);
+            }
+        }
+    }
+
+    public void testBlockDiagonal() throws IllegalDimension {
+        int n = A.length;
+        int[] blockEnds = {2, 2, 4, 4};
+        double[] x = {0.3, -1.2, 0.7, 2.0};
+
+        double[] flat = flatten(A);
+        CholeskyDecomposition.executeUpperInPlace(flat, n, blockEnds);
+        CholeskyDecomposition.rankOneUpdateUpper(flat, n, x.clone(), blockEnds);
+
+        for (int start = 0; start < n; start += 2) {
+            double[][] block = new double[2][2];
+            for (int i = 0; i < 2; i++) {
+                for (int j = 0; j < 2; j++) {
+                    block[i][j] = A[start + i][start + j] + x[start + i] * x[start + j];
+                }
+            }
+            double[][] L = new CholeskyDecomposition(block).getL();
+            for (int i = 0; i < 2; i++) {
+                for (int j = i; j < 2; j++) {
+                    assertEquals(L[j][i], flat[(start + i) * n + start + j], TOLERANCE);
+                }
+            }
+        }
+    }
+
+    private static double[] flatten(double[][] matrix) {
+        int n = matrix.length;
+        double[] flat = new double[n * n];
+        for (int i = 0; i < n; i++) {
+            System.arraycopy(matrix[i], 0, flat, i * n, n);
+        }
+        return flat;
+    }
+
+    private static int[] dense(int n) {
+        int[] blockEnds = new int[n];
+        for (int i = 0; i < n; i++) {
+            blockEnds[i] = n;
+        }
+        return blockEnds;
+    }
+}
@@ -0,0 +1,86 @@
+package test.dr.multidimensionalscaling;
+
+import dr.inference.multidimensionalscaling.MultiDimensionalScalingCore;
+import dr.inference.multidimensionalscaling.MultiDimensionalScalingCoreImpl;
+import dr.inference.multidimensionalscaling.MultiThreadedMDSImpl;
+import dr.math.MathUtils;
+import test.dr.math.MathTestCase;
+
+/**
+ * Compares the multithreaded MDS core with the serial one through location moves and store/restore.
+ */
+public class MultiThreadedMDSTest extends MathTestCase {
+
+    private static final int DIMENSION = 2;
+    private static final int LOCATION_COUNT = 30;
+
+    public void testUntruncated() {
+        compareCores(0);
+    }
+
+    public void testLeftTruncated() {
+        compareCores(MultiDimensionalScalingCore.LEFT_TRUNCATION);
+    }
+
+    private void compareCores(long flags) {
+        MathUtils.setSeed(666);
+
+        MultiDimensionalScalingCore serial = new MultiDimensionalScalingCoreImpl();
+        MultiDimensionalScalingCore threaded = new MultiThreadedMDSImpl();
+
+        double[] observations = new double[LOCATION_COUNT * LOCATION_COUNT];
+        for (int i = 0; i < LOCATION_COUNT; i++) {
+            for (int j = i + 1; j < LOCATION_COUNT; j++) {
+                double d = 5.0 * MathUtils.nextDouble();
+                observations[i * LOCATION_COUNT + j] = d;
+                observations[j * LOCATION_COUNT + i] = d;
+            }
+        }
+        double[] locations = new double[LOCATION_COUNT * DIMENSION];
+        for (int i = 0; i < locations.length; i++) {
+            locations[i] = MathUtils.nextGaussian();
+        }
+
+        for (MultiDimensionalScalingCore core : new MultiDimensionalScalingCore[]{serial, threaded}) {
+            core.initialize(DIMENSION, LOCATION_COUNT, flags);
+            core.setPairwiseData(observations);
+            core.setParameters(new double[]{2.0});
+            core.updateLocation(-1, locations);
+        }
+        assertEquals(serial.calculateLogLikelihood(), threaded.calculateLogLikelihood(), 1E-10);
+
+        for (int step = 0; step < 200; step++) {
+            serial.storeState();
+            threaded.storeState();
+
+            int moves = 1 + MathUtils.nextInt(3);
+            for (int m = 0; m < moves; m++) {
+                int index = MathUtils.nextInt(LOCATION_COUNT);
+                double[] location = new double[DIMENSION];
+                for (int k = 0; k < DIMENSION; k++) {
+                    location[k] = MathUtils.nextGaussian();
+                }
+                serial.updateLocation(index, location);
+                threaded.updateLocation(index, location);
+            }
+            if (step % 10 == 0) {
+                double[] precision = new double[]{0.5 + MathUtils.nextDouble()};
+                serial.setParameters(precision);
+                threaded.setParameters(precision);
+            }
+
+            assertEquals(serial.calculateLogLikelihood(), threaded.calculateLogLikelihood(), 1E-10);
+
+            if (MathUtils.nextBoolean()) {
+                serial.restoreState();
+                threaded.restoreState();
+                assertEquals(serial.calculateLogLikelihood(), threaded.calculateLogLikelihood(), 1E-10);
+            } else {
+                serial.acceptState();
+                threaded.acceptState();
+            }
+        }
+
+        assertEquals(serial.getPairwiseData(), threaded.getPairwiseData(), 0.0);
+    }
+}
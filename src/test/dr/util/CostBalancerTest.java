@@ -0,0 +1,120 @@
+/*
+ * CostBalancerTest.java
+ *
+ * Copyright (c) 2002-2020 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package test.dr.util;
+
+import dr.util.CostBalancer;
+import junit.framework.TestCase;
+
+/**
+ * Tests the longest-processing-time packing of CostBalancer on cost vectors with known bins,
+ * and repacking into the same workspace as the costs change.
+ *
+ * @author Andrew Rambaut
+ */
+public class CostBalancerTest extends TestCase {
+
+    private static final int CAPACITY = 8;
+
+    private final int[] order = new int[CAPACITY];
+    private final double[] binLoads = new double[CAPACITY];
+    private final int[] assignment = new int[CAPACITY];
+
+    public void testBalancedPacking() {
+        // 7 and 5 start the bins, 4 joins the 5, the tied 3s go in task order and the 2 evens it up
+        pack(new double[]{7, 5, 4, 3, 3, 2}, 6, 2);
+        assertAssignment(new int[]{0, 1, 1, 0, 1, 0});
+        assertLoads(new double[]{12, 12});
+    }
+
+    public void testGreedyPacking() {
+        // LPT gives 7 + 5 where 6 + 6 is possible (within its 4/3 bound)
+        pack(new double[]{3, 3, 2, 2, 2}, 5, 2);
+        assertAssignment(new int[]{0, 1, 0, 1, 0});
+        assertLoads(new double[]{7, 5});
+    }
+
+    public void testFewerTasksThanCosts() {
+        // only the first three costs are packed
+        pack(new double[]{1, 9, 9, 100}, 3, 2);
+        assertAssignment(new int[]{0, 0, 1});
+        assertLoads(new double[]{10, 9});
+    }
+
+    public void testMoreBinsThanTasks() {
+        pack(new double[]{5, 1}, 2, 3);
+        assertAssignment(new int[]{0, 1});
+        assertLoads(new double[]{5, 1, 0});
+    }
+
+    public void testRepacking() {
+        // the workspace is reused as the costs change, as in the periodic repacking of a
+        // CompoundLikelihood's schedule, so nothing may carry over from the previous packing
+        pack(new double[]{7, 5, 4, 3, 3, 2}, 6, 2);
+        assertAssignment(new int[]{0, 1, 1, 0, 1, 0});
+
+        pack(new double[]{2, 3, 3, 4, 5, 7}, 6, 2);
+        assertAssignment(new int[]{0, 0, 1, 1, 1, 0});
+        assertLoads(new double[]{12, 12});
+        assertOrder(new int[]{5, 4, 3, 1, 2, 0});
+
+        pack(new double[]{1, 2, 30, 40, 50, 70}, 2, 2);
+        assertAssignment(new int[]{1, 0});
+        assertLoads(new double[]{2, 1});
+        assertOrder(new int[]{1, 0});
+
+        pack(new double[]{4, 4, 4, 4}, 4, 4);
+        assertAssignment(new int[]{0, 1, 2, 3});
+        assertLoads(new double[]{4, 4, 4, 4});
+    }
+
+    public void testLightestBin() {
+        assertEquals(2, CostBalancer.getLightestBin(new double[]{3, 2, 1, 1}, 4));
+        assertEquals(1, CostBalancer.getLightestBin(new double[]{3, 2, 1, 1}, 2));
+        assertEquals(0, CostBalancer.getLightestBin(new double[]{0, 0}, 2));
+    }
+
+    private void pack(double[] costs, int taskCount, int binCount) {
+        CostBalancer.pack(costs, taskCount, binCount, order, binLoads, assignment);
+    }
+
+    private void assertAssignment(int[] expected) {
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals("task " + i, expected[i], assignment[i]);
+        }
+    }
+
+    private void assertLoads(double[] expected) {
+        for (int b = 0; b < expected.length; b++) {
+            assertEquals("bin " + b, expected[b], binLoads[b], 0.0);
+        }
+    }
+
+    private void assertOrder(int[] expected) {
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals("position " + i, expected[i], order[i]);
+        }
+    }
+}